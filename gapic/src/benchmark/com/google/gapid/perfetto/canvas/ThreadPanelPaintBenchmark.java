@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.canvas;
+
+import com.google.common.collect.Lists;
+import com.google.gapid.widgets.Theme;
+
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.RGBA;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Shell;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures painting the slices of a dense, zooming and panning, thread panel, with the labels
+ * fitted by the truncation loop that measured the candidate labels on every paint, and with the
+ * labels fitted by {@link Fonts.Context#fit}. Also checks that both fit the same labels.
+ */
+public class ThreadPanelPaintBenchmark {
+  private static final double WIDTH = 1920;
+  private static final int DEPTHS = 20;
+  // The slice height of the thread panel.
+  private static final double SLICE_HEIGHT = 17;
+  private static final int NAMES = 500;
+  private static final int WARMUP = 50;
+  private static final int FRAMES = 200;
+  private static final int TEXT_SIZE_GREEDINESS = 3;
+
+  private static final RGBA[] COLORS = {
+      new RGBA(0x4c, 0xaf, 0x50, 255), new RGBA(0x21, 0x96, 0xf3, 255),
+      new RGBA(0xff, 0x98, 0x00, 255), new RGBA(0x9c, 0x27, 0xb0, 255),
+  };
+  private static final RGBA TEXT = new RGBA(0, 0, 0, 255);
+
+  private final List<Slice> slices = Lists.newArrayList();
+
+  private ThreadPanelPaintBenchmark() {
+    // Slices of 1px to 400px, distributed evenly on a log scale, with a skewed choice of names,
+    // spanning twice the panel width, so that the panel is still full once zoomed and panned.
+    Random random = new Random(42);
+    String[] names = new String[NAMES];
+    for (int i = 0; i < NAMES; i++) {
+      names[i] = "com.example.app.module" + (i % 37) + ".Class" + i + ".method" + (i * 7 % 13) +
+          ((i % 3 == 0) ? "(java.lang.String, int)" : "()");
+    }
+    for (int depth = 0; depth < DEPTHS; depth++) {
+      for (double x = 0; x < 2 * WIDTH; ) {
+        double w = Math.exp(random.nextDouble() * Math.log(400));
+        slices.add(new Slice(x, w, depth, names[random.nextInt(random.nextInt(NAMES) + 1)]));
+        x += w + 2 * random.nextDouble();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    Display display = new Display();
+    Shell shell = new Shell(display);
+    Theme theme = Theme.load(display);
+    try {
+      new ThreadPanelPaintBenchmark().run(shell, theme);
+    } finally {
+      theme.dispose();
+      display.dispose();
+    }
+  }
+
+  private void run(Shell shell, Theme theme) {
+    System.out.println(slices.size() + " slices, " + FRAMES + " frames");
+
+    Fonts.Context fonts = new Fonts.Context(shell);
+    try {
+      checkLabels(fonts);
+      System.out.println(String.format("Label fitting: before %.2fms/frame, after %.2fms/frame",
+          measure(f -> fitLabels(fonts, f, false)), measure(f -> fitLabels(fonts, f, true))));
+    } finally {
+      fonts.dispose();
+    }
+
+    RenderContext.Global context = new RenderContext.Global(theme, shell);
+    Image image = new Image(shell.getDisplay(), (int)Math.ceil(RenderContext.scale * WIDTH),
+        (int)Math.ceil(RenderContext.scale * (DEPTHS + 1) * SLICE_HEIGHT));
+    GC gc = new GC(image);
+    try {
+      System.out.println(String.format("Painting: before %.2fms/frame, after %.2fms/frame",
+          measure(f -> paint(context, gc, f, false)), measure(f -> paint(context, gc, f, true))));
+    } finally {
+      gc.dispose();
+      image.dispose();
+    }
+  }
+
+  // Returns the average time of a frame, in milliseconds, after warming up.
+  private static double measure(Frame frame) {
+    long total = 0;
+    for (int i = 0; i < WARMUP + FRAMES; i++) {
+      long start = System.nanoTime();
+      frame.run(i % FRAMES);
+      if (i >= WARMUP) {
+        total += System.nanoTime() - start;
+      }
+    }
+    return total / 1e6 / FRAMES;
+  }
+
+  private void checkLabels(Fonts.Context fonts) {
+    int labels = 0, different = 0;
+    for (int f = 0; f < FRAMES; f++) {
+      for (Slice slice : slices) {
+        double w = slice.width(f);
+        if (w >= 7 && slice.isVisible(f)) {
+          labels++;
+          Fonts.Fit before = fitByMeasuring(fonts, slice.title, w - 4);
+          Fonts.Fit after =
+              fonts.fit(Fonts.Style.Normal, slice.title, w - 4, Fonts.Truncation.Right);
+          if (!before.text.equals(after.text)) {
+            different++;
+          }
+        }
+      }
+    }
+    System.out.println(labels + " labels fitted, " + different + " different");
+  }
+
+  private void fitLabels(Fonts.Context fonts, int frame, boolean cached) {
+    for (Slice slice : slices) {
+      double w = slice.width(frame);
+      if (w >= 7 && slice.isVisible(frame)) {
+        if (cached) {
+          fonts.fit(Fonts.Style.Normal, slice.title, w - 4, Fonts.Truncation.Right);
+        } else {
+          fitByMeasuring(fonts, slice.title, w - 4);
+        }
+      }
+    }
+  }
+
+  // Paints the slices and their labels, the way the thread panel does.
+  private void paint(RenderContext.Global context, GC gc, int frame, boolean cached) {
+    try (RenderContext ctx = context.newContext(gc)) {
+      ctx.batch(batch -> {
+        for (Slice slice : slices) {
+          double x = slice.x(frame), w = Math.max(1, slice.width(frame));
+          double y = (1 + slice.depth) * SLICE_HEIGHT;
+          batch.fillRect(COLORS[slice.title.hashCode() & 3], x, y, w, SLICE_HEIGHT);
+          if (w < 7) {
+            continue;
+          }
+          batch.drawText(TEXT, () -> {
+            if (cached) {
+              ctx.drawText(
+                  Fonts.Style.Normal, slice.title, x + 2, y + 2, w - 4, SLICE_HEIGHT - 4);
+            } else {
+              Fonts.Fit fit = fitByMeasuring(ctx, slice.title, w - 4);
+              if (fit != Fonts.Fit.NONE) {
+                ctx.drawText(Fonts.Style.Normal, fit.text, x + 2 + (w - 4 - fit.size.w) / 2,
+                    y + 2 + (SLICE_HEIGHT - 4 - fit.size.h) / 2);
+              }
+            }
+          });
+        }
+      });
+    }
+  }
+
+  // The truncation loop used before the fitted labels were cached.
+  private static Fonts.Fit fitByMeasuring(Fonts.TextMeasurer m, String text, double w) {
+    String toDisplay = text;
+    for (int l = text.length(); ; ) {
+      Size size = m.measure(Fonts.Style.Normal, toDisplay);
+      if (size.w < w) {
+        return new Fonts.Fit(toDisplay, size);
+      }
+
+      l = Math.min(l - TEXT_SIZE_GREEDINESS, (int)(w / (size.w / toDisplay.length())));
+      if (l <= 0) {
+        return Fonts.Fit.NONE;
+      }
+      toDisplay = text.substring(0, l) + "...";
+    }
+  }
+
+  private static interface Frame {
+    public void run(int frame);
+  }
+
+  private static class Slice {
+    public final double x, w;
+    public final int depth;
+    public final String title;
+
+    public Slice(double x, double w, int depth, String title) {
+      this.x = x;
+      this.w = w;
+      this.depth = depth;
+      this.title = title;
+    }
+
+    // The frames zoom in by 0.2% and pan by 1.37px each.
+    public double x(int frame) {
+      return (x - 1.37 * frame) * (1 + 0.002 * frame);
+    }
+
+    public double width(int frame) {
+      return w * (1 + 0.002 * frame);
+    }
+
+    public boolean isVisible(int frame) {
+      double start = x(frame);
+      return start < WIDTH && start + width(frame) > 0;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import com.google.gapid.perfetto.TimeSpan;
+import com.google.gapid.perfetto.models.Track.DataRequest;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Measures serving the zoomed out data of a counter with a million samples from a
+ * {@link CounterPyramid}, averaged and by {@link Downsampling#M4}, against computing the M4 rows of
+ * each page from the samples, as the M4 query does. The finest level of the pyramid is aggregated
+ * here, the way the pyramid's level query aggregates it on the trace processor.
+ */
+public class CounterDownsamplingBenchmark {
+  private static final int SAMPLES = 1_000_000;
+  private static final long PAGE_PX = 3600;
+  private static final int BUCKET_SIZE_PX = 5;
+  private static final int WARMUP = 5;
+  private static final int ITERATIONS = 20;
+
+  private final long[] ts = new long[SAMPLES];
+  private final long[] dur = new long[SAMPLES];
+  private final double[] values = new double[SAMPLES];
+
+  private CounterDownsamplingBenchmark() {
+    // A noisy signal with rare, short spikes, sampled at irregular intervals of up to 20us.
+    Random random = new Random(42);
+    long t = 0;
+    for (int i = 0; i < SAMPLES; i++) {
+      ts[i] = t;
+      t += 1000 + random.nextInt(19000);
+      dur[i] = t - ts[i];
+      values[i] = 100 + 50 * Math.sin(i / 5000.0) + 10 * random.nextGaussian() +
+          ((random.nextInt(2000) == 0) ? 500 : 0);
+    }
+  }
+
+  public static void main(String[] args) {
+    new CounterDownsamplingBenchmark().run();
+  }
+
+  private void run() {
+    long duration = ts[SAMPLES - 1] + dur[SAMPLES - 1] - ts[0];
+    System.out.println(SAMPLES + " samples over " + duration / 1000000 + "ms");
+
+    CounterPyramid average = build(Track.Window.minQuantum(BUCKET_SIZE_PX), false, duration);
+    CounterPyramid m4 = build(Track.Window.minQuantum(1), true, duration);
+    System.out.println();
+
+    System.out.println("resolution   pages   average (rows/page, us/page)   " +
+        "M4 pyramid (rows/page, us/page)   M4 samples (rows/page, us/page)");
+    for (long res = Track.Window.minQuantum(1); res * PAGE_PX / 2 < duration; res *= 2) {
+      long resolution = res;
+      DataRequest[] pages = pages(resolution, duration);
+      String avg = measure(pages, req -> average.getData(req, resolution * BUCKET_SIZE_PX,
+          Downsampling.AVERAGE));
+      String pyramid = measure(pages, req -> m4.getData(req, resolution, Downsampling.M4));
+      String scan = measure(pages, this::m4FromSamples);
+      System.out.println(String.format("%8dns   %5d   %28s   %31s   %31s",
+          resolution, pages.length, avg, pyramid, scan));
+    }
+  }
+
+  // Aggregates the finest level, with buckets of the smallest power of two multiple of the given
+  // quantum, with at most 64k buckets, and merges the coarser levels.
+  private CounterPyramid build(long minQuantum, boolean withM4, long duration) {
+    long size = minQuantum;
+    while (duration / size > (1 << 16)) {
+      size *= 2;
+    }
+
+    CounterPyramid result = null;
+    long total = 0;
+    for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+      long start = System.nanoTime();
+      result = CounterPyramid.of(aggregate(size, withM4), duration);
+      if (i >= WARMUP) {
+        total += System.nanoTime() - start;
+      }
+    }
+    System.out.println(String.format("%s pyramid: %s, %dKB, built in %.1fms",
+        withM4 ? "M4" : "Average", result, result.getSize() / 1024,
+        total / 1e6 / ITERATIONS));
+    return result;
+  }
+
+  private CounterPyramid.Level aggregate(long size, boolean withM4) {
+    int n = 0;
+    for (int i = 0; i < SAMPLES; i++) {
+      if (i == 0 || ts[i] / size != ts[i - 1] / size) {
+        n++;
+      }
+    }
+
+    long[] buckets = new long[n], starts = new long[n], ends = new long[n], counts = new long[n];
+    double[] sums = new double[n];
+    double[] firsts = new double[n], lasts = new double[n], mins = new double[n];
+    double[] maxs = new double[n];
+    long[] lastTs = new long[n], minTs = new long[n], maxTs = new long[n];
+    for (int i = 0, j = -1; i < SAMPLES; i++) {
+      if (j < 0 || ts[i] / size != buckets[j]) {
+        j++;
+        buckets[j] = ts[i] / size;
+        starts[j] = ts[i];
+        firsts[j] = values[i];
+        minTs[j] = maxTs[j] = ts[i];
+        mins[j] = maxs[j] = values[i];
+      } else if (values[i] < mins[j]) {
+        minTs[j] = ts[i];
+        mins[j] = values[i];
+      } else if (values[i] > maxs[j]) {
+        maxTs[j] = ts[i];
+        maxs[j] = values[i];
+      }
+      ends[j] = Math.max(ends[j], ts[i] + dur[i]);
+      sums[j] += values[i];
+      counts[j]++;
+      lastTs[j] = ts[i];
+      lasts[j] = values[i];
+    }
+
+    CounterPyramid.Level level =
+        new CounterPyramid.Level(size, buckets, starts, ends, sums, counts);
+    if (withM4) {
+      level.setM4(firsts, lastTs, lasts, minTs, mins, maxTs, maxs);
+    }
+    return level;
+  }
+
+  // Computes the M4 rows of the page from the samples overlapping it, i.e. the work the M4 query
+  // does for every page, minus the query's own overhead.
+  private CounterTrack.Data m4FromSamples(DataRequest req) {
+    int first = Arrays.binarySearch(ts, req.range.start);
+    first = (first < 0) ? Math.max(0, -first - 2) : first;
+    long[] rowTs = new long[(int)(4 * PAGE_PX + 4)];
+    double[] rowValues = new double[rowTs.length];
+    int rows = 0, i = first;
+    while (i < SAMPLES && ts[i] <= req.range.end) {
+      long column = ts[i] / req.resolution;
+      int firstIdx = i, lastIdx = i, minIdx = i, maxIdx = i;
+      for (; i < SAMPLES && ts[i] / req.resolution == column; i++) {
+        lastIdx = i;
+        minIdx = (values[i] < values[minIdx]) ? i : minIdx;
+        maxIdx = (values[i] > values[maxIdx]) ? i : maxIdx;
+      }
+      int[] picked = { firstIdx, Math.min(minIdx, maxIdx), Math.max(minIdx, maxIdx), lastIdx };
+      for (int p = 0; p < picked.length; p++) {
+        if (p == 0 || picked[p] != picked[p - 1]) {
+          rowTs[rows] = ts[picked[p]];
+          rowValues[rows++] = values[picked[p]];
+        }
+      }
+    }
+    return new CounterTrack.Data(req, Arrays.copyOf(rowTs, rows), Arrays.copyOf(rowValues, rows));
+  }
+
+  private static DataRequest[] pages(long resolution, long duration) {
+    long size = PAGE_PX * resolution;
+    DataRequest[] pages = new DataRequest[(int)((duration + size - 1) / size)];
+    for (int i = 0; i < pages.length; i++) {
+      pages[i] = new DataRequest(new TimeSpan(i * size, (i + 1) * size), resolution);
+    }
+    return pages;
+  }
+
+  private static String measure(DataRequest[] pages, Function<DataRequest, CounterTrack.Data> f) {
+    long rows = 0, total = 0;
+    for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+      long start = System.nanoTime();
+      rows = 0;
+      for (DataRequest page : pages) {
+        CounterTrack.Data data = f.apply(page);
+        rows += (data == null) ? 0 : data.ts.length;
+      }
+      if (i >= WARMUP) {
+        total += System.nanoTime() - start;
+      }
+    }
+    return String.format("%d, %.1f", rows / pages.length,
+        total / 1e3 / ITERATIONS / pages.length);
+  }
+}
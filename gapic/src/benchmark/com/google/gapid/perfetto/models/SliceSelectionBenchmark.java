@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static com.google.common.base.Predicates.not;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Collections.emptyList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gapid.perfetto.models.SliceTrack.Node;
+import com.google.gapid.perfetto.models.SliceTrack.Slice;
+import com.google.gapid.perfetto.models.SliceTrack.SlicesBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Measures aggregating a selection of a million slices, spread over several threads, by their
+ * stack: building one selection per thread, combining them and building the node tree. Compares
+ * the {@link SlicesBuilder} against the boxed hash map based builder it replaced.
+ */
+public class SliceSelectionBenchmark {
+  private static final int SLICES = 1_000_000;
+  private static final int THREADS = 30;
+  private static final int STACKS = 5000;
+  private static final int MAX_DEPTH = 10;
+  private static final int NAMES = 700;
+  private static final int WARMUP = 3;
+  private static final int ITERATIONS = 10;
+
+  private final String[] names = new String[STACKS + 1];
+  private final long[] parents = new long[STACKS + 1];
+  private final int[] stackDepths = new int[STACKS + 1];
+  // The slices of each thread.
+  private final long[][] stacks = new long[THREADS][];
+  private final long[][] times = new long[THREADS][];
+  private final long[][] durs = new long[THREADS][];
+
+  private SliceSelectionBenchmark() {
+    // A random call tree of stacks 1 to STACKS. The top level stacks have the unselected parent 0.
+    Random random = new Random(42);
+    for (int stack = 1; stack <= STACKS; stack++) {
+      names[stack] = "function" + random.nextInt(NAMES);
+      int parent = (stack < 20) ? 0 : 1 + random.nextInt(stack - 1);
+      if (parent != 0 && stackDepths[parent] == MAX_DEPTH - 1) {
+        parent = 0;
+      }
+      parents[stack] = parent;
+      stackDepths[stack] = (parent == 0) ? 0 : stackDepths[parent] + 1;
+    }
+
+    for (int thread = 0; thread < THREADS; thread++) {
+      int n = SLICES / THREADS + ((thread < SLICES % THREADS) ? 1 : 0);
+      stacks[thread] = new long[n];
+      times[thread] = new long[n];
+      durs[thread] = new long[n];
+      long t = 0;
+      for (int i = 0; i < n; i++) {
+        stacks[thread][i] = 1 + random.nextInt(STACKS);
+        times[thread][i] = t;
+        durs[thread][i] = 1000 + random.nextInt(100000);
+        t += 1 + random.nextInt(50000);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    new SliceSelectionBenchmark().run();
+  }
+
+  private void run() {
+    System.out.println(SLICES + " slices on " + THREADS + " threads, " + STACKS + " stacks");
+    System.out.println("before: " + measure(this::buildWithHashMaps));
+    System.out.println("after:  " + measure(this::buildWithSlicesBuilder));
+  }
+
+  private static String measure(Supplier<List<Node>> build) {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long total = 0, allocated = 0;
+    List<Node> roots = null;
+    for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+      long bytes = bean.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      roots = build.get();
+      if (i >= WARMUP) {
+        total += System.nanoTime() - start;
+        allocated += bean.getCurrentThreadAllocatedBytes() - bytes;
+      }
+    }
+
+    long dur = 0, count = 0;
+    for (Node root : roots) {
+      dur += root.dur;
+      count += count(root);
+    }
+    return String.format("%.1fms, %dMB allocated, %d roots, %d slices, %d total duration",
+        total / 1e6 / ITERATIONS, allocated / ITERATIONS / (1 << 20), roots.size(), count, dur);
+  }
+
+  private static long count(Node node) {
+    long count = node.count;
+    for (Node child : node.children) {
+      count += count(child);
+    }
+    return count;
+  }
+
+  private List<Node> buildWithSlicesBuilder() {
+    SlicesBuilder result = null;
+    for (int thread = 0; thread < THREADS; thread++) {
+      SlicesBuilder builder = new SlicesBuilder("Slices", stacks[thread].length);
+      for (int i = 0; i < stacks[thread].length; i++) {
+        int stack = (int)stacks[thread][i];
+        builder.add(names[stack], stack, parents[stack], times[thread][i], durs[thread][i],
+            stackDepths[stack], thread);
+      }
+      result = (result == null) ? builder : result.combine(builder);
+    }
+    return ((SliceTrack.Slices)result.build()).nodes;
+  }
+
+  private List<Node> buildWithHashMaps() {
+    HashMapBuilder result = null;
+    for (int thread = 0; thread < THREADS; thread++) {
+      HashMapBuilder builder = new HashMapBuilder();
+      for (int i = 0; i < stacks[thread].length; i++) {
+        int stack = (int)stacks[thread][i];
+        builder.add(names[stack], stack, parents[stack], times[thread][i], durs[thread][i],
+            stackDepths[stack], thread);
+      }
+      result = (result == null) ? builder : result.combine(builder);
+    }
+    return result.build();
+  }
+
+  // The slice selection builder before SlicesBuilder, minus keeping the list of the slices.
+  private static class HashMapBuilder {
+    private final Map<Long, NodeBuilder> byStack = Maps.newHashMap();
+    private final Map<Long, List<NodeBuilder>> byParent = Maps.newHashMap();
+    private final Set<Long> roots = Sets.newHashSet();
+    private final Set<Slice.Key> sliceKeys = Sets.newHashSet();
+
+    public void add(String name, long stackId, long parentId, long time, long dur, int depth,
+        long trackId) {
+      NodeBuilder child = byStack.get(stackId);
+      if (child == null) {
+        byStack.put(stackId, child = new NodeBuilder(name, stackId, parentId));
+        byParent.computeIfAbsent(parentId, $ -> Lists.newArrayList()).add(child);
+        roots.add(parentId);
+      }
+      roots.remove(stackId);
+      child.dur += dur;
+      child.count++;
+      sliceKeys.add(new Slice.Key(time, dur, depth, trackId));
+    }
+
+    public HashMapBuilder combine(HashMapBuilder other) {
+      for (Map.Entry<Long, NodeBuilder> e : other.byStack.entrySet()) {
+        NodeBuilder mine = byStack.get(e.getKey());
+        if (mine == null) {
+          byStack.put(e.getKey(), mine = new NodeBuilder(e.getValue()));
+          byParent.computeIfAbsent(mine.parent, $ -> Lists.newArrayList()).add(mine);
+        } else {
+          mine.dur += e.getValue().dur;
+          mine.count += e.getValue().count;
+        }
+      }
+      roots.addAll(other.roots);
+      sliceKeys.addAll(other.sliceKeys);
+      return this;
+    }
+
+    public List<Node> build() {
+      // The selection held an immutable copy of the keys.
+      ImmutableSet.copyOf(sliceKeys);
+      return roots.stream()
+          .filter(not(byStack::containsKey))
+          .flatMap(root -> byParent.get(root).stream())
+          .map(b -> b.build(byParent))
+          .sorted((n1, n2) -> Long.compare(n2.dur, n1.dur))
+          .collect(toImmutableList());
+    }
+  }
+
+  private static class NodeBuilder {
+    public final String name;
+    public final long id;
+    public final long parent;
+    public long dur = 0;
+    public int count = 0;
+
+    public NodeBuilder(String name, long id, long parent) {
+      this.name = name;
+      this.id = id;
+      this.parent = parent;
+    }
+
+    public NodeBuilder(NodeBuilder other) {
+      this(other.name, other.id, other.parent);
+      this.dur = other.dur;
+      this.count = other.count;
+    }
+
+    public Node build(Map<Long, List<NodeBuilder>> byParent) {
+      ImmutableList<Node> cs = byParent.getOrDefault(id, emptyList()).stream()
+          .map(b -> b.build(byParent))
+          .sorted((n1, n2) -> Long.compare(n2.dur, n1.dur))
+          .collect(toImmutableList());
+      long cDur = cs.stream()
+          .mapToLong(n -> n.dur)
+          .sum();
+      return new Node(name, dur, dur - cDur, count, cs);
+    }
+  }
+}
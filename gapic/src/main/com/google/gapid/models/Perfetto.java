@@ -16,27 +16,33 @@
 package com.google.gapid.models;
 
 import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.rpc.UiErrorCallback.error;
 import static com.google.gapid.rpc.UiErrorCallback.success;
 import static com.google.gapid.util.Logging.throttleLogRpcError;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static java.util.function.Function.identity;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.WARNING;
 import static java.util.stream.Collectors.groupingBy;
 
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.models.CounterInfo;
 import com.google.gapid.perfetto.models.CpuInfo;
+import com.google.gapid.perfetto.models.DiskPageCache;
 import com.google.gapid.perfetto.models.GpuInfo;
 import com.google.gapid.perfetto.models.ProcessInfo;
 import com.google.gapid.perfetto.models.QueryEngine;
 import com.google.gapid.perfetto.models.ThreadInfo;
+import com.google.gapid.perfetto.models.Track;
 import com.google.gapid.perfetto.models.TrackConfig;
 import com.google.gapid.perfetto.models.Tracks;
 import com.google.gapid.perfetto.models.VSync;
@@ -52,6 +58,7 @@ import com.google.gapid.views.StatusBar;
 import org.eclipse.swt.widgets.Shell;
 
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
@@ -62,6 +69,7 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
   private static final Logger LOG = Logger.getLogger(Perfetto.class.getName());
 
   private final StatusBar status;
+  private DiskPageCache diskCache; // guarded by this
 
   public Perfetto(
       Shell shell, Analytics analytics, Client client, Capture capture, StatusBar status) {
@@ -85,39 +93,68 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
     });
   }
 
+  /**
+   * Loads the trace's metadata and enumerates its tracks. The metadata queries don't depend on each
+   * other and run concurrently. As soon as the trace bounds, CPU, process and thread info are
+   * available, a skeleton of the timeline, with just the CPU and process tracks, is shown via
+   * {@link Listener#onPerfettoSkeletonLoaded(Data)}, while the GPU and counter info is still
+   * loading. The tracks of the skeleton are reused by the complete data.
+   */
   @Override
   protected ListenableFuture<Data> doLoad(Path.Capture source) {
+    // The pages of the previous trace's tracks are no longer needed.
+    Track.getPageStore().clear();
+    Track.setDiskCache(getDiskCache().forCapture(
+        BaseEncoding.base16().lowerCase().encode(source.getID().getData().toByteArray())));
+    Timings timings = new Timings();
     Data.Builder data = new Data.Builder(new QueryEngine(client, source, status));
-    return
-        transformAsync(withStatus("Examining the trace...", examineTrace(data)), $1 ->
-          transformAsync(withStatus("Querying threads...", queryThreads(data)), $2 ->
-            transformAsync(withStatus("Querying GPU info...", queryGpu(data)), $3 ->
-              transformAsync(withStatus("Querying counters...", queryCounters(data)), $4 ->
-                transform(withStatus("Enumerating tracks...", enumerateTracks(data)), $5 ->
-                  data.build())))));
-  }
 
-  private static ListenableFuture<Data.Builder> examineTrace(Data.Builder data) {
-    return transformAsync(data.qe.getTraceTimeBounds(), traceTime -> {
-      data.setTraceTime(traceTime);
-      return CpuInfo.listCpus(data);
+    ListenableFuture<?> traceTime =
+        timings.time("traceTime", transform(data.qe.getTraceTimeBounds(), data::setTraceTime));
+    ListenableFuture<?> cpus = timings.time("cpus", CpuInfo.listCpus(data));
+    ListenableFuture<?> threads = timings.time("threads", ThreadInfo.listThreads(data));
+    ListenableFuture<?> gpu = timings.time("gpu", GpuInfo.listGpus(data));
+    ListenableFuture<?> counters = timings.time("counters", CounterInfo.listCounters(data));
+
+    ListenableFuture<Data.Builder> skeleton = withStatus("Examining the trace...",
+        Futures.whenAllSucceed(traceTime, cpus, threads).callAsync(
+            () -> timings.time("skeleton", Tracks.enumerateSkeleton(data.skeleton())), EXECUTOR));
+    showSkeleton(source, skeleton);
+
+    return transform(Futures.whenAllSucceed(skeleton, gpu, counters).callAsync(() -> {
+      return timings.time("tracks", Tracks.enumerate(data));
+    }, EXECUTOR), $ -> {
+      data.setTimings(timings);
+      if (LOG.isLoggable(FINE)) {
+        LOG.log(FINE, "Loaded the trace: " + timings);
+      }
+      return data.build();
     });
   }
 
-  private static ListenableFuture<Data.Builder> queryThreads(Data.Builder data) {
-    return ThreadInfo.listThreads(data);
-  }
-
-  private static ListenableFuture<Data.Builder> queryGpu(Data.Builder data) {
-    return GpuInfo.listGpus(data);
-  }
-
-  private static ListenableFuture<Data.Builder> queryCounters(Data.Builder data) {
-    return CounterInfo.listCounters(data);
+  // The disk cache is created lazily, as it indexes the existing cache files.
+  private synchronized DiskPageCache getDiskCache() {
+    if (diskCache == null) {
+      diskCache = DiskPageCache.create();
+    }
+    return diskCache;
   }
 
-  private static ListenableFuture<Data.Builder> enumerateTracks(Data.Builder data) {
-    return Tracks.enumerate(data);
+  private void showSkeleton(Path.Capture source, ListenableFuture<Data.Builder> skeleton) {
+    skeleton.addListener(() -> {
+      Data result;
+      try {
+        result = Futures.getDone(skeleton).build();
+      } catch (ExecutionException | CancellationException e) {
+        return; // The failure is reported by the complete load.
+      }
+      scheduleIfNotDisposed(shell, () -> {
+        // Ignore the skeleton, if loading has completed or another trace is being loaded.
+        if (!isLoaded() && source.equals(getSource())) {
+          listeners.fire().onPerfettoSkeletonLoaded(result);
+        }
+      });
+    }, EXECUTOR);
   }
 
   private <T> ListenableFuture<T> withStatus(String msg, ListenableFuture<T> future) {
@@ -179,10 +216,12 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
     public final ImmutableMap<Long, CounterInfo> counters;
     public final VSync vsync;
     public final TrackConfig tracks;
+    public final Timings timings;
 
     public Data(QueryEngine queries, TimeSpan traceTime, CpuInfo cpu,
         ImmutableMap<Long, ProcessInfo> processes, ImmutableMap<Long, ThreadInfo> threads,
-        GpuInfo gpu, ImmutableMap<Long, CounterInfo> counters, VSync vsync, TrackConfig tracks) {
+        GpuInfo gpu, ImmutableMap<Long, CounterInfo> counters, VSync vsync, TrackConfig tracks,
+        Timings timings) {
       this.qe = queries;
       this.traceTime = traceTime;
       this.cpu = cpu;
@@ -192,6 +231,7 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
       this.counters = counters;
       this.vsync = vsync;
       this.tracks = tracks;
+      this.timings = timings;
     }
 
     public static class Builder {
@@ -205,9 +245,17 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
       private Map<CounterInfo.Type, ImmutableListMultimap<String, CounterInfo>> countersByName;
       private VSync vsync = VSync.EMPTY;
       public final TrackConfig.Builder tracks = new TrackConfig.Builder();
+      // The tracks registered by id, shared with the skeleton, see register(..).
+      private final Map<String, Track<?>> registeredTracks;
+      private Timings timings = Timings.NONE;
 
       public Builder(QueryEngine qe) {
+        this(qe, Maps.newConcurrentMap());
+      }
+
+      private Builder(QueryEngine qe, Map<String, Track<?>> registeredTracks) {
         this.qe = qe;
+        this.registeredTracks = registeredTracks;
       }
 
       public TimeSpan getTraceTime() {
@@ -280,9 +328,119 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
         return this;
       }
 
+      public Builder setTimings(Timings timings) {
+        this.timings = timings;
+        return this;
+      }
+
+      /**
+       * Returns a builder for the skeleton of this data, holding the metadata needed to enumerate
+       * the CPU and process tracks. The skeleton has no GPU, counter or VSync data. The tracks
+       * registered with the skeleton are reused by this builder.
+       */
+      public Builder skeleton() {
+        Builder skeleton = new Builder(qe, registeredTracks);
+        skeleton.traceTime = traceTime;
+        skeleton.cpu = cpu;
+        skeleton.processes = processes;
+        skeleton.threads = threads;
+        skeleton.setCounters(ImmutableMap.of());
+        return skeleton;
+      }
+
+      /**
+       * Registers a track created during track enumeration, including the enumeration of lazy
+       * groups, which may happen after this builder has been built. Returns the track to use,
+       * which is the already registered track with the same id, if any, so that the track's
+       * tables, state and loaded data are shared by the skeleton and the complete data.
+       */
+      @SuppressWarnings("unchecked")
+      public <T extends Track<?>> T register(T track) {
+        Track<?> registered = registeredTracks.putIfAbsent(track.getId(), track);
+        return (registered != null && registered.getClass() == track.getClass()) ?
+            (T)registered : track;
+      }
+
+      /**
+       * Starts initializing all registered tracks in bulk, in the background.
+       */
+      public void initializeTracks() {
+        Track.initializeAll(registeredTracks.values());
+      }
+
       public Data build() {
-        return new Data(
-            qe, traceTime, cpu, processes, threads, gpu, counters, vsync, tracks.build());
+        return new Data(qe, traceTime, cpu, processes, threads, gpu, counters, vsync,
+            tracks.build(), timings);
+      }
+    }
+  }
+
+  /**
+   * Wall clock timings of the stages of loading a trace. Stages may run concurrently. For each
+   * stage, the duration and the time of its completion, relative to the start of the load, are
+   * recorded.
+   */
+  public static class Timings {
+    public static final Timings NONE = new Timings();
+
+    private final long start = System.nanoTime();
+    private final Map<String, Stage> stages = Maps.newLinkedHashMap(); // guarded by this
+
+    /**
+     * Records the time it takes for the given future to complete as the given stage.
+     */
+    public <T> ListenableFuture<T> time(String stage, ListenableFuture<T> future) {
+      long stageStart = System.nanoTime();
+      future.addListener(() -> {
+        long end = System.nanoTime();
+        synchronized (this) {
+          stages.put(stage, new Stage(end - stageStart, end - start));
+        }
+      }, directExecutor());
+      return future;
+    }
+
+    /**
+     * Returns the duration of the given stage in nanoseconds, or -1 if it has not completed.
+     */
+    public synchronized long getDuration(String stage) {
+      Stage s = stages.get(stage);
+      return (s == null) ? -1 : s.duration;
+    }
+
+    /**
+     * Returns the time, in nanoseconds since the start of the load, at which the given stage
+     * completed, or -1 if it has not completed.
+     */
+    public synchronized long getCompletion(String stage) {
+      Stage s = stages.get(stage);
+      return (s == null) ? -1 : s.end;
+    }
+
+    public synchronized Map<String, Long> getDurations() {
+      return ImmutableMap.copyOf(Maps.transformValues(stages, s -> s.duration));
+    }
+
+    @Override
+    public synchronized String toString() {
+      StringBuilder sb = new StringBuilder("Timings{");
+      String sep = "";
+      for (Map.Entry<String, Stage> e : stages.entrySet()) {
+        sb.append(sep).append(e.getKey()).append(": ")
+            .append(e.getValue().duration / 1000000.0).append("ms (done at ")
+            .append(e.getValue().end / 1000000.0).append("ms)");
+        sep = ", ";
+      }
+      return sb.append("}").toString();
+    }
+
+    private static class Stage {
+      public final long duration;
+      public final long end;
+
+      public Stage(long duration, long end) {
+        this.duration = duration;
+        this.end = end;
       }
     }
   }
@@ -294,6 +452,13 @@ public class Perfetto extends ModelBase<Perfetto.Data, Path.Capture, Loadable.Me
      * @param msg message communicating the currently executed work.
      */
     public default void onPerfettoLoadingStatus(Loadable.Message msg) { /* empty */ }
+    /**
+     * Event indicating that the skeleton of the Perfetto trace, i.e. the CPU and process tracks,
+     * has been loaded, while the remaining data is still loading.
+     *
+     * @param skeleton the partial data, holding the CPU and process tracks.
+     */
+    public default void onPerfettoSkeletonLoaded(Data skeleton) { /* empty */ }
     /**
      * Event indicating that the Perfetto trace has finished loading.
      *
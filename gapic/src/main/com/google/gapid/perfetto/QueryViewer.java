@@ -15,14 +15,21 @@
  */
 package com.google.gapid.perfetto;
 
+import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
+import static com.google.gapid.util.MoreFutures.transformAsync;
 import static com.google.gapid.widgets.Widgets.createButton;
 import static com.google.gapid.widgets.Widgets.createComposite;
-import static com.google.gapid.widgets.Widgets.createSpinner;
+import static com.google.gapid.widgets.Widgets.createLabel;
 import static com.google.gapid.widgets.Widgets.createTableColumn;
 import static com.google.gapid.widgets.Widgets.packColumns;
 import static com.google.gapid.widgets.Widgets.withLayoutData;
+import static java.lang.String.format;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Capture;
 import com.google.gapid.models.Models;
 import com.google.gapid.proto.perfetto.Perfetto;
@@ -32,6 +39,7 @@ import com.google.gapid.rpc.RpcException;
 import com.google.gapid.rpc.UiCallback;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.OS;
+import com.google.gapid.util.Scheduler;
 import com.google.gapid.widgets.Widgets;
 
 import org.eclipse.jface.text.Document;
@@ -40,7 +48,7 @@ import org.eclipse.jface.text.ITextOperationTarget;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.SourceViewer;
 import org.eclipse.jface.text.source.SourceViewerConfiguration;
-import org.eclipse.jface.viewers.IStructuredContentProvider;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.swt.SWT;
@@ -54,40 +62,64 @@ import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.FileDialog;
-import org.eclipse.swt.widgets.Spinner;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Comparator;
+import java.io.Writer;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Allows the user to execute manual queries.
+ * Allows the user to execute manual queries. The results of SELECT queries are stored in a table
+ * by the trace processor, so that the query runs only once, and are fetched from it in pages, as
+ * the rows of the virtual result table become visible, and exported by streaming the pages to
+ * disk, so that large results are never held in memory in their entirety.
  */
 public class QueryViewer extends Composite
     implements Capture.Listener, com.google.gapid.models.Perfetto.Listener {
   protected static final Logger LOG = Logger.getLogger(QueryViewer.class.getName());
 
+  private static final int PAGE_SIZE = 1000;
+  private static final int EXPORT_PAGE_SIZE = 10000;
+  // The maximum number of pages kept in memory. Least recently used pages are re-fetched.
+  private static final int MAX_PAGES = 20;
+
+  private static final String STORE_SQL = "create table %s as %s";
+  private static final String COUNT_SQL = "select count(1) from %s";
+  // The rows of a stored result are numbered from 1 in the result's order, so unsorted pages are
+  // looked up by their row id, rather than by skipping all the rows before the page.
+  private static final String PAGE_SQL =
+      "select * from %s where rowid > %d order by rowid limit %d";
+  private static final String SORTED_PAGE_SQL = "select * from %s %s limit %d offset %d";
+  private static final String SORTED_SQL = "select * from %s %s";
+
+  // Numbers the tables storing results, which are unique per trace processor.
+  private static final AtomicInteger nextTable = new AtomicInteger();
+
   private final Models models;
   private final Button run;
-  protected final Spinner tablePage;
+  private final Button export;
+  private final Label status;
   private final StyledText query;
   protected final TableViewer table;
-  protected final ResultContentProvider provider;
-  private static final int MAX_ENTRIES = 1000;
+  private Results results;
 
   public QueryViewer(Composite parent, Models models) {
     super(parent, SWT.NONE);
     this.models = models;
 
-    provider = new ResultContentProvider();
-
     setLayout(new FillLayout(SWT.VERTICAL));
 
     SashForm splitter = new SashForm(this, SWT.VERTICAL);
@@ -105,42 +137,49 @@ public class QueryViewer extends Composite
       }
     });
 
-    Composite middle = createComposite(top, new GridLayout(2, false));
+    Composite middle = withLayoutData(createComposite(top, new GridLayout(3, false)),
+        new GridData(SWT.FILL, SWT.BOTTOM, true, false));
     run = withLayoutData(createButton(middle, "Run", e -> exec()),
         new GridData(SWT.LEFT, SWT.BOTTOM, false, false));
-    withLayoutData(createButton(middle, "Export", e -> export()),
+    export = withLayoutData(createButton(middle, "Export", e -> export()),
         new GridData(SWT.LEFT, SWT.BOTTOM, false, false));
-    tablePage = withLayoutData(createSpinner(middle, 1, 1, 1, e -> turnPage()),
-        new GridData(SWT.FILL, SWT.BOTTOM, false, false, 2, 1));
-
-    table = Widgets.createTableViewer(splitter, SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL);
-    table.setContentProvider(provider);
+    status = withLayoutData(createLabel(middle, ""),
+        new GridData(SWT.FILL, SWT.CENTER, true, false));
+
+    table = Widgets.createTableViewer(
+        splitter, SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL | SWT.VIRTUAL);
+    table.setContentProvider((ILazyContentProvider)index -> {
+      if (results != null) {
+        table.replace(results.getRow(index), index);
+      }
+    });
     table.setLabelProvider(new LabelProvider());
 
     splitter.setWeights(new int[] { 30, 70 });
     run.setEnabled(models.capture.isPerfetto());
+    export.setEnabled(models.capture.isPerfetto());
 
     models.capture.addListener(this);
     models.perfetto.addListener(this);
     addListener(SWT.Dispose, e -> {
       models.capture.removeListener(this);
       models.perfetto.removeListener(this);
+      if (results != null) {
+        results.release();
+      }
     });
   }
 
-  private void turnPage() {
-    provider.setPage(tablePage.getSelection());
-    table.refresh();
-  }
-
   @Override
   public void onCaptureLoadingStart(boolean maintainState) {
     run.setEnabled(false);
+    export.setEnabled(false);
   }
 
   @Override
   public void onPerfettoLoaded(Loadable.Message error) {
     run.setEnabled(error == null && models.capture.isPerfetto());
+    export.setEnabled(error == null && models.capture.isPerfetto());
   }
 
   private static SourceViewer createSourceViewer(Composite parent, String string) {
@@ -163,7 +202,143 @@ public class QueryViewer extends Composite
   }
 
   private void exec() {
-    Rpc.listen(models.perfetto.query(query.getText()),
+    List<String> statements = splitStatements(query.getText());
+    if (statements.isEmpty()) {
+      status.setText("No query to run.");
+      return;
+    }
+
+    Results res = new Results(statements);
+    if (results != null) {
+      results.release();
+    }
+    results = res;
+    status.setText("Running...");
+    table.setInput(null);
+    table.setItemCount(0);
+    for (TableColumn col : table.getTable().getColumns()) {
+      col.dispose();
+    }
+
+    if (!res.paged) {
+      // The last statement is not a SELECT, e.g. a CREATE VIEW, so its results can't be stored
+      // and fetched in pages. Such statements don't return large results.
+      query(res.statements, (result, nanos) -> {
+        if (results == res) {
+          res.pages.put(0, result);
+          showResult(res, result, result.getNumRecords(), nanos);
+        }
+      });
+      return;
+    }
+
+    query(res.storeStatements(), (stored, storeNanos) -> {
+      res.onStored(stored);
+      if (results != res) {
+        return;
+      } else if (!stored.getError().isEmpty()) {
+        showResult(res, stored, 1, storeNanos);
+        return;
+      }
+
+      res.queryNanos = storeNanos;
+      query(res.pageSql(0, PAGE_SIZE), (result, nanos) -> {
+        if (results == res) {
+          res.pages.put(0, result);
+          res.firstPageNanos = nanos;
+          showResult(res, result, (res.count >= 0) ? res.count : result.getNumRecords(), nanos);
+        }
+      });
+      query(format(COUNT_SQL, res.table), (result, nanos) -> {
+        if (results == res && result.getError().isEmpty()) {
+          res.count = result.getColumns(0).getLongValues(0);
+          if (res.columns != null) {
+            table.setItemCount((int)Math.min(Integer.MAX_VALUE, res.count));
+            updateStatus(res);
+          }
+        }
+      });
+    });
+  }
+
+  // Shows the first page of the results, setting up the columns of the table.
+  private void showResult(Results res, Perfetto.QueryResult result, long count, long nanos) {
+    if (!result.getError().isEmpty()) {
+      Widgets.createTableColumn(table, "Error", $ -> result.getError());
+      count = 1;
+    } else if (result.getNumRecords() == 0) {
+      Widgets.createTableColumn(table, "Result", $ -> "Query returned no rows.");
+      count = 1;
+    } else {
+      res.columns = result.getColumnDescriptorsList();
+      for (int i = 0; i < res.columns.size(); i++) {
+        int col = i;
+        TableColumn column = createTableColumn(
+            table, res.columns.get(i).getName(), row -> ((Row)row).getValue(col)).getColumn();
+        if (res.paged) {
+          column.addListener(SWT.Selection, e -> sort(res, column, col));
+        }
+      }
+    }
+
+    table.setInput(res);
+    table.setItemCount((int)Math.min(Integer.MAX_VALUE, Math.max(count, 0)));
+    packColumns(table.getTable());
+    table.getTable().requestLayout();
+    if (res.columns == null) {
+      status.setText(format("Query completed in %s.", formatNanos(nanos)));
+    } else {
+      updateStatus(res);
+    }
+  }
+
+  private void updateStatus(Results res) {
+    StringBuilder sb = new StringBuilder();
+    if (res.count >= 0) {
+      sb.append(format("%,d rows. ", res.count));
+    }
+    sb.append("Query ran in ").append(formatNanos(res.queryNanos));
+    if (res.firstPageNanos >= 0) {
+      sb.append(", first page in ").append(formatNanos(res.firstPageNanos));
+    }
+    sb.append('.');
+    status.setText(sb.toString());
+    status.requestLayout();
+  }
+
+  // Sorts the results by the given column. The sorting is done by the trace processor, since
+  // only the pages of the results that have been viewed are available.
+  private void sort(Results res, TableColumn column, int col) {
+    Table t = table.getTable();
+    boolean descending = t.getSortColumn() == column && t.getSortDirection() == SWT.UP;
+    t.setSortColumn(column);
+    t.setSortDirection(descending ? SWT.DOWN : SWT.UP);
+    res.sortBy(col, descending);
+    res.firstPageNanos = -1;
+    table.refresh();
+  }
+
+  // Called when a page of the results has been loaded.
+  private void onPageLoaded(Results res, int page, Perfetto.QueryResult result, long nanos) {
+    if (results != res) {
+      return;
+    }
+    res.pending.remove(page);
+    res.pages.put(page, result);
+    if (res.firstPageNanos < 0) {
+      res.firstPageNanos = nanos;
+      updateStatus(res);
+    }
+    table.refresh();
+  }
+
+  private void query(String sql, BiConsumer<Perfetto.QueryResult, Long> onUiThread) {
+    query(ImmutableList.of(sql), onUiThread);
+  }
+
+  private void query(List<String> statements, BiConsumer<Perfetto.QueryResult, Long> onUiThread) {
+    long start = System.nanoTime();
+    Rpc.listen(queryAll(statements, 0),
         new UiCallback<Perfetto.QueryResult, Perfetto.QueryResult>(this, LOG) {
       @Override
       protected Perfetto.QueryResult onRpcThread(
@@ -180,38 +355,19 @@ public class QueryViewer extends Composite
 
       @Override
       protected void onUiThread(Perfetto.QueryResult result) {
-        tablePage.setMaximum((int)result.getNumRecords() / MAX_ENTRIES - 1);
-        provider.setPage(1);
-
-        table.setInput(null);
-        for (TableColumn col : table.getTable().getColumns()) {
-          col.dispose();
-        }
-
-        if (!result.getError().isEmpty()) {
-          Widgets.createTableColumn(table, "Error", $ -> result.getError());
-        } else if (result.getNumRecords() == 0) {
-          Widgets.createTableColumn(table, "Result", $ -> "Query returned no rows.");
-        } else {
-          List<Widgets.ColumnAndComparator<Row>> columns = Lists.newArrayList();
-          for (int i = 0; i < result.getColumnDescriptorsCount(); i++) {
-            int col = i;
-            Perfetto.QueryResult.ColumnDesc desc = result.getColumnDescriptors(i);
-            columns.add(createTableColumn(
-                table, desc.getName(), row -> row.getValue(col), comparator(result, col)));
-          }
-          Widgets.sorting(table, columns);
-        }
-
-        table.setInput(result);
-        packColumns(table.getTable());
-        table.getTable().requestLayout();
-
-        tablePage.setSelection(1);
+        onUiThread.accept(result, System.nanoTime() - start);
       }
     });
   }
 
+  // Runs the given statements one after the other, stopping at the first one that fails, and
+  // returns the result of the last statement that was run.
+  private ListenableFuture<Perfetto.QueryResult> queryAll(List<String> statements, int from) {
+    return transformAsync(models.perfetto.query(statements.get(from)), result ->
+        (from == statements.size() - 1 || !result.getError().isEmpty()) ?
+            Futures.immediateFuture(result) : queryAll(statements, from + 1));
+  }
+
   private void export() {
     FileDialog dialog = new FileDialog(getShell(), SWT.SAVE);
     dialog.setFilterPath(OS.cwd);
@@ -222,136 +378,242 @@ public class QueryViewer extends Composite
     String fileName = dialog.open();
     if (fileName != null) {
       String filterExt = filters[dialog.getFilterIndex()].substring(1);
-      if (!fileName.substring(fileName.length()-4).equals(filterExt)) {
+      if (!fileName.endsWith(filterExt)) {
         fileName += filterExt;
       }
       char separator = (filterExt.equals(".csv")) ? ',' : '\t';
       LOG.log(Level.INFO, fileName);
-      saveQuery(new File(fileName), separator);
+      List<String> statements = splitStatements(query.getText());
+      if (statements.isEmpty()) {
+        status.setText("No query to export.");
+        return;
+      }
+      // Export the stored results of the current query, in their current sorting, if the query
+      // has not been edited since it was run. Otherwise, run the query for the export.
+      Results res = (results != null && results.statements.equals(statements)) ?
+          results : new Results(statements);
+      saveQuery(res, new File(fileName), separator);
     }
   }
 
-  private void saveQuery(File file, char separator) {
-    Rpc.listen(models.perfetto.query(query.getText()),
-        new UiCallback<Perfetto.QueryResult, Perfetto.QueryResult>(this, LOG) {
+  // Writes the results to the given file. Paged results are stored in a table of their own, in
+  // the order they are exported in, and written one page at a time, each page being written, on a
+  // background thread, before the next one is fetched.
+  private void saveQuery(Results res, File file, char separator) {
+    long start = System.nanoTime();
+    String exportTable = res.paged ? newTableName() : null;
+    List<String> statements = res.paged ? res.exportStatements(exportTable) : res.statements;
+    export.setEnabled(false);
+    status.setText("Exporting to " + file.getName() + "...");
+    ListenableFuture<Long> future = transformAsync(
+        Scheduler.EXECUTOR.submit(() -> new BufferedWriter(new FileWriter(file))), writer -> {
+          ExportWriter out = new ExportWriter(writer, separator);
+          ListenableFuture<Long> rows = transformAsync(queryAll(statements, 0), result -> {
+            if (!res.paged) {
+              return Futures.immediateFuture(out.write(result, true));
+            } else if (!result.getError().isEmpty()) {
+              throw new IOException(result.getError());
+            }
+            return exportPages(exportTable, out, 0);
+          });
+          return Futures.whenAllComplete(rows).call(() -> {
+            writer.close();
+            if (res.paged) {
+              models.perfetto.query(dropTable(exportTable));
+            }
+            return Futures.getDone(rows);
+          }, Scheduler.EXECUTOR);
+        });
+
+    Rpc.listen(future, new UiCallback<Long, String>(this, LOG) {
       @Override
-      protected Perfetto.QueryResult onRpcThread(
-          Result<Perfetto.QueryResult> result) throws ExecutionException {
+      protected String onRpcThread(Result<Long> result) throws ExecutionException {
         try {
-          return result.get();
-        } catch (RpcException e) {
-          LOG.log(Level.WARNING, "System Profile Query failure", e);
-          return Perfetto.QueryResult.newBuilder()
-              .setError(e.toString())
-              .build();
+          return format("Exported %,d rows to %s in %s.",
+              result.get(), file.getName(), formatNanos(System.nanoTime() - start));
+        } catch (RpcException | ExecutionException e) {
+          LOG.log(Level.SEVERE, "Failed to save query", e);
+          return "Export failed: " + e.getMessage();
         }
       }
 
       @Override
-      protected void onUiThread(Perfetto.QueryResult result) {
-        table.setInput(null);
-        for (TableColumn col : table.getTable().getColumns()) {
-          col.dispose();
-        }
-
-        if (!result.getError().isEmpty()) {
-          Widgets.createTableColumn(table, "Export Error", $ -> result.getError());
-        } else if (result.getNumRecords() == 0) {
-          Widgets.createTableColumn(table, "Export Result", $ -> "Query returned no rows.");
-        } else {
-          try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            for (int i = 0; i < result.getColumnDescriptorsCount(); i++) {
-              Perfetto.QueryResult.ColumnDesc desc = result.getColumnDescriptors(i);
-              writer.write(desc.getName());
-              writer.write(separator);
-            }
-            writer.newLine();
-
-            for (int i = 0; i < result.getNumRecords(); i++) {
-              Row r = new Row(result, i);
-              for (int j = 0; j < result.getColumnDescriptorsCount(); j++) {
-                writer.write(r.getValue(j));
-                writer.write(separator);
-              }
-              writer.newLine();
-            }
+      protected void onUiThread(String result) {
+        status.setText(result);
+        status.requestLayout();
+        export.setEnabled(models.capture.isPerfetto());
+      }
+    });
+  }
 
-            writer.flush();
-          } catch (IOException e) {
-            LOG.log(Level.SEVERE, "Failed to save query");
-          }
-        }
+  private ListenableFuture<Long> exportPages(String exportTable, ExportWriter writer, long offset) {
+    String sql = format(PAGE_SQL, exportTable, offset, EXPORT_PAGE_SIZE);
+    return transformAsync(models.perfetto.query(sql), page -> {
+      if (!page.getError().isEmpty()) {
+        throw new IOException(page.getError());
       }
+      long rows = writer.write(page, offset == 0);
+      return (page.getNumRecords() < EXPORT_PAGE_SIZE) ? Futures.immediateFuture(rows) :
+          exportPages(exportTable, writer, offset + EXPORT_PAGE_SIZE);
     });
   }
 
-  protected static Comparator<Row> comparator(Perfetto.QueryResult res, int col) {
-    Perfetto.QueryResult.ColumnValues vals = res.getColumns(col);
-    switch (res.getColumnDescriptors(col).getType()) {
-      case DOUBLE: return (r1, r2) -> {
-        if (vals.getIsNulls(r1.row)) {
-          return vals.getIsNulls(r2.row) ? 0 : -1;
-        } else if (vals.getIsNulls(r2.row)) {
-          return 1;
-        } else {
-          return Double.compare(vals.getDoubleValues(r1.row), vals.getDoubleValues(r2.row));
-        }
-      };
-      case LONG: return (r1, r2) -> {
-        if (vals.getIsNulls(r1.row)) {
-          return vals.getIsNulls(r2.row) ? 0 : -1;
-        } else if (vals.getIsNulls(r2.row)) {
-          return 1;
-        } else {
-          return Long.compare(vals.getLongValues(r1.row), vals.getLongValues(r2.row));
-        }
-      };
-      case STRING: return (r1, r2) -> {
-        if (vals.getIsNulls(r1.row)) {
-          return vals.getIsNulls(r2.row) ? 0 : -1;
-        } else if (vals.getIsNulls(r2.row)) {
-          return 1;
-        } else {
-          return vals.getStringValues(r1.row).compareTo(vals.getStringValues(r2.row));
-        }
-      };
-      default: return (r1, r2) -> 0;
+  private static String newTableName() {
+    return "query_viewer_results_" + nextTable.incrementAndGet();
+  }
+
+  // Splits the given SQL into its statements, dropping the comments, the whitespace around the
+  // statements and empty statements. Quoted strings and identifiers are kept as they are. Does
+  // not support statements containing semicolons, such as CREATE TRIGGER.
+  private static List<String> splitStatements(String sql) {
+    List<String> result = Lists.newArrayList();
+    StringBuilder statement = new StringBuilder();
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '\'' || c == '"' || c == '`' || c == '[') {
+        int end = sql.indexOf((c == '[') ? ']' : c, i + 1);
+        end = (end < 0) ? sql.length() : end + 1;
+        statement.append(sql, i, end);
+        i = end - 1;
+      } else if (sql.startsWith("--", i)) {
+        int end = sql.indexOf('\n', i);
+        statement.append(' ');
+        i = (end < 0) ? sql.length() : end;
+      } else if (sql.startsWith("/*", i)) {
+        int end = sql.indexOf("*/", i + 2);
+        statement.append(' ');
+        i = (end < 0) ? sql.length() : end + 1;
+      } else if (c == ';') {
+        addStatement(result, statement);
+      } else {
+        statement.append(c);
+      }
     }
+    addStatement(result, statement);
+    return result;
+  }
+
+  private static void addStatement(List<String> statements, StringBuilder statement) {
+    String sql = statement.toString().trim();
+    if (!sql.isEmpty()) {
+      statements.add(sql);
+    }
+    statement.setLength(0);
+  }
+
+  private static String formatNanos(long nanos) {
+    return format("%.1fms", nanos / 1e6);
   }
 
-  private static class ResultContentProvider implements IStructuredContentProvider {
-    private int page;
+  /**
+   * The state of the current query: the table its results are stored in, the pages of its results
+   * that have been fetched, the sorting, and the row count, once known.
+   */
+  private class Results {
+    // The statements of the query. The last statement returns the results.
+    public final List<String> statements;
+    // Whether the last statement is a SELECT and its results can thus be stored and fetched in
+    // pages.
+    public final boolean paged;
+    // The table storing the results, if they are paged.
+    public final String table;
+    private final Map<Integer, Perfetto.QueryResult> pages =
+        new LinkedHashMap<Integer, Perfetto.QueryResult>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Integer, Perfetto.QueryResult> eldest) {
+            return size() > MAX_PAGES;
+          }
+        };
+    private final Set<Integer> pending = Sets.newHashSet();
+    private String orderBy = "";
+    // Incremented whenever the sorting changes, to discard pages fetched for a previous sorting.
+    private int sorting = 0;
+    private boolean stored = false;
+    private boolean released = false;
+    public List<Perfetto.QueryResult.ColumnDesc> columns;
+    public long count = -1;
+    public long queryNanos = -1;
+    public long firstPageNanos = -1;
+
+    public Results(List<String> statements) {
+      this.statements = statements;
+      String lower = last().toLowerCase();
+      this.paged = lower.startsWith("select") || lower.startsWith("with");
+      this.table = paged ? newTableName() : null;
+    }
 
-    public ResultContentProvider() {
-      page = 1;
+    private String last() {
+      return statements.get(statements.size() - 1);
     }
 
-    public void setPage(int page) {
-      this.page = page;
+    // Returns the statements running the query and storing its results in the results table.
+    public List<String> storeStatements() {
+      List<String> result = Lists.newArrayList(statements.subList(0, statements.size() - 1));
+      result.add(format(STORE_SQL, table, last()));
+      return result;
     }
 
-    @Override
-    public Object[] getElements(Object inputElement) {
-      Perfetto.QueryResult result = (Perfetto.QueryResult)inputElement;
-      if (result == null) {
-        return new Object[0];
-      } else if (!result.getError().isEmpty() || result.getNumRecords() == 0) {
-        return new Row[] { new Row(result, 0) };
-      } else {
-        int offset = MAX_ENTRIES * (page - 1);
-        int numRecords = (int)result.getNumRecords() - offset;
-        numRecords = (numRecords > MAX_ENTRIES) ? MAX_ENTRIES : numRecords;
-        Row[] r = new Row[numRecords];
-        for (int i = 0; i < r.length; i++) {
-          r[i] = new Row(result, i+offset);
-        }
-        return r;
+    // Returns the statements storing the results in the given table, in their current sorting,
+    // copying them from the results table, if they are stored, or running the query otherwise.
+    public List<String> exportStatements(String exportTable) {
+      if (stored) {
+        return ImmutableList.of(format(STORE_SQL, exportTable, format(SORTED_SQL, table, orderBy)));
       }
+      List<String> result = Lists.newArrayList(statements.subList(0, statements.size() - 1));
+      result.add(format(STORE_SQL, exportTable, last()));
+      return result;
+    }
+
+    // Called with the result of the store statements, on the UI thread.
+    public void onStored(Perfetto.QueryResult result) {
+      stored = result.getError().isEmpty();
+      if (released) {
+        release();
+      }
+    }
+
+    // Drops the stored results, once they are stored, as they are no longer needed.
+    public void release() {
+      released = true;
+      if (stored) {
+        stored = false;
+        models.perfetto.query(dropTable(table));
+      }
+    }
+
+    public String pageSql(long offset, int limit) {
+      return orderBy.isEmpty() ? format(PAGE_SQL, table, offset, limit) :
+          format(SORTED_PAGE_SQL, table, orderBy, limit, offset);
+    }
+
+    public void sortBy(int column, boolean descending) {
+      // Break ties by row id, so that the pages of the sorted results are consistent.
+      orderBy = "order by " + (column + 1) + (descending ? " desc" : "") + ", rowid";
+      sorting++;
+      pages.clear();
+      pending.clear();
+    }
+
+    // Returns the given row, or a placeholder, requesting its page, if it is not loaded.
+    public Row getRow(int index) {
+      int page = index / PAGE_SIZE;
+      Perfetto.QueryResult result = pages.get(page);
+      if (result != null) {
+        return new Row(result, index % PAGE_SIZE);
+      } else if (paged && pending.add(page)) {
+        int current = sorting;
+        query(pageSql((long)page * PAGE_SIZE, PAGE_SIZE), (res, nanos) -> {
+          if (current == sorting) {
+            onPageLoaded(this, page, res, nanos);
+          }
+        });
+      }
+      return new Row(null, index);
     }
   }
 
   private static class Row {
-    public final Perfetto.QueryResult result;
+    public final Perfetto.QueryResult result; // null while loading.
     public final int row;
 
     public Row(Perfetto.QueryResult result, int row) {
@@ -360,6 +622,12 @@ public class QueryViewer extends Composite
     }
 
     public String getValue(int column) {
+      if (result == null) {
+        return "Loading...";
+      } else if (row >= result.getNumRecords()) {
+        return "";
+      }
+
       Perfetto.QueryResult.ColumnValues vals = result.getColumns(column);
       if (vals.getIsNulls(row)) {
         return "NULL";
@@ -373,4 +641,57 @@ public class QueryViewer extends Composite
       }
     }
   }
+
+  /**
+   * Writes query results as separated values, quoting values where necessary.
+   */
+  private static class ExportWriter {
+    private final Writer writer;
+    private final char separator;
+    private long rows = 0;
+
+    public ExportWriter(Writer writer, char separator) {
+      this.writer = writer;
+      this.separator = separator;
+    }
+
+    // Writes the rows of the given results and returns the total number of rows written.
+    public long write(Perfetto.QueryResult result, boolean header) throws IOException {
+      if (!result.getError().isEmpty()) {
+        throw new IOException(result.getError());
+      }
+
+      int columns = result.getColumnDescriptorsCount();
+      if (header) {
+        for (int i = 0; i < columns; i++) {
+          writeValue(i, result.getColumnDescriptors(i).getName());
+        }
+        writer.write('\n');
+      }
+
+      for (int i = 0; i < result.getNumRecords(); i++) {
+        Row r = new Row(result, i);
+        for (int j = 0; j < columns; j++) {
+          writeValue(j, r.getValue(j));
+        }
+        writer.write('\n');
+      }
+      rows += result.getNumRecords();
+      return rows;
+    }
+
+    private void writeValue(int column, String value) throws IOException {
+      if (column > 0) {
+        writer.write(separator);
+      }
+      if (value.indexOf(separator) >= 0 || value.indexOf('"') >= 0 ||
+          value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+      } else {
+        writer.write(value);
+      }
+    }
+  }
 }
@@ -41,6 +41,7 @@ public class TraceView extends Composite
   private final Models models;
   private final LoadablePanel<DrawerComposite> loading;
   private final TraceComposite<State.ForSystemTrace> traceUi;
+  private boolean showingSkeleton = false;
 
   public TraceView(Composite parent, Models models, Widgets widgets) {
     super(parent, SWT.NONE);
@@ -87,6 +88,7 @@ public class TraceView extends Composite
 
   @Override
   public void onCaptureLoadingStart(boolean maintainState) {
+    showingSkeleton = false;
     loading.startLoading();
   }
 
@@ -99,13 +101,27 @@ public class TraceView extends Composite
 
   @Override
   public void onPerfettoLoadingStatus(Loadable.Message msg) {
-    loading.showMessage(msg);
+    if (!showingSkeleton) {
+      loading.showMessage(msg);
+    }
+  }
+
+  @Override
+  public void onPerfettoSkeletonLoaded(Perfetto.Data skeleton) {
+    showingSkeleton = true;
+    loading.stopLoading();
+    traceUi.getState().update(skeleton);
+    traceUi.requestFocus();
   }
 
   @Override
   public void onPerfettoLoaded(Loadable.Message error) {
+    boolean wasShowingSkeleton = showingSkeleton;
+    showingSkeleton = false;
     if (error != null) {
       loading.showMessage(error);
+    } else if (wasShowingSkeleton) {
+      traceUi.getState().complete(models.perfetto.getData());
     } else {
       loading.stopLoading();
       traceUi.getState().update(models.perfetto.getData());
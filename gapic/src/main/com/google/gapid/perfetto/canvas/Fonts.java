@@ -19,6 +19,8 @@ import static com.google.gapid.perfetto.canvas.RenderContext.scale;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Device;
@@ -28,13 +30,19 @@ import org.eclipse.swt.graphics.FontMetrics;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.widgets.Control;
 
-import java.util.concurrent.ExecutionException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Fonts {
   protected static final Logger LOG = Logger.getLogger(Fonts.class.getName());
 
+  public static final Flag<Integer> maxTextCacheSize = Flags.value("perfetto-text-cache-size",
+      50000, "Maximum number of cached text measurements and truncated labels.", true);
+
+  private static final String ELLIPSIS = "...";
+  private static final int TEXT_SIZE_GREEDINESS = 3; // must be >= 1.
+
   private Fonts() {
   }
 
@@ -42,6 +50,33 @@ public class Fonts {
     Normal, Bold;
   }
 
+  /**
+   * How text that does not fit is truncated.
+   */
+  public static enum Truncation {
+    // Text that does not fit is not shown.
+    None,
+    // The end of the text is replaced by an ellipsis.
+    Right,
+    // The start of the text is replaced by an ellipsis.
+    Left;
+  }
+
+  /**
+   * The text, possibly truncated, fitting into a given width, and its size.
+   */
+  public static class Fit {
+    public static final Fit NONE = new Fit("", Size.ZERO);
+
+    public final String text;
+    public final Size size;
+
+    public Fit(String text, Size size) {
+      this.text = text;
+      this.size = size;
+    }
+  }
+
   public static interface TextMeasurer {
     public Size measure(Style style, String text);
     public double getAscent(Style style);
@@ -51,7 +86,11 @@ public class Fonts {
   public static class Context implements TextMeasurer {
     private final FontAndGC[] fonts = new FontAndGC[Style.values().length];
     private final Cache<SizeCacheKey, Size> textExtentCache = CacheBuilder.newBuilder()
-        .softValues()
+        .maximumSize(maxTextCacheSize.get())
+        .recordStats()
+        .build();
+    private final Cache<FitCacheKey, FitPath> fitCache = CacheBuilder.newBuilder()
+        .maximumSize(maxTextCacheSize.get())
         .recordStats()
         .build();
 
@@ -62,11 +101,53 @@ public class Fonts {
 
     @Override
     public Size measure(Style style, String text) {
-      try {
-        return textExtentCache.get(new SizeCacheKey(style, text),
-            () -> fonts[style.ordinal()].measure(text));
-      } catch (ExecutionException e) {
-        throw new RuntimeException(e.getCause());
+      SizeCacheKey key = new SizeCacheKey(style, text);
+      Size size = textExtentCache.getIfPresent(key);
+      if (size == null) {
+        size = fonts[style.ordinal()].measure(text);
+        textExtentCache.put(key, size);
+      }
+      return size;
+    }
+
+    /**
+     * Returns the given text, if it fits into the given width, otherwise the text truncated as
+     * requested, so that it fits. Returns {@link Fit#NONE}, if the text does not fit and can't be
+     * truncated to fit. The results are cached by the width rounded down to whole pixels, so that
+     * they can be reused, for example, for all the slices with the same name and width. A cached
+     * result is only reused if it is the same as the one computed for the exact width.
+     */
+    public Fit fit(Style style, String text, double w, Truncation truncation) {
+      FitCacheKey key = new FitCacheKey(style, text, (int)Math.floor(w), truncation);
+      FitPath path = fitCache.getIfPresent(key);
+      if (path == null || !path.isSameFit(key, w)) {
+        path = computeFit(key, w);
+        fitCache.put(key, path);
+      }
+      return path.fit;
+    }
+
+    private FitPath computeFit(FitCacheKey key, double w) {
+      String text = key.text, toDisplay = text;
+      Size size = measure(key.style, text);
+      FitPath path = new FitPath();
+      for (int l = text.length(); ; ) {
+        path.add(l, size.w);
+        if (size.w < w) {
+          return path.done(new Fit(toDisplay, size));
+        } else if (key.truncation == Truncation.None) {
+          return path.done(Fit.NONE);
+        }
+
+        l = Math.min(l - TEXT_SIZE_GREEDINESS, (int)(w / (size.w / toDisplay.length())));
+        if (l <= 0) {
+          return path.done(Fit.NONE);
+        }
+        toDisplay = (key.truncation == Truncation.Left) ?
+            ELLIPSIS + text.substring(text.length() - l) : text.substring(0, l) + ELLIPSIS;
+        // The intermediate truncations are not added to the measurement cache, as they are
+        // unlikely to be measured again.
+        size = fonts[key.style.ordinal()].measure(toDisplay);
       }
     }
 
@@ -80,6 +161,13 @@ public class Fonts {
       return fonts[style.ordinal()].getDescent();
     }
 
+    /**
+     * Returns the hit rates of the text measurement and fitted label caches.
+     */
+    public double[] getCacheHitRates() {
+      return new double[] { textExtentCache.stats().hitRate(), fitCache.stats().hitRate() };
+    }
+
     public void setFont(GC gc, Style style) {
       fonts[style.ordinal()].apply(gc);
     }
@@ -90,7 +178,9 @@ public class Fonts {
       }
 
       LOG.log(Level.FINE, "Text extent cache stats: {0}", textExtentCache.stats());
+      LOG.log(Level.FINE, "Text fit cache stats: {0}", fitCache.stats());
       textExtentCache.invalidateAll();
+      fitCache.invalidateAll();
     }
 
     private static class FontAndGC {
@@ -143,6 +233,53 @@ public class Fonts {
       }
     }
 
+    /**
+     * The result of {@link #computeFit} and the lengths and widths of the candidate texts it
+     * measured, in order. The first candidate is the whole text.
+     */
+    private static class FitPath {
+      public Fit fit;
+      private int[] lengths = new int[2];
+      private double[] widths = new double[2];
+      private int count = 0;
+
+      public void add(int length, double width) {
+        if (count == lengths.length) {
+          lengths = Arrays.copyOf(lengths, 2 * count);
+          widths = Arrays.copyOf(widths, 2 * count);
+        }
+        lengths[count] = length;
+        widths[count] = width;
+        count++;
+      }
+
+      public FitPath done(Fit result) {
+        this.fit = result;
+        return this;
+      }
+
+      // Replays the decisions of computeFit(..) for the given width with the measured widths.
+      // Returns whether they pick the same candidate, without needing any other candidate.
+      public boolean isSameFit(FitCacheKey key, double w) {
+        for (int i = 0, l = key.text.length(); i < count; i++) {
+          if (l != lengths[i]) {
+            return false;
+          } else if (widths[i] < w) {
+            return i == count - 1 && fit != Fit.NONE;
+          } else if (key.truncation == Truncation.None) {
+            return fit == Fit.NONE;
+          }
+
+          int displayed = (i == 0) ? l : l + ELLIPSIS.length();
+          l = Math.min(l - TEXT_SIZE_GREEDINESS, (int)(w / (widths[i] / displayed)));
+          if (l <= 0) {
+            return i == count - 1 && fit == Fit.NONE;
+          }
+        }
+        return false;
+      }
+    }
+
     private static class SizeCacheKey {
       public final Style style;
       public final String text;
@@ -168,5 +305,36 @@ public class Fonts {
         return style == o.style && text.equals(o.text);
       }
     }
+
+    private static class FitCacheKey {
+      public final Style style;
+      public final String text;
+      public final int width;
+      public final Truncation truncation;
+
+      public FitCacheKey(Style style, String text, int width, Truncation truncation) {
+        this.style = style;
+        this.text = text;
+        this.width = width;
+        this.truncation = truncation;
+      }
+
+      @Override
+      public int hashCode() {
+        return (31 * (31 * style.hashCode() + text.hashCode()) + width) ^ truncation.hashCode();
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        if (obj == this) {
+          return true;
+        } else if (!(obj instanceof FitCacheKey)) {
+          return false;
+        }
+        FitCacheKey o = (FitCacheKey)obj;
+        return style == o.style && width == o.width && truncation == o.truncation &&
+            text.equals(o.text);
+      }
+    }
   }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.canvas;
+
+import static java.lang.String.format;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gapid.util.LatencyStats;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of the paints of a {@link PanelCanvas}: the percentiles of the paint times and the
+ * average cost, per paint, of the {@link RenderContext#trace traced} parts of the panels.
+ */
+// Only used on the UI thread.
+public class PaintStats {
+  private static final int MAX_SAMPLES = 1000;
+
+  private final LatencyStats paints = new LatencyStats(MAX_SAMPLES);
+  private final Map<String, Long> totals = Maps.newHashMap();
+  private long count = 0;
+
+  public void record(long nanos, Map<String, Long> traces) {
+    paints.add(nanos);
+    traces.forEach((label, value) -> totals.merge(label, value, Long::sum));
+    count++;
+  }
+
+  public LatencyStats getPaints() {
+    return paints;
+  }
+
+  /**
+   * Returns the average cost per paint of the given number of most expensive traced parts, or of
+   * all of them, if the limit is negative, one line per part.
+   */
+  public List<String> getCosts(int limit) {
+    List<Map.Entry<String, Long>> times = Lists.newArrayList();
+    for (Map.Entry<String, Long> e : totals.entrySet()) {
+      if (!e.getKey().endsWith(RenderContext.DRAW_CALLS) &&
+          !e.getKey().endsWith(RenderContext.COLOR_CHANGES)) {
+        times.add(e);
+      }
+    }
+    times.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    if (limit >= 0 && limit < times.size()) {
+      times = times.subList(0, limit);
+    }
+
+    List<String> result = Lists.newArrayList();
+    for (Map.Entry<String, Long> e : times) {
+      String label = e.getKey();
+      result.add(format("%s: %.2fms, %d draws, %d colors", label, e.getValue() / 1e6 / count,
+          totals.getOrDefault(label + RenderContext.DRAW_CALLS, 0L) / count,
+          totals.getOrDefault(label + RenderContext.COLOR_CHANGES, 0L) / count));
+    }
+    return result;
+  }
+}
@@ -17,7 +17,10 @@ package com.google.gapid.perfetto.canvas;
 
 import static com.google.gapid.perfetto.views.StyleConstants.colors;
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
+import static java.lang.String.format;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 import com.google.gapid.util.Flags;
 import com.google.gapid.util.Flags.Flag;
 import com.google.gapid.widgets.Theme;
@@ -28,7 +31,10 @@ import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Canvas;
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +46,12 @@ public class PanelCanvas extends Canvas {
 
   public static final Flag<Boolean> showRedraws = Flags.value(
       "show-redraws", false, "Highlight canvas redraw areas", true);
+  public static final Flag<Boolean> showHud = Flags.value(
+      "show-render-hud", false, "Show the rendering performance overlay", true);
+
+  private static final int HUD_MAX_COSTS = 8;
+  private static final double HUD_MARGIN = 8;
+  private static final double HUD_PADDING = 4;
 
   private final Panel panel;
   private final RenderContext.Global context;
@@ -48,6 +60,11 @@ public class PanelCanvas extends Canvas {
   private Panel.Dragger dragger = Panel.Dragger.NONE;
   private Panel.Hover hover = Panel.Hover.NONE;
   private Point lastMouse = new Point(-1, -1);
+  private final PaintStats paintStats = new PaintStats();
+  private Supplier<List<String>> hudSource = Collections::emptyList;
+  private boolean hudVisible = showHud.get();
+  private Area hudArea = Area.NONE;
+  private boolean hudRefresh = false;
 
   public PanelCanvas(Composite parent, int style, Theme theme, Panel panel) {
     super(parent, style | SWT.NO_BACKGROUND | SWT.DOUBLE_BUFFERED);
@@ -60,16 +77,32 @@ public class PanelCanvas extends Canvas {
       Rectangle size = e.gc.getClipping();
       e.gc.fillRectangle(size);
       Map<String, Long> traces;
+      long end;
       try (RenderContext ctx = context.newContext(e.gc)) {
         panel.render(ctx, a -> scheduleIfNotDisposed(this, () -> redraw(a, false)));
         ctx.renderOverlays();
         traces = ctx.getTraces();
+        end = System.nanoTime();
+        if (hudVisible) {
+          renderHud(ctx);
+        }
       }
-      long end = System.nanoTime();
       if (LOG.isLoggable(Level.FINE)) {
         LOG.log(Level.FINE, size + " (" + (end - start) / 1000000.0 + ") " + traces);
       }
 
+      // The paints refreshing the HUD are not counted, as they are caused by the HUD itself.
+      boolean refresh = hudRefresh;
+      hudRefresh = false;
+      if (!refresh) {
+        paintStats.record(end - start, traces);
+      }
+      if (hudVisible && !refresh && !contains(size, hudArea)) {
+        hudRefresh = true;
+        Area area = hudArea;
+        scheduleIfNotDisposed(this, () -> redraw(area, false));
+      }
+
       if (showRedraws.get()) {
         size.width--;
         size.height--;
@@ -114,6 +147,7 @@ public class PanelCanvas extends Canvas {
       setCursor(null);
     });
     addListener(SWT.Dispose, e -> {
+      TileCache.invalidateAll();
       context.dispose();
     });
   }
@@ -152,6 +186,70 @@ public class PanelCanvas extends Canvas {
     }
   }
 
+  public PaintStats getPaintStats() {
+    return paintStats;
+  }
+
+  /**
+   * Sets the source of the additional lines shown in the rendering performance HUD, e.g. the data
+   * fetch latencies of the panels.
+   */
+  public void setHudSource(Supplier<List<String>> hudSource) {
+    this.hudSource = hudSource;
+  }
+
+  public void toggleHud() {
+    hudVisible = !hudVisible;
+    redraw(Area.FULL, false);
+  }
+
+  /**
+   * Returns the rendering diagnostics, i.e. the content of the HUD, including the cost of all
+   * the traced parts of the panels, one per line.
+   */
+  public String getDiagnostics() {
+    return Joiner.on('\n').join(getHudLines(-1));
+  }
+
+  private List<String> getHudLines(int maxCosts) {
+    List<String> lines = Lists.newArrayList();
+    lines.add("Paint: " + paintStats.getPaints().summary());
+    lines.addAll(paintStats.getCosts(maxCosts));
+    double[] text = context.getTextCacheHitRates();
+    lines.add(format("Cache hits: tiles %.0f%%, text %.0f%%, labels %.0f%%",
+        100 * TileCache.getHitRate(), 100 * text[0], 100 * text[1]));
+    lines.addAll(hudSource.get());
+    return lines;
+  }
+
+  private void renderHud(RenderContext ctx) {
+    List<String> lines = getHudLines(HUD_MAX_COSTS);
+    double w = 0, h = 0;
+    for (String line : lines) {
+      Size lineSize = ctx.measure(Fonts.Style.Normal, line);
+      w = Math.max(w, lineSize.w);
+      h += lineSize.h;
+    }
+
+    Rectangle client = getClientArea();
+    hudArea = new Area(client.width - w - 2 * HUD_PADDING - HUD_MARGIN, HUD_MARGIN,
+        w + 2 * HUD_PADDING, h + 2 * HUD_PADDING);
+    ctx.setBackgroundColor(colors().hoverBackground);
+    ctx.fillRect(hudArea.x, hudArea.y, hudArea.w, hudArea.h);
+    ctx.setForegroundColor(colors().panelBorder);
+    ctx.drawRect(hudArea.x, hudArea.y, hudArea.w - 1, hudArea.h - 1);
+    ctx.setForegroundColor(colors().textMain);
+    double y = hudArea.y + HUD_PADDING;
+    for (String line : lines) {
+      ctx.drawText(Fonts.Style.Normal, line, hudArea.x + HUD_PADDING, y);
+      y += ctx.measure(Fonts.Style.Normal, line).h;
+    }
+  }
+
+  private static boolean contains(Rectangle r, Area a) {
+    return r.x <= a.x && r.y <= a.y && r.x + r.width >= a.x + a.w && r.y + r.height >= a.y + a.h;
+  }
+
   public void structureHasChanged() {
     Rectangle size = getClientArea();
     panel.setSize(size.width, size.height);
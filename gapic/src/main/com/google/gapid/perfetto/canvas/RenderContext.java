@@ -31,6 +31,7 @@ import org.eclipse.swt.graphics.Transform;
 import org.eclipse.swt.internal.DPIUtil;
 import org.eclipse.swt.widgets.Control;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -43,7 +44,11 @@ import java.util.logging.Logger;
 public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   protected static final Logger LOG = Logger.getLogger(RenderContext.class.getName());
 
-  private static final int textSizeGreediness = 3; // must be >= 1.
+  // Adjacent rectangles of the same colour in a batch are merged, if they are less than this apart.
+  private static final double BATCH_MERGE_GAP = 0.5;
+  // Suffixes of the trace labels under which the draw call and colour change counts are reported.
+  public static final String DRAW_CALLS = "#draws";
+  public static final String COLOR_CHANGES = "#colors";
   protected static final double scale = DPIUtil.autoScaleDown(8f);
 
   public final Theme theme;
@@ -55,6 +60,10 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   private final List<Overlay> overlays = Lists.newArrayList();
   private final Map<String, Long> traces = Maps.newHashMap();
   private Fonts.Style lastFontStyle = Fonts.Style.Normal;
+  private long drawCalls = 0;
+  private long colorChanges = 0;
+  private boolean complete = true;
+  private boolean tileCache = true;
 
   public RenderContext(Theme theme, GC gc, ColorCache colors, Fonts.Context fontContext) {
     this.theme = theme;
@@ -123,26 +132,31 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   }
 
   public void setForegroundColor(RGBA color) {
+    colorChanges++;
     gc.setForeground(colors.get(color));
     gc.setAlpha(color.alpha);
   }
 
   public void setForegroundColor(int sysColor) {
+    colorChanges++;
     gc.setForeground(gc.getDevice().getSystemColor(sysColor));
     gc.setAlpha(255);
   }
 
   public void setBackgroundColor(RGBA color) {
+    colorChanges++;
     gc.setBackground(colors.get(color));
     gc.setAlpha(color.alpha);
   }
 
   public void setBackgroundColor(int sysColor) {
+    colorChanges++;
     gc.setBackground(gc.getDevice().getSystemColor(sysColor));
     gc.setAlpha(255);
   }
 
   public void drawLine(double x1, double y1, double x2, double y2) {
+    drawCalls++;
     gc.drawLine(scale(x1), scale(y1), scale(x2), scale(y2));
   }
 
@@ -157,6 +171,7 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   }
 
   public void drawRect(double x, double y, double w, double h) {
+    drawCalls++;
     gc.drawRectangle(rect(x, y, w, h));
   }
 
@@ -171,11 +186,13 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   }
 
   public void fillRect(double x, double y, double w, double h) {
+    drawCalls++;
     gc.fillRectangle(rect(x, y, w, h));
   }
 
   public void drawCircle(double cx, double cy, double r) {
     int d = 2 * scale(r);
+    drawCalls++;
     gc.drawOval(scale(cx - r), scale(cy - r), d, d);
   }
 
@@ -185,6 +202,7 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
       points[j + 0] = scale(xPoints[i]);
       points[j + 1] = scale(yPoints[i]);
     }
+    drawCalls++;
     gc.fillPolygon(points);
   }
 
@@ -194,6 +212,7 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
       points[j + 0] = scale(xPoints[i]);
       points[j + 1] = scale(yPoints[i]);
     }
+    drawCalls++;
     gc.drawPolygon(points);
   }
 
@@ -203,6 +222,7 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
       lastFontStyle = style;
       fontContext.setFont(gc, style);
     }
+    drawCalls++;
     gc.drawText(text, scale(x), scale(y), SWT.DRAW_TRANSPARENT);
   }
 
@@ -224,21 +244,10 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
 
   private void drawText(
       Fonts.Style style, String text, double x, double y, double w, double h, boolean truncate) {
-    String toDisplay = text;
-    for (int l = text.length(); ; ) {
-      Size size = fontContext.measure(style, toDisplay);
-      if (size.w < w) {
-        drawText(style, toDisplay, x + (w - size.w) / 2 , y + (h - size.h) / 2);
-        break;
-      } else if (!truncate) {
-        break;
-      }
-
-      l = Math.min(l - textSizeGreediness, (int)(w / (size.w / toDisplay.length())));
-      if (l <= 0) {
-        break;
-      }
-      toDisplay = text.substring(0, l) + "...";
+    Fonts.Fit fit = fontContext.fit(
+        style, text, w, truncate ? Fonts.Truncation.Right : Fonts.Truncation.None);
+    if (fit != Fonts.Fit.NONE) {
+      drawText(style, fit.text, x + (w - fit.size.w) / 2 , y + (h - fit.size.h) / 2);
     }
   }
 
@@ -256,19 +265,10 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
 
   private void drawTextLeftTruncate(
       Fonts.Style style, String text, double x, double y, double w, double h, boolean centered) {
-    String toDisplay = text;
-    for (int l = text.length(); ; ) {
-      Size size = fontContext.measure(style, toDisplay);
-      if (size.w < w) {
-        drawText(style, toDisplay, x + (centered ? (w - size.w) / 2 : 0), y + (h - size.h) / 2);
-        break;
-      }
-
-      l = Math.min(l - textSizeGreediness, (int)(w / (size.w / toDisplay.length())));
-      if (l <= 0) {
-        break;
-      }
-      toDisplay = "..." + text.substring(text.length() - l);
+    Fonts.Fit fit = fontContext.fit(style, text, w, Fonts.Truncation.Left);
+    if (fit != Fonts.Fit.NONE) {
+      drawText(style, fit.text,
+          x + (centered ? (w - fit.size.w) / 2 : 0), y + (h - fit.size.h) / 2);
     }
   }
 
@@ -291,26 +291,95 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
   }
 
   public void drawPath(Path path) {
+    drawCalls++;
     gc.drawPath(path.path);
   }
 
   public void fillPath(Path path) {
+    drawCalls++;
     gc.fillPath(path.path);
   }
 
   public void drawImage(Image image, double x, double y) {
     Rectangle bounds = image.getBounds();
     int sx = scale(x), sy = scale(y), sw = scale(bounds.width), sh = scale(bounds.height);
+    drawCalls++;
     gc.drawImage(image, 0, 0, bounds.width, bounds.height, sx, sy, sw, sh);
   }
 
   // draws the icon centered vertically
   public void drawIcon(Image image, double x, double y, double h) {
     Rectangle size = image.getBounds();
+    drawCalls++;
     gc.drawImage(image, 0, 0, size.width,size.height,
         scale(x), scale(y + (h - size.height) / 2), scale(size.width), scale(size.height));
   }
 
+  /**
+   * Marks the rendering of this context as incomplete, e.g. because some of the data was still
+   * loading, so that it is not cached.
+   */
+  public void markIncomplete() {
+    complete = false;
+  }
+
+  /**
+   * Disables the {@link TileCache tile cache} for the rest of this context, e.g. because the
+   * cached areas are drawn over a background that is not plain.
+   */
+  public void disableTileCache() {
+    tileCache = false;
+  }
+
+  public boolean isTileCacheEnabled() {
+    return tileCache;
+  }
+
+  /**
+   * Returns a new off-screen image of the given size, to be rendered to with
+   * {@link #renderToImage}. The caller has to dispose the image.
+   */
+  public Image newImage(double w, double h) {
+    return new Image(
+        gc.getDevice(), Math.max(1, (int)Math.ceil(w)), Math.max(1, (int)Math.ceil(h)));
+  }
+
+  /**
+   * Renders the given function into the given off-screen image, after filling it with the given
+   * background color, using a new context sharing this context's theme, colors and fonts. The
+   * traces of the off-screen rendering are added to this context's. Returns whether the rendering
+   * was complete, i.e. was not {@link #markIncomplete() marked incomplete}.
+   */
+  public boolean renderToImage(Image image, RGBA background, Consumer<RenderContext> fun) {
+    GC imageGc = new GC(image);
+    try (RenderContext ctx = new RenderContext(theme, imageGc, colors, fontContext)) {
+      Area size = ctx.getClip();
+      ctx.setBackgroundColor(background);
+      ctx.fillRect(0, 0, size.w, size.h);
+      fun.accept(ctx);
+      ctx.renderOverlays();
+
+      drawCalls += ctx.drawCalls;
+      colorChanges += ctx.colorChanges;
+      ctx.traces.forEach((label, value) -> traces.merge(label, value, Long::sum));
+      return ctx.complete;
+    } finally {
+      imageGc.dispose();
+    }
+  }
+
+  /**
+   * Batches the rectangle fills and text draws issued via the given function. Once the function
+   * returns, the rectangles are drawn grouped by colour, with empty and clipped rectangles culled
+   * and adjacent rectangles of the same colour merged, followed by the text, grouped by colour.
+   * Since the draw order changes, the rectangles of a batch should not overlap.
+   */
+  public void batch(Consumer<Batch> fun) {
+    Batch batch = new Batch(getClip());
+    fun.accept(batch);
+    batch.flush();
+  }
+
   public void path(Consumer<Path> fun) {
     org.eclipse.swt.graphics.Path path = new org.eclipse.swt.graphics.Path(gc.getDevice());
     try {
@@ -356,13 +425,20 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
     gc.setClipping(rect(old.x, old.y, old.w, old.h));
   }
 
+  /**
+   * Runs the given function, adding its duration, in nanoseconds, as well as the number of draw
+   * calls and colour changes it issued, to the traces under the given label.
+   */
   public void trace(String label, Runnable run) {
     long start = System.nanoTime();
+    long startDraws = drawCalls, startColors = colorChanges;
     try {
       run.run();
     } finally {
       long delta = System.nanoTime() - start;
       traces.merge(label, delta, (a, b) -> a + delta);
+      traces.merge(label + DRAW_CALLS, drawCalls - startDraws, Long::sum);
+      traces.merge(label + COLOR_CHANGES, colorChanges - startColors, Long::sum);
     }
   }
 
@@ -403,6 +479,80 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
     }
   }
 
+  /**
+   * Collects the rectangles and text of a {@link RenderContext#batch(Consumer) batch}.
+   */
+  public class Batch {
+    private final Area clip;
+    private final Map<RGBA, Rects> rects = Maps.newLinkedHashMap();
+    private final Map<RGBA, List<Runnable>> texts = Maps.newLinkedHashMap();
+
+    protected Batch(Area clip) {
+      this.clip = clip;
+    }
+
+    public void fillRect(RGBA color, double x, double y, double w, double h) {
+      if (w <= 0 || h <= 0 || x > clip.x + clip.w || x + w < clip.x ||
+          y > clip.y + clip.h || y + h < clip.y) {
+        return;
+      }
+      rects.computeIfAbsent(color, $ -> new Rects()).add(x, y, w, h);
+    }
+
+    /**
+     * Queues the given text drawing, which is run after all the rectangles are drawn, with the
+     * foreground set to the given color.
+     */
+    public void drawText(RGBA color, Runnable draw) {
+      texts.computeIfAbsent(color, $ -> Lists.newArrayList()).add(draw);
+    }
+
+    protected void flush() {
+      for (Map.Entry<RGBA, Rects> e : rects.entrySet()) {
+        setBackgroundColor(e.getKey());
+        e.getValue().fill();
+      }
+      for (Map.Entry<RGBA, List<Runnable>> e : texts.entrySet()) {
+        setForegroundColor(e.getKey());
+        for (Runnable text : e.getValue()) {
+          text.run();
+        }
+      }
+    }
+  }
+
+  // The rectangles of a single colour in a batch, stored as x, y, w, h quadruples.
+  private class Rects {
+    private double[] values = new double[64];
+    private int size = 0;
+
+    public void add(double x, double y, double w, double h) {
+      if (size > 0) {
+        // Merge with the previous rectangle, if on the same row and adjacent or overlapping.
+        int last = size - 4;
+        double lastX = values[last], lastEnd = lastX + values[last + 2];
+        if (values[last + 1] == y && values[last + 3] == h &&
+            x >= lastX && x <= lastEnd + BATCH_MERGE_GAP) {
+          values[last + 2] = Math.max(lastEnd, x + w) - lastX;
+          return;
+        }
+      }
+      if (size == values.length) {
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size++] = x;
+      values[size++] = y;
+      values[size++] = w;
+      values[size++] = h;
+    }
+
+    public void fill() {
+      for (int i = 0; i < size; i += 4) {
+        fillRect(values[i], values[i + 1], values[i + 2], values[i + 3]);
+      }
+    }
+  }
+
   public static class Global implements Fonts.TextMeasurer {
     private final Theme theme;
     private final ColorCache colors;
@@ -422,6 +572,10 @@ public class RenderContext implements Fonts.TextMeasurer, AutoCloseable {
       return colors.get(rgba);
     }
 
+    public double[] getTextCacheHitRates() {
+      return fontContext.getCacheHitRates();
+    }
+
     @Override
     public Size measure(Style style, String text) {
       return fontContext.measure(style, text);
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.canvas;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.RGBA;
+
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Caches the rendering of an area of a {@link Panel} in an off-screen image, the tile. As long as
+ * the key of the rendering does not change, the tile is drawn instead of re-rendering the area.
+ * Incomplete renderings, e.g. while the data is still loading, and partial redraws, that do not
+ * cover the whole area, are not cached.
+ *
+ * Since panels are not disposed, the tiles are kept in a global, least recently drawn first, list
+ * of bounded size and the least recently drawn tiles are disposed once the list is full.
+ */
+// Only used on the UI thread.
+public class TileCache {
+  public static final Flag<Boolean> enabled = Flags.value("perfetto-tile-cache", true,
+      "Cache the rendering of the track panels in off-screen images.", true);
+  public static final Flag<Integer> maxTiles = Flags.value("perfetto-max-tiles", 128,
+      "Maximum number of cached track panel images.", true);
+
+  private static final LinkedHashSet<TileCache> live = Sets.newLinkedHashSet();
+  private static long hits = 0, misses = 0;
+
+  private Image image;
+  private Object key;
+
+  /**
+   * Renders the area of the given size at the given location, in the panel's coordinate system,
+   * either by drawing the tile, if its key matches the given key, or by invoking the given
+   * function. The function is invoked with the context translated to the area's origin and the
+   * area filled with the given background color.
+   */
+  public void render(RenderContext ctx, double x, double y, double w, double h, RGBA background,
+      Object key, Consumer<RenderContext> render) {
+    if (w <= 0 || h <= 0) {
+      return;
+    } else if (!enabled.get() || !ctx.isTileCacheEnabled()) {
+      invalidate();
+      renderDirect(ctx, x, y, w, h, background, render);
+      return;
+    }
+
+    if (image != null && Objects.equals(this.key, key)) {
+      hits++;
+      touch();
+      ctx.drawImage(image, x, y);
+      return;
+    }
+
+    misses++;
+    invalidate();
+    Area clip = ctx.getClip();
+    if (clip.x > x || clip.y > y || clip.x + clip.w < x + w || clip.y + clip.h < y + h) {
+      // A partial redraw, e.g. of a hover: render only the clipped part.
+      renderDirect(ctx, x, y, w, h, background, render);
+      return;
+    }
+
+    Image tile = ctx.newImage(w, h);
+    if (ctx.renderToImage(tile, background, render)) {
+      this.image = tile;
+      this.key = key;
+      touch();
+    }
+    ctx.drawImage(tile, x, y);
+    if (this.image != tile) {
+      tile.dispose();
+    }
+  }
+
+  /**
+   * Renders the area by invoking the given function, like a partial redraw, but keeps the tile.
+   * Used while the area shows transient decorations, such as a hover, which are not cached, so
+   * that the tile can be drawn again once they are gone.
+   */
+  public void renderUncached(RenderContext ctx, double x, double y, double w, double h,
+      RGBA background, Consumer<RenderContext> render) {
+    if (w > 0 && h > 0) {
+      renderDirect(ctx, x, y, w, h, background, render);
+    }
+  }
+
+  /**
+   * Discards the tile, forcing the next render to re-render the area.
+   */
+  public void invalidate() {
+    if (image != null) {
+      image.dispose();
+      image = null;
+      key = null;
+      live.remove(this);
+    }
+  }
+
+  /**
+   * Discards all tiles, e.g. when the canvas drawing them is disposed.
+   */
+  public static void invalidateAll() {
+    for (TileCache tile : Lists.newArrayList(live)) {
+      tile.invalidate();
+    }
+  }
+
+  /**
+   * Returns the fraction of the renders that drew a cached tile.
+   */
+  public static double getHitRate() {
+    return (hits + misses == 0) ? 0 : (double)hits / (hits + misses);
+  }
+
+  private static void renderDirect(RenderContext ctx, double x, double y, double w, double h,
+      RGBA background, Consumer<RenderContext> render) {
+    ctx.withTranslation(x, y, () -> {
+      ctx.setBackgroundColor(background);
+      ctx.fillRect(0, 0, w, h);
+      render.accept(ctx);
+    });
+  }
+
+  private void touch() {
+    live.remove(this);
+    live.add(this);
+    int max = Math.max(1, maxTiles.get());
+    while (live.size() > max) {
+      live.iterator().next().invalidate();
+    }
+  }
+}
@@ -19,9 +19,12 @@ import static com.google.gapid.util.MoreFutures.transform;
 import static java.lang.String.format;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Collection of "extra data" from the args table.
@@ -29,6 +32,9 @@ import java.util.Map;
 public class ArgSet {
   private static final String ARGS_QUERY =
       "select key, int_value, real_value, string_value from args where arg_set_id = %d";
+  private static final String ARGS_IN_QUERY =
+      "select key, int_value, real_value, string_value, arg_set_id from args " +
+      "where arg_set_id in (%s) order by arg_set_id";
 
   public static final ArgSet EMPTY = new ArgSet(ImmutableMap.of());
 
@@ -42,28 +48,54 @@ public class ArgSet {
     return transform(qe.query(sql(id)), ArgSet::of);
   }
 
+  /**
+   * Loads the arg sets of all the given ids with a single query. Ids without any args map to
+   * {@link #EMPTY}.
+   */
+  public static ListenableFuture<Map<Long, ArgSet>> getAll(QueryEngine qe, long[] ids) {
+    return transform(qe.query(sql(ids)), res -> {
+      Map<Long, ImmutableMap.Builder<String, Object>> maps = Maps.newHashMap();
+      res.forEachRow(($, r) ->
+        put(maps.computeIfAbsent(r.getLong(4), id -> ImmutableMap.builder()), r));
+
+      Map<Long, ArgSet> result = Maps.newHashMapWithExpectedSize(ids.length);
+      for (long id : ids) {
+        ImmutableMap.Builder<String, Object> map = maps.get(id);
+        result.put(id, (map == null) ? EMPTY : new ArgSet(map.build()));
+      }
+      return result;
+    });
+  }
+
   private static String sql(Long id) {
     return format(ARGS_QUERY, id);
   }
 
+  private static String sql(long[] ids) {
+    return format(ARGS_IN_QUERY,
+        Arrays.stream(ids).mapToObj(Long::toString).collect(Collectors.joining(",")));
+  }
+
   public static ArgSet of(QueryEngine.Result res) {
     if (res.getNumRows() == 0) {
       return EMPTY;
     }
 
     ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
-    res.forEachRow(($, r) -> {
-      if (!r.isNull(1)) {
-        map.put(r.getString(0), r.getInt(1));
-      } else if (!r.isNull(2)) {
-        map.put(r.getString(0), r.getDouble(2));
-      } else {
-        map.put(r.getString(0), r.getString(3));
-      }
-    });
+    res.forEachRow(($, r) -> put(map, r));
     return new ArgSet(map.build());
   }
 
+  private static void put(ImmutableMap.Builder<String, Object> map, QueryEngine.Row r) {
+    if (!r.isNull(1)) {
+      map.put(r.getString(0), r.getInt(1));
+    } else if (!r.isNull(2)) {
+      map.put(r.getString(0), r.getDouble(2));
+    } else {
+      map.put(r.getString(0), r.getString(3));
+    }
+  }
+
   public boolean isEmpty() {
     return values.isEmpty();
   }
@@ -15,15 +15,9 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
-import static com.google.gapid.perfetto.models.QueryEngine.createView;
-import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
-import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
-import static com.google.gapid.perfetto.models.QueryEngine.dropView;
+import static com.google.gapid.perfetto.models.MultiCounter.Aggregation.AVERAGE;
 import static com.google.gapid.perfetto.views.TrackContainer.single;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
-import static java.lang.String.format;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
@@ -31,35 +25,24 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Perfetto;
 import com.google.gapid.perfetto.views.BatterySummaryPanel;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class BatterySummaryTrack extends Track.WithQueryEngine<BatterySummaryTrack.Data>{
-  private static final String VIEW_SQL =
-      "select ts, lead(ts) over (order by ts) - ts dur, max(a) capacity, max(b) charge," +
-      "   max(c) current " +
-      "from (select ts," +
-      "  case when track_id = %d then cast(value as int) end a," +
-      "  case when track_id = %d then cast(value as int) end b," +
-      "  case when track_id = %d then cast(value as int) end c " +
-      "  from counter where track_id in (%d, %d, %d))" +
-      "group by ts";
-  private static final String SUMMARY_SQL =
-      "select min(ts), max(ts + dur), cast(avg(capacity) as int), cast(avg(charge) as int)," +
-      "  cast(avg(current) as int) " +
-      "from %s group by quantum_ts";
-  private static final String COUNTER_SQL =
-      "select ts, ts + dur, capacity, charge, current from %s";
-
-  private final long capacityId;
-  private final long chargeId;
-  private final long currentId;
+  private static final int BUCKET_SIZE_PX = 5;
+
+  private final MultiCounter values;
   private final double maxAbsCurrent;
   private final boolean needQuantize;
 
   public BatterySummaryTrack(
       QueryEngine qe, CounterInfo capacity, CounterInfo charge, CounterInfo current) {
     super(qe, "bat_sum");
-    this.capacityId = capacity.id;
-    this.chargeId = charge.id;
-    this.currentId = current.id;
+    this.values = new MultiCounter(qe, tableName("vals"),
+        new long[] { capacity.id, charge.id, current.id }, ImmutableList.of(
+            new MultiCounter.Column("capacity", "cast(c0 as int)", AVERAGE),
+            new MultiCounter.Column("charge", "cast(c1 as int)", AVERAGE),
+            new MultiCounter.Column("current", "cast(c2 as int)", AVERAGE)));
     long maxCount = Math.max(capacity.count, Math.max(charge.count, current.count));
     this.maxAbsCurrent = Math.max(Math.abs(current.min), Math.abs(current.max));
     this.needQuantize = maxCount > Track.QUANTIZE_CUT_OFF;
@@ -70,45 +53,30 @@ public class BatterySummaryTrack extends Track.WithQueryEngine<BatterySummaryTra
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
-    String vals = tableName("vals");
-    String span = tableName("span");
-    String window = tableName("window");
-    return qe.queries(
-        dropTable(span),
-        dropTable(window),
-        dropView(vals),
-        createView(vals, viewSql()),
-        createWindow(window),
-        createSpan(span, vals + ", " + window));
+  protected List<String> getInitQueries() {
+    return values.getInitQueries();
   }
 
-  private String viewSql() {
-    return format(VIEW_SQL, capacityId, chargeId, currentId, capacityId, chargeId, currentId);
+  @Override
+  protected void onInitialized() {
+    if (needQuantize) {
+      values.precomputeLevels(Window.minQuantum(BUCKET_SIZE_PX));
+    }
   }
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window win = needQuantize ? Window.compute(req, 5) : Window.compute(req);
-    return transformAsync(win.update(qe, tableName("window")), $ -> computeData(req, win));
-  }
-
-  private ListenableFuture<Data> computeData(DataRequest req, Window win) {
-    return transform(qe.query(win.quantized ? summarySql() : counterSQL()), res -> {
-      int rows = res.getNumRows();
+    Window win = needQuantize ? Window.compute(req, BUCKET_SIZE_PX) : Window.compute(req);
+    return transform(values.getSeries(req, win.quantized ? win.bucketSize : 0), series -> {
+      int rows = series.size();
       if (rows == 0) {
         return Data.empty(req);
       }
 
-      Data data = new Data(
-          req, new long[rows + 1], new long[rows + 1], new long[rows + 1], new long[rows + 1]);
-      res.forEachRow((i, r) -> {
-        data.ts[i] = r.getLong(0);
-        data.capacity[i] = r.getLong(2);
-        data.charge[i] = r.getLong(3);
-        data.current[i] = r.getLong(4);
-      });
-      data.ts[rows] = res.getLong(rows - 1, 1, 0);
+      Data data = new Data(req, Arrays.copyOf(series.starts, rows + 1),
+          toLongs(series.values[0], rows + 1), toLongs(series.values[1], rows + 1),
+          toLongs(series.values[2], rows + 1));
+      data.ts[rows] = series.ends[rows - 1];
       data.capacity[rows] = data.capacity[rows - 1];
       data.charge[rows] = data.charge[rows - 1];
       data.current[rows] = data.current[rows - 1];
@@ -116,12 +84,19 @@ public class BatterySummaryTrack extends Track.WithQueryEngine<BatterySummaryTra
     });
   }
 
-  private String summarySql() {
-    return format(SUMMARY_SQL, tableName("span"));
+  private static long[] toLongs(double[] values, int size) {
+    long[] result = new long[size];
+    for (int i = 0; i < values.length; i++) {
+      result[i] = (long)values[i];
+    }
+    return result;
   }
 
-  private String counterSQL() {
-    return format(COUNTER_SQL, tableName("span"));
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.ts);
+    return new Data(req, s.longs(d -> d.ts), s.longs(d -> d.capacity), s.longs(d -> d.charge),
+        s.longs(d -> d.current));
   }
 
   public static Perfetto.Data.Builder enumerate(Perfetto.Data.Builder data) {
@@ -133,7 +108,8 @@ public class BatterySummaryTrack extends Track.WithQueryEngine<BatterySummaryTra
       return data;
     }
 
-    BatterySummaryTrack track = new BatterySummaryTrack(data.qe, battCap, battCharge, battCurrent);
+    BatterySummaryTrack track =
+        data.register(new BatterySummaryTrack(data.qe, battCap, battCharge, battCurrent));
     data.tracks.addTrack(null, track.getId(), "Battery Usage",
         single(state -> new BatterySummaryPanel(state, track), true));
     return data;
@@ -157,6 +133,11 @@ public class BatterySummaryTrack extends Track.WithQueryEngine<BatterySummaryTra
       this.current = current;
     }
 
+    @Override
+    public long getSize() {
+      return sizeOf(ts, capacity, charge, current);
+    }
+
     public static Data empty(DataRequest req) {
       return new Data(req, new long[0], new long[0], new long[0], new long[0]);
     }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static com.google.gapid.perfetto.models.QueryEngine.expectOneRow;
+import static com.google.gapid.util.MoreFutures.transform;
+import static com.google.gapid.util.MoreFutures.transformAsync;
+import static java.lang.String.format;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.perfetto.models.Track.DataRequest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precomputed multi-resolution summary of a counter. Each level holds the average of the
+ * counter's values in buckets of a fixed size, aligned to multiples of the bucket size, and,
+ * optionally, the {@link Downsampling#M4 M4} rows of each bucket, i.e. its first, last, minimum
+ * and maximum value. The bucket size doubles from one level to the next, matching the quantum of
+ * the quantized requests, which doubles with the resolution. The finest level is computed with a
+ * single query, the coarser levels are merged from the finer ones.
+ */
+public class CounterPyramid {
+  // The finest level has at most this many buckets.
+  private static final int MAX_BUCKETS = 1 << 16;
+
+  private static final String BOUNDS_SQL = "select min(ts), max(ts + dur) from %s";
+  private static final String LEVEL_SQL =
+      "select ts / %d q, min(ts), max(ts + dur), sum(value), count(1) " +
+      "from %s group by q order by q";
+  // The bare columns of each aggregate are taken from the row holding the aggregate's value.
+  private static final String LEVEL_M4_SQL =
+      "with m4 as (select * from %2$s) " +
+      "select a.q, a.s, a.e, a.sm, a.n, f.value, l.ts, l.value, mn.ts, mn.value, mx.ts, mx.value " +
+      "from (select ts / %1$d q, min(ts) s, max(ts + dur) e, sum(value) sm, count(1) n " +
+      "  from m4 group by q) a " +
+      "join (select ts / %1$d q, min(ts), value from m4 group by q) f using (q) " +
+      "join (select ts / %1$d q, max(ts) ts, value from m4 group by q) l using (q) " +
+      "join (select ts / %1$d q, ts, min(value) value from m4 group by q) mn using (q) " +
+      "join (select ts / %1$d q, ts, max(value) value from m4 group by q) mx using (q) " +
+      "order by a.q";
+
+  // Ordered from the finest to the coarsest level.
+  private final List<Level> levels;
+
+  private CounterPyramid(List<Level> levels) {
+    this.levels = levels;
+  }
+
+  /**
+   * Builds the pyramid of the counter values in the given table, which has to have ts, dur and
+   * value columns. The bucket size of the finest level is the smallest multiple of the given
+   * quantum by a power of two, such that the level has at most {@link #MAX_BUCKETS} buckets. The
+   * M4 rows are only computed if requested, since they make the build about twice as expensive.
+   */
+  public static ListenableFuture<CounterPyramid> build(
+      QueryEngine qe, String table, long minQuantum, boolean m4) {
+    return transformAsync(expectOneRow(qe.query(format(BOUNDS_SQL, table))), bounds -> {
+      long duration = Math.max(1, bounds.getLong(1) - bounds.getLong(0));
+      long size = Math.max(1, minQuantum);
+      while (duration / size > MAX_BUCKETS) {
+        size *= 2;
+      }
+      long finest = size;
+      String sql = format(m4 ? LEVEL_M4_SQL : LEVEL_SQL, finest, table);
+      return transform(qe.query(sql), res -> {
+        if (res.getNumRows() == 0) {
+          return null;
+        }
+        Level level = new Level(finest, res.getLongColumn(0).toArray(),
+            res.getLongColumn(1).toArray(), res.getLongColumn(2).toArray(),
+            res.getDoubleColumn(3).toArray(), res.getLongColumn(4).toArray());
+        if (m4) {
+          level.setM4(res.getDoubleColumn(5).toArray(), res.getLongColumn(6).toArray(),
+              res.getDoubleColumn(7).toArray(), res.getLongColumn(8).toArray(),
+              res.getDoubleColumn(9).toArray(), res.getLongColumn(10).toArray(),
+              res.getDoubleColumn(11).toArray());
+        }
+        return of(level, duration);
+      });
+    });
+  }
+
+  // Builds the pyramid from its finest level, merging levels until a single bucket spans the
+  // given duration.
+  static CounterPyramid of(Level finest, long duration) {
+    Level level = finest;
+    List<Level> levels = Lists.newArrayList(level);
+    while (level.buckets.length > 1 && level.size < duration) {
+      level = level.merge();
+      levels.add(level);
+    }
+    return new CounterPyramid(levels);
+  }
+
+  /**
+   * Returns whether this pyramid holds the M4 rows, i.e. whether it can serve the data of both
+   * downsampling modes.
+   */
+  public boolean hasM4() {
+    return levels.get(0).hasM4();
+  }
+
+  /**
+   * Returns the counter data for the given request, reduced to buckets of the given size by the
+   * given downsampling mode, from the level closest to, but not coarser than, the bucket size.
+   * Returns {@code null} if the request is finer than the finest level, or if the M4 rows are
+   * requested, but not held by this pyramid.
+   */
+  public CounterTrack.Data getData(DataRequest req, long bucketSize, Downsampling mode) {
+    if (mode == Downsampling.M4 && !hasM4()) {
+      return null;
+    }
+
+    Level level = null;
+    for (Level l : levels) {
+      if (l.size > bucketSize) {
+        break;
+      }
+      level = l;
+    }
+    return (level == null) ? null :
+        (mode == Downsampling.M4) ? level.getM4Data(req) : level.getData(req);
+  }
+
+  public long getSize() {
+    long size = 0;
+    for (Level level : levels) {
+      size += level.getSize();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "CounterPyramid{levels: " + levels.size() + ", finest: " + levels.get(0).size +
+        ", buckets: " + levels.get(0).buckets.length + ", m4: " + hasM4() + "}";
+  }
+
+  static class Level {
+    public final long size;
+    // Sorted bucket indices, i.e. the bucket start divided by the size, of the non-empty buckets.
+    public final long[] buckets;
+    // The start of the first and the end of the last value in each bucket.
+    public final long[] starts;
+    public final long[] ends;
+    public final double[] sums;
+    public final long[] counts;
+    // The M4 rows of each bucket, null if not computed. The first row starts at the bucket's start.
+    private double[] firstValues;
+    private long[] lastTs;
+    private double[] lastValues;
+    private long[] minTs;
+    private double[] mins;
+    private long[] maxTs;
+    private double[] maxs;
+
+    public Level(long size, long[] buckets, long[] starts, long[] ends, double[] sums,
+        long[] counts) {
+      this.size = size;
+      this.buckets = buckets;
+      this.starts = starts;
+      this.ends = ends;
+      this.sums = sums;
+      this.counts = counts;
+    }
+
+    public void setM4(double[] firstValues, long[] lastTs, double[] lastValues, long[] minTs,
+        double[] mins, long[] maxTs, double[] maxs) {
+      this.firstValues = firstValues;
+      this.lastTs = lastTs;
+      this.lastValues = lastValues;
+      this.minTs = minTs;
+      this.mins = mins;
+      this.maxTs = maxTs;
+      this.maxs = maxs;
+    }
+
+    public boolean hasM4() {
+      return firstValues != null;
+    }
+
+    public long getSize() {
+      long size = Track.Data.sizeOf(buckets, starts, ends, sums, counts);
+      if (hasM4()) {
+        size += Track.Data.sizeOf(firstValues, lastTs, lastValues, minTs, mins, maxTs, maxs);
+      }
+      return size;
+    }
+
+    // Returns the next coarser level, combining pairs of adjacent buckets.
+    public Level merge() {
+      int n = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        if (i == 0 || (buckets[i] >> 1) != (buckets[i - 1] >> 1)) {
+          n++;
+        }
+      }
+
+      Level r = new Level(2 * size, new long[n], new long[n], new long[n], new double[n],
+          new long[n]);
+      boolean m4 = hasM4();
+      if (m4) {
+        r.setM4(new double[n], new long[n], new double[n], new long[n], new double[n],
+            new long[n], new double[n]);
+      }
+      for (int i = 0, j = -1; i < buckets.length; i++) {
+        if (j < 0 || (buckets[i] >> 1) != r.buckets[j]) {
+          j++;
+          r.buckets[j] = buckets[i] >> 1;
+          r.starts[j] = starts[i];
+          r.ends[j] = ends[i];
+          if (m4) {
+            r.firstValues[j] = firstValues[i];
+            r.minTs[j] = minTs[i];
+            r.mins[j] = mins[i];
+            r.maxTs[j] = maxTs[i];
+            r.maxs[j] = maxs[i];
+          }
+        } else {
+          r.ends[j] = Math.max(r.ends[j], ends[i]);
+          if (m4) {
+            if (mins[i] < r.mins[j]) {
+              r.minTs[j] = minTs[i];
+              r.mins[j] = mins[i];
+            }
+            if (maxs[i] > r.maxs[j]) {
+              r.maxTs[j] = maxTs[i];
+              r.maxs[j] = maxs[i];
+            }
+          }
+        }
+        r.sums[j] += sums[i];
+        r.counts[j] += counts[i];
+        if (m4) {
+          // The buckets are sorted, so the last one combined holds the last row.
+          r.lastTs[j] = lastTs[i];
+          r.lastValues[j] = lastValues[i];
+        }
+      }
+      return r;
+    }
+
+    // Returns the averages of the buckets overlapping the request, in the same shape as the data
+    // loaded by the counter track's queries, i.e. with an extra row marking the end of the last.
+    public CounterTrack.Data getData(DataRequest req) {
+      int first = firstBucket(req), last = lastBucket(req);
+      int rows = last - first + 1;
+      if (rows <= 0) {
+        return CounterTrack.Data.empty(req);
+      }
+
+      long[] ts = new long[rows + 1];
+      double[] values = new double[rows + 1];
+      for (int i = 0; i < rows; i++) {
+        ts[i] = starts[first + i];
+        values[i] = sums[first + i] / counts[first + i];
+      }
+      ts[rows] = ends[last];
+      values[rows] = values[rows - 1];
+      return new CounterTrack.Data(req, ts, values);
+    }
+
+    // Returns the M4 rows of the buckets overlapping the request, ordered by time, in the same
+    // shape as the data loaded by the counter track's M4 query.
+    public CounterTrack.Data getM4Data(DataRequest req) {
+      int first = firstBucket(req), last = lastBucket(req);
+      if (last < first) {
+        return CounterTrack.Data.empty(req);
+      }
+
+      long[] ts = new long[4 * (last - first + 1) + 1];
+      double[] values = new double[ts.length];
+      int rows = 0;
+      for (int i = first; i <= last; i++) {
+        rows = add(ts, values, rows, starts[i], firstValues[i]);
+        if (minTs[i] <= maxTs[i]) {
+          rows = add(ts, values, rows, minTs[i], mins[i]);
+          rows = add(ts, values, rows, maxTs[i], maxs[i]);
+        } else {
+          rows = add(ts, values, rows, maxTs[i], maxs[i]);
+          rows = add(ts, values, rows, minTs[i], mins[i]);
+        }
+        rows = add(ts, values, rows, lastTs[i], lastValues[i]);
+      }
+      ts[rows] = ends[last];
+      values[rows] = values[rows - 1];
+      return new CounterTrack.Data(req, Arrays.copyOf(ts, rows + 1),
+          Arrays.copyOf(values, rows + 1));
+    }
+
+    // Appends the given row, unless it is the same row as the previous one.
+    private static int add(long[] ts, double[] values, int rows, long t, double value) {
+      if (rows > 0 && ts[rows - 1] == t) {
+        return rows;
+      }
+      ts[rows] = t;
+      values[rows] = value;
+      return rows + 1;
+    }
+
+    // Returns the index of the first bucket overlapping the request.
+    private int firstBucket(DataRequest req) {
+      int first = Arrays.binarySearch(buckets, req.range.start / size);
+      first = (first < 0) ? -first - 1 : first;
+      if (first > 0 && ends[first - 1] >= req.range.start) {
+        first--;
+      }
+      return first;
+    }
+
+    // Returns the index of the last bucket overlapping the request.
+    private int lastBucket(DataRequest req) {
+      int last = Arrays.binarySearch(buckets, req.range.end / size);
+      return (last < 0) ? -last - 2 : last;
+    }
+  }
+}
@@ -21,23 +21,31 @@ import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
 import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
 import static com.google.gapid.perfetto.models.QueryEngine.dropView;
 import static com.google.gapid.perfetto.models.QueryEngine.expectOneRow;
+import static com.google.gapid.util.MoreFutures.addCallback;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.views.CountersSelectionView;
 import com.google.gapid.perfetto.views.State;
+import com.google.gapid.util.LoggingCallback;
 
 import org.eclipse.swt.widgets.Composite;
 
 import java.util.Arrays;
-import java.util.Set;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.logging.Logger;
 
 public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
+  private static final Logger LOG = Logger.getLogger(CounterTrack.class.getName());
+
+  private static final int BUCKET_SIZE_PX = 5;
+
   private static final String VIEW_SQL_DELTA =
       "select ts + 1 ts, lead(ts) over win - ts dur, lead(value) over win value " +
       "from counter where track_id = %d window win as (order by ts)";
@@ -46,29 +54,56 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
       "from counter where track_id = %d window win as (order by ts)";
   private static final String SUMMARY_SQL =
       "select min(ts), max(ts + dur), avg(value) from %s group by quantum_ts";
-  private static final String COUNTER_SQL = "select ts, ts + dur, value from %s";
+  private static final String COUNTER_SQL =
+      "select ts, ts + dur, value from %s where ts + dur >= %d and ts <= %d order by ts";
+  private static final String COUNTER_M4_WHERE = "ts + dur >= %d and ts <= %d";
   private static final String VALUE_SQL = "select ts, ts + dur, value from %s where ts = %d";
   private static final String RANGE_SQL =
       "select ts, ts + dur, value from %s " +
       "where ts + dur >= %d and ts <= %d order by ts";
 
   private final CounterInfo counter;
+  private volatile Downsampling downsampling;
+  // Built in the background, on the first quantized request. Null until then.
+  private volatile CounterPyramid pyramid;
+  // The mode of the pyramid built, or being built, null if none. Guarded by this.
+  private Downsampling pyramidMode = null;
 
   public CounterTrack(QueryEngine qe, CounterInfo counter) {
+    this(qe, counter, Downsampling.counterDownsampling.get());
+  }
+
+  public CounterTrack(QueryEngine qe, CounterInfo counter, Downsampling downsampling) {
     super(qe, "counter_" + counter.id);
     this.counter = counter;
+    this.downsampling = downsampling;
   }
 
   public CounterInfo getCounter() {
     return counter;
   }
 
+  public Downsampling getDownsampling() {
+    return downsampling;
+  }
+
+  /**
+   * Changes how the zoomed out data of this track is reduced, reloading the data if changed.
+   */
+  // on UI Thread
+  public void setDownsampling(Downsampling downsampling) {
+    if (this.downsampling != downsampling) {
+      this.downsampling = downsampling;
+      invalidateData();
+    }
+  }
+
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String vals = tableName("vals");
     String span = tableName("span");
     String window = tableName("window");
-    return qe.queries(
+    return ImmutableList.of(
         dropTable(span),
         dropTable(window),
         dropView(vals),
@@ -77,6 +112,52 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
         createSpan(span, vals + ", " + window));
   }
 
+  // Starts building the pyramid in the background, unless already started for the given mode.
+  // Zoomed out requests are served from the pyramid, once built, rather than by a quantized query
+  // scanning the whole counter for every resolution. A pyramid holding the M4 rows serves both
+  // modes, so it is never replaced. The pyramid's memory is counted against the page store budget.
+  private synchronized void buildPyramid(Downsampling mode) {
+    if (pyramidMode == mode || pyramidMode == Downsampling.M4) {
+      return;
+    }
+    pyramidMode = mode;
+
+    String vals = tableName("vals");
+    boolean m4 = mode == Downsampling.M4;
+    // The M4 rows are per pixel, rather than per bucket.
+    long minQuantum = Window.minQuantum(m4 ? 1 : BUCKET_SIZE_PX);
+    addCallback(precompute(() -> CounterPyramid.build(qe, vals, minQuantum, m4)),
+        new LoggingCallback<CounterPyramid>(LOG) {
+          @Override
+          public void onSuccess(CounterPyramid result) {
+            synchronized (CounterTrack.this) {
+              CounterPyramid current = pyramid;
+              if (result == null || (current != null && current.hasM4() && !result.hasM4())) {
+                return;
+              }
+              getPageStore().setExtraFootprint(CounterTrack.this, result.getSize());
+              if (LOG.isLoggable(FINE)) {
+                LOG.log(FINE, "Built the pyramid of counter " + counter.name + ": " + result);
+              }
+              pyramid = result;
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            super.onFailure(t);
+            // Let the next quantized request retry.
+            synchronized (CounterTrack.this) {
+              if (pyramidMode == mode) {
+                CounterPyramid current = pyramid;
+                pyramidMode = (current == null) ? null :
+                    current.hasM4() ? Downsampling.M4 : Downsampling.AVERAGE;
+              }
+            }
+          }
+        });
+  }
+
   private String viewSql() {
     switch (counter.interpolation) {
       case Delta: return format(VIEW_SQL_DELTA, counter.id);
@@ -87,35 +168,67 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window win = (counter.count > Track.QUANTIZE_CUT_OFF) ? Window.compute(req, 5) :
+    Window win = (counter.count > Track.QUANTIZE_CUT_OFF) ? Window.compute(req, BUCKET_SIZE_PX) :
         Window.compute(req);
-    return transformAsync(win.update(qe, tableName("window")), $ -> computeData(req, win));
+    if (!win.quantized) {
+      return computeData(req, counterSQL(req));
+    }
+
+    Downsampling mode = downsampling;
+    // The M4 rows are per pixel, rather than per bucket.
+    long bucketSize = (mode == Downsampling.M4) ? req.resolution : win.bucketSize;
+    CounterPyramid summary = pyramid;
+    Data data = (summary == null) ? null : summary.getData(req, bucketSize, mode);
+    if (data != null) {
+      return Futures.immediateFuture(data);
+    }
+    buildPyramid(mode);
+    return (mode == Downsampling.M4) ? computeData(req, counterM4Sql(req)) :
+        withWindow(win, () -> computeData(req, summarySql()));
   }
 
-  private ListenableFuture<Data> computeData(DataRequest req, Window win) {
-    return transform(qe.query(win.quantized ? summarySql() : counterSQL()), res -> {
+  private ListenableFuture<Data> computeData(DataRequest req, String sql) {
+    return transform(qe.query(sql), res -> {
       int rows = res.getNumRows();
       if (rows == 0) {
         return Data.empty(req);
       }
 
-      Data data = new Data(req, new long[rows + 1], new double[rows + 1]);
-      res.forEachRow((i, r) -> {
-        data.ts[i] = r.getLong(0);
-        data.values[i] = r.getDouble(2);
-      });
-      data.ts[rows] = res.getLong(rows - 1, 1, 0);
-      data.values[rows] = data.values[rows - 1];
-      return data;
+      long[] ts = res.getLongColumn(0).copyTo(new long[rows + 1], 0, 0);
+      double[] values = res.getDoubleColumn(2).copyTo(new double[rows + 1], 0, 0);
+      ts[rows] = res.getLong(rows - 1, 1, 0);
+      values[rows] = values[rows - 1];
+      return new Data(req, ts, values);
     });
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.ts);
+    return new Data(req, s.longs(d -> d.ts), s.doubles(d -> d.values));
+  }
+
+  @Override
+  protected DiskPageCache.Codec<Data> getPageCodec() {
+    return Data.CODEC;
+  }
+
   private String summarySql() {
     return format(SUMMARY_SQL, tableName("span"));
   }
 
-  private String counterSQL() {
-    return format(COUNTER_SQL, tableName("span"));
+  private String counterSQL(DataRequest req) {
+    return format(COUNTER_SQL, tableName("vals"), req.range.start, req.range.end);
+  }
+
+  private String counterM4Sql(DataRequest req) {
+    return Downsampling.m4Sql("ts, ts + dur, value", "value", tableName("vals"),
+        format(COUNTER_M4_WHERE, req.range.start, req.range.end), req.resolution);
+  }
+
+  @Override
+  protected String getPageCacheId() {
+    return super.getPageCacheId() + "_" + downsampling.name().toLowerCase();
   }
 
   public ListenableFuture<Data> getValue(long t) {
@@ -136,14 +249,11 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
         return Data.empty(null);
       }
 
-      Data data = new Data(null, new long[rows + 1], new double[rows + 1]);
-      res.forEachRow((i, r) -> {
-        data.ts[i] = r.getLong(0);
-        data.values[i] = r.getDouble(2);
-      });
-      data.ts[rows] = res.getLong(rows - 1, 1, 0);
-      data.values[rows] = data.values[rows - 1];
-      return data;
+      long[] times = res.getLongColumn(0).copyTo(new long[rows + 1], 0, 0);
+      double[] values = res.getDoubleColumn(2).copyTo(new double[rows + 1], 0, 0);
+      times[rows] = res.getLong(rows - 1, 1, 0);
+      values[rows] = values[rows - 1];
+      return new Data(null, times, values);
     });
   }
 
@@ -156,6 +266,18 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
   }
 
   public static class Data extends Track.Data {
+    static final DiskPageCache.Codec<Data> CODEC = new DiskPageCache.Codec<Data>() {
+      @Override
+      public void write(DiskPageCache.Writer out, Data data) {
+        out.longs(data.ts).doubles(data.values);
+      }
+
+      @Override
+      public Data read(DiskPageCache.Reader in, DataRequest request) {
+        return new Data(request, in.longs(), in.doubles());
+      }
+    };
+
     public final long[] ts;
     public final double[] values;
 
@@ -165,6 +287,11 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
       this.values = values;
     }
 
+    @Override
+    public long getSize() {
+      return sizeOf(ts, values);
+    }
+
     public static Data empty(DataRequest req) {
       return new Data(req, new long[0], new double[0]);
     }
@@ -174,29 +301,17 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
     public final long[] ts;
     public final String[] names;
     public final double[][] values;
-    private final Set<Values.Key> valueKeys = Sets.newHashSet();
 
     public Values(String name, Data data) {
       this.ts = data.ts;
       this.names = new String[] { name };
       this.values = new double[][] { data.values };
-      initKeys();
     }
 
     private Values(long[] ts, String[] names, double[][] values) {
       this.ts = ts;
       this.names = names;
       this.values = values;
-      initKeys();
-    }
-
-    private void initKeys() {
-      for (String name : names) {
-        // Skip the last dummy entry for the range end.
-        Arrays.stream(ts, 0, ts.length - 1)
-            .boxed()
-            .forEach(t -> valueKeys.add(new Values.Key(name, t)));
-      }
     }
 
     @Override
@@ -206,7 +321,13 @@ public class CounterTrack extends Track.WithQueryEngine<CounterTrack.Data> {
 
     @Override
     public boolean contains(Values.Key key) {
-      return valueKeys.contains(key);
+      for (String name : names) {
+        // Skip the last dummy entry for the range end. The timestamps are sorted.
+        if (name.equals(key.name)) {
+          return ts.length > 0 && Arrays.binarySearch(ts, 0, ts.length - 1, key.ts) >= 0;
+        }
+      }
+      return false;
     }
 
     @Override
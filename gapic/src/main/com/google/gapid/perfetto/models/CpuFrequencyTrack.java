@@ -15,95 +15,107 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
-import static com.google.gapid.perfetto.models.QueryEngine.createView;
-import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
-import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
-import static com.google.gapid.perfetto.models.QueryEngine.dropView;
+import static com.google.gapid.perfetto.models.MultiCounter.Aggregation.AVERAGE;
+import static com.google.gapid.perfetto.models.MultiCounter.Aggregation.MIN;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
-import static java.lang.String.format;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
+
 /**
  * {@link Track} containing the CPU frequency and idle data.
  */
 public class CpuFrequencyTrack extends Track.WithQueryEngine<CpuFrequencyTrack.Data> {
-  private static final String FREQ_VIEW_SQL =
-      "select %d cpu, ts, lead(ts) over (order by ts) - ts dur, value freq_value " +
-      "from counter where track_id = %d";
-  private static final String IDLE_VIEW_SQL =
-      "select %d cpu, ts, lead(ts) over (order by ts) - ts dur, value idle_value " +
-      "from counter where track_id = %d";
-  private static final String ACT_VIEW_SQL =
-      "select ts, dur, quantum_ts, cpu, freq_value freq, " +
-        "case idle_value when 4294967295 then -1 else idle_value end idle " +
-      "from %s";
-  private static final String DATA_SQL = "select ts, dur, cast(idle as DOUBLE), freq from %s";
-  private static final String DATA_QUANTIZED_SQL =
-      "select min(ts), sum(dur), " +
-      "case when min(idle) = -1 then cast(-1 as DOUBLE) else cast(0 as DOUBLE) end, " +
-      "sum(weighted_freq) / sum(dur), quantum_ts " +
-      "from (select ts, dur, quantum_ts, freq * dur as weighted_freq, idle from %s) " +
-      "group by quantum_ts";
+  private static final String DATA_M4_COLUMNS = "ts, ts + dur, idle, freq";
+  private static final int BUCKET_SIZE_PX = 10;
 
   private final CpuInfo.Cpu cpu;
+  private volatile Downsampling downsampling;
+  private final MultiCounter values;
 
   public CpuFrequencyTrack(QueryEngine qe, CpuInfo.Cpu cpu) {
+    this(qe, cpu, Downsampling.counterDownsampling.get());
+  }
+
+  public CpuFrequencyTrack(QueryEngine qe, CpuInfo.Cpu cpu, Downsampling downsampling) {
     super(qe, "cpu_freq_" + cpu.id);
     this.cpu = cpu;
+    this.downsampling = downsampling;
+    this.values = new MultiCounter(qe, tableName("freq_idle"),
+        new long[] { cpu.freqId, cpu.idleId }, ImmutableList.of(
+            new MultiCounter.Column("idle", "case c1 when 4294967295 then -1 else c1 end", MIN),
+            new MultiCounter.Column("freq", "c0", AVERAGE)));
   }
 
   public CpuInfo.Cpu getCpu() {
     return cpu;
   }
 
+  public Downsampling getDownsampling() {
+    return downsampling;
+  }
+
+  /**
+   * Changes how the zoomed out data of this track is reduced, reloading the data if changed.
+   */
+  // on UI Thread
+  public void setDownsampling(Downsampling downsampling) {
+    if (this.downsampling != downsampling) {
+      this.downsampling = downsampling;
+      invalidateData();
+    }
+  }
+
   @Override
-  protected ListenableFuture<?> initialize() {
-    String activity = tableName("activity");
-    String span = tableName("span");
-    String idle = tableName("idle");
-    String freq = tableName("freq");
-    String freqIdle = tableName("freq_idle");
-    String window = tableName("window");
-    return qe.queries(
-        dropView(activity),
-        dropTable(span),
-        dropView(idle),
-        dropView(freq),
-        dropTable(freqIdle),
-        dropTable(window),
-        createWindow(window),
-        createView(freq, format(FREQ_VIEW_SQL, cpu.id, cpu.freqId)),
-        createView(idle, format(IDLE_VIEW_SQL, cpu.id, cpu.idleId)),
-        createSpan(freqIdle, freq + " PARTITIONED cpu, " + idle + " PARTITIONED cpu"),
-        createSpan(span, freqIdle + " PARTITIONED cpu, " + window),
-        createView(activity, format(ACT_VIEW_SQL, span))
-    );
+  protected List<String> getInitQueries() {
+    return values.getInitQueries();
+  }
+
+  @Override
+  protected void onInitialized() {
+    // The levels are also needed once the track is switched to averaging.
+    values.precomputeLevels(Window.minQuantum(BUCKET_SIZE_PX));
   }
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window window = Window.compute(req, 10);
-    return transformAsync(window.update(qe, tableName("window")),
-        $ -> compute(req, window.quantized));
+    Window window = Window.compute(req, BUCKET_SIZE_PX);
+    if (!window.quantized) {
+      return compute(req, false, values.getSeries(req, 0));
+    } else if (downsampling == Downsampling.M4) {
+      // The M4 rows are actual, not averaged, values.
+      return compute(req, false, values.query(m4Sql(req)));
+    }
+    return compute(req, true, values.getSeries(req, window.bucketSize));
+  }
+
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.tsStarts);
+    return new Data(req, pages.get(0).quantized, s.longs(d -> d.tsStarts),
+        s.longs(d -> d.tsEnds), s.bytes(d -> d.idles), s.ints(d -> d.freqKHz));
   }
 
-  private ListenableFuture<Data> compute(DataRequest req, boolean quantized) {
-    return transform(qe.query(
-        format(quantized ? DATA_QUANTIZED_SQL : DATA_SQL, tableName("activity"))), result -> {
-      int rows = result.getNumRows();
-      Data data = new Data(
-          req, quantized, new long[rows], new long[rows], new byte[rows], new int[rows]);
-      result.forEachRow((i, r) -> {
-        long start = r.getLong(0);
-        data.tsStarts[i] = start;
-        data.tsEnds[i] = start + r.getLong(1);
-        data.idles[i] = (byte)r.getDouble(2);
-        data.freqKHz[i] = (int)r.getDouble(3);
-      });
-      return data;
+  private String m4Sql(DataRequest req) {
+    return Downsampling.m4Sql(DATA_M4_COLUMNS, "freq", values.getTable(),
+        values.rangeWhere(req), req.resolution);
+  }
+
+  private static ListenableFuture<Data> compute(
+      DataRequest req, boolean quantized, ListenableFuture<MultiCounter.Series> future) {
+    return transform(future, series -> {
+      int rows = series.size();
+      double[] idleValues = series.values[0], freqValues = series.values[1];
+      byte[] idles = new byte[rows];
+      int[] freqKHz = new int[rows];
+      for (int i = 0; i < rows; i++) {
+        // Quantized rows only distinguish idle (-1) from active (0).
+        idles[i] = (byte)(quantized ? ((idleValues[i] == -1) ? -1 : 0) : idleValues[i]);
+        freqKHz[i] = (int)freqValues[i];
+      }
+      return new Data(req, quantized, series.starts, series.ends, idles, freqKHz);
     });
   }
 
@@ -123,5 +135,10 @@ public class CpuFrequencyTrack extends Track.WithQueryEngine<CpuFrequencyTrack.D
       this.idles = idles;
       this.freqKHz = freqKHz;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(tsStarts, tsEnds, idles, freqKHz);
+    }
   }
 }
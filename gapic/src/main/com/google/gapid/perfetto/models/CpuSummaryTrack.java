@@ -19,9 +19,9 @@ import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
 import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
 import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.TimeSpan;
@@ -39,6 +39,8 @@ public class CpuSummaryTrack extends Track.WithQueryEngine<CpuSummaryTrack.Data>
       "select row_id, ts, dur, cpu, utid, upid, end_state, priority " +
       "from sched left join thread using(utid) " +
       "where utid != 0 and ts < %d and ts_end >= %d";
+  private static final String RANGE_CONDITION =
+      "utid != 0 and ts < %d and ts_end >= %d";
 
   private final int numCpus;
 
@@ -52,9 +54,9 @@ public class CpuSummaryTrack extends Track.WithQueryEngine<CpuSummaryTrack.Data>
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String span = tableName("span"), window = tableName("window");
-    return qe.queries(
+    return ImmutableList.of(
         dropTable(span),
         dropTable(window),
         createWindow(window),
@@ -64,14 +66,24 @@ public class CpuSummaryTrack extends Track.WithQueryEngine<CpuSummaryTrack.Data>
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
     Window window = Window.quantized(req, 5);
-    return transformAsync(window.update(qe, tableName("window")), $1 ->
+    return withWindow(window, () ->
       transform(qe.query(sql(window.bucketSize)), res -> {
         Data data = new Data(req, window.bucketSize, new double[window.getNumberOfBuckets()]);
-        res.forEachRow(($2, r) -> data.utilizations[r.getInt(0)] = r.getDouble(1));
+        QueryEngine.LongColumn quanta = res.getLongColumn(0);
+        QueryEngine.DoubleColumn utilizations = res.getDoubleColumn(1);
+        for (int i = 0; i < quanta.size(); i++) {
+          data.utilizations[quanta.getInt(i)] = utilizations.get(i);
+        }
         return data;
       }));
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    return new Data(req, pages.get(0).bucketSize,
+        PageStore.Stitcher.concatDoubles(pages, d -> d.utilizations));
+  }
+
   private String sql(long ns) {
     return format(DATA_SQL, numCpus, ns, tableName("span"));
   }
@@ -84,6 +96,10 @@ public class CpuSummaryTrack extends Track.WithQueryEngine<CpuSummaryTrack.Data>
     });
   }
 
+  public ListenableFuture<CpuTrack.SlicesBuilder> getSlicesSummary(TimeSpan ts) {
+    return CpuTrack.getSlicesSummary(qe, format(RANGE_CONDITION, ts.end, ts.start));
+  }
+
   private static String sliceRangeSql(TimeSpan ts) {
     return format(SLICE_RANGE_SQL, ts.end, ts.start);
   }
@@ -97,5 +113,10 @@ public class CpuSummaryTrack extends Track.WithQueryEngine<CpuSummaryTrack.Data>
       this.bucketSize = bucketSize;
       this.utilizations = utilizations;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(utilizations);
+    }
   }
 }
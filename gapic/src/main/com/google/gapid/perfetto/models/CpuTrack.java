@@ -25,16 +25,17 @@ import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.ThreadState;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.views.CpuSliceSelectionView;
 import com.google.gapid.perfetto.views.CpuSlicesSelectionView;
 import com.google.gapid.perfetto.views.State;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.widgets.Composite;
 
@@ -53,7 +54,8 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
       "from %s where cpu = %d and utid != 0 " +
       "group by quantum_ts";
   private static final String SLICES_SQL =
-      "select ts, dur, utid, row_id from %s where cpu = %d and utid != 0";
+      "select ts, dur, utid, row_id from sched " +
+      "where cpu = %d and utid != 0 and ts >= %d - dur and ts <= %d order by ts";
   private static final String SLICE_SQL =
       "select row_id, ts, dur, cpu, utid, upid, end_state, priority " +
       "from sched left join thread using(utid) where row_id = %d";
@@ -65,6 +67,19 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
       "select row_id, ts, dur, cpu, utid, upid, end_state, priority " +
       "from sched left join thread using(utid) " +
       "where utid = %d and ts < %d and ts_end >= %d";
+  private static final String SLICE_SUMMARY_SQL =
+      "select upid, utid, count(1), sum(dur), min(ts), max(ts_end) " +
+      "from sched left join thread using(utid) where %s group by utid";
+  private static final String SLICE_IDS_SQL =
+      "select row_id from sched where %s";
+  private static final String SLICE_PAGE_SQL =
+      "select row_id, ts, dur, cpu, utid, upid, end_state, priority " +
+      "from sched left join thread using(utid) " +
+      "where utid = %d and (%s) order by dur desc, ts limit %d offset %d";
+  private static final String CPU_RANGE_CONDITION =
+      "cpu = %d and utid != 0 and ts < %d and ts_end >= %d";
+  private static final String THREAD_RANGE_CONDITION =
+      "utid = %d and ts < %d and ts_end >= %d";
 
   private final CpuInfo.Cpu cpu;
 
@@ -78,9 +93,9 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String span = tableName("span"), window = tableName("window");
-    return qe.queries(
+    return ImmutableList.of(
         dropTable(span),
         dropTable(window),
         createWindow(window),
@@ -90,39 +105,54 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
     Window window = Window.compute(req, 10);
-    return transformAsync(window.update(qe, tableName("window")),
-        $ -> window.quantized ? computeSummary(req, window) : computeSlices(req));
+    return window.quantized ?
+        withWindow(window, () -> computeSummary(req, window)) : computeSlices(req);
   }
 
   private ListenableFuture<Data> computeSummary(DataRequest req, Window w) {
     return transform(qe.query(summarySql(w.bucketSize)), result -> {
       Data data = new Data(req, w.bucketSize, new double[w.getNumberOfBuckets()]);
-      result.forEachRow(($, r) -> data.utilizations[r.getInt(0)] = r.getDouble(1));
+      QueryEngine.LongColumn quanta = result.getLongColumn(0);
+      QueryEngine.DoubleColumn utilizations = result.getDoubleColumn(1);
+      for (int i = 0; i < quanta.size(); i++) {
+        data.utilizations[quanta.getInt(i)] = utilizations.get(i);
+      }
       return data;
     });
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    if (pages.get(0).kind == Data.Kind.summary) {
+      return new Data(req, pages.get(0).bucketSize,
+          PageStore.Stitcher.concatDoubles(pages, d -> d.utilizations));
+    }
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.starts);
+    return new Data(req, s.longs(d -> d.ids), s.longs(d -> d.starts), s.longs(d -> d.ends),
+        s.longs(d -> d.utids));
+  }
+
+  @Override
+  protected DiskPageCache.Codec<Data> getPageCodec() {
+    return Data.CODEC;
+  }
+
   private String summarySql(long ns) {
     return format(SUMMARY_SQL, ns, tableName("span"), cpu.id);
   }
 
   private ListenableFuture<Data> computeSlices(DataRequest req) {
-    return transform(qe.query(slicesSql()), result -> {
-      int rows = result.getNumRows();
-      Data data = new Data(req, new long[rows], new long[rows], new long[rows], new long[rows]);
-      result.forEachRow((i, r) -> {
-        long start = r.getLong(0);
-        data.starts[i] = start;
-        data.ends[i] = start + r.getLong(1);
-        data.utids[i] = r.getInt(2);
-        data.ids[i] = r.getLong(3);
-      });
-      return data;
+    return transform(qe.query(slicesSql(req)), result -> {
+      long[] starts = result.getLongColumn(0).toArray();
+      long[] ends = result.getLongColumn(1).toArrayAdding(starts);
+      long[] utids = result.getLongColumn(2).toArray();
+      long[] ids = result.getLongColumn(3).toArray();
+      return new Data(req, ids, starts, ends, utids);
     });
   }
 
-  private String slicesSql() {
-    return format(SLICES_SQL, tableName("span"), cpu.id);
+  private String slicesSql(DataRequest req) {
+    return format(SLICES_SQL, cpu.id, req.range.start, req.range.end);
   }
 
   public ListenableFuture<Slice> getSlice(long id) {
@@ -153,6 +183,27 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
     });
   }
 
+  public ListenableFuture<SlicesBuilder> getSlicesSummary(TimeSpan ts) {
+    return getSlicesSummary(qe, format(CPU_RANGE_CONDITION, cpu.id, ts.end, ts.start));
+  }
+
+  public static ListenableFuture<SlicesBuilder> getSlicesSummary(
+      QueryEngine qe, long utid, TimeSpan ts) {
+    return getSlicesSummary(qe, format(THREAD_RANGE_CONDITION, utid, ts.end, ts.start));
+  }
+
+  /**
+   * Returns the selection of the slices matching the given condition, totalled by thread by the
+   * trace processor. Only the totals and the ids of the slices are fetched. The slices themselves
+   * are fetched {@link ByThread#getSlices page by page}, when displayed.
+   */
+  protected static ListenableFuture<SlicesBuilder> getSlicesSummary(
+      QueryEngine qe, String condition) {
+    return transformAsync(qe.query(format(SLICE_SUMMARY_SQL, condition)), summary ->
+        transform(qe.query(format(SLICE_IDS_SQL, condition)),
+            ids -> new SlicesBuilder(qe, condition, summary, ids)));
+  }
+
   private static String sliceRangeSql(int cpu, TimeSpan ts) {
     return format(SLICE_RANGE_SQL, cpu, ts.end, ts.start);
   }
@@ -162,6 +213,26 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
   }
 
   public static class Data extends Track.Data {
+    static final DiskPageCache.Codec<Data> CODEC = new DiskPageCache.Codec<Data>() {
+      @Override
+      public void write(DiskPageCache.Writer out, Data data) {
+        out.value(data.kind.ordinal());
+        if (data.kind == Kind.summary) {
+          out.value(data.bucketSize).doubles(data.utilizations);
+        } else {
+          out.longs(data.ids).longs(data.starts).longs(data.ends).longs(data.utids);
+        }
+      }
+
+      @Override
+      public Data read(DiskPageCache.Reader in, DataRequest request) {
+        if (Kind.values()[(int)in.value()] == Kind.summary) {
+          return new Data(request, in.value(), in.doubles());
+        }
+        return new Data(request, in.longs(), in.longs(), in.longs(), in.longs());
+      }
+    };
+
     public final Kind kind;
     // Summary.
     public final long bucketSize;
@@ -194,6 +265,11 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
       this.utilizations = null;
     }
 
+    @Override
+    public long getSize() {
+      return sizeOf(utilizations, ids, starts, ends, utids);
+    }
+
     public static enum Kind {
       summary, slice;
     }
@@ -261,15 +337,16 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
   }
 
   public static class Slices implements Selection<Long> {
-    private final List<Slice> slices;
     public final ImmutableList<ByProcess> processes;
-    public final ImmutableSet<Long> sliceKeys;
+    public final SortedLongSet sliceKeys;
+    private final long start, end;
 
-    public Slices(List<Slice> slices, ImmutableList<ByProcess> processes,
-        ImmutableSet<Long> sliceKeys) {
-      this.slices = slices;
+    protected Slices(ImmutableList<ByProcess> processes, SortedLongSet sliceKeys,
+        long start, long end) {
       this.processes = processes;
       this.sliceKeys = sliceKeys;
+      this.start = start;
+      this.end = end;
     }
 
     @Override
@@ -289,46 +366,83 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
 
     @Override
     public Selection.Builder<SlicesBuilder> getBuilder() {
-      return new SlicesBuilder(slices);
+      return new SlicesBuilder(this);
     }
 
     @Override
     public void getRange(Consumer<TimeSpan> span) {
-      for (Slice slice : slices) {
-        slice.getRange(span);
+      if (start < end) {
+        span.accept(new TimeSpan(start, end));
       }
     }
   }
 
   public static class SlicesBuilder implements Selection.Builder<SlicesBuilder> {
-    private final List<Slice> slices;
     private final Map<Long, ByProcess.Builder> processes = Maps.newHashMap();
-    private final Set<Long> sliceKeys = Sets.newHashSet();
+    private final SortedLongSet.Builder sliceKeys = new SortedLongSet.Builder();
+    private long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
 
     public SlicesBuilder(List<Slice> slices) {
-      this.slices = slices;
       for (Slice slice : slices) {
         processes.computeIfAbsent(slice.upid, ByProcess.Builder::new).add(slice);
         sliceKeys.add(slice.id);
+        if (slice.dur > 0) {
+          start = Math.min(start, slice.time);
+          end = Math.max(end, slice.time + slice.dur);
+        }
+      }
+    }
+
+    // Expects the summary rows to be upid, utid, count, sum(dur), min(ts), max(ts_end) and the id
+    // rows to be the row_id of the slices matching the given condition.
+    protected SlicesBuilder(
+        QueryEngine qe, String condition, QueryEngine.Result summary, QueryEngine.Result ids) {
+      summary.forEachRow(($, row) -> {
+        processes.computeIfAbsent(row.getLong(0), ByProcess.Builder::new)
+            .add(qe, row.getLong(1), row.getInt(2), row.getLong(3), condition);
+        start = Math.min(start, row.getLong(4));
+        end = Math.max(end, row.getLong(5));
+      });
+      ids.forEachRow(($, row) -> sliceKeys.add(row.getLong(0)));
+    }
+
+    private SlicesBuilder(Slices slices) {
+      for (ByProcess process : slices.processes) {
+        processes.put(process.pid, new ByProcess.Builder(process));
       }
+      sliceKeys.addAll(slices.sliceKeys);
+      start = slices.start;
+      end = slices.end;
+    }
+
+    /**
+     * Returns the utids of the threads of the selected slices.
+     */
+    public Set<Long> getThreads() {
+      Set<Long> result = Sets.newHashSet();
+      for (ByProcess.Builder process : processes.values()) {
+        result.addAll(process.threads.keySet());
+      }
+      return result;
     }
 
     @Override
     public SlicesBuilder combine(SlicesBuilder other) {
-      this.slices.addAll(other.slices);
       for (Map.Entry<Long, ByProcess.Builder> e : other.processes.entrySet()) {
         processes.merge(e.getKey(), e.getValue(), ByProcess.Builder::combine);
       }
       sliceKeys.addAll(other.sliceKeys);
+      start = Math.min(start, other.start);
+      end = Math.max(end, other.end);
       return this;
     }
 
     @Override
     public Selection<Long> build() {
-      return new Slices(slices, processes.values().stream()
+      return new Slices(processes.values().stream()
           .map(ByProcess.Builder::build)
           .sorted((p1, p2) -> Long.compare(p2.dur, p1.dur))
-          .collect(toImmutableList()), ImmutableSet.copyOf(sliceKeys));
+          .collect(toImmutableList()), sliceKeys.build(), start, end);
     }
   }
 
@@ -352,11 +466,24 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
         this.pid = pid;
       }
 
+      public Builder(ByProcess process) {
+        this.pid = process.pid;
+        this.dur = process.dur;
+        for (ByThread thread : process.threads) {
+          threads.put(thread.tid, new ByThread.Builder(thread));
+        }
+      }
+
       public void add(Slice slice) {
         dur += slice.dur;
         threads.computeIfAbsent(slice.utid, ByThread.Builder::new).add(slice);
       }
 
+      public void add(QueryEngine qe, long utid, int count, long duration, String condition) {
+        dur += duration;
+        threads.computeIfAbsent(utid, ByThread.Builder::new).add(qe, count, duration, condition);
+      }
+
       public Builder combine(Builder other) {
         dur += other.dur;
         for (Map.Entry<Long, ByThread.Builder> e : other.threads.entrySet()) {
@@ -374,42 +501,97 @@ public class CpuTrack extends Track.WithQueryEngine<CpuTrack.Data> {
     }
   }
 
+  /**
+   * The selected slices of a thread. Explicitly selected slices are kept, while the slices of area
+   * selections are described by their conditions and only fetched on demand, page by page.
+   */
   public static class ByThread {
     public final long tid;
     public final long dur;
-    public final ImmutableList<Slice> slices;
+    public final int count;
+    private final ImmutableList<Slice> slices;
+    private final QueryEngine qe;
+    private final ImmutableList<String> conditions;
 
-    public ByThread(long tid, long dur, ImmutableList<Slice> slices) {
+    public ByThread(long tid, long dur, int count, ImmutableList<Slice> slices, QueryEngine qe,
+        ImmutableList<String> conditions) {
       this.tid = tid;
       this.dur = dur;
+      this.count = count;
       this.slices = slices;
+      this.qe = qe;
+      this.conditions = conditions;
+    }
+
+    /**
+     * Returns up to limit of the selected slices, starting at the given offset. The explicitly
+     * selected slices come first, followed by the area selected ones, each by decreasing duration.
+     */
+    public ListenableFuture<List<Slice>> getSlices(int offset, int limit) {
+      if (offset < slices.size()) {
+        return Futures.immediateFuture(
+            slices.subList(offset, Math.min(slices.size(), offset + limit)));
+      } else if (conditions.isEmpty()) {
+        return Futures.immediateFuture(Collections.emptyList());
+      }
+      return transform(qe.query(slicePageSql(offset - slices.size(), limit)),
+          result -> result.list(($, row) -> new Slice(row)));
+    }
+
+    private String slicePageSql(int offset, int limit) {
+      return format(SLICE_PAGE_SQL, tid, "(" + String.join(") or (", conditions) + ")",
+          limit, offset);
     }
 
     public static class Builder {
       private final long tid;
       private long dur = 0;
+      private int count = 0;
       private final List<Slice> slices = Lists.newArrayList();
+      private QueryEngine qe = null;
+      private final Set<String> conditions = Sets.newLinkedHashSet();
 
       public Builder(long tid) {
         this.tid = tid;
       }
 
+      public Builder(ByThread thread) {
+        this.tid = thread.tid;
+        this.dur = thread.dur;
+        this.count = thread.count;
+        this.slices.addAll(thread.slices);
+        this.qe = thread.qe;
+        this.conditions.addAll(thread.conditions);
+      }
+
       public void add(Slice slice) {
         dur += slice.dur;
+        count++;
         slices.add(slice);
       }
 
+      public void add(QueryEngine engine, int n, long duration, String condition) {
+        dur += duration;
+        count += n;
+        qe = engine;
+        conditions.add(condition);
+      }
+
       public Builder combine(Builder other) {
         dur += other.dur;
+        count += other.count;
         slices.addAll(other.slices);
+        if (other.qe != null) {
+          qe = other.qe;
+        }
+        conditions.addAll(other.conditions);
         return this;
       }
 
       public ByThread build() {
-        Collections.sort(slices, (s1, s2) -> Long.compare(s2.dur, s1.dur));
-        return new ByThread(tid, dur, slices.stream()
+        return new ByThread(tid, dur, count, slices.stream()
             .sorted((s1, s2) -> Long.compare(s2.dur, s1.dur))
-            .collect(toImmutableList()));
+            .collect(toImmutableList()), qe, ImmutableList.copyOf(conditions));
       }
     }
   }
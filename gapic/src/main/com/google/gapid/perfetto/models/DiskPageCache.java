@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.gapid.perfetto.models.Track.DataRequest;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+import com.google.gapid.util.OS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Persistent, size bounded, cache of computed track data pages, so that reopening a trace does
+ * not require recomputing the pages in the trace processor. Pages are keyed by the capture, whose
+ * id is derived from a hash of the capture's content, the track id and the page's resolution and
+ * start.
+ *
+ * Each page is stored in its own file in a simple binary columnar format: a header identifying
+ * the page, followed by the page's columns, each aligned to 8 bytes, so that the file can be
+ * memory mapped and the columns read with bulk copies. Files are evicted in least recently used
+ * order, once the cache exceeds its size.
+ *
+ * The cache directory is private to the current user, since the pages are derived from the
+ * trace and read back without recomputing them. A directory that is owned or accessible by anyone
+ * else disables the cache.
+ */
+public class DiskPageCache {
+  private static final Logger LOG = Logger.getLogger(DiskPageCache.class.getName());
+
+  public static final Flag<Integer> diskCacheSize = Flags.value("perfetto-disk-cache-mb", 512,
+      "Maximum size in MB of the on-disk cache of track data pages. 0 disables the cache.", true);
+  public static final Flag<String> diskCacheDir = Flags.value("perfetto-disk-cache-dir", "",
+      "Directory of the on-disk cache of track data pages. Defaults to a directory in the " +
+      "user's cache directory.", true);
+
+  private static final int MAGIC = 0x47505043; // GPPC
+  private static final int VERSION = 2;
+  private static final String SUFFIX = ".page";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final Set<PosixFilePermission> OWNER_ONLY = ImmutableSet.of(
+      PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+      PosixFilePermission.OWNER_EXECUTE);
+
+  private static final byte LONGS = 1;
+  private static final byte INTS = 2;
+  private static final byte DOUBLES = 3;
+  private static final byte BYTES = 4;
+  private static final byte STRINGS = 5;
+
+  public static final DiskPageCache NONE = new DiskPageCache(null, 0);
+
+  private final File dir;
+  private final long maxBytes;
+  // File name -> file size. Iterates in access order, i.e. least recently used first.
+  private final LinkedHashMap<String, Long> files =
+      new LinkedHashMap<String, Long>(16, 0.75f, true); // guarded by this
+  private long bytes = 0; // guarded by this
+  private long hits = 0, misses = 0, evictions = 0; // guarded by this
+
+  private DiskPageCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cache configured via the flags, indexing the files already in the cache
+   * directory, or {@link #NONE} if the cache is disabled or its directory cannot be used.
+   */
+  public static DiskPageCache create() {
+    long maxBytes = diskCacheSize.get() * 1024L * 1024L;
+    if (maxBytes <= 0) {
+      return NONE;
+    }
+
+    String path = diskCacheDir.get();
+    File dir = path.isEmpty() ? new File(OS.userCacheDir, "agi/perfetto-pages") : new File(path);
+    try {
+      if (!makePrivateDir(dir.toPath())) {
+        return NONE;
+      }
+    } catch (IOException e) {
+      LOG.log(WARNING, "Failed to set up the track page cache directory " + dir, e);
+      return NONE;
+    }
+
+    DiskPageCache cache = new DiskPageCache(dir, maxBytes);
+    cache.index();
+    return cache;
+  }
+
+  // Creates the given directory, if it doesn't exist, and makes sure that it is a directory owned
+  // by and only accessible by the current user. Returns false if it isn't, e.g. because another
+  // user created it.
+  private static boolean makePrivateDir(Path dir) throws IOException {
+    boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+    if (!Files.exists(dir, NOFOLLOW_LINKS)) {
+      if (posix) {
+        Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+      } else {
+        Files.createDirectories(dir);
+      }
+    }
+    if (!Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+      LOG.log(WARNING, "The track page cache directory " + dir + " is not a directory");
+      return false;
+    }
+    if (posix) {
+      UserPrincipal owner = Files.getOwner(dir, NOFOLLOW_LINKS);
+      UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+          .lookupPrincipalByName(System.getProperty("user.name"));
+      if (!owner.equals(user)) {
+        LOG.log(WARNING, "The track page cache directory " + dir + " is owned by " + owner);
+        return false;
+      }
+      if (!Files.getPosixFilePermissions(dir, NOFOLLOW_LINKS).equals(OWNER_ONLY)) {
+        Files.setPosixFilePermissions(dir, OWNER_ONLY);
+      }
+    }
+    return true;
+  }
+
+  public boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * Returns the fraction of the page reads that were hits.
+   */
+  public synchronized double getHitRate() {
+    return (hits + misses == 0) ? 0 : (double)hits / (hits + misses);
+  }
+
+  /**
+   * Returns the view of this cache for the capture with the given id.
+   */
+  public Scope forCapture(String captureId) {
+    return new Scope(this, captureId);
+  }
+
+  // Adds the existing files, oldest first, to the index.
+  private synchronized void index() {
+    File[] existing = dir.listFiles();
+    if (existing == null) {
+      return;
+    }
+    List<File> pages = Lists.newArrayList();
+    for (File file : existing) {
+      if (file.getName().endsWith(SUFFIX)) {
+        pages.add(file);
+      } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+        // Left over from an interrupted write.
+        file.delete();
+      }
+    }
+    pages.sort((f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+    for (File page : pages) {
+      long size = page.length();
+      files.put(page.getName(), size);
+      bytes += size;
+    }
+    evict();
+  }
+
+  private <D extends Track.Data> D read(String key, DataRequest page, Codec<D> codec) {
+    String name = fileName(key);
+    synchronized (this) {
+      if (files.get(name) == null) {
+        misses++;
+        return null;
+      }
+    }
+
+    File file = new File(dir, name);
+    if (!Files.isRegularFile(file.toPath(), NOFOLLOW_LINKS)) {
+      remove(name);
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      Reader reader = new Reader(buffer);
+      if (reader.buffer.getInt() != MAGIC || reader.buffer.getInt() != VERSION ||
+          !key.equals(reader.string())) {
+        throw new IOException("Invalid page header");
+      }
+      D data = codec.read(reader, page);
+      file.setLastModified(System.currentTimeMillis());
+      synchronized (this) {
+        hits++;
+      }
+      return data;
+    } catch (IOException | RuntimeException e) {
+      LOG.log(FINE, "Failed to read cached track page " + file, e);
+      remove(name);
+      return null;
+    }
+  }
+
+  private <D extends Track.Data> void write(String key, D data, Codec<D> codec) {
+    Writer writer = new Writer();
+    writer.buffer.putInt(MAGIC).putInt(VERSION);
+    writer.string(key);
+    codec.write(writer, data);
+    ByteBuffer buffer = writer.finish();
+    long size = buffer.remaining();
+    if (size > maxBytes) {
+      return;
+    }
+
+    String name = fileName(key);
+    File temp = new File(dir, name + TEMP_SUFFIX);
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+          FileChannel channel = raf.getChannel()) {
+        channel.truncate(0);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      Files.move(temp.toPath(), new File(dir, name).toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.log(FINE, "Failed to write cached track page " + name, e);
+      temp.delete();
+      return;
+    }
+
+    synchronized (this) {
+      Long old = files.put(name, size);
+      bytes += size - ((old == null) ? 0 : old);
+      evict();
+    }
+  }
+
+  private synchronized void remove(String name) {
+    Long size = files.remove(name);
+    if (size != null) {
+      bytes -= size;
+      new File(dir, name).delete();
+    }
+  }
+
+  private void evict() {
+    if (bytes <= maxBytes) {
+      return;
+    }
+
+    for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        bytes > maxBytes && it.hasNext(); ) {
+      Map.Entry<String, Long> e = it.next();
+      new File(dir, e.getKey()).delete();
+      bytes -= e.getValue();
+      evictions++;
+      it.remove();
+    }
+    if (LOG.isLoggable(FINE)) {
+      LOG.log(FINE, "Evicted cached track pages: " + this);
+    }
+  }
+
+  private static String fileName(String key) {
+    return Hashing.sha256().hashString(key, UTF_8) + SUFFIX;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DiskPageCache{dir: " + dir + ", files: " + files.size() + ", bytes: " + bytes + "/" +
+        maxBytes + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + "}";
+  }
+
+  /**
+   * The pages of a single capture.
+   */
+  public static class Scope {
+    public static final Scope NONE = new Scope(DiskPageCache.NONE, "");
+
+    private final DiskPageCache cache;
+    private final String captureId;
+
+    public Scope(DiskPageCache cache, String captureId) {
+      this.cache = cache;
+      this.captureId = captureId;
+    }
+
+    public boolean isEnabled() {
+      return cache.isEnabled();
+    }
+
+    public DiskPageCache getCache() {
+      return cache;
+    }
+
+    /**
+     * Returns the given page of the given track, or {@code null} if it is not in the cache.
+     * Performs blocking I/O.
+     */
+    public <D extends Track.Data> D read(String trackId, DataRequest page, Codec<D> codec) {
+      return cache.read(key(trackId, page), page, codec);
+    }
+
+    /**
+     * Stores the given page of the given track. Performs blocking I/O.
+     */
+    public <D extends Track.Data> void write(String trackId, D data, Codec<D> codec) {
+      cache.write(key(trackId, data.request), data, codec);
+    }
+
+    private String key(String trackId, DataRequest page) {
+      return captureId + "/" + trackId + "/" + page.resolution + "/" + page.range.start;
+    }
+  }
+
+  /**
+   * Converts the data pages of a track to and from the cache's columnar format. Columns have to
+   * be read in the same order they were written.
+   */
+  public static interface Codec<D extends Track.Data> {
+    public void write(Writer out, D data);
+    public D read(Reader in, DataRequest request);
+  }
+
+  public static class Writer {
+    private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+    public Writer longs(long[] values) {
+      header(LONGS, values.length, 8);
+      buffer.asLongBuffer().put(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return this;
+    }
+
+    public Writer ints(int[] values) {
+      header(INTS, values.length, 4);
+      buffer.asIntBuffer().put(values);
+      buffer.position(buffer.position() + 4 * values.length);
+      return align();
+    }
+
+    public Writer doubles(double[] values) {
+      header(DOUBLES, values.length, 8);
+      buffer.asDoubleBuffer().put(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return this;
+    }
+
+    public Writer bytes(byte[] values) {
+      header(BYTES, values.length, 1);
+      buffer.put(values);
+      return align();
+    }
+
+    public Writer strings(String[] values) {
+      byte[][] encoded = new byte[values.length][];
+      int size = 0;
+      for (int i = 0; i < values.length; i++) {
+        encoded[i] = values[i].getBytes(UTF_8);
+        size += 4 + encoded[i].length;
+      }
+      header(STRINGS, values.length, 0);
+      ensure(size + 8);
+      for (byte[] value : encoded) {
+        buffer.putInt(value.length).put(value);
+      }
+      return align();
+    }
+
+    public Writer value(long value) {
+      return longs(new long[] { value });
+    }
+
+    private Writer string(String value) {
+      return strings(new String[] { value });
+    }
+
+    private void header(byte type, int count, int elementSize) {
+      ensure(8 + (long)count * elementSize + 8);
+      buffer.put(type).put(new byte[3]).putInt(count);
+    }
+
+    private Writer align() {
+      while ((buffer.position() & 7) != 0) {
+        buffer.put((byte)0);
+      }
+      return this;
+    }
+
+    private void ensure(long bytes) {
+      if (buffer.remaining() < bytes) {
+        long size = Math.max(2L * buffer.capacity(), buffer.position() + bytes);
+        if (size > Integer.MAX_VALUE) {
+          throw new IllegalStateException("Page too large");
+        }
+        ByteBuffer grown = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+    }
+
+    private ByteBuffer finish() {
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  public static class Reader {
+    private final ByteBuffer buffer;
+
+    private Reader(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    public long[] longs() {
+      long[] values = new long[header(LONGS, 8)];
+      buffer.asLongBuffer().get(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return values;
+    }
+
+    public int[] ints() {
+      int[] values = new int[header(INTS, 4)];
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + 4 * values.length);
+      align();
+      return values;
+    }
+
+    public double[] doubles() {
+      double[] values = new double[header(DOUBLES, 8)];
+      buffer.asDoubleBuffer().get(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return values;
+    }
+
+    public byte[] bytes() {
+      byte[] values = new byte[header(BYTES, 1)];
+      buffer.get(values);
+      align();
+      return values;
+    }
+
+    public String[] strings() {
+      // Each string is prefixed by its length.
+      String[] values = new String[header(STRINGS, 4)];
+      for (int i = 0; i < values.length; i++) {
+        byte[] value = new byte[checkSize(buffer.getInt(), 1)];
+        buffer.get(value);
+        values[i] = new String(value, UTF_8);
+      }
+      align();
+      return values;
+    }
+
+    public long value() {
+      long[] values = longs();
+      if (values.length != 1) {
+        throw new IllegalStateException("Expected a single value, got " + values.length);
+      }
+      return values[0];
+    }
+
+    private String string() {
+      String[] values = strings();
+      if (values.length != 1) {
+        throw new IllegalStateException("Expected a single string, got " + values.length);
+      }
+      return values[0];
+    }
+
+    private int header(byte type, int elementSize) {
+      byte actual = buffer.get();
+      buffer.position(buffer.position() + 3);
+      int count = buffer.getInt();
+      if (actual != type) {
+        throw new IllegalStateException(
+            "Expected column of type " + type + ", got " + actual + " of size " + count);
+      }
+      return checkSize(count, elementSize);
+    }
+
+    // Rejects counts that don't fit into the rest of the file, before allocating for them.
+    private int checkSize(int count, int elementSize) {
+      if (count < 0 || (long)count * elementSize > buffer.remaining()) {
+        throw new IllegalStateException(
+            "Invalid column size " + count + ", " + buffer.remaining() + " bytes remaining");
+      }
+      return count;
+    }
+
+    private void align() {
+      buffer.position((buffer.position() + 7) & ~7);
+    }
+  }
+}
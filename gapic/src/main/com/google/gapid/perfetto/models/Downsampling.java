@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static java.lang.String.format;
+
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+
+/**
+ * How the zoomed out data of counter like tracks is reduced.
+ */
+public enum Downsampling {
+  /**
+   * Averages the values of each quantum. Cheap, but short spikes are averaged away.
+   */
+  AVERAGE,
+  /**
+   * Keeps the first, last, minimum and maximum value of each pixel column (M4), so that peaks are
+   * preserved, while the number of rows is bounded by four per pixel regardless of the density of
+   * the counter.
+   */
+  M4;
+
+  public static final Flag<Downsampling> counterDownsampling = Flags.value(
+      "perfetto-counter-downsampling", AVERAGE,
+      "Default reduction of zoomed out counter data [AVERAGE, M4]. Can be changed per track.",
+      true);
+
+  // Selects the first, last, minimum and maximum row of each pixel column. The rows in range are
+  // computed once, by the common table expression, and each row of the result is picked by a
+  // plain aggregate, whose bare columns are taken from the row holding the aggregate's value.
+  // This avoids sorting the rows by a window function for each of the four aggregates.
+  private static final String M4_SQL =
+      "with m4 as (select * from %4$s where %5$s) " +
+      "select distinct %1$s from (" +
+      "  select *, min(ts) from m4 group by ts / %3$d union all " +
+      "  select *, max(ts) from m4 group by ts / %3$d union all " +
+      "  select *, min(%2$s) from m4 group by ts / %3$d union all " +
+      "  select *, max(%2$s) from m4 group by ts / %3$d) " +
+      "order by ts";
+
+  /**
+   * Returns the query selecting the given columns of the M4 rows of the given table, i.e. the
+   * first, last, minimum and maximum row, by the given value, of each pixel column. The table has
+   * to have a ts column.
+   */
+  public static String m4Sql(
+      String columns, String value, String table, String where, long nanosPerPx) {
+    return format(M4_SQL, columns, value, Math.max(1, nanosPerPx), table, where);
+  }
+}
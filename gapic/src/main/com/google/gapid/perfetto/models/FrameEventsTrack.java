@@ -39,6 +39,7 @@ import com.google.gapid.perfetto.views.State;
 
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
@@ -78,11 +79,11 @@ public class FrameEventsTrack extends Track.WithQueryEngine<FrameEventsTrack.Dat
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String slices = tableName("slices");
     String window = tableName("window");
     String span = tableName("span");
-    return qe.queries(
+    return ImmutableList.of(
         dropTable(span),
         dropView(slices),
         dropTable(window),
@@ -94,28 +95,25 @@ public class FrameEventsTrack extends Track.WithQueryEngine<FrameEventsTrack.Dat
   @Override
   public ListenableFuture<Data> computeData(DataRequest req) {
     Window window = Window.compute(req, 5);
-    return transformAsync(window.update(qe, tableName("window")),
-        $ -> window.quantized ? computeSummary(req, window) : computeSlices(req));
+    return window.quantized ?
+        withWindow(window, () -> computeSummary(req, window)) : computeSlices(req);
   }
 
   private ListenableFuture<Data> computeSlices(DataRequest req) {
-    return transformAsync(qe.query(slicesSql(req)), res ->
-    transform(qe.getAllArgs(res.stream().mapToLong(r -> r.getLong(8))), args -> {
-      int rows = res.getNumRows();
-      Data data = new Data(req, new long[rows], new long[rows], new long[rows], new int[rows],
-          new String[rows], new String[rows], new ArgSet[rows]);
-      res.forEachRow((i, row) -> {
-        long start = row.getLong(1);
-        data.ids[i] = row.getLong(0);
-        data.starts[i] = start;
-        data.ends[i] = start + row.getLong(2);
-        data.categories[i] = row.getString(3);
-        data.titles[i] = row.getString(4);
-        data.depths[i] = row.getInt(5);
-        data.args[i] = args.getOrDefault(row.getLong(8), ArgSet.EMPTY);
+    return transformAsync(qe.query(slicesSql(req)), res -> {
+      long[] argIds = res.getLongColumn(8).toArray();
+      return transform(qe.getAllArgs(Arrays.stream(argIds)), args -> {
+        int rows = res.getNumRows();
+        long[] starts = res.getLongColumn(1).toArray();
+        Data data = new Data(req, res.getLongColumn(0).toArray(), starts,
+            res.getLongColumn(2).toArrayAdding(starts), res.getLongColumn(5).toIntArray(),
+            res.getStringColumn(4).toArray(), res.getStringColumn(3).toArray(), new ArgSet[rows]);
+        for (int i = 0; i < rows; i++) {
+          data.args[i] = args.getOrDefault(argIds[i], ArgSet.EMPTY);
+        }
+        return data;
       });
-      return data;
-    }));
+    });
   }
 
   private String slicesSql(DataRequest req) {
@@ -125,11 +123,27 @@ public class FrameEventsTrack extends Track.WithQueryEngine<FrameEventsTrack.Dat
   private ListenableFuture<Data> computeSummary(DataRequest req, Window w) {
     return transform(qe.query(summarySql()), result -> {
       Data data = new Data(req, w.bucketSize, new long[w.getNumberOfBuckets()]);
-      result.forEachRow(($, r) -> data.numEvents[r.getInt(0)] = r.getLong(1));
+      QueryEngine.LongColumn quanta = result.getLongColumn(0);
+      QueryEngine.LongColumn counts = result.getLongColumn(1);
+      for (int i = 0; i < quanta.size(); i++) {
+        data.numEvents[quanta.getInt(i)] = counts.get(i);
+      }
       return data;
     });
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    if (pages.get(0).kind == Data.Kind.summary) {
+      return new Data(req, pages.get(0).bucketSize,
+          PageStore.Stitcher.concatLongs(pages, d -> d.numEvents));
+    }
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.starts);
+    return new Data(req, s.longs(d -> d.ids), s.longs(d -> d.starts), s.longs(d -> d.ends),
+        s.ints(d -> d.depths), s.objects(d -> d.titles, String[]::new),
+        s.objects(d -> d.categories, String[]::new), s.objects(d -> d.args, ArgSet[]::new));
+  }
+
   private String summarySql() {
     return format(SUMMARY_SQL, tableName("span"));
   }
@@ -203,6 +217,11 @@ public class FrameEventsTrack extends Track.WithQueryEngine<FrameEventsTrack.Dat
       this.categories = categories;
       this.args = args;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(numEvents, ids, starts, ends, depths, titles, categories, args);
+    }
   }
 
   public static class Slice implements Selection<Slice.Key> {
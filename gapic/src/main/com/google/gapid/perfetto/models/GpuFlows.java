@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static com.google.gapid.util.MoreFutures.addCallback;
+import static com.google.gapid.util.MoreFutures.transform;
+import static com.google.gapid.util.MoreFutures.transformAsync;
+import static java.util.logging.Level.FINE;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.util.LoggingCallback;
+import com.google.gapid.util.LongMap;
+import com.google.gapid.util.SortedLongSet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The flows between the Vulkan API events and the GPU queue work of a trace. The index of the
+ * flows, mapping submission ids to the GPU queue slices and Vulkan API events, and command
+ * buffers to their render passes, is built once, in the background, when first needed, so that
+ * cross-highlighting and selecting related work are served from memory, rather than by querying
+ * the gpu_slice table on every selection.
+ */
+public class GpuFlows {
+  private static final Logger LOG = Logger.getLogger(GpuFlows.class.getName());
+
+  public static final GpuFlows NONE = new GpuFlows(null);
+
+  private static final String QUEUE_SLICES_SQL =
+      "select s.id, s.ts, s.dur, s.depth, s.name, s.stack_id, s.parent_stack_id, " +
+          "s.submission_id, s.command_buffer, s.render_pass, s.track_id " +
+      "from gpu_slice s inner join gpu_track t on (s.track_id = t.id) " +
+      "where t.scope = 'gpu_render_stage' and (s.submission_id != 0 or s.command_buffer != 0)";
+  private static final String EVENTS_SQL =
+      "select s.id, s.ts, s.dur, s.name, s.depth, s.command_buffer, s.submission_id " +
+      "from gpu_slice s inner join gpu_track t on (s.track_id = t.id) " +
+      "where t.scope = 'vulkan_events' and s.submission_id != 0";
+
+  private final QueryEngine qe;
+  private ListenableFuture<Index> future; // guarded by this
+  // The owners that have been promised a repaint once the index is built.
+  private final Set<Object> waiting = Sets.newIdentityHashSet(); // guarded by this
+  private volatile Index index;
+
+  public GpuFlows(QueryEngine qe) {
+    this.qe = qe;
+    if (qe == null) {
+      this.index = Index.EMPTY;
+      this.future = Futures.immediateFuture(index);
+    }
+  }
+
+  /**
+   * Returns the index, building it, if it hasn't been built yet. A failed build is retried by
+   * the next call.
+   */
+  public synchronized ListenableFuture<Index> getIndex() {
+    if (future == null) {
+      long start = System.nanoTime();
+      ListenableFuture<Index> building = transformAsync(qe.query(QUEUE_SLICES_SQL), queue ->
+        transform(qe.query(EVENTS_SQL), events -> {
+          Index result = new Index(queue, events);
+          if (LOG.isLoggable(FINE)) {
+            LOG.log(FINE, "Built the GPU flow index in " + (System.nanoTime() - start) / 1000000 +
+                "ms: " + result);
+          }
+          index = result;
+          return result;
+        }));
+      future = building;
+      addCallback(building, new LoggingCallback<Index>(LOG) {
+        @Override
+        public void onSuccess(Index result) {
+          synchronized (GpuFlows.this) {
+            waiting.clear();
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          super.onFailure(t);
+          synchronized (GpuFlows.this) {
+            if (future == building) {
+              future = null;
+            }
+            waiting.clear();
+          }
+        }
+      });
+    }
+    return future;
+  }
+
+  /**
+   * Returns the index, if it has been built, otherwise starts building it and returns
+   * {@code null}. The given callback's repaint is invoked once the index is built, registered
+   * only once per owner, however often this is called while the index is being built.
+   */
+  public Index getIndex(Object owner, Track.OnUiThread<Index> onUiThread) {
+    Index result = index;
+    if (result == null) {
+      ListenableFuture<Index> building;
+      synchronized (this) {
+        building = getIndex();
+        if (!waiting.add(owner)) {
+          return null;
+        }
+      }
+      onUiThread.onUiThread(building, $ -> onUiThread.repaint());
+    }
+    return result;
+  }
+
+  public static class Index {
+    public static final Index EMPTY = new Index();
+
+    // The GPU queue slices with a submission id or command buffer, in query order.
+    private final long[] queueIds;
+    private final long[] queueStarts;
+    private final long[] queueDurs;
+    private final int[] queueDepths;
+    private final String[] queueNames;
+    private final long[] queueStackIds;
+    private final long[] queueParentIds;
+    private final long[] queueSubmissions;
+    private final long[] queueTrackIds;
+    // The Vulkan API events with a submission id, in query order.
+    private final long[] eventIds;
+    private final long[] eventStarts;
+    private final long[] eventDurs;
+    private final String[] eventNames;
+    private final int[] eventDepths;
+    private final long[] eventCommandBuffers;
+    private final long[] eventSubmissions;
+
+    // GPU queue slice to its submission id, for the slices with a submission id.
+    private final Map<SliceTrack.Slice.Key, Long> submissionsByKey;
+    // Submission id to the indices of its GPU queue slices and Vulkan API events.
+    private final LongMap<SortedLongSet> queueBySubmission;
+    private final LongMap<SortedLongSet> eventsBySubmission;
+    // Command buffer to the handles of its render passes.
+    private final LongMap<SortedLongSet> renderPassesByCommandBuffer;
+
+    private Index() {
+      this.queueIds = this.queueStarts = this.queueDurs = this.queueStackIds =
+          this.queueParentIds = this.queueSubmissions = this.queueTrackIds = new long[0];
+      this.queueDepths = new int[0];
+      this.queueNames = new String[0];
+      this.eventIds = this.eventStarts = this.eventDurs = this.eventCommandBuffers =
+          this.eventSubmissions = new long[0];
+      this.eventNames = new String[0];
+      this.eventDepths = new int[0];
+      this.submissionsByKey = Maps.newHashMap();
+      this.queueBySubmission = new LongMap<SortedLongSet>();
+      this.eventsBySubmission = new LongMap<SortedLongSet>();
+      this.renderPassesByCommandBuffer = new LongMap<SortedLongSet>();
+    }
+
+    protected Index(QueryEngine.Result queue, QueryEngine.Result events) {
+      this.queueIds = queue.getLongColumn(0).toArray();
+      this.queueStarts = queue.getLongColumn(1).toArray();
+      this.queueDurs = queue.getLongColumn(2).toArray();
+      this.queueDepths = queue.getLongColumn(3).toIntArray();
+      this.queueNames = queue.getStringColumn(4).toArray();
+      this.queueStackIds = queue.getLongColumn(5).toArray();
+      this.queueParentIds = queue.getLongColumn(6).toArray();
+      this.queueSubmissions = queue.getLongColumn(7).toArray();
+      long[] commandBuffers = queue.getLongColumn(8).toArray();
+      long[] renderPasses = queue.getLongColumn(9).toArray();
+      this.queueTrackIds = queue.getLongColumn(10).toArray();
+
+      this.eventIds = events.getLongColumn(0).toArray();
+      this.eventStarts = events.getLongColumn(1).toArray();
+      this.eventDurs = events.getLongColumn(2).toArray();
+      this.eventNames = events.getStringColumn(3).toArray();
+      this.eventDepths = events.getLongColumn(4).toIntArray();
+      this.eventCommandBuffers = events.getLongColumn(5).toArray();
+      this.eventSubmissions = events.getLongColumn(6).toArray();
+
+      this.submissionsByKey = Maps.newHashMapWithExpectedSize(queueIds.length);
+      LongMap<SortedLongSet.Builder> queueBuilders = new LongMap<SortedLongSet.Builder>();
+      LongMap<SortedLongSet.Builder> passBuilders = new LongMap<SortedLongSet.Builder>();
+      for (int i = 0; i < queueIds.length; i++) {
+        if (queueSubmissions[i] != 0) {
+          submissionsByKey.put(
+              new SliceTrack.Slice.Key(
+                  queueStarts[i], queueDurs[i], queueDepths[i], queueTrackIds[i]),
+              queueSubmissions[i]);
+          queueBuilders.computeIfAbsent(queueSubmissions[i], $ -> new SortedLongSet.Builder())
+              .add(i);
+        }
+        if (commandBuffers[i] != 0 && renderPasses[i] != 0) {
+          passBuilders.computeIfAbsent(commandBuffers[i], $ -> new SortedLongSet.Builder())
+              .add(renderPasses[i]);
+        }
+      }
+      LongMap<SortedLongSet.Builder> eventBuilders = new LongMap<SortedLongSet.Builder>();
+      for (int i = 0; i < eventIds.length; i++) {
+        eventBuilders.computeIfAbsent(eventSubmissions[i], $ -> new SortedLongSet.Builder())
+            .add(i);
+      }
+
+      this.queueBySubmission = build(queueBuilders);
+      this.eventsBySubmission = build(eventBuilders);
+      this.renderPassesByCommandBuffer = build(passBuilders);
+    }
+
+    private static LongMap<SortedLongSet> build(LongMap<SortedLongSet.Builder> builders) {
+      LongMap<SortedLongSet> result = new LongMap<SortedLongSet>(builders.size());
+      builders.forEach((key, builder) -> result.put(key, builder.build()));
+      return result;
+    }
+
+    /**
+     * Returns the handles of the render passes recorded into the given command buffer.
+     */
+    public SortedLongSet getRenderPasses(long commandBuffer) {
+      return renderPassesByCommandBuffer.getOrDefault(commandBuffer, SortedLongSet.EMPTY);
+    }
+
+    /**
+     * Returns the number of GPU queue slices of the given submissions.
+     */
+    public int getQueueSliceCount(SortedLongSet submissions) {
+      int[] count = { 0 };
+      submissions.forEach(s -> count[0] += queueBySubmission.getOrDefault(s, SortedLongSet.EMPTY)
+          .size());
+      return count[0];
+    }
+
+    /**
+     * Returns the submission ids of the GPU queue slices in the given selection.
+     */
+    public SortedLongSet getSubmissions(Selection<SliceTrack.Slice.Key> selection) {
+      SortedLongSet.Builder result = new SortedLongSet.Builder();
+      if (selection instanceof SliceTrack.Slice) {
+        Long submission =
+            submissionsByKey.get(new SliceTrack.Slice.Key((SliceTrack.Slice)selection));
+        if (submission != null) {
+          result.add(submission);
+        }
+      } else {
+        // Area selections don't list their slices, so match the indexed slices against them.
+        submissionsByKey.forEach((key, submission) -> {
+          if (selection.contains(key)) {
+            result.add(submission);
+          }
+        });
+      }
+      return result.build();
+    }
+
+    /**
+     * Returns the selection of the GPU queue slices of the given submissions.
+     */
+    public SliceTrack.SlicesBuilder selectQueueSlices(SortedLongSet submissions) {
+      SliceTrack.SlicesBuilder result =
+          new SliceTrack.SlicesBuilder("GPU Queue Events", getQueueSliceCount(submissions));
+      submissions.forEach(s -> queueBySubmission.getOrDefault(s, SortedLongSet.EMPTY).forEach(
+          idx -> {
+            int i = (int)idx;
+            result.add(queueNames[i], queueStackIds[i], queueParentIds[i], queueStarts[i],
+                queueDurs[i], queueDepths[i], queueTrackIds[i]);
+          }));
+      return result;
+    }
+
+    /**
+     * Returns the selection of the Vulkan API events of the given submissions.
+     */
+    public VulkanEventTrack.SlicesBuilder selectEvents(SortedLongSet submissions) {
+      List<VulkanEventTrack.Slice> slices = Lists.newArrayList();
+      submissions.forEach(s -> eventsBySubmission.getOrDefault(s, SortedLongSet.EMPTY).forEach(
+          idx -> {
+            int i = (int)idx;
+            slices.add(new VulkanEventTrack.Slice(eventIds[i], eventStarts[i], eventDurs[i],
+                eventNames[i], eventDepths[i], eventCommandBuffers[i], eventSubmissions[i],
+                ArgSet.EMPTY));
+          }));
+      return new VulkanEventTrack.SlicesBuilder(slices);
+    }
+
+    @Override
+    public String toString() {
+      return "Index{queue slices: " + queueIds.length + ", events: " + eventIds.length +
+          ", submissions: " + queueBySubmission.size() + ", command buffers: " +
+          renderPassesByCommandBuffer.size() + "}";
+    }
+  }
+}
@@ -30,7 +30,7 @@ import java.util.List;
  */
 public class GpuInfo {
   public static final GpuInfo NONE = new GpuInfo(Collections.emptyList(), Collections.emptyList(),
-      Collections.emptyList());
+      Collections.emptyList(), GpuFlows.NONE);
 
   private static final String MAX_DEPTH_QUERY =
       "select t.id, t.name, t.scope, max(depth) + 1 " +
@@ -41,11 +41,14 @@ public class GpuInfo {
   private final List<Queue> queues;
   private final List<VkApiEvent> vkApiEvents;
   private final List<Buffer> buffers;
+  private final GpuFlows flows;
 
-  private GpuInfo(List<Queue> queues, List<VkApiEvent> vkApiEvents, List<Buffer> buffers) {
+  private GpuInfo(List<Queue> queues, List<VkApiEvent> vkApiEvents, List<Buffer> buffers,
+      GpuFlows flows) {
     this.queues = queues;
     this.vkApiEvents = vkApiEvents;
     this.buffers = buffers;
+    this.flows = flows;
   }
 
   public boolean isEmpty() {
@@ -76,6 +79,13 @@ public class GpuInfo {
     return Iterables.unmodifiableIterable(buffers);
   }
 
+  /**
+   * Returns the flows between the Vulkan API events and the GPU queues.
+   */
+  public GpuFlows flows() {
+    return flows;
+  }
+
   public static ListenableFuture<Perfetto.Data.Builder> listGpus(Perfetto.Data.Builder data) {
     return transform(info(data.qe), gpu -> data.setGpu(gpu));
   }
@@ -101,7 +111,9 @@ public class GpuInfo {
 
       // Sort buffers by name, the query is sorted by track id for the queues.
       buffers.sort((b1, b2) -> b1.name.compareTo(b2.name));
-      return new GpuInfo(queues, vkApiEvents, buffers);
+      GpuFlows flows = (queues.isEmpty() || vkApiEvents.isEmpty()) ? GpuFlows.NONE :
+          new GpuFlows(qe);
+      return new GpuInfo(queues, vkApiEvents, buffers, flows);
     });
   }
 
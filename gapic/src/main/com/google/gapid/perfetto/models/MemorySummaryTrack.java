@@ -15,15 +15,9 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
-import static com.google.gapid.perfetto.models.QueryEngine.createView;
-import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
-import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
-import static com.google.gapid.perfetto.models.QueryEngine.dropView;
+import static com.google.gapid.perfetto.models.MultiCounter.Aggregation.AVERAGE;
 import static com.google.gapid.perfetto.views.TrackContainer.single;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
-import static java.lang.String.format;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
@@ -31,44 +25,28 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Perfetto;
 import com.google.gapid.perfetto.views.MemorySummaryPanel;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * {@link Track} containing the total system memory usage data.
  */
 public class MemorySummaryTrack extends Track.WithQueryEngine<MemorySummaryTrack.Data> {
-  private static final String VIEW_SQL =
-      "select ts, lead(ts) over (order by ts) - ts dur, max(a) total, max(b) unused," +
-      "   max(c) + max(d) + max(e) buffCache " +
-      "from (select ts," +
-      "  case when track_id = %d then cast(value as int) end a," +
-      "  case when track_id = %d then cast(value as int) end b," +
-      "  case when track_id = %d then cast(value as int) end c," +
-      "  case when track_id = %d then cast(value as int) end d," +
-      "  case when track_id = %d then cast(value as int) end e " +
-      "  from counter where track_id in (%d, %d, %d, %d, %d))" +
-      "group by ts";
-  private static final String SUMMARY_SQL =
-      "select min(ts), max(ts + dur), cast(avg(total) as int), cast(avg(unused) as int)," +
-      "  cast(avg(buffCache) as int) " +
-      "from %s group by quantum_ts";
-  private static final String COUNTER_SQL =
-      "select ts, ts + dur, total, unused, buffCache from %s";
+  private static final int BUCKET_SIZE_PX = 5;
 
   private final long maxTotal;
-  private final long totalId;
-  private final long unusedId;
-  private final long buffersId;
-  private final long cachedId;
-  private final long swapCachedId;
+  private final MultiCounter values;
 
   public MemorySummaryTrack(QueryEngine qe, long maxTotal, long totalId, long unusedId,
       long buffersId, long cachedId, long swapCachedId) {
     super(qe, "mem_sum");
     this.maxTotal = maxTotal;
-    this.totalId = totalId;
-    this.unusedId = unusedId;
-    this.buffersId = buffersId;
-    this.cachedId = cachedId;
-    this.swapCachedId = swapCachedId;
+    this.values = new MultiCounter(qe, tableName("vals"),
+        new long[] { totalId, unusedId, buffersId, cachedId, swapCachedId }, ImmutableList.of(
+            new MultiCounter.Column("total", "cast(c0 as int)", AVERAGE),
+            new MultiCounter.Column("unused", "cast(c1 as int)", AVERAGE),
+            new MultiCounter.Column("buffCache",
+                "cast(c2 as int) + cast(c3 as int) + cast(c4 as int)", AVERAGE)));
   }
 
   public long getMaxTotal() {
@@ -76,46 +54,28 @@ public class MemorySummaryTrack extends Track.WithQueryEngine<MemorySummaryTrack
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
-    String vals = tableName("vals");
-    String span = tableName("span");
-    String window = tableName("window");
-    return qe.queries(
-        dropTable(span),
-        dropTable(window),
-        dropView(vals),
-        createView(vals, viewSql()),
-        createWindow(window),
-        createSpan(span, vals + ", " + window));
+  protected List<String> getInitQueries() {
+    return values.getInitQueries();
   }
 
-  private String viewSql() {
-    return format(VIEW_SQL, totalId, unusedId, buffersId, cachedId, swapCachedId,
-        totalId, unusedId, buffersId, cachedId, swapCachedId);
+  @Override
+  protected void onInitialized() {
+    values.precomputeLevels(Window.minQuantum(BUCKET_SIZE_PX));
   }
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window win = Window.compute(req, 5);
-    return transformAsync(win.update(qe, tableName("window")), $ -> computeData(req, win));
-  }
-
-  private ListenableFuture<Data> computeData(DataRequest req, Window win) {
-    return transform(qe.query(win.quantized ? summarySql() : counterSQL()), res -> {
-      int rows = res.getNumRows();
+    Window win = Window.compute(req, BUCKET_SIZE_PX);
+    return transform(values.getSeries(req, win.quantized ? win.bucketSize : 0), series -> {
+      int rows = series.size();
       if (rows == 0) {
         return Data.empty(req);
       }
 
-      Data data = new Data(
-          req, new long[rows + 1], new long[rows + 1], new long[rows + 1], new long[rows + 1]);
-      res.forEachRow((i, r) -> {
-        data.ts[i] = r.getLong(0);
-        data.total[i] = r.getLong(2);
-        data.unused[i] = r.getLong(3);
-        data.buffCache[i] = r.getLong(4);
-      });
-      data.ts[rows] = res.getLong(rows - 1, 1, 0);
+      Data data = new Data(req, Arrays.copyOf(series.starts, rows + 1),
+          toLongs(series.values[0], rows + 1), toLongs(series.values[1], rows + 1),
+          toLongs(series.values[2], rows + 1));
+      data.ts[rows] = series.ends[rows - 1];
       data.total[rows] = data.total[rows - 1];
       data.unused[rows] = data.unused[rows - 1];
       data.buffCache[rows] = data.buffCache[rows - 1];
@@ -123,12 +83,19 @@ public class MemorySummaryTrack extends Track.WithQueryEngine<MemorySummaryTrack
     });
   }
 
-  private String summarySql() {
-    return format(SUMMARY_SQL, tableName("span"));
+  private static long[] toLongs(double[] values, int size) {
+    long[] result = new long[size];
+    for (int i = 0; i < values.length; i++) {
+      result[i] = (long)values[i];
+    }
+    return result;
   }
 
-  private String counterSQL() {
-    return format(COUNTER_SQL, tableName("span"));
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.ts);
+    return new Data(req, s.longs(d -> d.ts), s.longs(d -> d.total), s.longs(d -> d.unused),
+        s.longs(d -> d.buffCache));
   }
 
   public static Perfetto.Data.Builder enumerate(Perfetto.Data.Builder data) {
@@ -143,8 +110,8 @@ public class MemorySummaryTrack extends Track.WithQueryEngine<MemorySummaryTrack
       return data;
     }
 
-    MemorySummaryTrack track = new MemorySummaryTrack(
-        data.qe, (long)total.max, total.id, free.id, buffers.id, cached.id, swapCached.id);
+    MemorySummaryTrack track = data.register(new MemorySummaryTrack(
+        data.qe, (long)total.max, total.id, free.id, buffers.id, cached.id, swapCached.id));
     data.tracks.addTrack(null, track.getId(), "Memory Usage",
         single(state -> new MemorySummaryPanel(state, track), true));
     return data;
@@ -168,6 +135,11 @@ public class MemorySummaryTrack extends Track.WithQueryEngine<MemorySummaryTrack
       this.buffCache = buffCache;
     }
 
+    @Override
+    public long getSize() {
+      return sizeOf(ts, total, unused, buffCache);
+    }
+
     public static Data empty(DataRequest req) {
       return new Data(req, new long[0], new long[0], new long[0], new long[0]);
     }
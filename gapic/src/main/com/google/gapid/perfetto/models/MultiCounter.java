@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
+import static com.google.gapid.perfetto.models.QueryEngine.expectOneRow;
+import static com.google.gapid.util.MoreFutures.addCallback;
+import static com.google.gapid.util.MoreFutures.transform;
+import static com.google.gapid.util.MoreFutures.transformAsync;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.stream.Collectors.joining;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.perfetto.models.Track.DataRequest;
+import com.google.gapid.util.LoggingCallback;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Several counters combined into a single series, such as the memory or battery summary. The
+ * series has a row for every timestamp at which any of the counters changes, holding the latest
+ * value of every counter, and has the value columns computed from these. Rows before all counters
+ * have a value are dropped.
+ *
+ * The series is materialized into a table, indexed by timestamp, when the owning track is
+ * initialized, rather than being recomputed by a view for every request. Zoomed out requests are
+ * served from precomputed levels of per bucket aggregates, built in the background once the table
+ * exists, similar to the {@link CounterPyramid}. Until then, or for requests finer than the finest
+ * level, they are aggregated by a query on the indexed table, which does not need a window table.
+ */
+public class MultiCounter {
+  private static final Logger LOG = Logger.getLogger(MultiCounter.class.getName());
+
+  // The finest level has at most this many buckets.
+  private static final int MAX_BUCKETS = 1 << 16;
+
+  // Pivots the counters into columns c0, c1, ..., carries their values forward (each value is
+  // propagated to the rows of its group, i.e. the rows up to the next non-null value) and then
+  // computes the durations of the rows that have a value for every counter.
+  private static final String TABLE_SQL =
+      "select * from (" +
+      "  select ts, lead(ts) over (order by ts) - ts dur, %1$s from (" +
+      "    select ts, %2$s from (" +
+      "      select ts, %3$s, %4$s from (" +
+      "        select ts, %5$s from counter where track_id in (%6$s) group by ts))) " +
+      "  where %7$s) " +
+      "where dur is not null";
+  private static final String INDEX_SQL = "create index %s_ts on %s(ts)";
+  // Selects the rows overlapping [start, end], using the index on ts.
+  private static final String RANGE_WHERE =
+      "ts >= (select coalesce(max(ts), 0) from %1$s where ts <= %2$d) and ts <= %3$d";
+  private static final String ROWS_SQL =
+      "select ts, ts + dur, %s from %s where %s order by ts";
+  private static final String QUANTIZED_SQL =
+      "select min(ts), max(ts + dur), %s from %s where %s group by ts / %d order by 1";
+  private static final String BOUNDS_SQL = "select min(ts), max(ts + dur) from %s";
+  private static final String LEVEL_SQL =
+      "select ts / %d q, min(ts), max(ts + dur), sum(dur), %s from %s group by q order by q";
+
+  private final QueryEngine qe;
+  private final String table;
+  private final long[] counters;
+  private final ImmutableList<Column> columns;
+  // Built in the background, once the table exists. Null until then.
+  private volatile List<Level> levels;
+
+  /**
+   * @param table the name of the table to materialize the series into.
+   * @param counters the ids of the counter tracks, referred to as c0, c1, ... by the columns.
+   * @param columns the value columns of the series.
+   */
+  public MultiCounter(QueryEngine qe, String table, long[] counters, List<Column> columns) {
+    this.qe = qe;
+    this.table = table;
+    this.counters = counters;
+    this.columns = ImmutableList.copyOf(columns);
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  /**
+   * Returns the statements materializing and indexing the series.
+   */
+  public List<String> getInitQueries() {
+    return ImmutableList.of(
+        dropTable(table),
+        "create table " + table + " as " + tableSql(),
+        format(INDEX_SQL, table, table));
+  }
+
+  private String tableSql() {
+    return format(TABLE_SQL,
+        join(columns, c -> c.expression + " " + c.name),
+        join(counters, i -> format("max(c%1$d) over (partition by g%1$d) c%1$d", i)),
+        join(counters, i -> "c" + i),
+        join(counters, i -> format("count(c%1$d) over (order by ts) g%1$d", i)),
+        join(counters, i -> format("max(case when track_id = %d then value end) c%d",
+            counters[i], i)),
+        LongStream.of(counters).mapToObj(Long::toString).collect(joining(", ")),
+        IntStream.range(0, counters.length)
+            .mapToObj(i -> "c" + i + " is not null").collect(joining(" and ")));
+  }
+
+  /**
+   * Starts {@link #buildLevels building the zoom levels} in the background, once all other
+   * precomputations have completed.
+   */
+  public void precomputeLevels(long minQuantum) {
+    addCallback(Track.precompute(() -> buildLevels(minQuantum)), new LoggingCallback<Object>(LOG) {
+      @Override
+      public void onSuccess(Object result) {
+        if (LOG.isLoggable(FINE)) {
+          LOG.log(FINE, "Built the levels of " + MultiCounter.this);
+        }
+      }
+    });
+  }
+
+  /**
+   * Precomputes the zoom levels, so that zoomed out requests no longer query the table. The
+   * bucket size of the finest level is the smallest multiple of the given quantum by a power of
+   * two, such that the level has at most {@link #MAX_BUCKETS} buckets. Has to be called once the
+   * table has been created.
+   */
+  public ListenableFuture<?> buildLevels(long minQuantum) {
+    return transformAsync(expectOneRow(qe.query(format(BOUNDS_SQL, table))), bounds -> {
+      long duration = Math.max(1, bounds.getLong(1) - bounds.getLong(0));
+      long size = Math.max(1, minQuantum);
+      while (duration / size > MAX_BUCKETS) {
+        size *= 2;
+      }
+      long finest = size;
+      return transform(qe.query(levelSql(finest)), res -> {
+        if (res.getNumRows() == 0) {
+          return null;
+        }
+        int n = columns.size();
+        double[][] sums = new double[n][], mins = new double[n][];
+        for (int c = 0; c < n; c++) {
+          sums[c] = res.getDoubleColumn(4 + 2 * c).toArray();
+          mins[c] = res.getDoubleColumn(5 + 2 * c).toArray();
+        }
+        Level level = new Level(finest, res.getLongColumn(0).toArray(),
+            res.getLongColumn(1).toArray(), res.getLongColumn(2).toArray(),
+            res.getLongColumn(3).toArray(), sums, mins);
+        List<Level> result = Lists.newArrayList(level);
+        while (level.buckets.length > 1 && level.size < duration) {
+          level = level.merge();
+          result.add(level);
+        }
+        levels = result;
+        return null;
+      });
+    });
+  }
+
+  private String levelSql(long size) {
+    return format(LEVEL_SQL, size,
+        join(columns, c -> "sum(" + c.name + " * dur), min(" + c.name + ")"), table);
+  }
+
+  /**
+   * Returns the rows of the series overlapping the request. If the given bucket size is positive,
+   * the rows are aggregated into buckets of that size, otherwise the actual rows are returned.
+   */
+  public ListenableFuture<Series> getSeries(DataRequest req, long bucketSize) {
+    if (bucketSize <= 0) {
+      return query(format(ROWS_SQL, join(columns, c -> c.name), table, rangeWhere(req)));
+    }
+
+    Level level = null;
+    List<Level> current = levels;
+    for (int i = 0; current != null && i < current.size() && current.get(i).size <= bucketSize;
+        i++) {
+      level = current.get(i);
+    }
+    if (level != null) {
+      return Futures.immediateFuture(level.getSeries(req, columns));
+    }
+    return query(format(QUANTIZED_SQL, join(columns, c -> c.aggregation.sql(c.name)), table,
+        rangeWhere(req), bucketSize));
+  }
+
+  /**
+   * Returns the WHERE condition selecting the rows of the table overlapping the request.
+   */
+  public String rangeWhere(DataRequest req) {
+    return format(RANGE_WHERE, table, req.range.start, req.range.end);
+  }
+
+  /**
+   * Runs the given query, which has to select the start, end and the value columns, in order.
+   */
+  public ListenableFuture<Series> query(String sql) {
+    return transform(qe.query(sql), res -> {
+      double[][] values = new double[columns.size()][];
+      for (int c = 0; c < values.length; c++) {
+        values[c] = res.getDoubleColumn(2 + c).toArray();
+      }
+      return new Series(res.getLongColumn(0).toArray(), res.getLongColumn(1).toArray(), values);
+    });
+  }
+
+  @Override
+  public String toString() {
+    List<Level> current = levels;
+    return "MultiCounter{" + table + ", levels: " + ((current == null) ? 0 : current.size()) +
+        ((current == null) ? "" : ", finest: " + current.get(0).size + ", buckets: " +
+            current.get(0).buckets.length) + "}";
+  }
+
+  private static <T> String join(List<T> items, Function<T, String> fun) {
+    return items.stream().map(fun).collect(joining(", "));
+  }
+
+  private static String join(long[] items, Function<Integer, String> fun) {
+    return IntStream.range(0, items.length).boxed().map(fun).collect(joining(", "));
+  }
+
+  /**
+   * How the values of a column are combined into a bucket.
+   */
+  public static enum Aggregation {
+    /**
+     * The duration weighted average of the values.
+     */
+    AVERAGE {
+      @Override
+      public String sql(String column) {
+        return "sum(" + column + " * dur) / sum(dur)";
+      }
+    },
+    /**
+     * The minimum of the values.
+     */
+    MIN {
+      @Override
+      public String sql(String column) {
+        return "min(" + column + ")";
+      }
+    };
+
+    public abstract String sql(String column);
+  }
+
+  /**
+   * A value column of the series, computed by a SQL expression from the counter columns c0, c1,
+   * etc., and aggregated by the given aggregation.
+   */
+  public static class Column {
+    public final String name;
+    public final String expression;
+    public final Aggregation aggregation;
+
+    public Column(String name, String expression, Aggregation aggregation) {
+      this.name = name;
+      this.expression = expression;
+      this.aggregation = aggregation;
+    }
+  }
+
+  /**
+   * Rows of the series, or of its buckets: their start, end and the values, by column.
+   */
+  public static class Series {
+    public final long[] starts;
+    public final long[] ends;
+    public final double[][] values;
+
+    public Series(long[] starts, long[] ends, double[][] values) {
+      this.starts = starts;
+      this.ends = ends;
+      this.values = values;
+    }
+
+    public int size() {
+      return starts.length;
+    }
+  }
+
+  private static class Level {
+    public final long size;
+    // Sorted bucket indices, i.e. the bucket start divided by the size, of the non-empty buckets.
+    public final long[] buckets;
+    // The start of the first and the end of the last row in each bucket.
+    public final long[] starts;
+    public final long[] ends;
+    // The total duration of the rows in each bucket.
+    public final long[] durs;
+    // By column: the sum of the values weighted by their duration and the minimum value.
+    public final double[][] sums;
+    public final double[][] mins;
+
+    public Level(long size, long[] buckets, long[] starts, long[] ends, long[] durs,
+        double[][] sums, double[][] mins) {
+      this.size = size;
+      this.buckets = buckets;
+      this.starts = starts;
+      this.ends = ends;
+      this.durs = durs;
+      this.sums = sums;
+      this.mins = mins;
+    }
+
+    // Returns the next coarser level, combining pairs of adjacent buckets.
+    public Level merge() {
+      int n = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        if (i == 0 || (buckets[i] >> 1) != (buckets[i - 1] >> 1)) {
+          n++;
+        }
+      }
+
+      double[][] rSums = new double[sums.length][n], rMins = new double[mins.length][n];
+      Level r = new Level(2 * size, new long[n], new long[n], new long[n], new long[n],
+          rSums, rMins);
+      for (int i = 0, j = -1; i < buckets.length; i++) {
+        if (j < 0 || (buckets[i] >> 1) != r.buckets[j]) {
+          j++;
+          r.buckets[j] = buckets[i] >> 1;
+          r.starts[j] = starts[i];
+          for (int c = 0; c < mins.length; c++) {
+            rMins[c][j] = mins[c][i];
+          }
+        } else {
+          for (int c = 0; c < mins.length; c++) {
+            rMins[c][j] = Math.min(rMins[c][j], mins[c][i]);
+          }
+        }
+        r.ends[j] = Math.max(r.ends[j], ends[i]);
+        r.durs[j] += durs[i];
+        for (int c = 0; c < sums.length; c++) {
+          rSums[c][j] += sums[c][i];
+        }
+      }
+      return r;
+    }
+
+    // Returns the aggregates of the buckets overlapping the request.
+    public Series getSeries(DataRequest req, List<Column> columns) {
+      int first = Arrays.binarySearch(buckets, req.range.start / size);
+      first = (first < 0) ? -first - 1 : first;
+      if (first > 0 && ends[first - 1] >= req.range.start) {
+        first--;
+      }
+      int last = Arrays.binarySearch(buckets, req.range.end / size);
+      last = (last < 0) ? -last - 2 : last;
+      int rows = Math.max(0, last - first + 1);
+
+      double[][] values = new double[columns.size()][rows];
+      for (int c = 0; c < values.length; c++) {
+        boolean min = columns.get(c).aggregation == Aggregation.MIN;
+        for (int i = 0; i < rows; i++) {
+          int b = first + i;
+          values[c][i] = (min || durs[b] == 0) ? mins[c][b] : sums[c][b] / durs[b];
+        }
+      }
+      return new Series(Arrays.copyOfRange(starts, first, first + rows),
+          Arrays.copyOfRange(ends, first, first + rows), values);
+    }
+  }
+}
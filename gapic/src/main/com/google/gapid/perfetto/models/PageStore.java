@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static java.util.logging.Level.FINE;
+
+import com.google.common.collect.Maps;
+import com.google.gapid.perfetto.models.Track.DataRequest;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+/**
+ * Memory bounded store of the data pages loaded by the {@link Track tracks}. Pages are fixed size
+ * at each resolution and evicted in least recently used order once the store exceeds its budget.
+ */
+public class PageStore {
+  private static final Logger LOG = Logger.getLogger(PageStore.class.getName());
+
+  public static final Flag<Integer> pageStoreSize = Flags.value("perfetto-page-store-mb", 256,
+      "Memory budget in MB of the store of loaded track data pages.", true);
+
+  private final long maxBytes;
+  // Iterates in access order, i.e. least recently used first.
+  private final LinkedHashMap<Key, Track.Data> pages = new LinkedHashMap<Key, Track.Data>(
+      16, 0.75f, true); // guarded by this
+  private final Map<Track<?>, Long> trackBytes = Maps.newHashMap(); // guarded by this
+  // Memory held by the tracks outside of their pages, see setExtraFootprint(..).
+  private final Map<Track<?>, Long> extraBytes = Maps.newHashMap(); // guarded by this
+  private long bytes = 0; // guarded by this
+  private long hits = 0, misses = 0, evictions = 0; // guarded by this
+
+  public PageStore(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized <D extends Track.Data> D get(Track<D> track, DataRequest page) {
+    D data = (D)pages.get(new Key(track, page));
+    if (data == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return data;
+  }
+
+  /**
+   * Returns whether the given page of the given track is in this store, without counting it as a
+   * lookup or an access to the page.
+   */
+  public synchronized boolean contains(Track<?> track, DataRequest page) {
+    return pages.containsKey(new Key(track, page));
+  }
+
+  public synchronized <D extends Track.Data> D put(Track<D> track, DataRequest page, D data) {
+    long size = data.getSize();
+    Track.Data old = pages.put(new Key(track, page), data);
+    if (old != null) {
+      size -= old.getSize();
+    }
+    bytes += size;
+    trackBytes.merge(track, size, Long::sum);
+    evict();
+    return data;
+  }
+
+  /**
+   * Counts the given memory, held by the given track outside of its pages, e.g. by a precomputed
+   * summary, against the budget of this store, evicting pages as needed. Replaces the amount
+   * previously set for the track.
+   */
+  public synchronized void setExtraFootprint(Track<?> track, long size) {
+    Long old = extraBytes.put(track, size);
+    bytes += size - ((old == null) ? 0 : old);
+    evict();
+  }
+
+  /**
+   * Removes all the pages of the given track from this store, e.g. once they are stale.
+   */
+  public synchronized void remove(Track<?> track) {
+    Long size = trackBytes.remove(track);
+    if (size != null) {
+      bytes -= size;
+      pages.keySet().removeIf(key -> key.track == track);
+    }
+  }
+
+  private void evict() {
+    if (bytes <= maxBytes) {
+      return;
+    }
+
+    Iterator<Map.Entry<Key, Track.Data>> it = pages.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<Key, Track.Data> e = it.next();
+      long size = e.getValue().getSize();
+      bytes -= size;
+      trackBytes.computeIfPresent(e.getKey().track, ($, v) -> (v == size) ? null : v - size);
+      evictions++;
+      it.remove();
+    }
+    if (LOG.isLoggable(FINE)) {
+      LOG.log(FINE, "Evicted track data pages: " + this);
+    }
+  }
+
+  public synchronized void clear() {
+    pages.clear();
+    trackBytes.clear();
+    extraBytes.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Returns the estimated memory used by all the pages in this store, in bytes.
+   */
+  public synchronized long getFootprint() {
+    return bytes;
+  }
+
+  /**
+   * Returns the estimated memory used by the pages of the given track, in bytes.
+   */
+  public synchronized long getFootprint(Track<?> track) {
+    return trackBytes.getOrDefault(track, 0L);
+  }
+
+  public synchronized int getPageCount() {
+    return pages.size();
+  }
+
+  /**
+   * Returns the fraction of the page lookups that were hits.
+   */
+  public synchronized double getHitRate() {
+    return (hits + misses == 0) ? 0 : (double)hits / (hits + misses);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "PageStore{pages: " + pages.size() + ", tracks: " + trackBytes.size() +
+        ", bytes: " + bytes + "/" + maxBytes + ", hits: " + hits + ", misses: " + misses +
+        ", evictions: " + evictions + "}";
+  }
+
+  private static class Key {
+    private final Track<?> track;
+    private final long resolution;
+    private final long start;
+    private final int h;
+
+    public Key(Track<?> track, DataRequest page) {
+      this.track = track;
+      this.resolution = page.resolution;
+      this.start = page.range.start;
+      this.h = (track.hashCode() * 31 + Long.hashCode(resolution)) * 31 + Long.hashCode(start);
+    }
+
+    @Override
+    public int hashCode() {
+      return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      } else if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key o = (Key)obj;
+      return track == o.track && resolution == o.resolution && start == o.start;
+    }
+  }
+
+  /**
+   * Combines the rows of adjacent pages. Rows overlapping a page boundary are contained in the
+   * data of both pages. Each row is only kept by the page its timestamp falls into, so that every
+   * row is contained exactly once in the result.
+   */
+  public static class Stitcher<D extends Track.Data> {
+    private final List<D> pages;
+    private final int[][] rows;
+    private final int count;
+
+    public Stitcher(List<D> pages, Function<D, long[]> ts) {
+      this.pages = pages;
+      this.rows = new int[pages.size()][];
+      int total = 0;
+      for (int p = 0; p < pages.size(); p++) {
+        D page = pages.get(p);
+        long start = (p == 0) ? Long.MIN_VALUE : page.request.range.start;
+        long end = (p == pages.size() - 1) ? Long.MAX_VALUE : page.request.range.end;
+        long[] times = ts.apply(page);
+        int[] keep = new int[times.length];
+        int n = 0;
+        for (int i = 0; i < times.length; i++) {
+          if (times[i] >= start && times[i] < end) {
+            keep[n++] = i;
+          }
+        }
+        rows[p] = (n == keep.length) ? null : Arrays.copyOf(keep, n);
+        total += n;
+      }
+      this.count = total;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    public long[] longs(Function<D, long[]> column) {
+      long[] result = new long[count];
+      stitch(column, result, (src, i, dst, j) -> dst[j] = src[i]);
+      return result;
+    }
+
+    public int[] ints(Function<D, int[]> column) {
+      int[] result = new int[count];
+      stitch(column, result, (src, i, dst, j) -> dst[j] = src[i]);
+      return result;
+    }
+
+    public double[] doubles(Function<D, double[]> column) {
+      double[] result = new double[count];
+      stitch(column, result, (src, i, dst, j) -> dst[j] = src[i]);
+      return result;
+    }
+
+    public byte[] bytes(Function<D, byte[]> column) {
+      byte[] result = new byte[count];
+      stitch(column, result, (src, i, dst, j) -> dst[j] = src[i]);
+      return result;
+    }
+
+    public <T> T[] objects(Function<D, T[]> column, IntFunction<T[]> newArray) {
+      T[] result = newArray.apply(count);
+      stitch(column, result, (src, i, dst, j) -> dst[j] = src[i]);
+      return result;
+    }
+
+    private <A> void stitch(Function<D, A> column, A dst, Copier<A> copier) {
+      int j = 0;
+      for (int p = 0; p < pages.size(); p++) {
+        A src = column.apply(pages.get(p));
+        if (rows[p] == null) {
+          int n = Array.getLength(src);
+          System.arraycopy(src, 0, dst, j, n);
+          j += n;
+        } else {
+          for (int i : rows[p]) {
+            copier.copy(src, i, dst, j++);
+          }
+        }
+      }
+    }
+
+    /**
+     * Concatenates the per bucket values of adjacent quantized pages. Since pages are aligned to
+     * the bucket size, the buckets of adjacent pages never overlap.
+     */
+    public static <D extends Track.Data> double[] concatDoubles(
+        List<D> pages, Function<D, double[]> column) {
+      int n = 0;
+      for (D page : pages) {
+        n += column.apply(page).length;
+      }
+      double[] result = new double[n];
+      int j = 0;
+      for (D page : pages) {
+        double[] src = column.apply(page);
+        System.arraycopy(src, 0, result, j, src.length);
+        j += src.length;
+      }
+      return result;
+    }
+
+    public static <D extends Track.Data> long[] concatLongs(
+        List<D> pages, Function<D, long[]> column) {
+      int n = 0;
+      for (D page : pages) {
+        n += column.apply(page).length;
+      }
+      long[] result = new long[n];
+      int j = 0;
+      for (D page : pages) {
+        long[] src = column.apply(page);
+        System.arraycopy(src, 0, result, j, src.length);
+        j += src.length;
+      }
+      return result;
+    }
+
+    private static interface Copier<A> {
+      public void copy(A src, int srcIdx, A dst, int dstIdx);
+    }
+  }
+}
@@ -21,13 +21,15 @@ import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
 import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
 import static com.google.gapid.perfetto.models.QueryEngine.dropView;
 import static com.google.gapid.util.MoreFutures.transform;
-import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
 import static java.util.stream.Collectors.joining;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.models.CpuTrack.Slice;
 
+import java.util.List;
+
 /**
  * {@link Track} containing CPU usage data of all threads in a process.
  */
@@ -37,7 +39,8 @@ public class ProcessSummaryTrack extends Track.WithQueryEngine<ProcessSummaryTra
   private static final String SUMMARY_SQL =
       "select quantum_ts, sum(dur)/cast(%d * %d as float) " +
       "from %s group by quantum_ts";
-  private static final String SLICES_SQL = "select ts, dur, cpu, utid, row_id from %s";
+  private static final String SLICES_SQL =
+      "select ts, dur, cpu, utid, row_id from %s where ts >= %d - dur and ts <= %d order by ts";
 
   private final int numCpus;
   private final ProcessInfo process;
@@ -53,12 +56,12 @@ public class ProcessSummaryTrack extends Track.WithQueryEngine<ProcessSummaryTra
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String sched = tableName("sched"), span = tableName("span"), window = tableName("window");
     String tids = process.utids.stream()
         .map(String::valueOf)
         .collect(joining(","));
-    return qe.queries(
+    return ImmutableList.of(
         dropTable(span),
         dropView(sched),
         dropTable(window),
@@ -70,41 +73,50 @@ public class ProcessSummaryTrack extends Track.WithQueryEngine<ProcessSummaryTra
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
     Window window = Window.compute(req, 10);
-    return transformAsync(window.update(qe, tableName("window")),
-        $ -> window.quantized ? computeSummary(req, window) : computeSlices(req));
+    return window.quantized ?
+        withWindow(window, () -> computeSummary(req, window)) : computeSlices(req);
   }
 
   private ListenableFuture<Data> computeSummary(DataRequest req, Window w) {
     return transform(qe.query(summarySql(w.bucketSize)), result -> {
       Data data = new Data(req, w.bucketSize, new double[w.getNumberOfBuckets()]);
-      result.forEachRow(($, r) -> data.utilizations[r.getInt(0)] = r.getDouble(1));
+      QueryEngine.LongColumn quanta = result.getLongColumn(0);
+      QueryEngine.DoubleColumn utilizations = result.getDoubleColumn(1);
+      for (int i = 0; i < quanta.size(); i++) {
+        data.utilizations[quanta.getInt(i)] = utilizations.get(i);
+      }
       return data;
     });
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    if (pages.get(0).kind == Data.Kind.summary) {
+      return new Data(req, pages.get(0).bucketSize,
+          PageStore.Stitcher.concatDoubles(pages, d -> d.utilizations));
+    }
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.starts);
+    return new Data(req, s.longs(d -> d.ids), s.longs(d -> d.starts), s.longs(d -> d.ends),
+        s.ints(d -> d.cpus), s.longs(d -> d.utids));
+  }
+
   private String summarySql(long ns) {
     return format(SUMMARY_SQL, numCpus, ns, tableName("span"));
   }
 
   private ListenableFuture<Data> computeSlices(DataRequest req) {
-    return transform(qe.query(slicesSql()), result -> {
-      int rows = result.getNumRows();
-      Data data = new Data(
-          req, new long[rows], new long[rows], new long[rows], new int[rows], new long[rows]);
-      result.forEachRow((i, r) -> {
-        long start = r.getLong(0);
-        data.starts[i] = start;
-        data.ends[i] = start + r.getLong(1);
-        data.cpus[i] = r.getInt(2);
-        data.utids[i] = r.getLong(3);
-        data.ids[i] = r.getLong(4);
-      });
-      return data;
+    return transform(qe.query(slicesSql(req)), result -> {
+      long[] starts = result.getLongColumn(0).toArray();
+      long[] ends = result.getLongColumn(1).toArrayAdding(starts);
+      int[] cpus = result.getLongColumn(2).toIntArray();
+      long[] utids = result.getLongColumn(3).toArray();
+      long[] ids = result.getLongColumn(4).toArray();
+      return new Data(req, ids, starts, ends, cpus, utids);
     });
   }
 
-  private String slicesSql() {
-    return format(SLICES_SQL, tableName("span"));
+  private String slicesSql(DataRequest req) {
+    return format(SLICES_SQL, tableName("sched"), req.range.start, req.range.end);
   }
 
   public ListenableFuture<Slice> getSlice(long id) {
@@ -148,6 +160,11 @@ public class ProcessSummaryTrack extends Track.WithQueryEngine<ProcessSummaryTra
       this.utilizations = null;
     }
 
+    @Override
+    public long getSize() {
+      return sizeOf(utilizations, ids, starts, ends, cpus, utids);
+    }
+
     public static enum Kind {
       summary, slice;
     }
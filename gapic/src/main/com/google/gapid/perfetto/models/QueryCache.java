@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Sets;
+import com.google.gapid.proto.perfetto.Perfetto;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of trace processor query results, bounded by the serialized size of the results.
+ *
+ * Only read-only statements are cached. Statements that reference a table or view written to by a
+ * previous DDL or DML statement, such as the per-track window tables, are never cached, since their
+ * results change whenever the window is updated. Once a table is first written to, the cached
+ * results referencing it are dropped, as are the results of any such query still in flight.
+ */
+class QueryCache {
+  // Matches the table or view written to by a DDL or DML statement.
+  private static final Pattern WRITE_TARGET = Pattern.compile(
+      "^(?:create\\s+(?:temp\\s+|temporary\\s+)?(?:virtual\\s+)?(?:table|view)" +
+      "(?:\\s+if\\s+not\\s+exists)?|drop\\s+(?:table|view)(?:\\s+if\\s+exists)?|" +
+      "alter\\s+table|update|delete\\s+from|(?:insert|replace)(?:\\s+or\\s+\\w+)?\\s+into)" +
+      "\\s+(\\w+)");
+  // Matches the statements creating or dropping an index, which don't change any query results.
+  private static final Pattern INDEX_DDL =
+      Pattern.compile("^(?:create\\s+(?:unique\\s+)?index|drop\\s+index)\\s");
+  private static final Pattern IDENTIFIER = Pattern.compile("\\w+");
+
+  private final Cache<String, Entry> cache;
+  // Lower case names of all the tables and views written to by DDL or DML statements.
+  private final Set<String> mutableTables = Sets.newConcurrentHashSet();
+  // Incremented whenever the whole cache is invalidated. Guarded by this.
+  private long generation = 0;
+
+  public QueryCache(long maxBytes) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((String sql, Entry entry) ->
+            2 * sql.length() + entry.result.getSerializedSize())
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the cache key for the given statement, or {@code null} if the statement's result
+   * should not be cached. The targets of write statements are tracked, so that queries referencing
+   * them bypass the cache. Writing to a table that was not yet tracked invalidates the cached
+   * results that reference it. Creating or dropping an index invalidates nothing. Any other
+   * statement that can't be parsed invalidates the cache.
+   */
+  public Key key(String sql) {
+    String normalized = normalize(sql);
+    String lower = normalized.toLowerCase(Locale.ENGLISH);
+    if (lower.startsWith("select ") || lower.startsWith("with ")) {
+      Set<String> tables = identifiers(lower);
+      return references(tables, mutableTables) ? null : new Key(normalized, tables, generation());
+    }
+
+    if (INDEX_DDL.matcher(lower).find()) {
+      return null;
+    }
+
+    Matcher m = WRITE_TARGET.matcher(lower);
+    if (!m.find()) {
+      invalidateAll();
+    } else if (mutableTables.add(m.group(1))) {
+      invalidate(m.group(1));
+    }
+    return null;
+  }
+
+  public Perfetto.QueryResult get(Key key) {
+    Entry entry = cache.getIfPresent(key.sql);
+    return (entry == null) ? null : entry.result;
+  }
+
+  /**
+   * Caches the given result, unless a statement sent after the query, but completed before it,
+   * has invalidated the query's result.
+   */
+  public synchronized void put(Key key, Perfetto.QueryResult result) {
+    if (result.getError().isEmpty() && key.generation == generation &&
+        !references(key.tables, mutableTables)) {
+      cache.put(key.sql, new Entry(result, key.tables));
+    }
+  }
+
+  public void clear() {
+    invalidateAll();
+  }
+
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  private synchronized long generation() {
+    return generation;
+  }
+
+  private synchronized void invalidate(String table) {
+    cache.asMap().values().removeIf(entry -> entry.tables.contains(table));
+  }
+
+  private synchronized void invalidateAll() {
+    generation++;
+    cache.invalidateAll();
+  }
+
+  private static Set<String> identifiers(String sql) {
+    Set<String> result = Sets.newHashSet();
+    Matcher m = IDENTIFIER.matcher(sql);
+    while (m.find()) {
+      result.add(m.group());
+    }
+    return result;
+  }
+
+  private static boolean references(Set<String> identifiers, Set<String> tables) {
+    if (tables.isEmpty()) {
+      return false;
+    }
+    for (String identifier : identifiers) {
+      if (tables.contains(identifier)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Collapses whitespace outside of string literals and drops any trailing semicolons.
+  private static String normalize(String sql) {
+    StringBuilder sb = new StringBuilder(sql.length());
+    char quote = 0;
+    boolean space = false;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (quote != 0) {
+        sb.append(c);
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(c)) {
+        space = true;
+      } else {
+        if (space && sb.length() > 0) {
+          sb.append(' ');
+        }
+        space = false;
+        sb.append(c);
+        if (c == '\'' || c == '"') {
+          quote = c;
+        }
+      }
+    }
+    while (sb.length() > 0 && sb.charAt(sb.length() - 1) == ';') {
+      sb.setLength(sb.length() - 1);
+    }
+    return sb.toString().trim();
+  }
+
+  /**
+   * The key of a cacheable query: its normalized statement, the identifiers it references and the
+   * generation of the cache at the time the query was sent.
+   */
+  public static class Key {
+    public final String sql;
+    public final Set<String> tables;
+    public final long generation;
+
+    public Key(String sql, Set<String> tables, long generation) {
+      this.sql = sql;
+      this.tables = tables;
+      this.generation = generation;
+    }
+  }
+
+  private static class Entry {
+    public final Perfetto.QueryResult result;
+    public final Set<String> tables;
+
+    public Entry(Perfetto.QueryResult result, Set<String> tables) {
+      this.result = result;
+      this.tables = tables;
+    }
+  }
+}
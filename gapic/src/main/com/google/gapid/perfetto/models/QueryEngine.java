@@ -17,34 +17,43 @@ package com.google.gapid.perfetto.models;
 
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.util.MoreFutures.logFailure;
 import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.util.MoreFutures.transformAsync;
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.stream.Collectors.toList;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.proto.perfetto.Perfetto;
 import com.google.gapid.proto.service.path.Path;
 import com.google.gapid.rpc.RpcException;
 import com.google.gapid.server.Client;
+import com.google.gapid.util.Flags.Flag;
+import com.google.gapid.util.Flags;
 import com.google.gapid.util.FutureCache;
 import com.google.gapid.util.Scheduler;
 import com.google.gapid.views.StatusBar;
 
-import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedMap;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
@@ -59,13 +68,25 @@ public class QueryEngine {
 
   private static final String TIMESPAN_QUERY = "select start_ts, end_ts from trace_bounds";
   private static final String NUM_CPUS_QUERY = "select count(distinct(cpu)) as c from sched";
+  // The maximum number of arg set ids loaded by a single query.
+  private static final int ARGS_BATCH_SIZE = 500;
+  // The maximum number of batches in flight at once, see concurrentQueries(..).
+  private static final int MAX_CONCURRENT_BATCHES = 8;
+
+  public static final Flag<Integer> queryCacheSize = Flags.value("perfetto-query-cache-mb", 0,
+      "Size in MB of the trace processor query result cache. 0 disables the cache.", true);
 
   private final Client client;
   private final Path.Capture capture;
   private final StatusBar status;
   private final FutureCache<Long, ArgSet> argsCache;
+  private final StringTable strings = new StringTable();
+  private final QueryCache resultCache; // null if disabled.
   private final AtomicInteger scheduled = new AtomicInteger(0);
   private final AtomicInteger done = new AtomicInteger(0);
+  private final AtomicInteger cancelled = new AtomicInteger(0);
+  private final AtomicLong totalCompleted = new AtomicLong(0);
+  private final AtomicLong totalCancelled = new AtomicLong(0);
   private final AtomicBoolean updating = new AtomicBoolean(false);
 
   public QueryEngine(Client client, Path.Capture capture, StatusBar status) {
@@ -73,16 +94,80 @@ public class QueryEngine {
     this.capture = capture;
     this.status = status;
     this.argsCache = FutureCache.softCache(key -> ArgSet.get(this, key), Objects::nonNull);
+    int cacheSize = queryCacheSize.get();
+    this.resultCache = (cacheSize <= 0) ? null : new QueryCache(cacheSize * 1024L * 1024L);
   }
 
+  /**
+   * Sends the given query to the trace processor. Cancelling the returned future cancels the
+   * underlying RPC, so that an abandoned query no longer occupies the server.
+   */
   public ListenableFuture<Perfetto.QueryResult> raw(String sql) {
     scheduled.incrementAndGet();
     updateStatus();
-    return transform(client.perfettoQuery(capture, sql), r -> {
-      done.incrementAndGet();
+    ListenableFuture<Perfetto.QueryResult> result = execute(sql);
+    result.addListener(() -> {
+      onQueryDone(result.isCancelled(), 1);
       updateStatus();
+    }, directExecutor());
+    return result;
+  }
+
+  // Counts finished queries as either cancelled or completed.
+  private void onQueryDone(boolean wasCancelled, int count) {
+    done.addAndGet(count);
+    if (wasCancelled) {
+      cancelled.addAndGet(count);
+      totalCancelled.addAndGet(count);
+    } else {
+      totalCompleted.addAndGet(count);
+    }
+  }
+
+  /**
+   * Returns the number of queries that were sent to the trace processor and completed, either
+   * successfully or with an error.
+   */
+  public long getCompletedQueries() {
+    return totalCompleted.get();
+  }
+
+  /**
+   * Returns the number of queries that were cancelled before they completed.
+   */
+  public long getCancelledQueries() {
+    return totalCancelled.get();
+  }
+
+  // Sends the query to the trace processor, unless its result is in the result cache.
+  private ListenableFuture<Perfetto.QueryResult> execute(String sql) {
+    QueryCache.Key key = (resultCache == null) ? null : resultCache.key(sql);
+    if (key == null) {
+      return client.perfettoQuery(capture, sql);
+    }
+
+    Perfetto.QueryResult cached = resultCache.get(key);
+    if (cached != null) {
+      return immediateFuture(cached);
+    }
+    return Futures.transform(client.perfettoQuery(capture, sql), r -> {
+      resultCache.put(key, r);
       return r;
-    });
+    }, directExecutor());
+  }
+
+  /**
+   * Returns the hit, miss and eviction statistics of the query result cache. All zero, if the
+   * cache is disabled.
+   */
+  public CacheStats getCacheStats() {
+    return (resultCache == null) ? new CacheStats(0, 0, 0, 0, 0, 0) : resultCache.getStats();
+  }
+
+  public void clearCache() {
+    if (resultCache != null) {
+      resultCache.clear();
+    }
   }
 
   public ListenableFuture<Result> query(String sql) {
@@ -95,30 +180,93 @@ public class QueryEngine {
   }
 
   public ListenableFuture<Result> queries(String... sql) {
-    return query(sql, 0);
+    return queries(Arrays.asList(sql));
   }
 
-  private ListenableFuture<Result> query(String[] queries, int idx) {
-    return transformAsync(query(queries[idx]), result -> {
-      if (idx + 1 >= queries.length) {
-        return Futures.immediateFuture(result);
-      }
-      return query(queries, idx + 1);
-    });
+  /**
+   * Executes the given statements, in order, as a single batch. Each statement is issued as soon
+   * as its predecessor completes. The returned future resolves to the result of the last statement,
+   * or fails with the first failing statement. Cancelling it stops the batch.
+   */
+  public ListenableFuture<Result> queries(List<String> sql) {
+    if (sql.isEmpty()) {
+      return immediateFuture(null);
+    }
+    return new Batch(sql).start();
+  }
+
+  /**
+   * Executes the given independent batches of statements concurrently. The statements of each
+   * batch are executed in order, {@link #queries(List) as above}, but up to
+   * {@link #MAX_CONCURRENT_BATCHES} batches are in flight at once, so the number of sequential
+   * round trips is divided by that amount. Returns one future per batch, in the same order. A
+   * failing batch only fails its own future, the remaining batches are still executed.
+   */
+  public List<ListenableFuture<Result>> concurrentQueries(List<List<String>> batches) {
+    List<SettableFuture<Result>> results = Lists.newArrayListWithCapacity(batches.size());
+    for (int i = 0; i < batches.size(); i++) {
+      results.add(SettableFuture.create());
+    }
+    int lanes = Math.min(MAX_CONCURRENT_BATCHES, batches.size());
+    for (int lane = 0; lane < lanes; lane++) {
+      runLane(batches, results, lane, lanes);
+    }
+    return Collections.unmodifiableList(results);
+  }
+
+  // Executes the batch at the given index and then the batches of the same lane after it.
+  private void runLane(
+      List<List<String>> batches, List<SettableFuture<Result>> results, int idx, int lanes) {
+    if (idx >= batches.size()) {
+      return;
+    }
+    ListenableFuture<Result> batch = queries(batches.get(idx));
+    results.get(idx).setFuture(batch);
+    batch.addListener(() -> runLane(batches, results, idx + lanes, lanes), directExecutor());
+  }
+
+  /**
+   * Returns the table of interned strings shared by all the track data of this trace.
+   */
+  public StringTable getStrings() {
+    return strings;
   }
 
   public ListenableFuture<ArgSet> getArgs(long id) {
     return argsCache.get(id);
   }
 
+  /**
+   * Returns the arg sets of all the given ids. The ids not yet in the args cache are loaded with
+   * one query per chunk of {@link #ARGS_BATCH_SIZE} ids, rather than one query per id.
+   */
   public ListenableFuture<Map<Long, ArgSet>> getAllArgs(LongStream ids) {
-    return transform(
-        Futures.allAsList(ids
-          .distinct()
-          .mapToObj(id -> transform(
-              getArgs(id), r -> new AbstractMap.SimpleImmutableEntry<Long, ArgSet>(id, r)))
-          .collect(toList())),
-        list -> ImmutableMap.copyOf(list));
+    Map<Long, ArgSet> cached = Maps.newHashMap();
+    long[] missing = ids.distinct().filter(id -> {
+      ArgSet args = argsCache.getIfPresent(id);
+      if (args != null) {
+        cached.put(id, args);
+      }
+      return args == null;
+    }).toArray();
+    if (missing.length == 0) {
+      return immediateFuture(ImmutableMap.copyOf(cached));
+    }
+
+    List<ListenableFuture<Map<Long, ArgSet>>> batches = Lists.newArrayList();
+    for (int i = 0; i < missing.length; i += ARGS_BATCH_SIZE) {
+      long[] chunk = Arrays.copyOfRange(missing, i, Math.min(missing.length, i + ARGS_BATCH_SIZE));
+      batches.add(transform(ArgSet.getAll(this, chunk), args -> {
+        args.forEach(argsCache::put);
+        return args;
+      }));
+    }
+    return transform(Futures.allAsList(batches), loaded -> {
+      ImmutableMap.Builder<Long, ArgSet> result = ImmutableMap.builder();
+      result.putAll(cached);
+      loaded.forEach(result::putAll);
+      return result.build();
+    });
   }
 
   public static ListenableFuture<Row> expectOneRow(ListenableFuture<Result> future) {
@@ -172,18 +320,21 @@ public class QueryEngine {
     if (updating.compareAndSet(false, true)) {
       scheduleIfNotDisposed(status, () -> {
         updating.set(false);
-        int d = done.get(), s = scheduled.get();
+        int d = done.get(), s = scheduled.get(), c = cancelled.get();
         if (s == 0) {
           status.setServerStatusPrefix("");
-        } else {
+        } else if (c == 0) {
           status.setServerStatusPrefix("Queries: " + d + "/" + s);
+        } else {
+          status.setServerStatusPrefix("Queries: " + d + "/" + s + " (" + c + " cancelled)");
         }
 
         if (s != 0 && d == s) {
           logFailure(LOG, Scheduler.EXECUTOR.schedule(() -> {
-            int dd = done.get();
+            int dd = done.get(), cc = cancelled.get();
             if (scheduled.compareAndSet(dd, 0)) {
               done.updateAndGet(x -> x - dd);
+              cancelled.updateAndGet(x -> x - cc);
               updateStatus();
             }
           }, 250, MILLISECONDS));
@@ -192,44 +343,140 @@ public class QueryEngine {
     }
   }
 
+  /**
+   * A list of statements executed back to back, without bouncing through the executor or wrapping
+   * the intermediate results.
+   */
+  private class Batch implements FutureCallback<Perfetto.QueryResult> {
+    private final List<String> queries;
+    private final SettableFuture<Result> result = SettableFuture.create();
+    private final AtomicReference<ListenableFuture<Perfetto.QueryResult>> current =
+        new AtomicReference<ListenableFuture<Perfetto.QueryResult>>(null);
+    private int idx; // only accessed by the callback of the current statement.
+
+    public Batch(List<String> queries) {
+      this.queries = queries;
+    }
+
+    public ListenableFuture<Result> start() {
+      scheduled.addAndGet(queries.size());
+      updateStatus();
+      result.addListener(() -> {
+        ListenableFuture<?> future = current.get();
+        if (result.isCancelled() && future != null) {
+          future.cancel(true);
+        }
+      }, directExecutor());
+      next();
+      return result;
+    }
+
+    private void next() {
+      if (result.isDone()) {
+        // Cancelled, skip the remaining statements.
+        finish();
+        return;
+      }
+
+      ListenableFuture<Perfetto.QueryResult> future = execute(queries.get(idx));
+      current.set(future);
+      if (result.isCancelled()) {
+        future.cancel(true);
+      }
+      Futures.addCallback(future, this, directExecutor());
+    }
+
+    @Override
+    public void onSuccess(Perfetto.QueryResult r) {
+      onQueryDone(false, 1);
+      if (!r.getError().isEmpty()) {
+        idx++;
+        fail(new RpcException(describe(idx - 1) + " failed: " + r.getError()));
+      } else if (++idx == queries.size()) {
+        updateStatus();
+        result.set(new Result(r));
+      } else {
+        updateStatus();
+        next();
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      onQueryDone(t instanceof CancellationException, 1);
+      idx++;
+      if (t instanceof CancellationException) {
+        result.cancel(false);
+        finish();
+      } else {
+        fail(new RpcException(describe(idx - 1) + " failed", t));
+      }
+    }
+
+    private void fail(Throwable t) {
+      result.setException(t);
+      finish();
+    }
+
+    // Accounts for the statements that will no longer be executed.
+    private void finish() {
+      if (result.isCancelled()) {
+        onQueryDone(true, queries.size() - idx);
+      } else {
+        done.addAndGet(queries.size() - idx);
+      }
+      idx = queries.size();
+      updateStatus();
+    }
+
+    private String describe(int statement) {
+      return "Query " + (statement + 1) + "/" + queries.size() +
+          " (" + queries.get(statement) + ")";
+    }
+  }
+
   public static class Result {
     private final Perfetto.QueryResult res;
+    private final Perfetto.QueryResult.ColumnValues[] columns;
 
     public Result(Perfetto.QueryResult res) {
       this.res = res;
+      this.columns = res.getColumnsList().toArray(new Perfetto.QueryResult.ColumnValues[0]);
     }
 
     public int getNumRows() {
       return (int)res.getNumRecords();
     }
 
-    public Row getRow(int row) {
-      return new Row() {
-        @Override
-        public boolean isNull(int column) {
-          return Result.this.isNull(row, column);
-        }
+    public int getNumColumns() {
+      return columns.length;
+    }
 
-        @Override
-        public long getLong(int column, long deflt) {
-          return Result.this.getLong(row, column, deflt);
-        }
+    public LongColumn getLongColumn(int column) {
+      return new LongColumn(columns[column], getNumRows());
+    }
 
-        @Override
-        public double getDouble(int column, double deflt) {
-          return Result.this.getDouble(row, column, deflt);
-        }
+    public DoubleColumn getDoubleColumn(int column) {
+      return new DoubleColumn(columns[column], getNumRows());
+    }
 
-        @Override
-        public String getString(int column, String deflt) {
-          return Result.this.getString(row, column, deflt);
-        }
-      };
+    public StringColumn getStringColumn(int column) {
+      return new StringColumn(columns[column], getNumRows());
+    }
+
+    public Row getRow(int row) {
+      return new Cursor(row);
     }
 
+    /**
+     * Visits each row of the result. The {@link Row} passed to the visitor is a cursor that is
+     * re-used for every row, so it must not be retained past the {@link Row.Visitor#visit} call.
+     */
     public void forEachRow(Row.Visitor visitor) {
-      for (int i = 0; i < res.getNumRecords(); i++) {
-        visitor.visit(i, getRow(i));
+      Cursor cursor = new Cursor(0);
+      for (int i = 0, rows = getNumRows(); i < rows; i++) {
+        cursor.row = i;
+        visitor.visit(i, cursor);
       }
     }
 
@@ -257,23 +504,187 @@ public class QueryEngine {
     }
 
     public boolean isNull(int row, int column) {
-      return res.getColumns(column).getIsNulls(row);
+      return columns[column].getIsNulls(row);
     }
 
     public long getLong(int row, int column, long deflt) {
-      Perfetto.QueryResult.ColumnValues c = res.getColumns(column);
+      Perfetto.QueryResult.ColumnValues c = columns[column];
       return (c.getIsNulls(row)) ? deflt : c.getLongValues(row);
     }
 
     public double getDouble(int row, int column, double deflt) {
-      Perfetto.QueryResult.ColumnValues c = res.getColumns(column);
+      Perfetto.QueryResult.ColumnValues c = columns[column];
       return (c.getIsNulls(row)) ? deflt : c.getDoubleValues(row);
     }
 
     public String getString(int row, int column, String deflt) {
-      Perfetto.QueryResult.ColumnValues c = res.getColumns(column);
+      Perfetto.QueryResult.ColumnValues c = columns[column];
       return (c.getIsNulls(row)) ? deflt : c.getStringValues(row);
     }
+
+    // A Row whose position can be moved, so a single instance can be used to visit all rows.
+    private class Cursor implements Row {
+      public int row;
+
+      public Cursor(int row) {
+        this.row = row;
+      }
+
+      @Override
+      public boolean isNull(int column) {
+        return columns[column].getIsNulls(row);
+      }
+
+      @Override
+      public long getLong(int column, long deflt) {
+        Perfetto.QueryResult.ColumnValues c = columns[column];
+        return (c.getIsNulls(row)) ? deflt : c.getLongValues(row);
+      }
+
+      @Override
+      public double getDouble(int column, double deflt) {
+        Perfetto.QueryResult.ColumnValues c = columns[column];
+        return (c.getIsNulls(row)) ? deflt : c.getDoubleValues(row);
+      }
+
+      @Override
+      public String getString(int column, String deflt) {
+        Perfetto.QueryResult.ColumnValues c = columns[column];
+        return (c.getIsNulls(row)) ? deflt : c.getStringValues(row);
+      }
+    }
+  }
+
+  /**
+   * Typed view of a single column of a {@link Result}.
+   */
+  public abstract static class Column {
+    protected final Perfetto.QueryResult.ColumnValues values;
+    protected final int rows;
+
+    protected Column(Perfetto.QueryResult.ColumnValues values, int rows) {
+      this.values = values;
+      this.rows = rows;
+    }
+
+    public int size() {
+      return rows;
+    }
+
+    public boolean isNull(int row) {
+      return values.getIsNulls(row);
+    }
+  }
+
+  public static class LongColumn extends Column {
+    public LongColumn(Perfetto.QueryResult.ColumnValues values, int rows) {
+      super(values, rows);
+    }
+
+    public long get(int row) {
+      return get(row, 0);
+    }
+
+    public long get(int row, long deflt) {
+      return values.getIsNulls(row) ? deflt : values.getLongValues(row);
+    }
+
+    public int getInt(int row) {
+      return (int)get(row, 0);
+    }
+
+    public long[] toArray() {
+      return copyTo(new long[rows], 0, 0);
+    }
+
+    /**
+     * Returns a new array containing the sum of this column's values and the given addends, e.g.
+     * to turn a duration column into end timestamps.
+     */
+    public long[] toArrayAdding(long[] addends) {
+      long[] r = new long[rows];
+      for (int i = 0; i < rows; i++) {
+        r[i] = addends[i] + get(i, 0);
+      }
+      return r;
+    }
+
+    public int[] toIntArray() {
+      int[] r = new int[rows];
+      for (int i = 0; i < rows; i++) {
+        r[i] = (int)get(i, 0);
+      }
+      return r;
+    }
+
+    /**
+     * Copies the values of this column into dst starting at the given offset, replacing nulls
+     * with the given default value. Returns dst.
+     */
+    public long[] copyTo(long[] dst, int offset, long deflt) {
+      for (int i = 0; i < rows; i++) {
+        dst[offset + i] = get(i, deflt);
+      }
+      return dst;
+    }
+  }
+
+  public static class DoubleColumn extends Column {
+    public DoubleColumn(Perfetto.QueryResult.ColumnValues values, int rows) {
+      super(values, rows);
+    }
+
+    public double get(int row) {
+      return get(row, 0);
+    }
+
+    public double get(int row, double deflt) {
+      return values.getIsNulls(row) ? deflt : values.getDoubleValues(row);
+    }
+
+    public double[] toArray() {
+      return copyTo(new double[rows], 0, 0);
+    }
+
+    /**
+     * Copies the values of this column into dst starting at the given offset, replacing nulls
+     * with the given default value. Returns dst.
+     */
+    public double[] copyTo(double[] dst, int offset, double deflt) {
+      for (int i = 0; i < rows; i++) {
+        dst[offset + i] = get(i, deflt);
+      }
+      return dst;
+    }
+  }
+
+  public static class StringColumn extends Column {
+    public StringColumn(Perfetto.QueryResult.ColumnValues values, int rows) {
+      super(values, rows);
+    }
+
+    public String get(int row) {
+      return get(row, "");
+    }
+
+    public String get(int row, String deflt) {
+      return values.getIsNulls(row) ? deflt : values.getStringValues(row);
+    }
+
+    public String[] toArray() {
+      return copyTo(new String[rows], 0, "");
+    }
+
+    /**
+     * Copies the values of this column into dst starting at the given offset, replacing nulls
+     * with the given default value. Returns dst.
+     */
+    public String[] copyTo(String[] dst, int offset, String deflt) {
+      for (int i = 0; i < rows; i++) {
+        dst[offset + i] = get(i, deflt);
+      }
+      return dst;
+    }
   }
 
   public static interface Row {
@@ -27,6 +27,8 @@ import com.google.gapid.perfetto.models.SliceTrack.Slice;
 import com.google.gapid.perfetto.models.ThreadTrack.StateSlice;
 import com.google.gapid.perfetto.views.MultiSelectionView;
 import com.google.gapid.perfetto.views.State;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
@@ -41,6 +43,11 @@ import java.util.function.Consumer;
  * Data about the current selection in the UI.
  */
 public interface Selection<Key> {
+  public static final Flag<Boolean> aggregateAreaSelections = Flags.value(
+      "perfetto-aggregate-selections", true,
+      "Aggregate area selections in the trace processor, rather than fetching all their rows.",
+      true);
+
   public String getTitle();
   public boolean contains(Key key);
   public Composite buildUi(Composite parent, State state);
@@ -174,9 +181,10 @@ public interface Selection<Key> {
 
     @SuppressWarnings("unchecked")
     public <T extends Selection.Builder<T>> void add(
-        Kind<?> type, ListenableFuture<Selection.Builder<?>> selection) {
-      selections.merge(type, selection, (f1, f2) -> transformAsync(f1, r1 ->
-        transform(f2, r2 -> (((T)r1).combine((T)r2)))));
+        Kind<?> type, ListenableFuture<? extends Selection.Builder<?>> selection) {
+      selections.merge(type, (ListenableFuture<Selection.Builder<?>>)selection,
+          (f1, f2) -> transformAsync(f1, r1 ->
+              transform(f2, r2 -> (((T)r1).combine((T)r2)))));
     }
 
     public ListenableFuture<MultiSelection> build() {
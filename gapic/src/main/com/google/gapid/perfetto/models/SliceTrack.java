@@ -15,8 +15,6 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.common.base.Predicates.not;
-import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
 import static com.google.gapid.perfetto.models.QueryEngine.createView;
 import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
@@ -26,25 +24,24 @@ import static com.google.gapid.perfetto.models.QueryEngine.expectOneRow;
 import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
-import static java.util.Collections.emptyList;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.models.QueryEngine.Row;
 import com.google.gapid.perfetto.views.SliceSelectionView;
 import com.google.gapid.perfetto.views.SlicesSelectionView;
 import com.google.gapid.perfetto.views.State;
+import com.google.gapid.util.LongMap;
 
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.function.Consumer;
 
 /**
@@ -56,7 +53,7 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
   }
 
   public static SliceTrack forThread(QueryEngine qe, ThreadInfo thread) {
-    return new WithQueryEngine(qe, "slice", thread.trackId) {
+    return new WithQueryEngine(qe, "slice", thread.trackId, "Thread Slices") {
       @Override
       protected Slice buildSlice(Row row, ArgSet args) {
         return new Slice.ThreadSlice(row, args, thread);
@@ -65,7 +62,7 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
   }
 
   public static SliceTrack forGpuQueue(QueryEngine qe, GpuInfo.Queue queue) {
-    return new WithQueryEngine(qe, "gpu_slice", queue.trackId) {
+    return new WithQueryEngine(qe, "gpu_slice", queue.trackId, "GPU Queue Events") {
       // TODO(b/148540258): Remove the copy pasted SliceTrack code and clean up
       private final String GPU_COLUMNS = "render_target, render_target_name, render_pass, render_pass_name, command_buffer, command_buffer_name, submission_id";
 
@@ -77,57 +74,65 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       @Override
       protected ListenableFuture<Data> computeData(DataRequest req) {
         Window window = Window.compute(req, 5);
-        return transformAsync(window.update(qe, tableName("window")), $ ->
-            window.quantized ? computeQuantSlices(req) : computeSlices(req));
+        return window.quantized ?
+            withWindow(qe, window, () -> computeQuantSlices(req)) : computeSlices(req);
       }
 
       private ListenableFuture<Data> computeSlices(DataRequest req) {
-        return transformAsync(qe.query(slicesSql(req)), res ->
-          transform(qe.getAllArgs(res.stream().mapToLong(r -> r.getLong(8))), args -> {
-            int rows = res.getNumRows();
-            Data data = new Data(req, new long[rows], new long[rows], new long[rows], new int[rows],
-                new String[rows], new String[rows], new ArgSet[rows]);
-            long[] submissionIds = new long[rows];
-            res.forEachRow((i, row) -> {
-              long start = row.getLong(1);
-              data.ids[i] = row.getLong(0);
-              data.starts[i] = start;
-              data.ends[i] = start + row.getLong(2);
-              data.categories[i] = row.getString(3);
-              data.titles[i] = row.getString(4);
-              data.depths[i] = row.getInt(5);
-              // Add debug marker to title if it exists
+        return transformAsync(qe.query(slicesSql(req)), res -> {
+          long[] argIds = res.getLongColumn(8).toArray();
+          return transform(qe.getAllArgs(Arrays.stream(argIds)), args -> {
+            Data data = buildData(req, res, argIds, args);
+            QueryEngine.StringColumn debugMarkers = res.getStringColumn(10);
+            for (int i = 0; i < data.markerIds.length; i++) {
+              // Show the debug marker, if it exists, after the title of the top level slices.
               if (data.depths[i] == 0) {
-                String debugMarker = row.getString(10);
-                if (!debugMarker.isEmpty()) {
-                  data.titles[i] += "[" + debugMarker + "]";
-                }
+                data.markerIds[i] = data.strings.intern(debugMarkers.get(i));
               }
-              data.args[i] = args.getOrDefault(row.getLong(8), ArgSet.EMPTY);
-              submissionIds[i] = row.getLong(15);
-            });
-            data.putExtraLongs("submissionIds", submissionIds);
+            }
+            data.putExtraLongs("submissionIds", res.getLongColumn(15).toArray());
             return data;
-          }));
+          });
+        });
       }
 
       @Override
       protected Slice buildSlice(Row row, ArgSet args) {
-        return new Slice.GpuSlice(row, args);
+        return new Slice.GpuSlice(row, args, queue.trackId);
       }
     };
   }
 
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    return Data.stitch(req, pages);
+  }
+
   public abstract ListenableFuture<Slice> getSlice(long id);
   public abstract ListenableFuture<List<Slice>> getSlices(TimeSpan ts, int minDepth, int maxDepth);
 
+  /**
+   * Returns the selection of the slices in the given range and depths, aggregated by the trace
+   * processor in a single grouped query, without fetching the slices themselves.
+   */
+  public abstract ListenableFuture<SlicesBuilder> getSlicesSummary(
+      TimeSpan ts, int minDepth, int maxDepth);
+
   public static class Data extends Track.Data {
+    private static final StringTable NO_STRINGS = new StringTable();
+    // The length at which the titles of quantized slices are cut off by the query.
+    private static final int QUANT_TITLE_LENGTH = 100;
+
     public final long[] ids;
     public final long[] starts;
     public final long[] ends;
     public final int[] depths;
-    public final String[] titles;
-    public final String[] categories;
+    // Ids of the titles, debug markers and categories in the trace's string table. A marker id of
+    // zero, i.e. the empty string, means the slice has no debug marker.
+    public final int[] titleIds;
+    public final int[] markerIds;
+    public final int[] categoryIds;
+    public final StringTable strings;
     public final ArgSet[] args;
     public Map<String, long[]> extraLongs = Maps.newHashMap();
 
@@ -137,23 +142,46 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       this.starts = new long[0];
       this.ends = new long[0];
       this.depths = new int[0];
-      this.titles = new String[0];
-      this.categories = new String[0];
+      this.titleIds = new int[0];
+      this.markerIds = new int[0];
+      this.categoryIds = new int[0];
+      this.strings = NO_STRINGS;
       this.args = new ArgSet[0];
     }
 
     public Data(DataRequest request, long[] ids, long[] starts, long[] ends, int[] depths,
-        String[] titles, String[] categories, ArgSet[] args) {
+        int[] titleIds, int[] markerIds, int[] categoryIds, StringTable strings, ArgSet[] args) {
       super(request);
       this.ids = ids;
       this.starts = starts;
       this.ends = ends;
       this.depths = depths;
-      this.titles = titles;
-      this.categories = categories;
+      this.titleIds = titleIds;
+      this.markerIds = markerIds;
+      this.categoryIds = categoryIds;
+      this.strings = strings;
       this.args = args;
     }
 
+    /**
+     * Returns the title of the given slice as shown, i.e. followed by its debug marker, if any, and
+     * followed by "..." if it is the cut off title of a quantized slice.
+     */
+    public String getTitle(int idx) {
+      String title = strings.get(titleIds[idx]);
+      if (markerIds[idx] != 0) {
+        title = title + "[" + strings.get(markerIds[idx]) + "]";
+      }
+      if (ids[idx] < 0 && title.length() >= QUANT_TITLE_LENGTH) {
+        title = title + "...";
+      }
+      return title;
+    }
+
+    public String getCategory(int idx) {
+      return strings.get(categoryIds[idx]);
+    }
+
     public void putExtraLongs(String s, long[] longs) {
       extraLongs.put(s, longs);
     }
@@ -161,6 +189,144 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     public long[] getExtraLongs(String s) {
       return extraLongs.getOrDefault(s, new long[0]);
     }
+
+    @Override
+    public long getSize() {
+      long size = sizeOf(ids, starts, ends, depths, titleIds, markerIds, categoryIds, args);
+      for (long[] longs : extraLongs.values()) {
+        size += sizeOf(longs);
+      }
+      return size;
+    }
+
+    /**
+     * Combines the slices of the given adjacent pages, including their extra longs.
+     */
+    public static Data stitch(DataRequest req, List<Data> pages) {
+      PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.starts);
+      Data data = new Data(req, s.longs(d -> d.ids), s.longs(d -> d.starts),
+          s.longs(d -> d.ends), s.ints(d -> d.depths), s.ints(d -> d.titleIds),
+          s.ints(d -> d.markerIds), s.ints(d -> d.categoryIds), pages.get(0).strings,
+          s.objects(d -> d.args, ArgSet[]::new));
+      for (String key : pages.get(0).extraLongs.keySet()) {
+        data.putExtraLongs(key, s.longs(d -> d.getExtraLongs(key)));
+      }
+      return data;
+    }
+  }
+
+  /**
+   * Stores slice data in the {@link DiskPageCache}. Titles, markers and categories are stored as
+   * strings and interned into the given string table when read, as string ids are only valid
+   * within a session. Args are stored as columns of their counts, keys and values.
+   */
+  private static class PageCodec implements DiskPageCache.Codec<Data> {
+    private static final byte INT_ARG = 0;
+    private static final byte DOUBLE_ARG = 1;
+    private static final byte STRING_ARG = 2;
+
+    private final StringTable strings;
+
+    public PageCodec(StringTable strings) {
+      this.strings = strings;
+    }
+
+    @Override
+    public void write(DiskPageCache.Writer out, Data data) {
+      int rows = data.ids.length;
+      String[] titles = new String[rows], markers = new String[rows], categories = new String[rows];
+      int[] argCounts = new int[rows];
+      int numArgs = 0;
+      for (int i = 0; i < rows; i++) {
+        titles[i] = data.strings.get(data.titleIds[i]);
+        markers[i] = data.strings.get(data.markerIds[i]);
+        categories[i] = data.getCategory(i);
+        argCounts[i] = data.args[i].size();
+        numArgs += argCounts[i];
+      }
+      out.longs(data.ids).longs(data.starts).longs(data.ends).ints(data.depths)
+          .strings(titles).strings(markers).strings(categories);
+
+      String[] keys = new String[numArgs];
+      byte[] kinds = new byte[numArgs];
+      List<Integer> ints = Lists.newArrayList();
+      List<Double> doubles = Lists.newArrayList();
+      List<String> stringArgs = Lists.newArrayList();
+      int arg = 0;
+      for (ArgSet args : data.args) {
+        for (Map.Entry<String, Object> e : args.entries()) {
+          keys[arg] = e.getKey();
+          Object value = e.getValue();
+          if (value instanceof Integer) {
+            kinds[arg] = INT_ARG;
+            ints.add((Integer)value);
+          } else if (value instanceof Double) {
+            kinds[arg] = DOUBLE_ARG;
+            doubles.add((Double)value);
+          } else {
+            kinds[arg] = STRING_ARG;
+            stringArgs.add(String.valueOf(value));
+          }
+          arg++;
+        }
+      }
+      out.ints(argCounts).strings(keys).bytes(kinds)
+          .ints(ints.stream().mapToInt(Integer::intValue).toArray())
+          .doubles(doubles.stream().mapToDouble(Double::doubleValue).toArray())
+          .strings(stringArgs.toArray(new String[stringArgs.size()]));
+
+      String[] extraKeys = data.extraLongs.keySet().toArray(new String[data.extraLongs.size()]);
+      out.strings(extraKeys);
+      for (String key : extraKeys) {
+        out.longs(data.extraLongs.get(key));
+      }
+    }
+
+    @Override
+    public Data read(DiskPageCache.Reader in, DataRequest request) {
+      long[] ids = in.longs(), starts = in.longs(), ends = in.longs();
+      int[] depths = in.ints();
+      int[] titleIds = intern(in.strings()), markerIds = intern(in.strings());
+      int[] categoryIds = intern(in.strings());
+
+      int[] argCounts = in.ints();
+      String[] keys = in.strings();
+      byte[] kinds = in.bytes();
+      int[] ints = in.ints();
+      double[] doubles = in.doubles();
+      String[] stringArgs = in.strings();
+      ArgSet[] args = new ArgSet[ids.length];
+      for (int i = 0, arg = 0, intIdx = 0, doubleIdx = 0, stringIdx = 0; i < args.length; i++) {
+        if (argCounts[i] == 0) {
+          args[i] = ArgSet.EMPTY;
+          continue;
+        }
+        ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
+        for (int j = 0; j < argCounts[i]; j++, arg++) {
+          switch (kinds[arg]) {
+            case INT_ARG: map.put(keys[arg], ints[intIdx++]); break;
+            case DOUBLE_ARG: map.put(keys[arg], doubles[doubleIdx++]); break;
+            default: map.put(keys[arg], stringArgs[stringIdx++]); break;
+          }
+        }
+        args[i] = new ArgSet(map.build());
+      }
+
+      Data data = new Data(
+          request, ids, starts, ends, depths, titleIds, markerIds, categoryIds, strings, args);
+      for (String key : in.strings()) {
+        data.putExtraLongs(key, in.longs());
+      }
+      return data;
+    }
+
+    private int[] intern(String[] values) {
+      int[] result = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+        result[i] = strings.intern(values[i]);
+      }
+      return result;
+    }
   }
 
   public static abstract class Slice implements Selection<Slice.Key> {
@@ -172,9 +338,10 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     public final long stackId;
     public final long parentId;
     public final ArgSet args;
+    public final long trackId;
 
     public Slice(long time, long dur, String category, String name, int depth, long stackId,
-        long parentId, ArgSet args) {
+        long parentId, ArgSet args, long trackId) {
       this.time = time;
       this.dur = dur;
       this.category = category;
@@ -183,11 +350,12 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       this.stackId = stackId;
       this.parentId = parentId;
       this.args = args;
+      this.trackId = trackId;
     }
 
-    public Slice(QueryEngine.Row row, ArgSet args) {
+    public Slice(QueryEngine.Row row, ArgSet args, long trackId) {
       this(row.getLong(1), row.getLong(2), row.getString(3), row.getString(4), row.getInt(5),
-          row.getLong(6), row.getLong(7), args);
+          row.getLong(6), row.getLong(7), args, trackId);
     }
 
     public ThreadInfo getThread() {
@@ -224,19 +392,22 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       public final long time;
       public final long dur;
       public final int depth;
+      public final long trackId;
 
-      public Key(long time, long dur, int depth) {
+      public Key(long time, long dur, int depth, long trackId) {
         this.time = time;
         this.dur = dur;
         this.depth = depth;
+        this.trackId = trackId;
       }
 
       public Key(Slice slice) {
-        this(slice.time, slice.dur, slice.depth);
+        this(slice.time, slice.dur, slice.depth, slice.trackId);
       }
 
       public boolean matches(Slice slice) {
-        return slice.time == time && slice.dur == dur && slice.depth == depth;
+        return slice.time == time && slice.dur == dur && slice.depth == depth &&
+            slice.trackId == trackId;
       }
 
       @Override
@@ -247,12 +418,12 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
           return false;
         }
         Key o = (Key)obj;
-        return time == o.time && dur == o.dur && depth == o.depth;
+        return time == o.time && dur == o.dur && depth == o.depth && trackId == o.trackId;
       }
 
       @Override
       public int hashCode() {
-        return Long.hashCode(time ^ dur) ^ Integer.hashCode(depth);
+        return Long.hashCode(time ^ dur ^ trackId) ^ Integer.hashCode(depth);
       }
     }
 
@@ -260,7 +431,7 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       public final ThreadInfo thread;
 
       public ThreadSlice(Row row, ArgSet args, ThreadInfo thread) {
-        super(row, args);
+        super(row, args, thread.trackId);
         this.thread = thread;
       }
 
@@ -278,8 +449,8 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     public static class GpuSlice extends Slice {
       private final RenderStageInfo renderStageInfo;
 
-      public GpuSlice(Row row, ArgSet args) {
-        super(row, args);
+      public GpuSlice(Row row, ArgSet args, long trackId) {
+        super(row, args, trackId);
         renderStageInfo = new RenderStageInfo(row.getLong(9), row.getString(10), row.getLong(11),
             row.getString(12), row.getLong(13), row.getString(14), row.getLong(15));
       }
@@ -318,17 +489,22 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
   }
 
   public static class Slices implements Selection<Slice.Key> {
-    private final List<Slice> slices;
     private final String title;
+    private final LongMap<Node.Builder> byStack;
     public final ImmutableList<Node> nodes;
-    public final ImmutableSet<Slice.Key> sliceKeys;
+    private final KeySet sliceKeys;
+    private final ImmutableList<Region> regions;
+    private final long start, end;
 
-    public Slices(List<Slice> slices, String title, ImmutableList<Node> nodes,
-        ImmutableSet<Slice.Key> sliceKeys) {
-      this.slices = slices;
+    private Slices(String title, LongMap<Node.Builder> byStack, ImmutableList<Node> nodes,
+        KeySet sliceKeys, ImmutableList<Region> regions, long start, long end) {
       this.title = title;
+      this.byStack = byStack;
       this.nodes = nodes;
       this.sliceKeys = sliceKeys;
+      this.regions = regions;
+      this.start = start;
+      this.end = end;
     }
 
     @Override
@@ -338,7 +514,15 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
 
     @Override
     public boolean contains(Slice.Key key) {
-      return sliceKeys.contains(key);
+      if (sliceKeys.contains(key.time, key.dur, key.depth, key.trackId)) {
+        return true;
+      }
+      for (Region region : regions) {
+        if (region.contains(key)) {
+          return true;
+        }
+      }
+      return false;
     }
 
     @Override
@@ -348,68 +532,240 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
 
     @Override
     public Selection.Builder<SlicesBuilder> getBuilder() {
-      return new SlicesBuilder(slices);
+      return new SlicesBuilder(this);
     }
 
     @Override
     public void getRange(Consumer<TimeSpan> span) {
-      for (Slice slice : slices) {
-        slice.getRange(span);
+      if (start < end) {
+        span.accept(new TimeSpan(start, end));
+      }
+    }
+
+    /**
+     * All the slices of a track overlapping a time range, within a range of depths, as selected by
+     * an area selection.
+     */
+    protected static class Region {
+      public final long trackId;
+      public final TimeSpan ts;
+      public final int minDepth;
+      public final int maxDepth;
+
+      public Region(long trackId, TimeSpan ts, int minDepth, int maxDepth) {
+        this.trackId = trackId;
+        this.ts = ts;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+      }
+
+      // Matches the range condition of the summary query.
+      public boolean contains(Slice.Key key) {
+        return key.trackId == trackId && key.time < ts.end && key.time + key.dur >= ts.start &&
+            key.depth >= minDepth && key.depth <= maxDepth;
       }
     }
   }
 
+  /**
+   * Aggregates the selected slices by their stack into a tree of {@link Node nodes}. Building and
+   * combining are linear in the number of slices and only allocate per distinct stack, not per
+   * slice, so that selections of hundreds of thousands of slices remain responsive. Area
+   * selections are {@link SliceTrack#getSlicesSummary aggregated by the trace processor} and are
+   * matched by their track, time range and depths, so only the per stack totals are fetched,
+   * rather than the slices or their keys.
+   */
   public static class SlicesBuilder implements Selection.Builder<SlicesBuilder> {
-    private final List<Slice> slices;
     private final String title;
-    private final Map<Long, Node.Builder> byStack = Maps.newHashMap();
-    private final Map<Long, List<Node.Builder>> byParent = Maps.newHashMap();
-    private final Set<Long> roots = Sets.newHashSet();
-    private final Set<Slice.Key> sliceKeys = Sets.newHashSet();
+    private final LongMap<Node.Builder> byStack;
+    private final KeySet sliceKeys;
+    private final List<Slices.Region> regions = Lists.newArrayList();
+    private long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
 
     public SlicesBuilder(List<Slice> slices) {
-      this.slices = slices;
-      String ti = "";
+      this(slices.isEmpty() ? "" : slices.get(slices.size() - 1).getTitle(), slices.size());
       for (Slice slice : slices) {
-        ti = slice.getTitle();
-        Node.Builder child = byStack.get(slice.stackId);
-        if (child == null) {
-          byStack.put(slice.stackId, child = new Node.Builder(slice.name, slice.stackId, slice.parentId));
-          byParent.computeIfAbsent(slice.parentId, $ -> Lists.newArrayList()).add(child);
-          roots.add(slice.parentId);
-        }
-        roots.remove(slice.stackId);
-        child.add(slice.dur);
-        sliceKeys.add(new Slice.Key(slice));
+        add(slice.name, slice.stackId, slice.parentId, slice.time, slice.dur, slice.depth,
+            slice.trackId);
+      }
+    }
+
+    /**
+     * Creates an empty builder, to which slices known in memory, e.g. from an index, are added
+     * via {@link #add}.
+     */
+    public SlicesBuilder(String title, int expectedSize) {
+      this.title = title;
+      this.byStack = new LongMap<Node.Builder>();
+      this.sliceKeys = new KeySet(expectedSize);
+    }
+
+    // Expects the summary rows to be stack_id, parent_stack_id, name, count, sum(dur) and the
+    // min(ts) and max(ts + dur) of the slices with a positive duration, null if there are none.
+    protected SlicesBuilder(String title, long trackId, TimeSpan ts, int minDepth, int maxDepth,
+        QueryEngine.Result summary) {
+      this.title = title;
+      this.byStack = new LongMap<Node.Builder>(summary.getNumRows());
+      summary.forEachRow(($, row) -> {
+        Node.Builder node = new Node.Builder(row.getString(2), row.getLong(0), row.getLong(1));
+        node.add(row.getLong(4), row.getInt(3));
+        byStack.put(node.id, node);
+        start = Math.min(start, row.getLong(5, Long.MAX_VALUE));
+        end = Math.max(end, row.getLong(6, Long.MIN_VALUE));
+      });
+      this.sliceKeys = new KeySet(0);
+      regions.add(new Slices.Region(trackId, ts, minDepth, maxDepth));
+    }
+
+    private SlicesBuilder(Slices slices) {
+      this.title = slices.title;
+      this.byStack = new LongMap<Node.Builder>(slices.byStack.size());
+      slices.byStack.forEach((stackId, node) -> byStack.put(stackId, new Node.Builder(node)));
+      this.sliceKeys = slices.sliceKeys.copy();
+      regions.addAll(slices.regions);
+      this.start = slices.start;
+      this.end = slices.end;
+    }
+
+    public SlicesBuilder add(String name, long stackId, long parentId, long time, long dur,
+        int depth, long trackId) {
+      Node.Builder node = byStack.get(stackId);
+      if (node == null) {
+        node = new Node.Builder(name, stackId, parentId);
+        byStack.put(stackId, node);
+      }
+      node.add(dur);
+      sliceKeys.add(time, dur, depth, trackId);
+      if (dur > 0) {
+        start = Math.min(start, time);
+        end = Math.max(end, time + dur);
       }
-      this.title = ti;
+      return this;
     }
 
     @Override
     public SlicesBuilder combine(SlicesBuilder other) {
-      this.slices.addAll(other.slices);
-      for (Map.Entry<Long, Node.Builder> e : other.byStack.entrySet()) {
-        Node.Builder mine = byStack.get(e.getKey());
+      other.byStack.forEach((stackId, theirs) -> {
+        Node.Builder mine = byStack.get(stackId);
         if (mine == null) {
-          byStack.put(e.getKey(), mine = new Node.Builder(e.getValue()));
-          byParent.computeIfAbsent(mine.parent, $ -> Lists.newArrayList()).add(mine);
+          byStack.put(stackId, new Node.Builder(theirs));
         } else {
-          mine.add(e.getValue());
+          mine.add(theirs);
         }
-      }
-      roots.addAll(other.roots);
+      });
       sliceKeys.addAll(other.sliceKeys);
+      regions.addAll(other.regions);
+      start = Math.min(start, other.start);
+      end = Math.max(end, other.end);
       return this;
     }
 
     @Override
     public Selection<Slice.Key> build() {
-      return new Slices(slices, title, roots.stream()
-          .filter(not(byStack::containsKey))
-          .flatMap(root -> byParent.get(root).stream())
-          .map(b -> b.build(byParent))
-          .sorted((n1, n2) -> Long.compare(n2.dur, n1.dur))
-          .collect(toImmutableList()), ImmutableSet.copyOf(sliceKeys));
+      // Link the stacks to their parents. Stacks whose parent is not selected are the roots.
+      List<Node.Builder> roots = Lists.newArrayList();
+      byStack.forEach((stackId, node) -> node.clearChildren());
+      byStack.forEach((stackId, node) -> {
+        Node.Builder parent = byStack.get(node.parent);
+        if (parent == null) {
+          roots.add(node);
+        } else {
+          parent.addChild(node);
+        }
+      });
+      return new Slices(title, byStack, Node.Builder.buildAll(roots), sliceKeys.copy(),
+          ImmutableList.copyOf(regions), start, end);
+    }
+  }
+
+  /**
+   * Set of {@link Slice.Key slice keys}, stored in primitive arrays using open addressing with
+   * linear probing, so that no key objects are allocated.
+   */
+  private static class KeySet {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] times;
+    private long[] durs;
+    private int[] depths; // A slot is empty iff its depth is -1.
+    private long[] trackIds;
+    private int size = 0;
+
+    public KeySet(int expectedSize) {
+      int capacity = MIN_CAPACITY;
+      while (capacity < 2 * expectedSize) {
+        capacity *= 2;
+      }
+      allocate(capacity);
+    }
+
+    private KeySet(KeySet other) {
+      this.times = other.times.clone();
+      this.durs = other.durs.clone();
+      this.depths = other.depths.clone();
+      this.trackIds = other.trackIds.clone();
+      this.size = other.size;
+    }
+
+    public KeySet copy() {
+      return new KeySet(this);
+    }
+
+    public boolean contains(long time, long dur, int depth, long trackId) {
+      return depths[find(time, dur, depth, trackId)] >= 0;
+    }
+
+    public void add(long time, long dur, int depth, long trackId) {
+      int slot = find(time, dur, depth, trackId);
+      if (depths[slot] < 0) {
+        times[slot] = time;
+        durs[slot] = dur;
+        depths[slot] = depth;
+        trackIds[slot] = trackId;
+        if (++size * 2 > depths.length) {
+          grow();
+        }
+      }
+    }
+
+    public void addAll(KeySet other) {
+      for (int i = 0; i < other.depths.length; i++) {
+        if (other.depths[i] >= 0) {
+          add(other.times[i], other.durs[i], other.depths[i], other.trackIds[i]);
+        }
+      }
+    }
+
+    private int find(long time, long dur, int depth, long trackId) {
+      int mask = depths.length - 1;
+      long h = ((time * 31 + dur) * 31 + depth) * 31 + trackId;
+      h *= 0x9E3779B97F4A7C15L;
+      int slot = (int)(h ^ (h >>> 32)) & mask;
+      while (depths[slot] >= 0 && (times[slot] != time || durs[slot] != dur ||
+          depths[slot] != depth || trackIds[slot] != trackId)) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void allocate(int capacity) {
+      times = new long[capacity];
+      durs = new long[capacity];
+      depths = new int[capacity];
+      trackIds = new long[capacity];
+      Arrays.fill(depths, -1);
+    }
+
+    private void grow() {
+      long[] oldTimes = times, oldDurs = durs, oldTrackIds = trackIds;
+      int[] oldDepths = depths;
+      allocate(2 * oldDepths.length);
+      size = 0;
+      for (int i = 0; i < oldDepths.length; i++) {
+        if (oldDepths[i] >= 0) {
+          add(oldTimes[i], oldDurs[i], oldDepths[i], oldTrackIds[i]);
+        }
+      }
     }
   }
 
@@ -434,6 +790,7 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
       public final long parent;
       private long dur = 0;
       private int count = 0;
+      private List<Builder> children = null;
 
       public Builder(String name, long id, long parent) {
         this.name = name;
@@ -458,21 +815,45 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
         count++;
       }
 
+      public void add(long duration, int n) {
+        dur += duration;
+        count += n;
+      }
+
       public void add(Builder other) {
         dur += other.dur;
         count += other.count;
       }
 
-      public Node build(Map<Long, List<Builder>> byParent) {
-        ImmutableList<Node> cs = byParent.getOrDefault(id, emptyList()).stream()
-            .map(b -> b.build(byParent))
-            .sorted((n1, n2) -> Long.compare(n2.dur, n1.dur))
-            .collect(toImmutableList());
-        long cDur = cs.stream()
-            .mapToLong(n -> n.dur)
-            .sum();
+      protected void addChild(Builder child) {
+        if (children == null) {
+          children = Lists.newArrayList();
+        }
+        children.add(child);
+      }
+
+      protected void clearChildren() {
+        children = null;
+      }
+
+      public Node build() {
+        ImmutableList<Node> cs = (children == null) ? ImmutableList.of() : buildAll(children);
+        long cDur = 0;
+        for (Node child : cs) {
+          cDur += child.dur;
+        }
         return new Node(name, dur, dur - cDur, count, cs);
       }
+
+      // Builds the given nodes, sorted by decreasing duration.
+      protected static ImmutableList<Node> buildAll(List<Builder> builders) {
+        Node[] nodes = new Node[builders.size()];
+        for (int i = 0; i < nodes.length; i++) {
+          nodes[i] = builders.get(i).build();
+        }
+        Arrays.sort(nodes, (n1, n2) -> Long.compare(n2.dur, n1.dur));
+        return ImmutableList.copyOf(nodes);
+      }
     }
   }
 
@@ -481,6 +862,7 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
         "id, ts, dur, category, name, depth, stack_id, parent_stack_id, arg_set_id";
     protected final String table;
     protected final long trackId;
+    private final String title;
 
     private final String SLICES_VIEW =
         "select " + baseColumns() + " from %s where track_id = %d";
@@ -504,25 +886,38 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     private final String SLICE_RANGE_SQL =
         "select " + baseColumns() + " from %s " +
         "where ts < %d and ts + dur >= %d and depth >= %d and depth <= %d";
+    private static final String SLICE_SUMMARY_SQL =
+        "select stack_id, parent_stack_id, name, count(1), sum(dur), " +
+        "min(case when dur > 0 then ts end), max(case when dur > 0 then ts + dur end) " +
+        "from %s where ts < %d and ts + dur >= %d and depth >= %d and depth <= %d " +
+        "group by stack_id";
     private final QueryEngine qe;
+    private final PageCodec codec;
 
     protected String baseColumns() {
       return BASE_COLUMNS;
     }
 
-    protected WithQueryEngine(QueryEngine qe, String table, long trackId) {
+    protected WithQueryEngine(QueryEngine qe, String table, long trackId, String title) {
       super(trackId);
       this.qe = qe;
       this.table = table;
       this.trackId = trackId;
+      this.title = title;
+      this.codec = new PageCodec(qe.getStrings());
     }
 
     @Override
     protected ListenableFuture<?> initialize() {
+      return initializeBatched(qe, getInitQueries());
+    }
+
+    @Override
+    protected List<String> getInitQueries() {
       String slices = tableName("slices");
       String window = tableName("window");
       String span = tableName("span");
-      return qe.queries(
+      return ImmutableList.of(
           dropTable(span),
           dropView(slices),
           dropTable(window),
@@ -534,27 +929,26 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     @Override
     protected ListenableFuture<Data> computeData(DataRequest req) {
       Window window = Window.compute(req, 5);
-      return transformAsync(window.update(qe, tableName("window")), $ ->
-          window.quantized ? computeQuantSlices(req) : computeSlices(req));
+      return window.quantized ?
+          withWindow(qe, window, () -> computeQuantSlices(req)) : computeSlices(req);
+    }
+
+    @Override
+    protected DiskPageCache.Codec<Data> getPageCodec() {
+      return codec;
     }
 
     protected ListenableFuture<Data> computeQuantSlices(DataRequest req) {
       return transform(qe.query(slicesQuantSql()), res -> {
         int rows = res.getNumRows();
-        Data data = new Data(req, new long[rows], new long[rows], new long[rows], new int[rows],
-            new String[rows], new String[rows], new ArgSet[rows]);
-        res.forEachRow((i, row) -> {
-          data.ids[i] = -1;
-          data.starts[i] = row.getLong(0);
-          data.ends[i] = row.getLong(1);
-          data.depths[i] = row.getInt(2);
-          data.categories[i] = "";
-          data.titles[i] = row.getString(3);
-          if (data.titles[i].length() >= 100 && row.getInt(4) > 1) {
-            data.titles[i] += "...";
-          }
-          data.args[i] = ArgSet.EMPTY;
-        });
+        StringTable strings = qe.getStrings();
+        // Marker and category ids are all zero, i.e. the empty string.
+        Data data = new Data(req, new long[rows], res.getLongColumn(0).toArray(),
+            res.getLongColumn(1).toArray(), res.getLongColumn(2).toIntArray(),
+            strings.intern(res.getStringColumn(3)), new int[rows], new int[rows], strings,
+            new ArgSet[rows]);
+        Arrays.fill(data.ids, -1);
+        Arrays.fill(data.args, ArgSet.EMPTY);
         return data;
       });
     }
@@ -564,23 +958,27 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     }
 
     private ListenableFuture<Data> computeSlices(DataRequest req) {
-      return transformAsync(qe.query(slicesSql(req)), res ->
-        transform(qe.getAllArgs(res.stream().mapToLong(r -> r.getLong(8))), args -> {
-          int rows = res.getNumRows();
-          Data data = new Data(req, new long[rows], new long[rows], new long[rows], new int[rows],
-              new String[rows], new String[rows], new ArgSet[rows]);
-          res.forEachRow((i, row) -> {
-            long start = row.getLong(1);
-            data.ids[i] = row.getLong(0);
-            data.starts[i] = start;
-            data.ends[i] = start + row.getLong(2);
-            data.categories[i] = row.getString(3);
-            data.titles[i] = row.getString(4);
-            data.depths[i] = row.getInt(5);
-            data.args[i] = args.getOrDefault(row.getLong(8), ArgSet.EMPTY);
-          });
-          return data;
-        }));
+      return transformAsync(qe.query(slicesSql(req)), res -> {
+        long[] argIds = res.getLongColumn(8).toArray();
+        return transform(qe.getAllArgs(Arrays.stream(argIds)),
+            args -> buildData(req, res, argIds, args));
+      });
+    }
+
+    // Builds the slice data from a result containing the BASE_COLUMNS.
+    protected Data buildData(
+        DataRequest req, QueryEngine.Result res, long[] argIds, Map<Long, ArgSet> args) {
+      int rows = res.getNumRows();
+      long[] starts = res.getLongColumn(1).toArray();
+      StringTable strings = qe.getStrings();
+      Data data = new Data(req, res.getLongColumn(0).toArray(), starts,
+          res.getLongColumn(2).toArrayAdding(starts), res.getLongColumn(5).toIntArray(),
+          strings.intern(res.getStringColumn(4)), new int[rows],
+          strings.intern(res.getStringColumn(3)), strings, new ArgSet[rows]);
+      for (int i = 0; i < rows; i++) {
+        data.args[i] = args.getOrDefault(argIds[i], ArgSet.EMPTY);
+      }
+      return data;
     }
 
     protected String slicesSql(DataRequest req) {
@@ -612,5 +1010,17 @@ public abstract class SliceTrack extends Track<SliceTrack.Data> {/*extends Track
     private String sliceRangeSql(TimeSpan ts, int minDepth, int maxDepth) {
       return format(SLICE_RANGE_SQL, tableName("slices"), ts.end, ts.start, minDepth, maxDepth);
     }
+
+    @Override
+    public ListenableFuture<SlicesBuilder> getSlicesSummary(
+        TimeSpan ts, int minDepth, int maxDepth) {
+      return transform(qe.query(sliceSummarySql(ts, minDepth, maxDepth)),
+          summary -> new SlicesBuilder(title, trackId, ts, minDepth, maxDepth, summary));
+    }
+
+    private String sliceSummarySql(TimeSpan ts, int minDepth, int maxDepth) {
+      return format(
+          SLICE_SUMMARY_SQL, tableName("slices"), ts.end, ts.start, minDepth, maxDepth);
+    }
   }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Per trace dictionary of interned strings, such as slice names and categories. Track data holds
+ * the integer ids of its strings, so that the few distinct names, repeated across many slices and
+ * data pages, are only kept in memory once. Equal strings map to the same id, so the ids can be
+ * compared for equality instead of the strings.
+ */
+public class StringTable {
+  private final Map<String, Integer> ids = Maps.newHashMap(); // guarded by this
+  // Only ever grows. Elements are never changed once written.
+  private volatile String[] strings = new String[256];
+  private int count = 0; // guarded by this
+
+  public StringTable() {
+    intern("");
+  }
+
+  /**
+   * Returns the id of the given string, adding it to this table, if not yet present.
+   */
+  public synchronized int intern(String string) {
+    Integer id = ids.get(string);
+    if (id != null) {
+      return id;
+    }
+
+    if (count == strings.length) {
+      strings = Arrays.copyOf(strings, 2 * count);
+    }
+    strings[count] = string;
+    ids.put(string, count);
+    return count++;
+  }
+
+  /**
+   * Interns all the values of the given column, returning their ids. Nulls map to the empty
+   * string.
+   */
+  public synchronized int[] intern(QueryEngine.StringColumn column) {
+    int[] result = new int[column.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = intern(column.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the string with the given id. The id must have been obtained from this table, such that
+   * its interning happened before this call, e.g. via the future that loaded the track data.
+   */
+  public String get(int id) {
+    return strings[id];
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+}
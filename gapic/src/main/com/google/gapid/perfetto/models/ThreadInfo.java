@@ -17,14 +17,19 @@ package com.google.gapid.perfetto.models;
 
 import static com.google.gapid.perfetto.views.StyleConstants.gradient;
 import static com.google.gapid.util.MoreFutures.transform;
+import static java.lang.String.format;
+import static java.util.stream.Collectors.joining;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Perfetto;
 import com.google.gapid.perfetto.views.State;
 import com.google.gapid.perfetto.views.StyleConstants;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -33,23 +38,20 @@ import java.util.Map;
 public class ThreadInfo {
   private static final long MIN_DUR = State.MAX_ZOOM_SPAN_NSEC / 1600;
   private static final String THREAD_QUERY =
-      "with threads as (" +
-        "select utid, tid, thread.name tname, upid, pid, process.name pname, sum(dur) dur " +
-        "from thread left join process using(upid) left join sched using (utid) " +
-        "where utid != 0 group by utid), " +
-      "depth as (" +
-        "select t.utid utid, t.id track_id, max(depth) + 1 depth " +
-        "from thread_track t inner join slice s on (s.track_id = t.id) " +
-        "where dur >= " + MIN_DUR + " group by t.id) " +
-      "select utid, tid, tname, upid, pid, pname, dur, track_id, depth " +
-      "from threads left join depth using (utid)";
+      "select utid, tid, thread.name tname, upid, pid, process.name pname, sum(dur) dur " +
+      "from thread left join process using(upid) left join sched using (utid) " +
+      "where utid != 0 group by utid";
+  private static final String TRACK_QUERY =
+      "select t.utid utid, t.id track_id, max(depth) + 1 depth " +
+      "from thread_track t inner join slice s on (s.track_id = t.id) " +
+      "where t.utid in (%s) and dur >= " + MIN_DUR + " group by t.id";
 
   public final long utid;  // the perfetto id.
   public final long tid;   // the system id.
   public final long upid;  // the perfetto id.
-  public final long trackId;
+  public final long trackId; // -1 until queried via withTracks(..), or if there are no slices.
   public final String name;
-  public final int maxDepth;
+  public final int maxDepth; // 0 until queried via withTracks(..).
   public final long totalDur;
 
   public ThreadInfo(
@@ -83,9 +85,7 @@ public class ThreadInfo {
         long pid = row.getLong(4);
         String pName = row.getString(5);
         long dur = row.getLong(6);
-        long trackId = row.getLong(7, -1);
-        int depth = row.getInt(8);
-        threads.put(utid, new ThreadInfo(utid, tid, upid, trackId, tName, depth, dur));
+        threads.put(utid, new ThreadInfo(utid, tid, upid, -1, tName, 0, dur));
         procs.computeIfAbsent(upid, $2 -> new ProcessInfo.Builder(upid, pid, pName))
             .addThread(utid, dur);
       });
@@ -99,6 +99,33 @@ public class ThreadInfo {
     });
   }
 
+  /**
+   * Returns the given threads with their slice track id and max slice depth, which are only
+   * queried once the threads' tracks are needed, since computing the depth requires a scan of all
+   * the threads' slices.
+   */
+  public static ListenableFuture<List<ThreadInfo>> withTracks(
+      QueryEngine qe, List<ThreadInfo> threads) {
+    if (threads.isEmpty()) {
+      return Futures.immediateFuture(threads);
+    }
+    String utids = threads.stream().map(t -> Long.toString(t.utid)).collect(joining(","));
+    return transform(qe.query(format(TRACK_QUERY, utids)), res -> {
+      // utid -> {track id, max depth}
+      Map<Long, long[]> tracks = Maps.newHashMap();
+      res.forEachRow(($, row) -> tracks.put(row.getLong(0), new long[] {
+          row.getLong(1), row.getInt(2)
+      }));
+      List<ThreadInfo> result = Lists.newArrayListWithCapacity(threads.size());
+      for (ThreadInfo thread : threads) {
+        long[] track = tracks.get(thread.utid);
+        result.add((track == null) ? thread : new ThreadInfo(thread.utid, thread.tid,
+            thread.upid, track[0], thread.name, (int)track[1], thread.totalDur));
+      }
+      return result;
+    });
+  }
+
   public static Display getDisplay(State state, long utid, boolean hover) {
     ThreadInfo thread = state.getThreadInfo(utid);
     if (thread == null) {
@@ -15,10 +15,8 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.gapid.perfetto.models.QueryEngine.createSpan;
 import static com.google.gapid.perfetto.models.QueryEngine.createSpanLeftJoin;
 import static com.google.gapid.perfetto.models.QueryEngine.createView;
-import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
 import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
 import static com.google.gapid.perfetto.models.QueryEngine.dropView;
 import static com.google.gapid.util.MoreFutures.transform;
@@ -26,10 +24,8 @@ import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.ThreadState;
@@ -38,13 +34,14 @@ import com.google.gapid.perfetto.models.SliceTrack.Slice;
 import com.google.gapid.perfetto.views.State;
 import com.google.gapid.perfetto.views.ThreadStateSliceSelectionView;
 import com.google.gapid.perfetto.views.ThreadStateSlicesSelectionView;
+import com.google.gapid.util.LongMap;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.widgets.Composite;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.function.Consumer;
 
 /**
@@ -72,9 +69,13 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
       "from %s window ts_win as (order by ts)";
 
   private static final String SCHED_SQL =
-      "select ts, dur, state, row_id from %s where state != 'S' and state != 'x'";
+      "select ts, dur, state, row_id from %s " +
+      "where state != 'S' and state != 'x' and ts >= %d - dur and ts <= %d order by ts";
   private static final String SCHED_RANGE_SQL =
       "select ts, dur, state from %s where ts < %d and ts + dur >= %d";
+  private static final String STATE_SUMMARY_SQL =
+      "select state, sum(dur), min(ts), max(ts + dur) from %s " +
+      "where ts < %d and ts + dur >= %d group by state";
 
 
   private final ThreadInfo thread;
@@ -91,54 +92,54 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String wakeup = tableName("wakeup");
     String sched = tableName("sched");
     String spanJoin = tableName("span_join");
     String spanView = tableName("span_view");
-    String span = tableName("span");
-    String window = tableName("window");
-    return transformAsync(sliceTrack.initialize(), $ -> qe.queries(
-        dropTable(span),
-        dropView(spanView),
-        dropTable(spanJoin),
-        dropView(sched),
-        dropView(wakeup),
-        dropTable(window),
-        createWindow(window),
-        createView(sched, format(SCHED_VIEW, thread.utid)),
-        createView(wakeup, format(INSTANT_VIEW, thread.utid, sched)),
-        createSpanLeftJoin(spanJoin, wakeup + ", " + sched),
-        createView(spanView, format(STATE_SPAN_VIEW, spanJoin)),
-        createSpan(span, window + ", " + spanView)));
+    return ImmutableList.<String>builder()
+        .addAll(sliceTrack.getInitQueries())
+        .add(dropView(spanView))
+        .add(dropTable(spanJoin))
+        .add(dropView(sched))
+        .add(dropView(wakeup))
+        .add(createView(sched, format(SCHED_VIEW, thread.utid)))
+        .add(createView(wakeup, format(INSTANT_VIEW, thread.utid, sched)))
+        .add(createSpanLeftJoin(spanJoin, wakeup + ", " + sched))
+        .add(createView(spanView, format(STATE_SPAN_VIEW, spanJoin)))
+        .build();
   }
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window window = Window.compute(req);
-    return transformAsync(sliceTrack.computeData(req), slices ->
-        transformAsync(window.update(qe, tableName("window")), $ ->
-            computeSched(req, slices)));
+    return transformAsync(sliceTrack.computeData(req), slices -> computeSched(req, slices));
   }
 
   private ListenableFuture<Data> computeSched(DataRequest req, SliceTrack.Data slices) {
-    return transform(qe.query(schedSql()), res -> {
+    return transform(qe.query(schedSql(req)), res -> {
       int rows = res.getNumRows();
-      Data data = new Data(req, new long[rows], new long[rows], new long[rows],
-          new ThreadState[rows], slices);
-      res.forEachRow((i, row) -> {
-        long start = row.getLong(0);
-        data.schedStarts[i] = start;
-        data.schedEnds[i] = start + row.getLong(1);
-        data.schedStates[i] = ThreadState.of(row.getString(2));
-        data.schedIds[i] = row.getLong(3);
-      });
-      return data;
+      long[] starts = res.getLongColumn(0).toArray();
+      long[] ends = res.getLongColumn(1).toArrayAdding(starts);
+      QueryEngine.StringColumn stateColumn = res.getStringColumn(2);
+      ThreadState[] states = new ThreadState[rows];
+      for (int i = 0; i < rows; i++) {
+        states[i] = ThreadState.of(stateColumn.get(i));
+      }
+      long[] ids = res.getLongColumn(3).toArray();
+      return new Data(req, ids, starts, ends, states, slices);
     });
   }
 
-  private String schedSql() {
-    return format(SCHED_SQL, tableName("span"));
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.schedStarts);
+    return new Data(req, s.longs(d -> d.schedIds), s.longs(d -> d.schedStarts),
+        s.longs(d -> d.schedEnds), s.objects(d -> d.schedStates, ThreadState[]::new),
+        SliceTrack.Data.stitch(req, Lists.transform(pages, d -> d.slices)));
+  }
+
+  private String schedSql(DataRequest req) {
+    return format(SCHED_SQL, tableName("span_view"), req.range.start, req.range.end);
   }
 
   public ListenableFuture<Slice> getSlice(long id) {
@@ -153,10 +154,19 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
     return sliceTrack.getSlices(ts, minDepth, maxDepth);
   }
 
+  public ListenableFuture<SliceTrack.SlicesBuilder> getSlicesSummary(
+      TimeSpan ts, int minDepth, int maxDepth) {
+    return sliceTrack.getSlicesSummary(ts, minDepth, maxDepth);
+  }
+
   public ListenableFuture<List<CpuTrack.Slice>> getCpuSlices(TimeSpan ts) {
     return CpuTrack.getSlices(qe, thread.utid, ts);
   }
 
+  public ListenableFuture<CpuTrack.SlicesBuilder> getCpuSlicesSummary(TimeSpan ts) {
+    return CpuTrack.getSlicesSummary(qe, thread.utid, ts);
+  }
+
   public ListenableFuture<List<StateSlice>> getStates(TimeSpan ts) {
     return transform(qe.query(stateRangeSql(ts)), res -> {
       List<StateSlice> slices = Lists.newArrayList();
@@ -169,6 +179,19 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
     return format(SCHED_RANGE_SQL, tableName("span_view"), ts.end, ts.start);
   }
 
+  /**
+   * Returns the selection of the thread states in the given range, totalled by state by the trace
+   * processor, without fetching the state slices themselves.
+   */
+  public ListenableFuture<StateSlicesBuilder> getStatesSummary(TimeSpan ts) {
+    return transform(qe.query(stateSummarySql(ts)),
+        res -> new StateSlicesBuilder(thread.utid, ts, res));
+  }
+
+  private String stateSummarySql(TimeSpan ts) {
+    return format(STATE_SUMMARY_SQL, tableName("span_view"), ts.end, ts.start);
+  }
+
   public static class Data extends Track.Data {
     // sched
     public final long[] schedIds;
@@ -187,6 +210,11 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
       this.schedStates = schedStates;
       this.slices = slices;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(schedIds, schedStarts, schedEnds, schedStates) + slices.getSize();
+    }
   }
 
   public static class StateSlice implements Selection<StateSlice.Key> {
@@ -274,15 +302,20 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
   }
 
   public static class StateSlices implements Selection<StateSlice.Key> {
-    private final List<StateSlice> slices;
     public final ImmutableList<Entry> entries;
-    public final ImmutableSet<StateSlice.Key> sliceKeys;
-
-    public StateSlices(List<StateSlice> slices, ImmutableList<Entry> entries,
-        ImmutableSet<StateSlice.Key> sliceKeys) {
-      this.slices = slices;
+    // The start times of the selected state slices by thread. The start time identifies the state
+    // slice, since the state slices of a thread don't overlap.
+    private final LongMap<SortedLongSet> sliceKeys;
+    private final ImmutableList<Region> regions;
+    private final long start, end;
+
+    protected StateSlices(ImmutableList<Entry> entries, LongMap<SortedLongSet> sliceKeys,
+        ImmutableList<Region> regions, long start, long end) {
       this.entries = entries;
       this.sliceKeys = sliceKeys;
+      this.regions = regions;
+      this.start = start;
+      this.end = end;
     }
 
     @Override
@@ -292,7 +325,16 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
 
     @Override
     public boolean contains(StateSlice.Key key) {
-      return sliceKeys.contains(key);
+      SortedLongSet times = sliceKeys.get(key.utid);
+      if (times != null && times.contains(key.time)) {
+        return true;
+      }
+      for (Region region : regions) {
+        if (region.contains(key)) {
+          return true;
+        }
+      }
+      return false;
     }
 
     @Override
@@ -302,13 +344,13 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
 
     @Override
     public Selection.Builder<StateSlicesBuilder> getBuilder() {
-      return new StateSlicesBuilder(slices);
+      return new StateSlicesBuilder(this);
     }
 
     @Override
     public void getRange(Consumer<TimeSpan> span) {
-      for (StateSlice slice : slices) {
-        slice.getRange(span);
+      if (start < end) {
+        span.accept(new TimeSpan(start, end));
       }
     }
 
@@ -321,46 +363,102 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
         this.totalDur = totalDur;
       }
     }
+
+    /**
+     * All the state slices of a thread overlapping a time range, as selected by an area selection.
+     */
+    protected static class Region {
+      public final long utid;
+      public final TimeSpan ts;
+
+      public Region(long utid, TimeSpan ts) {
+        this.utid = utid;
+        this.ts = ts;
+      }
+
+      // Matches the range condition of the summary query.
+      public boolean contains(StateSlice.Key key) {
+        return key.utid == utid && key.time < ts.end && key.time + key.dur >= ts.start;
+      }
+    }
   }
 
+  /**
+   * Totals the selected thread states by state. Area selections are totalled by the trace
+   * processor and are matched by their thread and time range, so the state slices themselves are
+   * never fetched.
+   */
   public static class StateSlicesBuilder implements Selection.Builder<StateSlicesBuilder> {
-    private final List<StateSlice> slices;
     private final Map<ThreadState, Long> byState = Maps.newHashMap();
-    private final Set<StateSlice.Key> sliceKeys = Sets.newHashSet();
+    private final LongMap<SortedLongSet.Builder> sliceKeys =
+        new LongMap<SortedLongSet.Builder>();
+    private final List<StateSlices.Region> regions = Lists.newArrayList();
+    private long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
 
     public StateSlicesBuilder(List<StateSlice> slices) {
-      this.slices = slices;
       for (StateSlice slice : slices) {
         byState.compute(slice.state, (state, old) -> (old == null) ? slice.dur : old + slice.dur);
-        sliceKeys.add(new StateSlice.Key(slice));
+        keys(slice.utid).add(slice.time);
+        if (slice.dur > 0) {
+          start = Math.min(start, slice.time);
+          end = Math.max(end, slice.time + slice.dur);
+        }
+      }
+    }
+
+    // Expects the summary rows to be state, sum(dur), min(ts), max(ts + dur).
+    protected StateSlicesBuilder(long utid, TimeSpan ts, QueryEngine.Result summary) {
+      summary.forEachRow(($, row) -> {
+        byState.merge(ThreadState.of(row.getString(0)), row.getLong(1), Long::sum);
+        start = Math.min(start, row.getLong(2));
+        end = Math.max(end, row.getLong(3));
+      });
+      regions.add(new StateSlices.Region(utid, ts));
+    }
+
+    private StateSlicesBuilder(StateSlices slices) {
+      for (StateSlices.Entry entry : slices.entries) {
+        byState.put(entry.state, entry.totalDur);
       }
+      slices.sliceKeys.forEach((utid, times) -> keys(utid).addAll(times));
+      regions.addAll(slices.regions);
+      start = slices.start;
+      end = slices.end;
     }
 
     @Override
     public StateSlicesBuilder combine(StateSlicesBuilder other) {
-      this.slices.addAll(other.slices);
       for (Map.Entry<ThreadState, Long> e : other.byState.entrySet()) {
         byState.merge(e.getKey(), e.getValue(), Long::sum);
       }
-      sliceKeys.addAll(other.sliceKeys);
+      other.sliceKeys.forEach((utid, times) -> keys(utid).addAll(times));
+      regions.addAll(other.regions);
+      start = Math.min(start, other.start);
+      end = Math.max(end, other.end);
       return this;
     }
 
+    private SortedLongSet.Builder keys(long utid) {
+      return sliceKeys.computeIfAbsent(utid, $ -> new SortedLongSet.Builder());
+    }
+
     @Override
     public Selection<StateSlice.Key> build() {
-      return new StateSlices(slices, byState.entrySet().stream()
+      LongMap<SortedLongSet> keys = new LongMap<SortedLongSet>(sliceKeys.size());
+      sliceKeys.forEach((utid, times) -> keys.put(utid, times.build()));
+      return new StateSlices(byState.entrySet().stream()
           .map(e -> new StateSlices.Entry(e.getKey(), e.getValue()))
           .sorted((e1, e2) -> Long.compare(e2.totalDur, e1.totalDur))
-          .collect(ImmutableList.toImmutableList()), ImmutableSet.copyOf(sliceKeys));
+          .collect(ImmutableList.toImmutableList()), keys, ImmutableList.copyOf(regions),
+          start, end);
     }
   }
 
   private static interface SliceFetcher {
     public static final SliceFetcher NONE = new SliceFetcher() { /* empty */ };
 
-    @SuppressWarnings("unused")
-    public default ListenableFuture<?> initialize() {
-      return Futures.immediateFuture(null);
+    public default List<String> getInitQueries() {
+      return Collections.emptyList();
     }
 
     @SuppressWarnings("unused")
@@ -379,6 +477,12 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
       return Futures.immediateFuture(Collections.emptyList());
     }
 
+    @SuppressWarnings("unused")
+    public default ListenableFuture<SliceTrack.SlicesBuilder> getSlicesSummary(
+        TimeSpan ts, int minDepth, int maxDepth) {
+      return Futures.immediateFuture(new SliceTrack.SlicesBuilder(Collections.emptyList()));
+    }
+
     public static SliceFetcher forThread(QueryEngine q, ThreadInfo thread) {
       if (thread.trackId < 0) {
         return SliceFetcher.NONE;
@@ -387,8 +491,8 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
       SliceTrack track = SliceTrack.forThread(q, thread);
       return new SliceFetcher() {
         @Override
-        public ListenableFuture<?> initialize() {
-          return track.initialize();
+        public List<String> getInitQueries() {
+          return track.getInitQueries();
         }
 
         @Override
@@ -405,6 +509,12 @@ public class ThreadTrack extends Track.WithQueryEngine<ThreadTrack.Data> {
         public ListenableFuture<List<Slice>> getSlices(TimeSpan ts, int minDepth, int maxDepth) {
           return track.getSlices(ts, minDepth, maxDepth);
         }
+
+        @Override
+        public ListenableFuture<SliceTrack.SlicesBuilder> getSlicesSummary(
+            TimeSpan ts, int minDepth, int maxDepth) {
+          return track.getSlicesSummary(ts, minDepth, maxDepth);
+        }
       };
     }
   }
@@ -15,58 +15,86 @@
  */
 package com.google.gapid.perfetto.models;
 
-import static com.google.gapid.util.MoreFutures.logFailure;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.util.MoreFutures.transformAsync;
 import static com.google.gapid.util.Scheduler.EXECUTOR;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-import com.google.common.cache.Cache;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.ExecutionSequencer;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.perfetto.TimeSpan;
-import com.google.gapid.util.Caches;
+import com.google.gapid.util.LatencyStats;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.logging.Logger;
 
 // Note on multi-threading issues here:
-// Because of how the window tables work, the below computeData(..) calls have to be serialized
-// by track. That is, data for different requests can not be fetched in parallel. Thus, the calls
-// to computeData(..) are funneled through the getDataLock semaphore. Care needs to be taken not to
-// block the executor threads indefinitely, as otherwise a deadlock could occur, due to the results
-// of the query futures no longer being able to be executed. Thus, the semaphore is try-acquired
-// with a short timeout, followed by a slightly longer wait, before retrying.
+// computeData(..) may be invoked for several requests of the same track in parallel. Queries that
+// pass the requested range and quantum as query parameters can simply run concurrently. Queries
+// that depend on the track's window table, however, have to be serialized by track, since the
+// window table is shared by all requests. Such queries are run via withWindow(..), which chains
+// them on the track's window sequencer, rather than blocking an executor thread on a lock.
+// Data is loaded in pages (see DataRequest.pages()). On screen requests and prefetches of the same
+// track share the in progress load of a page, rather than issuing the page's queries twice.
 
 /**
  * A {@link Track} is responsible for loading the data to be shown in the UI.
  */
 public abstract class Track<D extends Track.Data> {
-  private static final Logger LOG = Logger.getLogger(Track.class.getName());
-
   public static final long QUANTIZE_CUT_OFF = 2000;
 
   private static final long REQUEST_DELAY_MS = 50;
-  private static final long ACQUIRE_TIMEOUT_MS = 5;
-  private static final long ACQUIRE_RETRY_MS = 10;
+  private static final long PREFETCH_DELAY_MS = 150;
   private static final long PAGE_SIZE = 3600;
-
-  private static DataCache cache = new DataCache();
+  private static final int FETCH_LATENCY_SAMPLES = 200;
+  private static final long INIT_BATCH_DELAY_MS = 10;
+
+  private static final PageStore pages =
+      new PageStore(PageStore.pageStoreSize.get() * 1024L * 1024L);
+  private static final TrackScheduler scheduler =
+      new TrackScheduler(TrackScheduler.maxTrackFetches.get());
+  // Precomputations run one at a time, so they don't crowd out the queries of on screen tracks.
+  private static final ExecutionSequencer precomputeSequencer = ExecutionSequencer.create();
+  // The on-disk page cache of the currently loaded capture, see setDiskCache(..).
+  private static volatile DiskPageCache.Scope currentDiskCache = DiskPageCache.Scope.NONE;
+  // The latencies of the data computations, by track type.
+  private static final Map<String, LatencyStats> fetchLatencies = Maps.newConcurrentMap();
+  // The initialization batches waiting to be sent, by query engine. Guarded by itself.
+  private static final Map<QueryEngine, InitBatch> initBatches = Maps.newHashMap();
 
   private final String trackId;
+  private final DiskPageCache.Scope diskCache = currentDiskCache;
 
   private D data;
   private ListenableFuture<?> scheduledFuture;
   // Set to null on any thread, set to non-null only on the UI thread.
   private final AtomicReference<ScheduledRequest<D>> scheduledRequest =
       new AtomicReference<ScheduledRequest<D>>(null);
-  private final Semaphore getDataLock = new Semaphore(1);
-  private boolean initialized; // guarded by getDataLock
+  private final ExecutionSequencer windowSequencer = ExecutionSequencer.create();
+  // The pages currently being loaded, shared by on screen requests and prefetches. Guarded by this.
+  private final Map<DataRequest, PageLoad> loading = Maps.newHashMap();
+  private DataRequest prefetchRequest; // on UI thread
+  private ListenableFuture<?> prefetchFuture; // on UI thread
+  // The frame in which, and the position at which, this track was last drawn, see TrackScheduler.
+  volatile int visibleFrame = 0;
+  volatile int drawOrder = 0;
+  // Null until the initialization has been started, reset if it fails.
+  private ListenableFuture<?> initialized; // guarded by this
+  // Incremented whenever the loaded data is discarded, see invalidateData(). Written under this.
+  private volatile int dataVersion = 0;
 
   public Track(String trackId) {
     this.trackId = trackId.replace("-", "_");
@@ -78,12 +106,44 @@ public abstract class Track<D extends Track.Data> {
 
   // on UI Thread
   public D getData(DataRequest req, OnUiThread<D> onUiThread) {
+    scheduler.markVisible(this);
     if (checkScheduledRequest(req, onUiThread) && (data == null || !data.request.satisfies(req))) {
       schedule(req.pageAlign(), onUiThread);
     }
     return data;
   }
 
+  /**
+   * Returns the version of this track's data, which changes whenever the data loaded so far is
+   * discarded, e.g. because the track's settings changed.
+   */
+  public int getDataVersion() {
+    return dataVersion;
+  }
+
+  /**
+   * Discards all the data of this track loaded so far, including its pages in the page store, so
+   * that it is reloaded on the next request. Loads in progress are abandoned.
+   */
+  // on UI Thread
+  protected void invalidateData() {
+    synchronized (this) {
+      dataVersion++;
+      loading.clear();
+    }
+    ScheduledRequest<D> scheduled = scheduledRequest.getAndSet(null);
+    if (scheduled != null) {
+      if (scheduledFuture != null) {
+        scheduledFuture.cancel(true);
+      }
+      scheduled.cancel();
+    }
+    scheduledFuture = null;
+    prefetch(null);
+    data = null;
+    pages.remove(this);
+  }
+
   // on UI Thread. returns true, if a new request may be scheduled.
   private boolean checkScheduledRequest(DataRequest req, OnUiThread<D> callback) {
     ScheduledRequest<D> scheduled = scheduledRequest.get();
@@ -97,12 +157,14 @@ public abstract class Track<D extends Track.Data> {
     scheduledFuture.cancel(true);
     scheduledFuture = null;
     scheduledRequest.set(null);
+    // Abandon the superseded request's queries, if they have already been sent.
+    scheduled.cancel();
     return true;
   }
 
   // on UI Thread
   private void schedule(DataRequest request, OnUiThread<D> onUiThread) {
-    D newData = cache.getIfPresent(this, request);
+    D newData = getCachedData(request);
     if (newData != null) {
       data = newData;
       return;
@@ -116,57 +178,337 @@ public abstract class Track<D extends Track.Data> {
 
   // *not* on UI Thread
   private void query(ScheduledRequest<D> scheduled) {
-    try {
-      if (!getDataLock.tryAcquire(ACQUIRE_TIMEOUT_MS, MILLISECONDS)) {
-        logFailure(LOG, EXECUTOR.schedule(
-            () -> query(scheduled), ACQUIRE_RETRY_MS, MILLISECONDS));
-        return;
-      }
-    } catch (InterruptedException e) {
-      // We were cancelled while waiting on the lock.
-      scheduledRequest.compareAndSet(scheduled, null);
+    if (scheduledRequest.get() != scheduled) {
       return;
     }
 
+    ListenableFuture<D> future = transformAsync(setup(), $ -> fetchPages(scheduled.request));
+    scheduled.setFuture(future);
     if (scheduledRequest.get() != scheduled) {
-      getDataLock.release();
+      // Superseded while sending the queries.
+      future.cancel(true);
+    }
+    future.addListener(() -> {
+      if (!succeeded(future)) {
+        // Failed or dropped by the scheduler, let the next getData(..) retry.
+        scheduledRequest.compareAndSet(scheduled, null);
+      }
+    }, directExecutor());
+    scheduled.scheduleCallbacks(future, newData -> update(scheduled, newData));
+  }
+
+  /**
+   * Speculatively loads the pages of the given request into the page store, so that they are
+   * available once they come on screen. Prefetches are scheduled with a lower priority than on
+   * screen requests. Any previous, different, prefetch of this track is cancelled. Passing
+   * {@code null} only cancels the current prefetch.
+   */
+  // on UI Thread
+  public void prefetch(DataRequest req) {
+    DataRequest request = (req == null || req.resolution <= 0) ? null : req.pageAlign();
+    if (request != null && prefetchRequest != null && prefetchRequest.satisfies(request) &&
+        !prefetchFuture.isDone()) {
       return;
     }
 
-    try {
-      ListenableFuture<D> future = transformAsync(setup(), $ -> computeData(scheduled.request));
-      scheduled.scheduleCallbacks(future, newData -> update(scheduled, newData));
-      // Always unlock when the future completes/fails/is cancelled.
-      future.addListener(getDataLock::release, EXECUTOR);
-    } catch (RuntimeException e) {
-      getDataLock.release();
-      throw e;
+    if (prefetchFuture != null) {
+      prefetchFuture.cancel(true);
+      prefetchFuture = null;
+      prefetchRequest = null;
+    }
+    List<DataRequest> reqs = (request == null) ? Collections.emptyList() : missingPages(request);
+    if (reqs.isEmpty()) {
+      return;
+    }
+
+    prefetchRequest = request;
+    // Cancelling the scheduled future also cancels the page loads, once it has started them.
+    prefetchFuture = Futures.scheduleAsync(() -> transformAsync(setup(),
+        $ -> Futures.allAsList(Lists.transform(reqs, page -> loadPage(page, true)))),
+        PREFETCH_DELAY_MS, MILLISECONDS, EXECUTOR);
+  }
+
+  // Returns the pages of the given request that are not in the page store.
+  private List<DataRequest> missingPages(DataRequest request) {
+    List<DataRequest> result = Lists.newArrayList();
+    for (DataRequest page : request.pages()) {
+      if (!pages.contains(this, page)) {
+        result.add(page);
+      }
+    }
+    return result;
+  }
+
+  // Returns the data for the given request, if all its pages are in the page store.
+  private D getCachedData(DataRequest request) {
+    List<DataRequest> reqs = request.pages();
+    List<D> result = Lists.newArrayListWithCapacity(reqs.size());
+    for (DataRequest page : reqs) {
+      D cached = pages.get(this, page);
+      if (cached == null) {
+        return null;
+      }
+      result.add(cached);
+    }
+    return stitchPages(request, result);
+  }
+
+  // Fetches the pages of the given request that are not in the page store.
+  private ListenableFuture<D> fetchPages(DataRequest request) {
+    List<ListenableFuture<D>> futures = Lists.newArrayList();
+    for (DataRequest page : request.pages()) {
+      futures.add(loadPage(page, false));
+    }
+    return transform(Futures.allAsList(futures), result -> stitchPages(request, result));
+  }
+
+  // Returns the data of the given page from the page store, or loads it, joining any in progress
+  // load of the same page. The load is scheduled by the track scheduler.
+  private synchronized ListenableFuture<D> loadPage(DataRequest page, boolean prefetch) {
+    D cached = pages.get(this, page);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+
+    PageLoad load = loading.get(page);
+    if (load == null) {
+      int version = dataVersion;
+      PageLoad newLoad = new PageLoad(transform(scheduler.submit(this, page, prefetch,
+          () -> loadOrComputeData(page)), data -> putPage(page, data, version)));
+      loading.put(page, newLoad);
+      newLoad.future.addListener(() -> {
+        synchronized (this) {
+          loading.remove(page, newLoad);
+        }
+      }, directExecutor());
+      load = newLoad;
+    } else if (!prefetch) {
+      scheduler.prioritize(this, page);
     }
+    return load.join();
+  }
+
+  // Stores the given loaded page, unless the data has been invalidated since the load started.
+  private synchronized D putPage(DataRequest page, D newData, int version) {
+    return (version == dataVersion) ? pages.put(this, page, newData) : newData;
+  }
+
+  // Reads the given page from the on-disk cache, if possible, or computes it and then writes it to
+  // the cache in the background.
+  private ListenableFuture<D> loadOrComputeData(DataRequest page) {
+    DiskPageCache.Codec<D> codec = getPageCodec();
+    if (codec == null || !diskCache.isEnabled()) {
+      return timedComputeData(page);
+    }
+
+    // The id may change while the page is computed, e.g. with the track's downsampling mode.
+    String cacheId = getPageCacheId();
+    D cached = diskCache.read(cacheId, page, codec);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+    ListenableFuture<D> future = timedComputeData(page);
+    future.addListener(() -> {
+      try {
+        diskCache.write(cacheId, Futures.getDone(future), codec);
+      } catch (ExecutionException | CancellationException e) {
+        // Nothing to cache.
+      }
+    }, EXECUTOR);
+    return future;
+  }
+
+  // Computes the given page, recording the latency of the computation for the track's type.
+  private ListenableFuture<D> timedComputeData(DataRequest page) {
+    long start = System.nanoTime();
+    ListenableFuture<D> future = computeData(page);
+    future.addListener(() -> {
+      if (succeeded(future)) {
+        fetchLatencies.computeIfAbsent(getClass().getSimpleName(),
+            type -> new LatencyStats(FETCH_LATENCY_SAMPLES)).add(System.nanoTime() - start);
+      }
+    }, directExecutor());
+    return future;
+  }
+
+  private D stitchPages(DataRequest request, List<D> result) {
+    return (result.size() == 1) ? result.get(0) : stitch(request, result);
   }
 
   // on UI Thread
   private void update(ScheduledRequest<D> scheduled, D newData) {
-    cache.put(this, scheduled.request, newData);
     if (scheduledRequest.compareAndSet(scheduled, null)) {
       data = newData;
       scheduledFuture = null;
     }
   }
 
-  private ListenableFuture<?> setup() {
-    if (initialized) {
-      return Futures.immediateFuture(null);
+  private synchronized ListenableFuture<?> setup() {
+    if (initialized == null) {
+      ListenableFuture<?> future = initialize();
+      initialized = future;
+      future.addListener(() -> {
+        if (!succeeded(future)) {
+          // Let the next request retry the initialization.
+          synchronized (this) {
+            if (initialized == future) {
+              initialized = null;
+            }
+          }
+        } else {
+          onInitialized();
+        }
+      }, directExecutor());
+    }
+    // Cancelling a request must not cancel the initialization shared by all requests.
+    return Futures.nonCancellationPropagating(initialized);
+  }
+
+  private static boolean succeeded(ListenableFuture<?> future) {
+    try {
+      Futures.getDone(future);
+      return true;
+    } catch (ExecutionException | CancellationException e) {
+      return false;
     }
-    return transform(initialize(), $ -> initialized = true);
   }
 
   protected abstract ListenableFuture<?> initialize();
   protected abstract ListenableFuture<D> computeData(DataRequest req);
 
+  /**
+   * Called once this track has been initialized by {@link #initialize()}, e.g. to start
+   * precomputing data in the background.
+   */
+  protected void onInitialized() {
+    // Do nothing by default.
+  }
+
+  /**
+   * Runs the given precomputation, e.g. of the zoom levels of a track, once all precomputations
+   * submitted before, by any track, have completed.
+   */
+  protected static <T> ListenableFuture<T> precompute(AsyncCallable<T> callable) {
+    return precomputeSequencer.submitAsync(callable, directExecutor());
+  }
+
+  /**
+   * Combines the data of two or more adjacent pages, given in order, into the data for the given
+   * request spanning exactly these pages.
+   */
+  protected abstract D stitch(DataRequest req, List<D> pageData);
+
+  /**
+   * Returns the codec used to store this track's data pages in the on-disk page cache, or
+   * {@code null} if the pages of this track should not be cached on disk.
+   */
+  protected DiskPageCache.Codec<D> getPageCodec() {
+    return null;
+  }
+
+  /**
+   * Returns the id of this track's pages in the on-disk page cache. Tracks whose data depends on
+   * more than the request, such as the downsampling mode, have to include it in the id.
+   */
+  protected String getPageCacheId() {
+    return trackId;
+  }
+
+  /**
+   * Updates this track's window table and then runs the given query, which reads from tables
+   * depending on the window. These are serialized with respect to all other window queries of
+   * this track, but not with respect to any other queries.
+   */
+  protected <T> ListenableFuture<T> withWindow(
+      QueryEngine qe, Window window, AsyncCallable<T> query) {
+    return windowSequencer.submitAsync(
+        () -> transformAsync(window.update(qe, tableName("window")), $ -> query.call()),
+        directExecutor());
+  }
+
+  // Returns the statements setting up this track's tables, run by the default initialize().
+  protected List<String> getInitQueries() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Starts initializing all the given tracks in the background, without waiting for their first
+   * data request. Their statements are sent {@link #initializeBatched together}. A failed
+   * initialization is retried by the track's first data request.
+   */
+  public static void initializeAll(Collection<? extends Track<?>> tracks) {
+    for (Track<?> track : tracks) {
+      track.setup();
+    }
+  }
+
+  /**
+   * Runs the given initialization statements of a track together with those of the other tracks
+   * initialized at about the same time, e.g. of the tracks that come on screen together. The
+   * statements of the different tracks are {@link QueryEngine#concurrentQueries executed
+   * concurrently}. Each track's statements succeed or fail on their own.
+   */
+  protected static ListenableFuture<?> initializeBatched(QueryEngine qe, List<String> queries) {
+    SettableFuture<QueryEngine.Result> result = SettableFuture.create();
+    synchronized (initBatches) {
+      InitBatch batch = initBatches.get(qe);
+      if (batch == null) {
+        InitBatch newBatch = new InitBatch();
+        initBatches.put(qe, newBatch);
+        EXECUTOR.schedule(() -> {
+          synchronized (initBatches) {
+            initBatches.remove(qe, newBatch);
+          }
+          newBatch.send(qe);
+        }, INIT_BATCH_DELAY_MS, MILLISECONDS);
+        batch = newBatch;
+      }
+      batch.queries.add(queries);
+      batch.results.add(result);
+    }
+    return result;
+  }
+
   protected String tableName(String prefix) {
     return prefix + "_" + trackId;
   }
 
+  /**
+   * Returns the store holding the loaded data pages of all tracks.
+   */
+  public static PageStore getPageStore() {
+    return pages;
+  }
+
+  /**
+   * Returns the scheduler of the data fetches of all tracks.
+   */
+  public static TrackScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Sets the on-disk page cache used by all tracks created from now on, i.e. the tracks of the
+   * capture being loaded.
+   */
+  public static void setDiskCache(DiskPageCache.Scope cache) {
+    currentDiskCache = cache;
+  }
+
+  /**
+   * Returns the on-disk page cache of the currently loaded capture.
+   */
+  public static DiskPageCache getDiskCache() {
+    return currentDiskCache.getCache();
+  }
+
+  /**
+   * Returns the latencies of the data computations of all tracks, by track type.
+   */
+  public static Map<String, LatencyStats> getFetchLatencies() {
+    return Collections.unmodifiableMap(fetchLatencies);
+  }
+
   public static interface OnUiThread<T> {
     /**
      * Runs the consumer with the result of the given future on the UI thread.
@@ -181,6 +523,38 @@ public abstract class Track<D extends Track.Data> {
     public Data(DataRequest request) {
       this.request = request;
     }
+
+    /**
+     * Returns an estimate of the memory used by this data, in bytes.
+     */
+    public long getSize() {
+      return 0;
+    }
+
+    // Estimates the memory used by the given arrays. Strings are assumed to not be shared and
+    // other objects are only accounted for by their reference.
+    protected static long sizeOf(Object... arrays) {
+      long size = 16;
+      for (Object array : arrays) {
+        if (array instanceof long[]) {
+          size += 16 + 8L * ((long[])array).length;
+        } else if (array instanceof double[]) {
+          size += 16 + 8L * ((double[])array).length;
+        } else if (array instanceof int[]) {
+          size += 16 + 4L * ((int[])array).length;
+        } else if (array instanceof byte[]) {
+          size += 16 + ((byte[])array).length;
+        } else if (array instanceof String[]) {
+          size += 16;
+          for (String str : (String[])array) {
+            size += 8 + ((str == null) ? 0 : 40 + 2L * str.length());
+          }
+        } else if (array instanceof Object[]) {
+          size += 16 + 8L * ((Object[])array).length;
+        }
+      }
+      return size;
+    }
   }
 
   public static class DataRequest {
@@ -196,10 +570,38 @@ public abstract class Track<D extends Track.Data> {
       return new DataRequest(range.align(PAGE_SIZE * resolution), resolution);
     }
 
+    /**
+     * Splits this page aligned request into the requests for its individual pages.
+     */
+    public List<DataRequest> pages() {
+      long size = PAGE_SIZE * resolution;
+      List<DataRequest> result = Lists.newArrayList();
+      for (long start = range.start; start < range.end; start += size) {
+        result.add(new DataRequest(new TimeSpan(start, start + size), resolution));
+      }
+      return result;
+    }
+
     public boolean satisfies(DataRequest other) {
       return resolution == other.resolution && range.contains(other.range);
     }
 
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      } else if (!(obj instanceof DataRequest)) {
+        return false;
+      }
+      DataRequest o = (DataRequest)obj;
+      return resolution == o.resolution && range.equals(o.range);
+    }
+
+    @Override
+    public int hashCode() {
+      return range.hashCode() * 31 + Long.hashCode(resolution);
+    }
+
     @Override
     public String toString() {
       return "Request{start: " + range.start + ", end: " + range.end + ", res: " + resolution + "}";
@@ -241,6 +643,14 @@ public abstract class Track<D extends Track.Data> {
       return new Window(start, request.range.end, true, quantum);
     }
 
+    /**
+     * Returns the smallest quantum of the quantized requests with the given bucket size, assuming
+     * the request resolutions are powers of two.
+     */
+    public static long minQuantum(int bucketSizePx) {
+      return Long.highestOneBit(RESOLUTION_QUANTIZE_CUTOFF - 1) * 2 * bucketSizePx;
+    }
+
     public int getNumberOfBuckets() {
       return (int)((end - start + bucketSize - 1) / bucketSize);
     }
@@ -264,17 +674,89 @@ public abstract class Track<D extends Track.Data> {
       super(trackId);
       this.qe = qe;
     }
+
+    @Override
+    protected ListenableFuture<?> initialize() {
+      return initializeBatched(qe, getInitQueries());
+    }
+
+    protected <T> ListenableFuture<T> withWindow(Window window, AsyncCallable<T> query) {
+      return withWindow(qe, window, query);
+    }
+  }
+
+  /**
+   * The initialization statements of the tracks initialized together, sent as one unit.
+   */
+  private static class InitBatch {
+    // The statements and the result of each track. Guarded by initBatches until sent.
+    public final List<List<String>> queries = Lists.newArrayList();
+    public final List<SettableFuture<QueryEngine.Result>> results = Lists.newArrayList();
+
+    public void send(QueryEngine qe) {
+      List<ListenableFuture<QueryEngine.Result>> sent = qe.concurrentQueries(queries);
+      for (int i = 0; i < sent.size(); i++) {
+        results.get(i).setFuture(sent.get(i));
+      }
+    }
+  }
+
+  /**
+   * The load of a page, shared by all the requests for the page. The load, and thus its queries,
+   * is cancelled once all of the requests have been cancelled.
+   */
+  private class PageLoad {
+    public final ListenableFuture<D> future;
+    private int requests = 0; // guarded by Track.this
+
+    public PageLoad(ListenableFuture<D> future) {
+      this.future = future;
+    }
+
+    // Called with the lock of Track.this held.
+    public ListenableFuture<D> join() {
+      requests++;
+      ListenableFuture<D> request = Futures.nonCancellationPropagating(future);
+      request.addListener(() -> {
+        if (request.isCancelled()) {
+          release();
+        }
+      }, directExecutor());
+      return request;
+    }
+
+    private void release() {
+      synchronized (Track.this) {
+        if (--requests == 0) {
+          future.cancel(true);
+        }
+      }
+    }
   }
 
   private static class ScheduledRequest<D extends Track.Data> {
     public final DataRequest request;
     private final List<OnUiThread<D>> callbacks;
+    private volatile ListenableFuture<D> future;
 
     public ScheduledRequest(DataRequest request, OnUiThread<D> callback) {
       this.request = request;
       this.callbacks = Lists.newArrayList(callback);
     }
 
+    // Not on UI thread.
+    public void setFuture(ListenableFuture<D> future) {
+      this.future = future;
+    }
+
+    // Any thread. Cancels the fetch of the data, if it has already been started.
+    public void cancel() {
+      ListenableFuture<D> f = future;
+      if (f != null) {
+        f.cancel(true);
+      }
+    }
+
     public boolean satisfies(DataRequest req) {
       return request.satisfies(req);
     }
@@ -295,53 +777,4 @@ public abstract class Track<D extends Track.Data> {
       });
     }
   }
-
-  private static class DataCache {
-    private final Cache<Key, Object> dataCache = Caches.softCache();
-
-    public DataCache() {
-    }
-
-    @SuppressWarnings("unchecked")
-    public <D extends Track.Data> D getIfPresent(Track<D> track, DataRequest req) {
-      return (D)dataCache.getIfPresent(new Key(track, req));
-    }
-
-    public <D extends Track.Data> void put(Track<D> track, DataRequest req, D data) {
-      dataCache.put(new Key(track, req), data);
-    }
-
-    private static class Key {
-      private final Track<?> track;
-      private final long resolution;
-      private final long start;
-      private final long end;
-      private final int h;
-
-      public Key(Track<?> track, DataRequest req) {
-        this.track = track;
-        this.resolution = req.resolution;
-        this.start = req.range.start;
-        this.end = req.range.end;
-        this.h = ((track.hashCode() * 31 + Long.hashCode(resolution)) * 31 +
-            Long.hashCode(start)) + Long.hashCode(end);
-      }
-
-      @Override
-      public int hashCode() {
-        return h;
-      }
-
-      @Override
-      public boolean equals(Object obj) {
-        if (obj == this) {
-          return true;
-        } else if (!(obj instanceof Key)) {
-          return false;
-        }
-        Key o = (Key)obj;
-        return track == o.track && resolution == o.resolution && start == o.start && end == o.end;
-      }
-    }
-  }
 }
@@ -15,16 +15,22 @@
  */
 package com.google.gapid.perfetto.models;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.canvas.Panel;
 import com.google.gapid.perfetto.views.CopyablePanel;
 import com.google.gapid.perfetto.views.State;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Information about what tracks are shown in the UI.
@@ -79,12 +85,12 @@ public class TrackConfig {
     public CopyablePanel<?> createUi(State.ForSystemTrace state) {
       ImmutableList.Builder<CopyablePanel<?>> children = ImmutableList.builder();
       tracks.forEach(track -> children.add(track.createUi(state)));
-      return uiFactory.createPanel(state, children.build());
+      return uiFactory.createPanel(state, id, children.build());
     }
 
     public interface UiFactory {
       public CopyablePanel<?> createPanel(
-          State.ForSystemTrace state, ImmutableList<CopyablePanel<?>> children);
+          State.ForSystemTrace state, String id, ImmutableList<CopyablePanel<?>> children);
     }
   }
 
@@ -95,8 +101,58 @@ public class TrackConfig {
     }
   }
 
+  /**
+   * A group whose elements are only enumerated once they are needed, e.g. once the group is
+   * expanded, rather than while the trace is loading.
+   */
+  public static class LazyGroup extends Element<LazyGroup.UiFactory> {
+    private final Enumerator enumerator;
+    private ListenableFuture<ImmutableList<Element<?>>> tracks; // guarded by this
+
+    public LazyGroup(String id, String name, Enumerator enumerator, UiFactory uiFactory) {
+      super(id, name, uiFactory);
+      this.enumerator = enumerator;
+    }
+
+    /**
+     * Returns the elements of this group, enumerating them on the first call. A failed enumeration
+     * is retried by the next call.
+     */
+    public synchronized ListenableFuture<ImmutableList<Element<?>>> getTracks() {
+      if (tracks == null) {
+        ListenableFuture<ImmutableList<Element<?>>> future = enumerator.enumerate();
+        tracks = future;
+        future.addListener(() -> {
+          try {
+            Futures.getDone(future);
+          } catch (ExecutionException | CancellationException e) {
+            synchronized (this) {
+              if (tracks == future) {
+                tracks = null;
+              }
+            }
+          }
+        }, directExecutor());
+      }
+      return tracks;
+    }
+
+    @Override
+    public CopyablePanel<?> createUi(State.ForSystemTrace state) {
+      return uiFactory.createPanel(state, this);
+    }
+
+    public interface Enumerator {
+      public ListenableFuture<ImmutableList<Element<?>>> enumerate();
+    }
+
+    public interface UiFactory {
+      public CopyablePanel<?> createPanel(State.ForSystemTrace state, LazyGroup group);
+    }
+  }
+
   public static class Builder {
-    private static final ElementBuilder ROOT = new ElementBuilder("root", "", false, null);
+    private static final ElementBuilder ROOT = new ElementBuilder("root", "", false, null, null);
 
     private final Map<String, ElementBuilder> tracks = Maps.newHashMap();
     private final Map<String, List<ElementBuilder>> groups = Maps.newHashMap();
@@ -122,9 +178,25 @@ public class TrackConfig {
       return this;
     }
 
+    /**
+     * Adds a group whose elements are enumerated by the given enumerator once needed. Elements
+     * cannot be added to a lazy group via this builder.
+     */
+    public Builder addLazyGroup(String parent, String id, String name,
+        LazyGroup.Enumerator enumerator, LazyGroup.UiFactory ui) {
+      groups.computeIfAbsent(parent, $ -> Lists.newArrayList())
+          .add(newElement(id, name, false, ui, enumerator));
+      return this;
+    }
+
     private ElementBuilder newElement(String id, String name, boolean label, Object uiFactory) {
+      return newElement(id, name, label, uiFactory, null);
+    }
+
+    private ElementBuilder newElement(String id, String name, boolean label, Object uiFactory,
+        LazyGroup.Enumerator enumerator) {
       Preconditions.checkState(!tracks.containsKey(id));
-      ElementBuilder track = new ElementBuilder(id, name, label, uiFactory);
+      ElementBuilder track = new ElementBuilder(id, name, label, uiFactory, enumerator);
       tracks.put(id, track);
       return track;
     }
@@ -142,7 +214,10 @@ public class TrackConfig {
       Preconditions.checkState(track != null);
       ImmutableList.Builder<Element<?>> children = ImmutableList.builder();
       for (ElementBuilder child : groups.get(id)) {
-        if (groups.containsKey(child.id)) {
+        if (child.enumerator != null) {
+          Preconditions.checkState(!groups.containsKey(child.id));
+          children.add(child.lazyGroup());
+        } else if (groups.containsKey(child.id)) {
           children.add(buildGroup(child.id));
         } else {
           children.add(child.track());
@@ -156,12 +231,15 @@ public class TrackConfig {
       public final String name;
       public final boolean label;
       public final Object uiFactory;
+      public final LazyGroup.Enumerator enumerator;
 
-      public ElementBuilder(String id, String name, boolean label, Object uiFactory) {
+      public ElementBuilder(String id, String name, boolean label, Object uiFactory,
+          LazyGroup.Enumerator enumerator) {
         this.id = id;
         this.name = name;
         this.label = label;
         this.uiFactory = uiFactory;
+        this.enumerator = enumerator;
       }
 
       @SuppressWarnings("unchecked")
@@ -169,6 +247,10 @@ public class TrackConfig {
         return new Track<T>(id, name, (Track.UiFactory<T>)uiFactory);
       }
 
+      public LazyGroup lazyGroup() {
+        return new LazyGroup(id, name, enumerator, (LazyGroup.UiFactory)uiFactory);
+      }
+
       public Group group(ImmutableList<Element<?>> tracks) {
         if (label) {
           return new LabelGroup(id, name, tracks, (Group.UiFactory)uiFactory);
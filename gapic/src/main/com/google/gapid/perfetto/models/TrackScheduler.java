@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.perfetto.models;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+import static java.util.logging.Level.FINE;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the data fetches of the {@link Track tracks}. Limits the number of fetches running
+ * concurrently and runs the fetches of on screen tracks before prefetches, in the order the tracks
+ * are drawn, i.e. top to bottom, and oldest first. Queued fetches of tracks that are no longer on
+ * screen are dropped.
+ *
+ * A track is on screen, if it was drawn during the last complete frame, or since. A frame is the
+ * rendering of the whole track area, see {@link #startFrame()} and {@link #endFrame()}.
+ */
+public class TrackScheduler {
+  private static final Logger LOG = Logger.getLogger(TrackScheduler.class.getName());
+
+  public static final Flag<Integer> maxTrackFetches = Flags.value("perfetto-max-track-fetches", 4,
+      "Maximum number of track data fetches running concurrently.", true);
+
+  private final int maxRunning;
+  private final List<Task<?>> queue = Lists.newArrayList(); // guarded by this
+  private int running = 0; // guarded by this
+  private long nextSeq = 0; // guarded by this
+  private long dropped = 0; // guarded by this
+  private volatile int frame = 0; // Only written on the UI thread.
+  private volatile int lastCompleteFrame = 0; // Only written on the UI thread.
+  private int drawOrder = 0; // UI thread only.
+
+  public TrackScheduler(int maxRunning) {
+    this.maxRunning = Math.max(1, maxRunning);
+  }
+
+  // on UI Thread
+  public void startFrame() {
+    frame++;
+    drawOrder = 0;
+  }
+
+  // on UI Thread
+  public void endFrame() {
+    lastCompleteFrame = frame;
+    dropInvisible();
+  }
+
+  /**
+   * Marks the given track as drawn, i.e. on screen, in the current frame.
+   */
+  // on UI Thread
+  public void markVisible(Track<?> track) {
+    if (track.visibleFrame != frame) {
+      track.visibleFrame = frame;
+      track.drawOrder = drawOrder++;
+    }
+  }
+
+  /**
+   * Schedules the given fetch of the given track's data for the given key. Cancelling the returned
+   * future removes the fetch from the queue, or cancels it, if already running.
+   */
+  public <T> ListenableFuture<T> submit(
+      Track<?> track, Object key, boolean prefetch, AsyncCallable<T> fetch) {
+    Task<T> task;
+    synchronized (this) {
+      task = new Task<T>(track, key, prefetch, nextSeq++, fetch);
+      queue.add(task);
+    }
+    task.addListener(() -> onDone(task), directExecutor());
+    dispatch();
+    return task;
+  }
+
+  /**
+   * Raises the priority of the queued prefetch of the given track's data for the given key, as the
+   * data is now needed on screen.
+   */
+  public synchronized void prioritize(Track<?> track, Object key) {
+    for (Task<?> task : queue) {
+      if (task.track == track && task.key.equals(key)) {
+        task.prefetch = false;
+      }
+    }
+  }
+
+  private void onDone(Task<?> task) {
+    synchronized (this) {
+      if (task.started) {
+        running--;
+      } else {
+        queue.remove(task);
+      }
+    }
+    dispatch();
+  }
+
+  private void dispatch() {
+    while (true) {
+      Task<?> next;
+      synchronized (this) {
+        if (running >= maxRunning || (next = poll()) == null) {
+          return;
+        }
+        next.started = true;
+        running++;
+      }
+      next.run();
+    }
+  }
+
+  // Removes and returns the highest priority task from the queue.
+  private Task<?> poll() {
+    Task<?> best = null;
+    for (Task<?> task : queue) {
+      if (best == null || task.compareTo(best) < 0) {
+        best = task;
+      }
+    }
+    if (best != null) {
+      queue.remove(best);
+    }
+    return best;
+  }
+
+  private void dropInvisible() {
+    List<Task<?>> drop = Lists.newArrayList();
+    synchronized (this) {
+      for (Iterator<Task<?>> it = queue.iterator(); it.hasNext(); ) {
+        Task<?> task = it.next();
+        if (!isVisible(task.track)) {
+          it.remove();
+          drop.add(task);
+        }
+      }
+      dropped += drop.size();
+    }
+    for (Task<?> task : drop) {
+      task.cancel(false);
+    }
+    if (!drop.isEmpty() && LOG.isLoggable(FINE)) {
+      LOG.log(FINE, "Dropped " + drop.size() + " off screen track fetches: " + this);
+    }
+  }
+
+  private boolean isVisible(Track<?> track) {
+    return track.visibleFrame >= lastCompleteFrame;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TrackScheduler{queued: " + queue.size() + ", running: " + running + "/" + maxRunning +
+        ", dropped: " + dropped + "}";
+  }
+
+  private static class Task<T> extends AbstractFuture<T> implements Comparable<Task<?>> {
+    public final Track<?> track;
+    public final Object key;
+    public final long seq;
+    private final AsyncCallable<T> fetch;
+    public boolean prefetch; // guarded by the scheduler
+    public boolean started = false; // guarded by the scheduler
+
+    public Task(Track<?> track, Object key, boolean prefetch, long seq, AsyncCallable<T> fetch) {
+      this.track = track;
+      this.key = key;
+      this.prefetch = prefetch;
+      this.seq = seq;
+      this.fetch = fetch;
+    }
+
+    public void run() {
+      if (!isDone()) {
+        setFuture(Futures.submitAsync(fetch, EXECUTOR));
+      }
+    }
+
+    @Override
+    public int compareTo(Task<?> o) {
+      if (prefetch != o.prefetch) {
+        return prefetch ? 1 : -1;
+      }
+      int track1 = track.drawOrder, track2 = o.track.drawOrder;
+      if (track1 != track2) {
+        return Integer.compare(track1, track2);
+      }
+      return Long.compare(seq, o.seq);
+    }
+  }
+}
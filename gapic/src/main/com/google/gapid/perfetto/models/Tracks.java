@@ -18,9 +18,12 @@ package com.google.gapid.perfetto.models;
 import static com.google.gapid.perfetto.views.StyleConstants.DEFAULT_COUNTER_TRACK_HEIGHT;
 import static com.google.gapid.perfetto.views.StyleConstants.PROCESS_COUNTER_TRACK_HIGHT;
 import static com.google.gapid.perfetto.views.TrackContainer.group;
+import static com.google.gapid.perfetto.views.TrackContainer.lazyGroup;
 import static com.google.gapid.perfetto.views.TrackContainer.single;
+import static com.google.gapid.util.MoreFutures.transform;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Perfetto;
@@ -60,25 +63,133 @@ public class Tracks {
       enumerateGpu(data);
       enumerateProcesses(data);
       enumerateVSync(data);
+      data.initializeTracks();
       return data;
     });
   }
 
+  /**
+   * Enumerates just the CPU and process tracks, which only depend on the trace bounds, CPU,
+   * process and thread info, so the timeline can be shown while the remaining info is loading.
+   */
+  public static ListenableFuture<Perfetto.Data.Builder> enumerateSkeleton(
+      Perfetto.Data.Builder data) {
+    return Scheduler.EXECUTOR.submit(() -> {
+      enumerateCpu(data);
+      enumerateProcesses(data);
+      data.initializeTracks();
+      return data;
+    });
+  }
+
+  // Enumerates the counter and thread tracks of the given process. Only called once needed, since
+  // traces may contain thousands of threads, most of which are never looked at. The created tracks
+  // are registered, so that the skeleton and the complete data share them, and initialized in bulk.
+  private static ListenableFuture<ImmutableList<TrackConfig.Element<?>>> enumerateProcess(
+      Perfetto.Data.Builder data, ProcessInfo process, List<CounterInfo> processCounters,
+      List<ThreadInfo> threadInfos, boolean isIdleProcess, long idleCutoffProc) {
+    QueryEngine qe = data.qe;
+    return transform(ThreadInfo.withTracks(qe, threadInfos), withTracks -> {
+      TrackConfig.Builder config = new TrackConfig.Builder();
+      List<Track<?>> created = Lists.newArrayList();
+
+      // Add Vulkan memory usage counters if any exist.
+      List<CounterInfo> counters = processCounters.stream()
+          .filter(c -> c.name.startsWith("vulkan"))
+          .collect(toList());
+      if (!counters.isEmpty()) {
+        String groupId = "vulkan_counters_" + process.upid;
+        config.addLabelGroup(null, groupId, "Vulkan Memory Usage",
+            group(state -> new TitlePanel("Vulkan Memory Usage"), true));
+        for (CounterInfo counter : counters) {
+          CounterTrack track = data.register(new CounterTrack(qe, counter));
+          created.add(track);
+          config.addTrack(groupId, track.getId(), counter.name,
+              single(state -> new VulkanCounterPanel(state, track), false,
+                  CounterPanel::setAveraged, track.getDownsampling() == Downsampling.AVERAGE));
+        }
+      }
+
+      // Add any other process counters if any exist.
+      counters = processCounters.stream()
+          .filter(Tracks::shouldShowProcessCounter)
+          .collect(toList());
+      if (!counters.isEmpty()) {
+        String parentId = null;
+        if (counters.size() > 3) {
+          parentId = "proc_counters_" + process.upid;
+          config.addLabelGroup(null, parentId, "Process Counters",
+              group(state -> new TitlePanel("Process Counters"), false));
+        }
+        for (CounterInfo counter : counters) {
+          CounterTrack track = data.register(new CounterTrack(qe, counter));
+          created.add(track);
+          config.addTrack(parentId, track.getId(), counter.name,
+              single(state -> new CounterPanel(state, track, PROCESS_COUNTER_TRACK_HIGHT), false,
+                  CounterPanel::setAveraged, track.getDownsampling() == Downsampling.AVERAGE));
+        }
+      }
+
+      List<ThreadTrack> threads = withTracks.stream()
+          .map(t -> data.register(new ThreadTrack(qe, t)))
+          .collect(Collectors.toList());
+      created.addAll(threads);
+      Track.initializeAll(created);
+      final long idleCutoffThread =
+          Math.min(idleCutoffProc, Math.round(IDLE_PERCENT_CUTOFF * process.totalDur));
+      String idleGroup = "proc_" + process.upid + "_idle";
+      // Whether we have at least two idle threads.
+      boolean hasIdleThreads = threads.size() > 1 &&
+          threads.get(threads.size() - 2).getThread().totalDur < idleCutoffThread;
+      threads.forEach(track -> {
+        boolean isIdleThread = hasIdleThreads && track.getThread().totalDur < idleCutoffThread;
+        TrackConfig.Track.UiFactory<Panel> ui;
+        if (track.getThread().maxDepth == 0) {
+          ui = single(state -> new ThreadPanel(state, track, false), false);
+        } else {
+          boolean expanded = !isIdleProcess && !isIdleThread;
+          ui = single(state ->
+            new ThreadPanel(state, track, expanded), false, ThreadPanel::setCollapsed, !expanded);
+        }
+        String threadParent = isIdleThread ? idleGroup : null;
+        config.addTrack(threadParent, track.getId(), track.getThread().getDisplay(), ui);
+      });
+      if (hasIdleThreads) {
+        int firstIdle = Collections.binarySearch(
+            threads, null, (t1, $) -> Long.compare(idleCutoffThread, t1.getThread().totalDur));
+        if (firstIdle < 0) {
+          firstIdle = -firstIdle - 1;
+        } else {
+          while (firstIdle > 1 && threads.get(firstIdle - 1).getThread().totalDur == 0) {
+            firstIdle--;
+          }
+        }
+        final int idleCount = threads.size() - firstIdle;
+        config.addLabelGroup(null, idleGroup, "Idle Threads",
+            group(state -> new TitlePanel(idleCount + " Idle Threads (< 0.1%)"), false));
+      }
+
+      return config.build().elements;
+    });
+  }
+
   private static Perfetto.Data.Builder enumerateCpu(Perfetto.Data.Builder data) {
     if (!data.getCpu().hasCpus()) {
       return data;
     }
 
-    CpuSummaryTrack summary = new CpuSummaryTrack(data.qe, data.getCpu().count());
+    CpuSummaryTrack summary = data.register(new CpuSummaryTrack(data.qe, data.getCpu().count()));
     boolean hasAnyFrequency = false;
     for (CpuInfo.Cpu cpu : data.getCpu().cpus()) {
-      CpuTrack track = new CpuTrack(data.qe, cpu);
+      CpuTrack track = data.register(new CpuTrack(data.qe, cpu));
       data.tracks.addTrack(summary.getId(), track.getId(), "CPU " + cpu.id,
           single(state -> new CpuPanel(state, track), false));
       if (cpu.hasFrequency()) {
-        CpuFrequencyTrack freqTrack = new CpuFrequencyTrack(data.qe, cpu);
+        CpuFrequencyTrack freqTrack = data.register(new CpuFrequencyTrack(data.qe, cpu));
         data.tracks.addTrack(summary.getId(), freqTrack.getId(), "CPU " + cpu.id + " Frequency",
-            single(state -> new CpuFrequencyPanel(state, freqTrack), false));
+            single(state -> new CpuFrequencyPanel(state, freqTrack), false,
+                CpuFrequencyPanel::setAveraged,
+                freqTrack.getDownsampling() == Downsampling.AVERAGE));
         hasAnyFrequency = true;
       }
     }
@@ -123,7 +234,7 @@ public class Tracks {
         parent = "gpu_queues";
       }
       for (GpuInfo.Queue queue : data.getGpu().queues()) {
-        SliceTrack track = SliceTrack.forGpuQueue(data.qe, queue);
+        SliceTrack track = data.register(SliceTrack.forGpuQueue(data.qe, queue));
         data.tracks.addTrack(parent, track.getId(), queue.getDisplay(),
             single(state -> new GpuQueuePanel(state, queue, track), true));
       }
@@ -137,7 +248,7 @@ public class Tracks {
         parent = "vk_api_events";
       }
       for (GpuInfo.VkApiEvent vkApiEvent : data.getGpu().vkApiEvents()) {
-        VulkanEventTrack track = new VulkanEventTrack(data.qe, vkApiEvent);
+        VulkanEventTrack track = data.register(new VulkanEventTrack(data.qe, vkApiEvent));
         data.tracks.addTrack(parent, track.getId(), vkApiEvent.getDisplay(),
             single(state -> new VulkanEventPanel(state, vkApiEvent, track), true));
       }
@@ -151,7 +262,7 @@ public class Tracks {
         parent = "sf_events";
       }
       for (GpuInfo.Buffer buffer : data.getGpu().buffers()) {
-        FrameEventsTrack track = FrameEventsTrack.forBuffer(data.qe, buffer);
+        FrameEventsTrack track = data.register(FrameEventsTrack.forBuffer(data.qe, buffer));
         data.tracks.addTrack(parent, track.getId(), buffer.getDisplay(),
             single(state -> new FrameEventsSummaryPanel(state, buffer, track), true));
       }
@@ -165,9 +276,10 @@ public class Tracks {
         parent = "gpu_counters";
       }
       for (CounterInfo counter : counters) {
-        CounterTrack track = new CounterTrack(data.qe, counter);
+        CounterTrack track = data.register(new CounterTrack(data.qe, counter));
         data.tracks.addTrack(parent, track.getId(), counter.name,
-            single(state -> new CounterPanel(state, track, DEFAULT_COUNTER_TRACK_HEIGHT), true));
+            single(state -> new CounterPanel(state, track, DEFAULT_COUNTER_TRACK_HEIGHT), true,
+                CounterPanel::setAveraged, track.getDownsampling() == Downsampling.AVERAGE));
       }
     }
     return data;
@@ -189,85 +301,20 @@ public class Tracks {
     boolean hasIdles = count > 1 && processes.get(processes.size() - 2).totalDur < idleCutoffProc;
     processes.forEach(process -> {
       ProcessSummaryTrack summary =
-          new ProcessSummaryTrack(data.qe, data.getCpu().count(), process);
+          data.register(new ProcessSummaryTrack(data.qe, data.getCpu().count(), process));
       boolean isIdleProcess = hasIdles && (process.totalDur < idleCutoffProc);
       String parent =  isIdleProcess ? "procs_idle" : "procs";
-      data.tracks.addGroup(parent, summary.getId(), process.getDisplay(),
-          group(state -> new ProcessSummaryPanel(state, summary), false));
-
-      // For each process, add Vulkan memory usage counters if any exist.
       List<CounterInfo> counters = data.getCounters().values().stream()
-          .filter(c -> c.type == CounterInfo.Type.Process && c.ref == process.upid &&
-              c.count > 0 && c.name.startsWith("vulkan"))
-          .collect(toList());
-      if (!counters.isEmpty()) {
-        String groupId = "vulkan_counters_" + process.upid;
-        data.tracks.addLabelGroup(summary.getId(), groupId, "Vulkan Memory Usage",
-            group(state -> new TitlePanel("Vulkan Memory Usage"), true));
-        for (CounterInfo counter : counters) {
-          CounterTrack track = new CounterTrack(data.qe, counter);
-          data.tracks.addTrack(groupId, track.getId(), counter.name,
-              single(state -> new VulkanCounterPanel(state, track), false));
-        }
-      }
-
-      // For each process, add any other process counters if any exist.
-      counters = data.getCounters().values().stream()
-          .filter(c -> c.type == CounterInfo.Type.Process && c.ref == process.upid &&
-              c.count > 0 && shouldShowProcessCounter(c))
+          .filter(c -> c.type == CounterInfo.Type.Process && c.ref == process.upid && c.count > 0)
           .collect(toList());
-      if (!counters.isEmpty()) {
-        String parentId = summary.getId();
-        if (counters.size() > 3) {
-          parentId = "proc_counters_" + process.upid;
-          data.tracks.addLabelGroup(summary.getId(), parentId, "Process Counters",
-              group(state -> new TitlePanel("Process Counters"), false));
-        }
-        for (CounterInfo counter : counters) {
-          CounterTrack track = new CounterTrack(data.qe, counter);
-          data.tracks.addTrack(parentId, track.getId(), counter.name,
-              single(state -> new CounterPanel(state, track, PROCESS_COUNTER_TRACK_HIGHT), false));
-        }
-      }
-
-      List<ThreadTrack> threads = process.utids.stream()
+      List<ThreadInfo> threads = process.utids.stream()
           .map(tid -> data.getThreads().get(tid))
           .filter(Objects::nonNull)
           .sorted((t1, t2) -> Long.compare(t2.totalDur, t1.totalDur))
-          .map(t -> new ThreadTrack(data.qe, t))
-          .collect(Collectors.toList());
-      final long idleCutoffThread =
-          Math.min(idleCutoffProc, Math.round(IDLE_PERCENT_CUTOFF * process.totalDur));
-      // Whether we have at least two idle threads.
-      boolean hasIdleThreads = threads.size() > 1 &&
-          threads.get(threads.size() - 2).getThread().totalDur < idleCutoffThread;
-      threads.forEach(track -> {
-        boolean isIdleThread = hasIdleThreads && track.getThread().totalDur < idleCutoffThread;
-        TrackConfig.Track.UiFactory<Panel> ui;
-        if (track.getThread().maxDepth == 0) {
-          ui = single(state -> new ThreadPanel(state, track, false), false);
-        } else {
-          boolean expanded = !isIdleProcess && !isIdleThread;
-          ui = single(state ->
-            new ThreadPanel(state, track, expanded), false, ThreadPanel::setCollapsed, !expanded);
-        }
-        String threadParent = isIdleThread ? summary.getId() + "_idle" : summary.getId();
-        data.tracks.addTrack(threadParent, track.getId(), track.getThread().getDisplay(), ui);
-      });
-      if (hasIdleThreads) {
-        int firstIdle = Collections.binarySearch(
-            threads, null, (t1, $) -> Long.compare(idleCutoffThread, t1.getThread().totalDur));
-        if (firstIdle < 0) {
-          firstIdle = -firstIdle - 1;
-        } else {
-          while (firstIdle > 1 && threads.get(firstIdle - 1).getThread().totalDur == 0) {
-            firstIdle--;
-          }
-        }
-        final int idleCount = threads.size() - firstIdle;
-        data.tracks.addLabelGroup(summary.getId(), summary.getId() + "_idle", "Idle Threads",
-            group(state -> new TitlePanel(idleCount + " Idle Threads (< 0.1%)"), false));
-      }
+          .collect(toList());
+      data.tracks.addLazyGroup(parent, summary.getId(), process.getDisplay(),
+          () -> enumerateProcess(data, process, counters, threads, isIdleProcess, idleCutoffProc),
+          lazyGroup(state -> new ProcessSummaryPanel(state, summary), false));
     });
 
     if (hasIdles) {
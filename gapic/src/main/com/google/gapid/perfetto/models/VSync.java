@@ -21,6 +21,8 @@ import static java.lang.String.format;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
+
 /**
  * A source of V-Sync data.
  */
@@ -52,6 +54,11 @@ public interface VSync {
       this.ts = ts;
       this.fillFirst = fillFirst;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(ts);
+    }
   }
 
   public static class FromSurfaceFlingerAppCounter extends Track.WithQueryEngine<VSync.Data>
@@ -64,7 +71,7 @@ public interface VSync {
     private static final String COUNTER_SQL =
         "select ts, v from (" +
           "select row_number() over (order by ts) rn, ts, cast(value as int) v " +
-          "from counter where track_id = %d and ts > %d " +
+          "from counter where track_id = %d and ts >= %d " +
           "order by ts) " +
         "where rn <= 2 or ts < %d";
 
@@ -101,6 +108,19 @@ public interface VSync {
       });
     }
 
+    @Override
+    protected VSync.Data stitch(DataRequest req, List<VSync.Data> pages) {
+      boolean fillFirst = false;
+      for (VSync.Data page : pages) {
+        if (page.ts.length > 0) {
+          fillFirst = page.fillFirst;
+          break;
+        }
+      }
+      PageStore.Stitcher<VSync.Data> s = new PageStore.Stitcher<VSync.Data>(pages, d -> d.ts);
+      return new VSync.Data(req, s.longs(d -> d.ts), fillFirst);
+    }
+
     private String counterSql(DataRequest req) {
       return format(COUNTER_SQL, counter.id, req.range.start, req.range.end);
     }
@@ -17,29 +17,26 @@
 package com.google.gapid.perfetto.models;
 
 import static com.google.gapid.perfetto.models.QueryEngine.createView;
-import static com.google.gapid.perfetto.models.QueryEngine.createWindow;
-import static com.google.gapid.perfetto.models.QueryEngine.dropTable;
 import static com.google.gapid.perfetto.models.QueryEngine.dropView;
 import static com.google.gapid.perfetto.models.QueryEngine.expectOneRow;
 import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.util.MoreFutures.transformAsync;
 import static java.lang.String.format;
 
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.views.State;
 import com.google.gapid.perfetto.views.VulkanEventSelectionView;
 import com.google.gapid.perfetto.views.VulkanEventsSelectionView;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Data> {
   private static final String BASE_COLUMNS =
@@ -63,41 +60,39 @@ public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Dat
   }
 
   @Override
-  protected ListenableFuture<?> initialize() {
+  protected List<String> getInitQueries() {
     String slices = tableName("slices");
-    String window = tableName("window");
-    return qe.queries(
+    return ImmutableList.of(
         dropView(slices),
-        dropTable(window),
-        createWindow(window),
         createView(slices, format(SLICES_VIEW, trackId)));
   }
 
   @Override
   protected ListenableFuture<Data> computeData(DataRequest req) {
-    Window window = Window.compute(req);
-    return transformAsync(window.update(qe, tableName("window")), $ -> computeSlices(req));
+    return transformAsync(qe.query(slicesSql(req)), res -> {
+      long[] argIds = res.getLongColumn(7).toArray();
+      return transform(qe.getAllArgs(Arrays.stream(argIds)), args -> {
+        int rows = res.getNumRows();
+        long[] starts = res.getLongColumn(1).toArray();
+        Data data = new Data(req, res.getLongColumn(0).toArray(), starts,
+            res.getLongColumn(2).toArrayAdding(starts), res.getStringColumn(3).toArray(),
+            res.getLongColumn(4).toIntArray(), res.getLongColumn(5).toArray(),
+            res.getLongColumn(6).toArray(), new ArgSet[rows]);
+        for (int i = 0; i < rows; i++) {
+          data.args[i] = args.getOrDefault(argIds[i], ArgSet.EMPTY);
+        }
+        return data;
+      });
+    });
   }
 
-  private ListenableFuture<Data> computeSlices(DataRequest req) {
-    return transformAsync(qe.query(slicesSql(req)), res ->
-        transform(qe.getAllArgs(res.stream().mapToLong(r -> r.getLong(7))), args -> {
-          int rows = res.getNumRows();
-          Data data = new Data(req, new long[rows], new long[rows], new long[rows],
-              new String[rows], new int[rows], new long[rows], new long[rows], new ArgSet[rows]);
-          res.forEachRow((i, row) -> {
-            long start = row.getLong(1);
-            data.ids[i] = row.getLong(0);
-            data.starts[i] = start;
-            data.ends[i] = start + row.getLong(2);
-            data.names[i] = row.getString(3);
-            data.depths[i] = row.getInt(4);
-            data.commandBuffers[i] = row.getLong(5);
-            data.submissionIds[i] = row.getLong(6);
-            data.args[i] = args.getOrDefault(row.getLong(7), ArgSet.EMPTY);
-          });
-          return data;
-        }));
+  @Override
+  protected Data stitch(DataRequest req, List<Data> pages) {
+    PageStore.Stitcher<Data> s = new PageStore.Stitcher<Data>(pages, d -> d.starts);
+    return new Data(req, s.longs(d -> d.ids), s.longs(d -> d.starts), s.longs(d -> d.ends),
+        s.objects(d -> d.names, String[]::new), s.ints(d -> d.depths),
+        s.longs(d -> d.commandBuffers), s.longs(d -> d.submissionIds),
+        s.objects(d -> d.args, ArgSet[]::new));
   }
 
   private String slicesSql(DataRequest req) {
@@ -148,6 +143,11 @@ public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Dat
       this.submissionIds = submissionIds;
       this.args = args;
     }
+
+    @Override
+    public long getSize() {
+      return sizeOf(ids, starts, ends, names, depths, commandBuffers, submissionIds, args);
+    }
   }
 
   public static class Slice implements Selection<Long> {
@@ -207,13 +207,17 @@ public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Dat
 
   public static class Slices implements Selection<Long> {
     public final List<Slice> slices;
-    public final ImmutableSet<Long> sliceKeys;
-    private final Set<Long> submissionIds;
+    public final SortedLongSet sliceKeys;
+    private final SortedLongSet submissionIds;
 
-    public Slices(List<Slice> slices, ImmutableSet<Long> sliceKeys) {
+    public Slices(List<Slice> slices, SortedLongSet sliceKeys) {
       this.slices = slices;
       this.sliceKeys = sliceKeys;
-      this.submissionIds = slices.stream().map(s -> s.submissionId).collect(Collectors.toSet());
+      SortedLongSet.Builder ids = new SortedLongSet.Builder(slices.size());
+      for (Slice slice : slices) {
+        ids.add(slice.submissionId);
+      }
+      this.submissionIds = ids.build();
     }
 
     @Override
@@ -243,17 +247,18 @@ public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Dat
       }
     }
 
-    public Set<Long> getSubmissionIds() {
+    public SortedLongSet getSubmissionIds() {
       return submissionIds;
     }
   }
 
   public static class SlicesBuilder implements Selection.Builder<SlicesBuilder> {
     private final List<Slice> slices;
-    private final Set<Long> sliceKeys = Sets.newHashSet();
+    private final SortedLongSet.Builder sliceKeys;
 
     public SlicesBuilder(List<Slice> slices) {
       this.slices = slices;
+      this.sliceKeys = new SortedLongSet.Builder(slices.size());
       for (Slice slice : slices) {
         sliceKeys.add(slice.id);
       }
@@ -268,7 +273,7 @@ public class VulkanEventTrack extends Track.WithQueryEngine<VulkanEventTrack.Dat
 
     @Override
     public Selection<Long> build() {
-      return new Slices(slices, ImmutableSet.copyOf(sliceKeys));
+      return new Slices(slices, sliceKeys.build());
     }
   }
 }
@@ -59,6 +59,11 @@ public class BatterySummaryPanel extends TrackPanel<BatterySummaryPanel> {
     return HEIGHT;
   }
 
+  @Override
+  protected BatterySummaryTrack getTrack() {
+    return track;
+  }
+
   @Override
   protected void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("BatSummary", () -> {
@@ -54,6 +54,13 @@ public interface CopyablePanel<T extends CopyablePanel<T>> extends Panel {
       group.setVisible(idx, visible);
     }
 
+    /**
+     * Called whenever the container of this group is drawn, whether the group is expanded or not.
+     */
+    public void onShown() {
+      // Do nothing by default.
+    }
+
     @Override
     public double getPreferredHeight() {
       return group.getPreferredHeight();
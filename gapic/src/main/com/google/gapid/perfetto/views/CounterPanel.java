@@ -30,6 +30,7 @@ import com.google.gapid.perfetto.canvas.Size;
 import com.google.gapid.perfetto.models.CounterInfo;
 import com.google.gapid.perfetto.models.CounterTrack;
 import com.google.gapid.perfetto.models.CounterTrack.Values;
+import com.google.gapid.perfetto.models.Downsampling;
 import com.google.gapid.perfetto.models.Selection;
 import com.google.gapid.perfetto.models.Selection.CombiningBuilder;
 
@@ -76,11 +77,24 @@ public class CounterPanel extends TrackPanel<CounterPanel> implements Selectable
     return sb.toString();
   }
 
+  /**
+   * Shows the zoomed out values averaged, or by their first, last, minimum and maximum, which
+   * preserves the peaks. Shared by all panels of the track.
+   */
+  public void setAveraged(boolean averaged) {
+    track.setDownsampling(averaged ? Downsampling.AVERAGE : Downsampling.M4);
+  }
+
   @Override
   public double getHeight() {
     return trackHeight;
   }
 
+  @Override
+  protected CounterTrack getTrack() {
+    return track;
+  }
+
   @Override
   protected void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("Counter", () -> {
@@ -22,20 +22,24 @@ import static com.google.gapid.widgets.Widgets.packColumns;
 
 import com.google.gapid.perfetto.models.CounterTrack;
 
-import org.eclipse.jface.viewers.ArrayContentProvider;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Composite;
 
+/**
+ * Displays the values of the selected counters. The table is virtual: its rows are the indices
+ * into the value arrays of the selection, and are only created and formatted once visible.
+ */
 public class CountersSelectionView extends Composite {
   public CountersSelectionView(Composite parent, State state, CounterTrack.Values sel) {
     super(parent, SWT.None);
     setLayout(new FillLayout());
 
-    TableViewer viewer = createTableViewer(this, SWT.NONE);
-    viewer.setContentProvider(new ArrayContentProvider());
+    TableViewer viewer = createTableViewer(this, SWT.VIRTUAL);
+    viewer.setContentProvider((ILazyContentProvider)index -> viewer.replace(index, index));
     viewer.setLabelProvider(new LabelProvider());
 
     createTableColumn(
@@ -45,12 +49,9 @@ public class CountersSelectionView extends Composite {
       createTableColumn(viewer, sel.names[i], r -> String.valueOf(sel.values[idx][(Integer)r]));
     }
 
+    viewer.setInput(sel);
     // Skip the last row (it represents the end of the selection range).
-    Integer[] rows = new Integer[sel.ts.length - 1];
-    for (int i = 0; i < rows.length; i++) {
-      rows[i] = i;
-    }
-    viewer.setInput(rows);
+    viewer.setItemCount(Math.max(0, sel.ts.length - 1));
     packColumns(viewer.getTable());
   }
 }
@@ -25,6 +25,7 @@ import com.google.gapid.perfetto.canvas.Fonts;
 import com.google.gapid.perfetto.canvas.RenderContext;
 import com.google.gapid.perfetto.canvas.Size;
 import com.google.gapid.perfetto.models.CpuFrequencyTrack;
+import com.google.gapid.perfetto.models.Downsampling;
 
 /**
  * Draws the CPU frequency and idle graph.
@@ -56,11 +57,24 @@ public class CpuFrequencyPanel extends TrackPanel<CpuFrequencyPanel> {
     return "CPU " + track.getCpu().id + " Frequency";
   }
 
+  /**
+   * Shows the zoomed out values averaged, or by their first, last, minimum and maximum, which
+   * preserves the peaks. Shared by all panels of the track.
+   */
+  public void setAveraged(boolean averaged) {
+    track.setDownsampling(averaged ? Downsampling.AVERAGE : Downsampling.M4);
+  }
+
   @Override
   public double getHeight() {
     return HEIGHT;
   }
 
+  @Override
+  protected CpuFrequencyTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("CpuFrequencyPanel", () -> {
@@ -77,6 +77,11 @@ public class CpuPanel extends TrackPanel<CpuPanel> implements Selectable {
     return HEIGHT;
   }
 
+  @Override
+  protected CpuTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("CpuTrack", () -> {
@@ -133,40 +138,40 @@ public class CpuPanel extends TrackPanel<CpuPanel> implements Selectable {
     TimeSpan visible = state.getVisibleTime();
     Selection<Long> selected = state.getSelection(Selection.Kind.Cpu);
     List<Highlight> visibleSelected = Lists.newArrayList();
-    for (int i = 0; i < data.starts.length; i++) {
-      long tStart = data.starts[i];
-      long tEnd = data.ends[i];
-      long utid = data.utids[i];
-      if (tEnd <= visible.start || tStart >= visible.end) {
-        continue;
-      }
-      double rectStart = state.timeToPx(tStart);
-      double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
+    ctx.batch(batch -> {
+      for (int i = 0; i < data.starts.length; i++) {
+        long tStart = data.starts[i];
+        long tEnd = data.ends[i];
+        long utid = data.utids[i];
+        if (tEnd <= visible.start || tStart >= visible.end) {
+          continue;
+        }
+        double rectStart = state.timeToPx(tStart);
+        double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
 
-      ThreadInfo.Display threadInfo = ThreadInfo.getDisplay(state, utid, false);
+        ThreadInfo.Display threadInfo = ThreadInfo.getDisplay(state, utid, false);
 
-      ctx.setBackgroundColor(state.getSliceColorForThread(threadInfo.thread));
-      ctx.fillRect(rectStart, 0, rectWidth, h);
+        batch.fillRect(state.getSliceColorForThread(threadInfo.thread), rectStart, 0, rectWidth, h);
 
-      if (selected.contains(data.ids[i])) {
-        visibleSelected.add(
-            new Highlight(threadInfo.thread.getColor().border, rectStart, rectWidth));
-      }
+        if (selected.contains(data.ids[i])) {
+          visibleSelected.add(
+              new Highlight(threadInfo.thread.getColor().border, rectStart, rectWidth));
+        }
 
-      // Don't render text when we have less than 7px to play with.
-      if (rectWidth < 7) {
-        continue;
-      }
+        // Don't render text when we have less than 7px to play with.
+        if (rectWidth < 7) {
+          continue;
+        }
 
-      ctx.setForegroundColor(colors().textMain);
-      ctx.drawTextLeftTruncate(Fonts.Style.Normal, threadInfo.title, threadInfo.shortTitle,
-          rectStart + 2, 2, rectWidth - 4, (h / 2) - 4);
-      if (!threadInfo.subTitle.isEmpty()) {
-        ctx.setForegroundColor(colors().textAlt);
-        ctx.drawTextLeftTruncate(Fonts.Style.Normal, threadInfo.subTitle, threadInfo.shortSubTitle,
-            rectStart + 2, (h / 2) + 2, rectWidth - 4, (h / 2) - 4);
+        batch.drawText(colors().textMain, () -> ctx.drawTextLeftTruncate(Fonts.Style.Normal,
+            threadInfo.title, threadInfo.shortTitle, rectStart + 2, 2, rectWidth - 4, (h / 2) - 4));
+        if (!threadInfo.subTitle.isEmpty()) {
+          batch.drawText(colors().textAlt, () -> ctx.drawTextLeftTruncate(Fonts.Style.Normal,
+              threadInfo.subTitle, threadInfo.shortSubTitle,
+              rectStart + 2, (h / 2) + 2, rectWidth - 4, (h / 2) - 4));
+        }
       }
-    }
+    });
 
     // Draw bounding rectangles after all the slices are rendered, so that the border is on the top.
     for (Highlight highlight : visibleSelected) {
@@ -282,7 +287,14 @@ public class CpuPanel extends TrackPanel<CpuPanel> implements Selectable {
 
   @Override
   public void computeSelection(CombiningBuilder builder, Area area, TimeSpan ts) {
-    if (area.h / height >= SELECTION_THRESHOLD) {
+    if (area.h / height < SELECTION_THRESHOLD) {
+      return;
+    } else if (Selection.aggregateAreaSelections.get()) {
+      builder.add(Selection.Kind.Cpu, transform(track.getSlicesSummary(ts), r -> {
+        r.getThreads().forEach(utid -> state.addSelectedThread(state.getThreadInfo(utid)));
+        return r;
+      }));
+    } else {
       builder.add(Selection.Kind.Cpu, transform(track.getSlices(ts), r -> {
         r.stream().forEach(s -> state.addSelectedThread(state.getThreadInfo(s.utid)));
         return new CpuTrack.SlicesBuilder(r);
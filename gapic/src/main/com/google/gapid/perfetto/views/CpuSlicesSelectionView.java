@@ -19,38 +19,61 @@ import static com.google.gapid.widgets.Widgets.createTreeColumn;
 import static com.google.gapid.widgets.Widgets.createTreeViewer;
 import static com.google.gapid.widgets.Widgets.packColumns;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.models.CpuTrack;
 import com.google.gapid.perfetto.models.ProcessInfo;
 import com.google.gapid.perfetto.models.ThreadInfo;
 
-import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.ILazyTreeContentProvider;
+import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.List;
+import java.util.Map;
+
 /**
- * Displays information about a list of selected CPU slices.
+ * Displays information about a list of selected CPU slices. The slices of a thread are fetched
+ * page by page, as the thread is expanded and more slices are requested. The tree is virtual: the
+ * items are only created and formatted once visible.
  */
 public class CpuSlicesSelectionView extends Composite {
+  private static final int PAGE_SIZE = 100;
+
+  private final State state;
+  private final TreeViewer viewer;
+  private final Map<CpuTrack.ByThread, Page> pages = Maps.newHashMap();
+
   public CpuSlicesSelectionView(Composite parent, State state, CpuTrack.Slices sel) {
     super(parent, SWT.NONE);
+    this.state = state;
     setLayout(new FillLayout());
 
-    TreeViewer viewer = createTreeViewer(this, SWT.NONE);
+    viewer = createTreeViewer(this, SWT.VIRTUAL);
     viewer.getTree().setHeaderVisible(true);
-    viewer.setContentProvider(new ITreeContentProvider() {
+    viewer.setContentProvider(new ILazyTreeContentProvider() {
       @Override
-      public Object[] getElements(Object inputElement) {
-        return sel.processes.toArray();
+      public void updateChildCount(Object element, int currentChildCount) {
+        viewer.setChildCount(element, getChildCount(element));
       }
 
       @Override
-      public boolean hasChildren(Object element) {
-        return (element instanceof CpuTrack.ByProcess) ||
-            (element instanceof CpuTrack.ByThread);
+      public void updateElement(Object parent, int index) {
+        Object child;
+        if (parent instanceof CpuTrack.Slices) {
+          child = ((CpuTrack.Slices)parent).processes.get(index);
+        } else if (parent instanceof CpuTrack.ByProcess) {
+          child = ((CpuTrack.ByProcess)parent).threads.get(index);
+        } else {
+          child = getPage((CpuTrack.ByThread)parent).get(index);
+        }
+        viewer.replace(parent, index, child);
+        viewer.setChildCount(child, getChildCount(child));
       }
 
       @Override
@@ -58,14 +81,15 @@ public class CpuSlicesSelectionView extends Composite {
         return null;
       }
 
-      @Override
-      public Object[] getChildren(Object element) {
-        if (element instanceof CpuTrack.ByProcess) {
-          return ((CpuTrack.ByProcess)element).threads.toArray();
+      private int getChildCount(Object element) {
+        if (element instanceof CpuTrack.Slices) {
+          return ((CpuTrack.Slices)element).processes.size();
+        } else if (element instanceof CpuTrack.ByProcess) {
+          return ((CpuTrack.ByProcess)element).threads.size();
         } else if (element instanceof CpuTrack.ByThread) {
-          return ((CpuTrack.ByThread)element).slices.toArray();
+          return getPage((CpuTrack.ByThread)element).getChildCount();
         }
-        return null;
+        return 0;
       }
     });
     viewer.setLabelProvider(new LabelProvider());
@@ -79,6 +103,8 @@ public class CpuSlicesSelectionView extends Composite {
         long tid = ((CpuTrack.ByThread)el).tid;
         ThreadInfo ti = state.getThreadInfo(tid);
         return (ti == null) ? "<unknown thread> [" + tid + "]" : ti.getDisplay();
+      } else if (el instanceof Page) {
+        return ((Page)el).getLabel();
       } else {
         return "Slice " + ((CpuTrack.Slice)el).id;
       }
@@ -88,8 +114,10 @@ public class CpuSlicesSelectionView extends Composite {
         return TimeSpan.timeToString(((CpuTrack.ByProcess)el).dur);
       } else if (el instanceof CpuTrack.ByThread) {
         return TimeSpan.timeToString(((CpuTrack.ByThread)el).dur);
-      } else {
+      } else if (el instanceof CpuTrack.Slice) {
         return TimeSpan.timeToString(((CpuTrack.Slice)el).dur);
+      } else {
+        return "";
       }
     });
     createTreeColumn(viewer, "Slice Start Time", el -> {
@@ -113,7 +141,65 @@ public class CpuSlicesSelectionView extends Composite {
         return "";
       }
     });
+    viewer.addDoubleClickListener(e -> {
+      Object el = ((IStructuredSelection)e.getSelection()).getFirstElement();
+      if (el instanceof Page) {
+        ((Page)el).loadMore();
+      }
+    });
     viewer.setInput(sel);
     packColumns(viewer.getTree());
   }
+
+  protected Page getPage(CpuTrack.ByThread thread) {
+    return pages.computeIfAbsent(thread, Page::new);
+  }
+
+  /**
+   * The loaded slices of a thread. Also the placeholder element to request more slices. The first
+   * page is loaded once the placeholder becomes visible, i.e. the thread is expanded.
+   */
+  private class Page {
+    private final CpuTrack.ByThread thread;
+    private final List<CpuTrack.Slice> slices = Lists.newArrayList();
+    private boolean loading = false;
+    private boolean done = false;
+
+    public Page(CpuTrack.ByThread thread) {
+      this.thread = thread;
+    }
+
+    public int getChildCount() {
+      return slices.size() + (done ? 0 : 1);
+    }
+
+    public Object get(int index) {
+      if (index < slices.size()) {
+        return slices.get(index);
+      } else if (slices.isEmpty()) {
+        loadMore();
+      }
+      return this;
+    }
+
+    public String getLabel() {
+      return loading ? "Loading..." :
+          "Double-click to load more (" + slices.size() + " of " + thread.count + ")";
+    }
+
+    public void loadMore() {
+      if (loading || done) {
+        return;
+      }
+      loading = true;
+      state.thenOnUiThread(thread.getSlices(slices.size(), PAGE_SIZE), page -> {
+        loading = false;
+        slices.addAll(page);
+        done = page.isEmpty() || slices.size() >= thread.count;
+        if (!viewer.getTree().isDisposed()) {
+          viewer.refresh(thread);
+        }
+      });
+    }
+  }
 }
@@ -69,6 +69,11 @@ public class CpuSummaryPanel extends TrackPanel<CpuSummaryPanel> implements Sele
     return HEIGHT;
   }
 
+  @Override
+  protected CpuSummaryTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("CpuSummary", () -> {
@@ -154,7 +159,14 @@ public class CpuSummaryPanel extends TrackPanel<CpuSummaryPanel> implements Sele
 
   @Override
   public void computeSelection(Selection.CombiningBuilder builder, Area area, TimeSpan ts) {
-    if (area.h / height >= SELECTION_THRESHOLD) {
+    if (area.h / height < SELECTION_THRESHOLD) {
+      return;
+    } else if (Selection.aggregateAreaSelections.get()) {
+      builder.add(Selection.Kind.Cpu, transform(track.getSlicesSummary(ts), r -> {
+        r.getThreads().forEach(utid -> state.addSelectedThread(state.getThreadInfo(utid)));
+        return r;
+      }));
+    } else {
       builder.add(Selection.Kind.Cpu, transform(track.getSlices(ts), r -> {
         r.stream().forEach(s -> state.addSelectedThread(state.getThreadInfo(s.utid)));
         return new CpuTrack.SlicesBuilder(r);
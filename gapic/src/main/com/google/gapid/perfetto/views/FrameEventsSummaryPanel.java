@@ -79,6 +79,11 @@ public class FrameEventsSummaryPanel extends TrackPanel<FrameEventsSummaryPanel>
     return buffer.maxDepth * SLICE_HEIGHT;
   }
 
+  @Override
+  protected FrameEventsTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("FrameEventsSummary", () -> {
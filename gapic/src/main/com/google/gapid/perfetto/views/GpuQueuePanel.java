@@ -22,7 +22,6 @@ import static com.google.gapid.perfetto.views.StyleConstants.colors;
 import static com.google.gapid.util.MoreFutures.transform;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.canvas.Area;
 import com.google.gapid.perfetto.canvas.Fonts;
@@ -35,6 +34,7 @@ import com.google.gapid.perfetto.models.Selection.CombiningBuilder;
 import com.google.gapid.perfetto.models.SliceTrack;
 import com.google.gapid.perfetto.models.SliceTrack.Slice;
 import com.google.gapid.perfetto.models.VulkanEventTrack;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Cursor;
@@ -42,7 +42,6 @@ import org.eclipse.swt.graphics.RGBA;
 import org.eclipse.swt.widgets.Display;
 
 import java.util.List;
-import java.util.Set;
 
 /**
  * Draws the GPU Queue slices.
@@ -82,6 +81,11 @@ public class GpuQueuePanel extends TrackPanel<GpuQueuePanel> implements Selectab
     return queue.maxDepth * SLICE_HEIGHT;
   }
 
+  @Override
+  protected SliceTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("GpuQueue", () -> {
@@ -96,47 +100,46 @@ public class GpuQueuePanel extends TrackPanel<GpuQueuePanel> implements Selectab
       Selection<Slice.Key> selected = state.getSelection(Selection.Kind.Gpu);
       List<Highlight> visibleSelected = Lists.newArrayList();
 
-      Set<Long> selectedSIds = getSelectedSubmissionIdsInVulkanEventTrack(state);
+      SortedLongSet selectedSIds = getSelectedSubmissionIdsInVulkanEventTrack(state);
       long[] sIds = data.getExtraLongs("submissionIds");
 
-      for (int i = 0; i < data.starts.length; i++) {
-        long tStart = data.starts[i];
-        long tEnd = data.ends[i];
-        int depth = data.depths[i];
-        String title = buildSliceTitle(data.titles[i], data.args[i]);
+      ctx.batch(batch -> {
+        for (int i = 0; i < data.starts.length; i++) {
+          long tStart = data.starts[i];
+          long tEnd = data.ends[i];
+          int depth = data.depths[i];
+          String title = buildSliceTitle(data.getTitle(i), data.args[i]);
 
-        if (tEnd <= visible.start || tStart >= visible.end) {
-          continue;
-        }
-        double rectStart = state.timeToPx(tStart);
-        double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
-        double y = depth * SLICE_HEIGHT;
-
-        // Render slice entity.
-        // Grey out if there's vulkan api event selection but this GPU queue slice is not linked.
-        StyleConstants.Gradient color = getSliceColor(data.titles[i]);
-        if (!selectedSIds.isEmpty() && i < sIds.length && !selectedSIds.contains(sIds[i])) {
-          ctx.setBackgroundColor(color.disabled);
-        } else {
-          color.applyBase(ctx);
-        }
-        ctx.fillRect(rectStart, y, rectWidth, SLICE_HEIGHT);
+          if (tEnd <= visible.start || tStart >= visible.end) {
+            continue;
+          }
+          double rectStart = state.timeToPx(tStart);
+          double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
+          double y = depth * SLICE_HEIGHT;
+
+          // Render slice entity.
+          // Grey out if there's vulkan api event selection but this GPU queue slice is not linked.
+          StyleConstants.Gradient color = getSliceColor(data.getTitle(i));
+          boolean disabled =
+              !selectedSIds.isEmpty() && i < sIds.length && !selectedSIds.contains(sIds[i]);
+          batch.fillRect(disabled ? color.disabled : color.base,
+              rectStart, y, rectWidth, SLICE_HEIGHT);
+
+          // Highlight GPU queue slice if it's selected or linked by a vulkan api event.
+          if (selected.contains(new Slice.Key(tStart, tEnd - tStart, depth, queue.trackId)) ||
+              (i < sIds.length && selectedSIds.contains(sIds[i]))) {
+            visibleSelected.add(new Highlight(color.border, rectStart, y, rectWidth));
+          }
 
-        // Highlight GPU queue slice if it's selected or linked by a vulkan api event.
-        if (selected.contains(new Slice.Key(tStart, tEnd - tStart, depth)) ||
-            (i < sIds.length && selectedSIds.contains(sIds[i]))) {
-          visibleSelected.add(new Highlight(color.border, rectStart, y, rectWidth));
-        }
+          // Don't render text when we have less than 7px to play with.
+          if (rectWidth < 7) {
+            continue;
+          }
 
-        // Don't render text when we have less than 7px to play with.
-        if (rectWidth < 7) {
-          continue;
+          batch.drawText(colors().textMain, () -> ctx.drawText(
+              Fonts.Style.Normal, title, rectStart + 2, y + 2, rectWidth - 4, SLICE_HEIGHT - 4));
         }
-
-        ctx.setForegroundColor(colors().textMain);
-        ctx.drawText(
-            Fonts.Style.Normal, title, rectStart + 2, y + 2, rectWidth - 4, SLICE_HEIGHT - 4);
-      }
+      });
 
       // Draw bounding rectangles after all the slices are rendered, so that the border is on the top.
       for (Highlight highlight : visibleSelected) {
@@ -184,8 +187,8 @@ public class GpuQueuePanel extends TrackPanel<GpuQueuePanel> implements Selectab
     long t = state.pxToTime(x);
     for (int i = 0; i < data.starts.length; i++) {
       if (data.depths[i] == depth && data.starts[i] <= t && t <= data.ends[i]) {
-        hoveredTitle = data.titles[i];
-        hoveredCategory = data.categories[i];
+        hoveredTitle = data.getTitle(i);
+        hoveredCategory = data.getCategory(i);
         if (hoveredTitle.isEmpty()) {
           if (hoveredCategory.isEmpty()) {
             return Hover.NONE;
@@ -259,21 +262,21 @@ public class GpuQueuePanel extends TrackPanel<GpuQueuePanel> implements Selectab
         endDepth = Integer.MAX_VALUE;
       }
 
-      builder.add(Selection.Kind.Gpu, transform(
-          track.getSlices(ts, startDepth, endDepth),
-          SliceTrack.SlicesBuilder::new));
+      builder.add(Selection.Kind.Gpu, Selection.aggregateAreaSelections.get() ?
+          track.getSlicesSummary(ts, startDepth, endDepth) :
+          transform(track.getSlices(ts, startDepth, endDepth), SliceTrack.SlicesBuilder::new));
     }
   }
 
-  private static Set<Long> getSelectedSubmissionIdsInVulkanEventTrack(State state) {
+  private static SortedLongSet getSelectedSubmissionIdsInVulkanEventTrack(State state) {
     Selection<Long> selection = state.getSelection(Selection.Kind.VulkanEvent);
-    Set<Long> res = Sets.newHashSet();    // On Vulkan Event Track.
     if (selection instanceof VulkanEventTrack.Slice) {
-      res = Sets.newHashSet(((VulkanEventTrack.Slice)selection).submissionId);
+      return new SortedLongSet.Builder(1)
+          .add(((VulkanEventTrack.Slice)selection).submissionId).build();
     } else if (selection instanceof VulkanEventTrack.Slices) {
-      res = ((VulkanEventTrack.Slices)selection).getSubmissionIds();
+      return ((VulkanEventTrack.Slices)selection).getSubmissionIds();
     }
-    return res;
+    return SortedLongSet.EMPTY;
   }
 
   private static class Highlight {
@@ -29,12 +29,15 @@ public class Loading {
   private static final double MARGIN = 3;
 
   public static void drawLoading(RenderContext ctx, Track.Data data, State state, double h) {
+    TimeSpan visible = state.getVisibleTime();
+    TimeSpan available = (data == null) ? TimeSpan.ZERO : data.request.range;
+    if (available.start > visible.start || available.end < visible.end) {
+      ctx.markIncomplete();
+    }
     if (h < 3 * MARGIN) {
       return;
     }
 
-    TimeSpan visible = state.getVisibleTime();
-    TimeSpan available = (data == null) ? TimeSpan.ZERO : data.request.range;
     if (available.end <= visible.start || available.start >= visible.end) {
       drawLoading(ctx, state.timeToPx(visible.start), state.timeToPx(visible.end), h);
       return;
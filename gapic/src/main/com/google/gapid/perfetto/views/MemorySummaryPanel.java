@@ -62,6 +62,11 @@ public class MemorySummaryPanel extends TrackPanel<MemorySummaryPanel> {
     return HEIGHT;
   }
 
+  @Override
+  protected MemorySummaryTrack getTrack() {
+    return track;
+  }
+
   @Override
   protected void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("MemSummary", () -> {
@@ -87,6 +87,11 @@ public class ProcessSummaryPanel extends TrackPanel<ProcessSummaryPanel> {
     return HEIGHT;
   }
 
+  @Override
+  protected ProcessSummaryTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("ProcessSummaryPanel", () -> {
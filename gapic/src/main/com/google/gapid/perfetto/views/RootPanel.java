@@ -32,6 +32,7 @@ import com.google.gapid.perfetto.canvas.PanelGroup;
 import com.google.gapid.perfetto.canvas.RenderContext;
 import com.google.gapid.perfetto.canvas.Size;
 import com.google.gapid.perfetto.models.Selection;
+import com.google.gapid.perfetto.models.Track;
 import com.google.gapid.perfetto.models.TrackConfig;
 import com.google.gapid.perfetto.models.VSync;
 import com.google.gapid.widgets.Theme;
@@ -110,6 +111,12 @@ public abstract class RootPanel<S extends State> extends Panel.Base implements S
   public void render(RenderContext ctx, Repainter repainter) {
     double topHeight = top.getPreferredHeight();
     Area clip = ctx.getClip();
+    // Redrawing all the tracks is a new frame for the track fetch scheduler, which uses the frames
+    // to find the tracks that are on screen.
+    boolean frame = clip.y <= 0 && clip.y + clip.h >= height;
+    if (frame) {
+      Track.getScheduler().startFrame();
+    }
     if (clip.y < topHeight) {
       preTopUiRender(ctx, repainter);
       top.render(ctx, repainter);
@@ -124,6 +131,9 @@ public abstract class RootPanel<S extends State> extends Panel.Base implements S
         });
       });
     }
+    if (frame) {
+      Track.getScheduler().endFrame();
+    }
 
     TimeSpan highlight = state.getHighlight();
     if (highlight != TimeSpan.ZERO) {
@@ -473,6 +483,8 @@ public abstract class RootPanel<S extends State> extends Panel.Base implements S
         if (data == null) {
           return;
         }
+        // The tracks are drawn over the vsync stripes, so their tiles can't be cached.
+        ctx.disableTileCache();
 
         TimeSpan visible = state.getVisibleTime();
         ctx.setBackgroundColor(colors().vsyncBackground);
@@ -16,9 +16,11 @@
 package com.google.gapid.perfetto.views;
 
 import static com.google.gapid.perfetto.TimeSpan.timeToString;
+import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.widgets.Widgets.createBoldLabel;
 import static com.google.gapid.widgets.Widgets.createComposite;
 import static com.google.gapid.widgets.Widgets.createLabel;
+import static com.google.gapid.widgets.Widgets.createLink;
 import static com.google.gapid.widgets.Widgets.withIndents;
 import static com.google.gapid.widgets.Widgets.withLayoutData;
 import static com.google.gapid.widgets.Widgets.withMargin;
@@ -27,9 +29,11 @@ import static com.google.gapid.widgets.Widgets.withSpans;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.gapid.perfetto.models.ProcessInfo;
+import com.google.gapid.perfetto.models.Selection;
 import com.google.gapid.perfetto.models.SliceTrack;
 import com.google.gapid.perfetto.models.SliceTrack.RenderStageInfo;
 import com.google.gapid.perfetto.models.ThreadInfo;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.GridData;
@@ -117,6 +121,16 @@ public class SliceSelectionView extends Composite {
           createLabel(main, value);
         });
       }
+
+      if (renderStageInfo.submissionId != 0) {
+        SortedLongSet submission =
+            new SortedLongSet.Builder(1).add(renderStageInfo.submissionId).build();
+        withLayoutData(createLink(main, "<a>Select related Vulkan API events</a>", e ->
+            state.addSelection(Selection.Kind.VulkanEvent, transform(
+                state.getGpuInfo().flows().getIndex(),
+                index -> index.selectEvents(submission).build()))),
+            withSpans(new GridData(), 2, 1));
+      }
     }
 
     if (!slice.args.isEmpty()) {
@@ -22,32 +22,37 @@ import static com.google.gapid.widgets.Widgets.packColumns;
 
 import com.google.gapid.perfetto.models.SliceTrack;
 
-import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.ILazyTreeContentProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.widgets.Composite;
 
+import java.util.List;
+
 /**
- * Displays information about a list of selected slices.
+ * Displays information about a list of selected slices. The tree is virtual: the nodes are only
+ * created and formatted once visible.
  */
 public class SlicesSelectionView extends Composite {
   public SlicesSelectionView(Composite parent, SliceTrack.Slices sel) {
     super(parent, SWT.NONE);
     setLayout(new FillLayout());
 
-    TreeViewer viewer = createTreeViewer(this, SWT.NONE);
+    TreeViewer viewer = createTreeViewer(this, SWT.VIRTUAL);
     viewer.getTree().setHeaderVisible(true);
-    viewer.setContentProvider(new ITreeContentProvider() {
+    viewer.setContentProvider(new ILazyTreeContentProvider() {
       @Override
-      public Object[] getElements(Object inputElement) {
-        return sel.nodes.toArray();
+      public void updateChildCount(Object element, int currentChildCount) {
+        viewer.setChildCount(element, children(element).size());
       }
 
       @Override
-      public boolean hasChildren(Object element) {
-        return !n(element).children.isEmpty();
+      public void updateElement(Object parent, int index) {
+        SliceTrack.Node node = children(parent).get(index);
+        viewer.replace(parent, index, node);
+        viewer.setChildCount(node, node.children.size());
       }
 
       @Override
@@ -55,9 +60,9 @@ public class SlicesSelectionView extends Composite {
         return null;
       }
 
-      @Override
-      public Object[] getChildren(Object element) {
-        return n(element).children.toArray();
+      private List<SliceTrack.Node> children(Object element) {
+        return (element instanceof SliceTrack.Slices) ?
+            ((SliceTrack.Slices)element).nodes : n(element).children;
       }
     });
     viewer.setLabelProvider(new LabelProvider());
@@ -17,14 +17,17 @@ package com.google.gapid.perfetto.views;
 
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.math.DoubleMath;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.models.Perfetto;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.models.CpuInfo;
+import com.google.gapid.perfetto.models.GpuInfo;
 import com.google.gapid.perfetto.models.ProcessInfo;
 import com.google.gapid.perfetto.models.Selection;
 import com.google.gapid.perfetto.models.ThreadInfo;
@@ -41,6 +44,7 @@ import org.eclipse.swt.graphics.RGBA;
 import org.eclipse.swt.widgets.Widget;
 
 import java.math.RoundingMode;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -55,6 +59,12 @@ public abstract class State {
   private static final Logger LOG = Logger.getLogger(State.class.getName());
 
   private static final double MIN_WIDTH = 32;
+  // Motion older than this is no longer used to predict the next visible area.
+  private static final long MOTION_TIMEOUT_NS = MILLISECONDS.toNanos(500);
+  // Minimum pan velocity, in visible widths per second, to prefetch the next area.
+  private static final double MIN_PAN_VELOCITY = 0.25;
+  // Minimum zoom velocity, in zoom levels per second, to prefetch the next zoom level.
+  private static final double MIN_ZOOM_VELOCITY = 0.5;
 
   private final Widget owner;
   private TimeSpan traceTime;
@@ -68,6 +78,11 @@ public abstract class State {
   private final AtomicInteger lastSelectionUpdateId = new AtomicInteger(0);
   private HashMultimap<Long, Long> selectedThreads;     // upid -> utids
   private TimeSpan highlight = TimeSpan.ZERO;
+  private long lastMoveNanos = 0;
+  private double panVelocity = 0;  // visible widths per second, positive to the right
+  private double zoomVelocity = 0; // zoom levels per second, positive when zooming out
+  // Incremented whenever the rendering of the tracks changes, other than by the visible area.
+  private int renderVersion = 0;
 
   private final Events.ListenerCollection<Listener> listeners = Events.listeners(Listener.class);
 
@@ -87,9 +102,31 @@ public abstract class State {
     this.selectedThreads = HashMultimap.create();
     this.highlight = TimeSpan.ZERO;
     update();
+    fireDataChanged();
+  }
+
+  protected void fireDataChanged() {
+    renderVersion++;
     listeners.fire().onDataChanged();
   }
 
+  /**
+   * Notifies the listeners that the structure, i.e. the panels or their sizes, of the tracks has
+   * changed, e.g. once the tracks of a lazily enumerated group have been added.
+   */
+  public void structureChanged() {
+    renderVersion++;
+    listeners.fire().onStructureChanged();
+  }
+
+  /**
+   * Returns the version of the state affecting the rendering of the tracks, other than the visible
+   * area, i.e. the data, structure and selection. Used to invalidate cached renderings.
+   */
+  public int getRenderVersion() {
+    return renderVersion;
+  }
+
   public TimeSpan getVisibleTime() {
     return visibleTime;
   }
@@ -123,6 +160,7 @@ public abstract class State {
   }
 
   public abstract CpuInfo getCpuInfo();
+  public abstract GpuInfo getGpuInfo();
   public abstract ProcessInfo getProcessInfo(long id);
   public abstract ThreadInfo getThreadInfo(long id);
 
@@ -164,6 +202,35 @@ public abstract class State {
     return new Track.DataRequest(visibleTime, resolution);
   }
 
+  /**
+   * Returns the request predicted to come on screen next, based on the recent pan and zoom motion,
+   * or {@code null} if there is no such prediction.
+   */
+  public Track.DataRequest getPrefetchRequest() {
+    if (resolution <= 0 || System.nanoTime() - lastMoveNanos > MOTION_TIMEOUT_NS) {
+      return null;
+    }
+
+    long duration = visibleTime.getDuration();
+    TimeSpan next;
+    long nextResolution;
+    if (Math.abs(zoomVelocity) >= MIN_ZOOM_VELOCITY) {
+      long center = visibleTime.start + duration / 2;
+      long halfSpan = (zoomVelocity < 0) ? duration / 4 : duration;
+      next = new TimeSpan(center - halfSpan, center + halfSpan);
+      nextResolution = (zoomVelocity < 0) ? resolution / 2 : resolution * 2;
+    } else if (Math.abs(panVelocity) >= MIN_PAN_VELOCITY) {
+      next = visibleTime.move((panVelocity < 0) ? -duration : duration);
+      nextResolution = resolution;
+    } else {
+      return null;
+    }
+
+    next = next.boundedBy(traceTime);
+    return (next.getDuration() <= 0 || nextResolution <= 0) ? null :
+        new Track.DataRequest(next, nextResolution);
+  }
+
   public void setMaxScrollOffset(double maxScrollOffset) {
     this.maxScrollOffset = Math.max(0, maxScrollOffset);
     scrollOffset = Math.min(this.maxScrollOffset, scrollOffset);
@@ -175,6 +242,7 @@ public abstract class State {
     // the zoom out will hardly zoom.
     visibleTime = visibleTime.boundedBy(traceTime);
     if (!this.visibleTime.equals(visibleTime)) {
+      updateMotion(this.visibleTime, visibleTime);
       this.visibleTime = visibleTime;
       update();
       listeners.fire().onVisibleAreaChanged();
@@ -227,6 +295,7 @@ public abstract class State {
       setSelection(type, newSel);
     } else {
       selection.addSelection(type, newSel);
+      renderVersion++;
       listeners.fire().onSelectionChanged(selection);
     }
   }
@@ -239,6 +308,7 @@ public abstract class State {
           setSelection(newSelection);
         } else {
           selection.addSelection(newSelection);
+          renderVersion++;
           listeners.fire().onSelectionChanged(selection);
         }
       }
@@ -274,14 +344,17 @@ public abstract class State {
     if (selection == null || selection.getSelection(Selection.Kind.Cpu).isEmpty()) {
       clearSelectedThreads();
     }
+    renderVersion++;
     listeners.fire().onSelectionChanged(selection);
   }
 
   public void clearSelectedThreads() {
+    renderVersion++;
     selectedThreads = HashMultimap.create();
   }
 
   public void addSelectedThread(ThreadInfo threadInfo) {
+    renderVersion++;
     selectedThreads.put(threadInfo.upid, threadInfo.utid);
   }
 
@@ -321,6 +394,24 @@ public abstract class State {
     return result;
   }
 
+  // Tracks the pan and zoom velocity as an exponential moving average.
+  private void updateMotion(TimeSpan from, TimeSpan to) {
+    long now = System.nanoTime();
+    long elapsed = now - lastMoveNanos;
+    lastMoveNanos = now;
+    if (elapsed > MOTION_TIMEOUT_NS || from.getDuration() <= 0 || to.getDuration() <= 0) {
+      panVelocity = 0;
+      zoomVelocity = 0;
+      return;
+    }
+
+    double seconds = Math.max(elapsed, MILLISECONDS.toNanos(1)) / 1e9;
+    double pan = ((to.start + to.end) - (from.start + from.end)) / 2.0 / from.getDuration();
+    double zoom = DoubleMath.log2((double)to.getDuration() / from.getDuration());
+    panVelocity = (panVelocity + pan / seconds) / 2;
+    zoomVelocity = (zoomVelocity + zoom / seconds) / 2;
+  }
+
   private void update() {
     nanosPerPx = visibleTime.getDuration() / width;
     if (nanosPerPx <= 0) {
@@ -342,6 +433,7 @@ public abstract class State {
   @SuppressWarnings("unused")
   public static interface Listener extends Events.Listener {
     public default void onDataChanged() { /* do nothing */ }
+    public default void onStructureChanged() { /* do nothing */ }
     public default void onVisibleAreaChanged() { /* do nothing */ }
     public default void onSelectionChanged(Selection.MultiSelection selection) { /* do nothing */}
   }
@@ -349,6 +441,9 @@ public abstract class State {
   public static class ForSystemTrace extends State {
     private Perfetto.Data data;
     private final PinnedTracks pinnedTracks;
+    // The groups the user has expanded or collapsed, by group id. Kept when the complete data
+    // replaces the skeleton, so that the re-created groups keep their expanded state.
+    private final Map<String, Boolean> expandedGroups = Maps.newHashMap();
 
     public ForSystemTrace(Widget owner) {
       super(owner);
@@ -359,9 +454,20 @@ public abstract class State {
     public void update(Perfetto.Data newData) {
       this.data = newData;
       this.pinnedTracks.clear();
+      this.expandedGroups.clear();
       super.update((data == null) ? TimeSpan.ZERO : data.traceTime);
     }
 
+    /**
+     * Replaces the skeleton of the trace data, shown while the trace was loading, with the
+     * complete data. Unlike {@link #update(Perfetto.Data)}, keeps the visible area, selection and
+     * pinned tracks.
+     */
+    public void complete(Perfetto.Data newData) {
+      this.data = newData;
+      fireDataChanged();
+    }
+
     public boolean hasData() {
       return data != null;
     }
@@ -371,6 +477,11 @@ public abstract class State {
       return data.cpu;
     }
 
+    @Override
+    public GpuInfo getGpuInfo() {
+      return data.gpu;
+    }
+
     @Override
     public ProcessInfo getProcessInfo(long id) {
       return data.processes.get(id);
@@ -392,5 +503,17 @@ public abstract class State {
     public PinnedTracks getPinnedTracks() {
       return pinnedTracks;
     }
+
+    /**
+     * Returns whether the group with the given id is expanded, if the user has expanded or
+     * collapsed it, otherwise returns the given default.
+     */
+    public boolean isExpanded(String groupId, boolean dflt) {
+      return expandedGroups.getOrDefault(groupId, dflt);
+    }
+
+    public void setExpanded(String groupId, boolean expanded) {
+      expandedGroups.put(groupId, expanded);
+    }
   }
 }
@@ -98,6 +98,11 @@ public class ThreadPanel extends TrackPanel<ThreadPanel> implements Selectable {
     return (expanded ? 1 + track.getThread().maxDepth : 1) * SLICE_HEIGHT;
   }
 
+  @Override
+  protected ThreadTrack getTrack() {
+    return track;
+  }
+
   @Override
   public void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("ThreadPanel", () -> {
@@ -114,115 +119,115 @@ public class ThreadPanel extends TrackPanel<ThreadPanel> implements Selectable {
       Selection<Slice.Key> selectedThread = state.getSelection(Selection.Kind.Thread);
       List<Highlight> visibleSelected = Lists.newArrayList();
 
-      boolean merging = false;
-      double mergeStartX = 0;
-      double mergeEndX = 0;
-      ThreadState mergeState = ThreadState.NONE;
-      for (int i = 0; i < data.schedStarts.length; i++) {
-        long tStart = data.schedStarts[i];
-        long tEnd = data.schedEnds[i];
-        if (tEnd <= visible.start || tStart >= visible.end) {
-          continue;
-        }
-        final double rectStart = state.timeToPx(tStart);
-        double rectEnd = state.timeToPx(tEnd);
-        final double rectWidth = rectEnd - rectStart;
-
-        if (merging && (rectStart - mergeEndX) > MERGE_GAP_THRESHOLD) {
-          double mergeWidth = Math.max(1, mergeEndX - mergeStartX);
-          mergeState.color.get().applyBase(ctx);
-          ctx.fillRect(mergeStartX, 0, mergeWidth, SLICE_HEIGHT);
-          if (mergeWidth > 7) {
-            ctx.setForegroundColor(colors().textMain);
-            ctx.drawText(Fonts.Style.Normal, mergeState.label,
-                rectStart + 2, 2, rectWidth - 4, SLICE_HEIGHT - 4);
+      ctx.batch(batch -> {
+        boolean merging = false;
+        double mergeStartX = 0;
+        double mergeEndX = 0;
+        ThreadState mergeState = ThreadState.NONE;
+        for (int i = 0; i < data.schedStarts.length; i++) {
+          long tStart = data.schedStarts[i];
+          long tEnd = data.schedEnds[i];
+          if (tEnd <= visible.start || tStart >= visible.end) {
+            continue;
           }
-          merging = false;
-        }
-        if (rectWidth < MERGE_SLICE_THRESHOLD) {
-          if (merging) {
-            double ratio = (mergeEndX - mergeStartX) / rectWidth;
-            if (ratio < 1 / MERGE_STATE_RATIO) {
+          final double rectStart = state.timeToPx(tStart);
+          double rectEnd = state.timeToPx(tEnd);
+          final double rectWidth = rectEnd - rectStart;
+
+          if (merging && (rectStart - mergeEndX) > MERGE_GAP_THRESHOLD) {
+            double mergeWidth = Math.max(1, mergeEndX - mergeStartX);
+            batch.fillRect(mergeState.color.get().base, mergeStartX, 0, mergeWidth, SLICE_HEIGHT);
+            if (mergeWidth > 7) {
+              String label = mergeState.label;
+              batch.drawText(colors().textMain, () -> ctx.drawText(Fonts.Style.Normal, label,
+                  rectStart + 2, 2, rectWidth - 4, SLICE_HEIGHT - 4));
+            }
+            merging = false;
+          }
+          if (rectWidth < MERGE_SLICE_THRESHOLD) {
+            if (merging) {
+              double ratio = (mergeEndX - mergeStartX) / rectWidth;
+              if (ratio < 1 / MERGE_STATE_RATIO) {
+                mergeState = data.schedStates[i];
+              } else if (ratio < MERGE_STATE_RATIO) {
+                mergeState = mergeState.merge(data.schedStates[i]);
+              }
+              mergeEndX = rectEnd;
+            } else {
+              merging = true;
+              mergeStartX = rectStart;
+              mergeEndX = rectEnd;
               mergeState = data.schedStates[i];
-            } else if (ratio < MERGE_STATE_RATIO) {
-              mergeState = mergeState.merge(data.schedStates[i]);
             }
-            mergeEndX = rectEnd;
           } else {
-            merging = true;
-            mergeStartX = rectStart;
-            mergeEndX = rectEnd;
-            mergeState = data.schedStates[i];
-          }
-        } else {
-          ThreadState ts = data.schedStates[i];
-          double drawStart = rectStart, drawWidth = rectWidth;
-          if (merging) {
-            double ratio = (mergeEndX - mergeStartX) / rectWidth;
-            if (ratio > MERGE_STATE_RATIO) {
-              ts = mergeState;
-            } else if (ratio > 1 / MERGE_STATE_RATIO) {
-              ts = mergeState.merge(ts);
+            ThreadState ts = data.schedStates[i];
+            double drawStart = rectStart, drawWidth = rectWidth;
+            if (merging) {
+              double ratio = (mergeEndX - mergeStartX) / rectWidth;
+              if (ratio > MERGE_STATE_RATIO) {
+                ts = mergeState;
+              } else if (ratio > 1 / MERGE_STATE_RATIO) {
+                ts = mergeState.merge(ts);
+              }
+              drawStart = mergeStartX;
+              drawWidth = rectEnd - mergeStartX;
+              merging = false;
+            }
+
+            batch.fillRect(ts.color.get().base, drawStart, 0, drawWidth, SLICE_HEIGHT);
+            if (drawWidth > 7) {
+              String label = ts.label;
+              double textX = drawStart + 2, textW = drawWidth - 4;
+              batch.drawText(colors().textMain, () -> ctx.drawText(
+                  Fonts.Style.Normal, label, textX, 2, textW, SLICE_HEIGHT - 4));
             }
-            drawStart = mergeStartX;
-            drawWidth = rectEnd - mergeStartX;
-            merging = false;
           }
 
-          ts.color.get().applyBase(ctx);
-          ctx.fillRect(drawStart, 0, drawWidth, SLICE_HEIGHT);
-          if (drawWidth > 7) {
-            ctx.setForegroundColor(colors().textMain);
-            ctx.drawText(Fonts.Style.Normal, ts.label,
-                drawStart + 2, 2, drawWidth - 4, SLICE_HEIGHT - 4);
+          if (selectedCpu.contains(data.schedIds[i])
+              || selectedThreadState.contains(new StateSlice.Key(data.schedStarts[i],
+                  data.schedEnds[i] - data.schedStarts[i], track.getThread().utid))) {
+            visibleSelected.add(
+                new Highlight(data.schedStates[i].color.get().border, rectStart, 0, rectWidth));
           }
         }
-
-        if (selectedCpu.contains(data.schedIds[i])
-            || selectedThreadState.contains(new StateSlice.Key(data.schedStarts[i],
-                data.schedEnds[i] - data.schedStarts[i], track.getThread().utid))) {
-          visibleSelected.add(
-              new Highlight(data.schedStates[i].color.get().border, rectStart, 0, rectWidth));
+        if (merging) {
+          batch.fillRect(
+              mergeState.color.get().base, mergeStartX, 0, mergeEndX - mergeStartX, SLICE_HEIGHT);
         }
-      }
-      if (merging) {
-        mergeState.color.get().applyBase(ctx);
-        ctx.fillRect(mergeStartX, 0, mergeEndX - mergeStartX, SLICE_HEIGHT);
-      }
 
-      if (expanded) {
-        SliceTrack.Data slices = data.slices;
-        for (int i = 0; i < slices.starts.length; i++) {
-          long tStart = slices.starts[i];
-          long tEnd = slices.ends[i];
-          int depth = slices.depths[i];
-          //String cat = data.categories[i];
-          String title = slices.titles[i];
-          if (tEnd <= visible.start || tStart >= visible.end) {
-            continue;
-          }
-          double rectStart = state.timeToPx(tStart);
-          double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
-          double y = (1 + depth) * SLICE_HEIGHT;
+        if (expanded) {
+          SliceTrack.Data slices = data.slices;
+          for (int i = 0; i < slices.starts.length; i++) {
+            long tStart = slices.starts[i];
+            long tEnd = slices.ends[i];
+            int depth = slices.depths[i];
+            //String cat = slices.getCategory(i);
+            String title = slices.getTitle(i);
+            if (tEnd <= visible.start || tStart >= visible.end) {
+              continue;
+            }
+            double rectStart = state.timeToPx(tStart);
+            double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
+            double y = (1 + depth) * SLICE_HEIGHT;
 
-          StyleConstants.Gradient color = getSliceColor(title, depth);
-          color.applyBase(ctx);
-          ctx.fillRect(rectStart, y, rectWidth, SLICE_HEIGHT);
+            StyleConstants.Gradient color = getSliceColor(title, depth);
+            batch.fillRect(color.base, rectStart, y, rectWidth, SLICE_HEIGHT);
 
-          if (selectedThread.contains(new Slice.Key(tStart, tEnd - tStart, depth))) {
-            visibleSelected.add(new Highlight(color.border, rectStart, y, rectWidth));
-          }
+            if (selectedThread.contains(
+                new Slice.Key(tStart, tEnd - tStart, depth, track.getThread().trackId))) {
+              visibleSelected.add(new Highlight(color.border, rectStart, y, rectWidth));
+            }
 
-          // Don't render text when we have less than 7px to play with.
-          if (rectWidth < 7) {
-            continue;
-          }
+            // Don't render text when we have less than 7px to play with.
+            if (rectWidth < 7) {
+              continue;
+            }
 
-          ctx.setForegroundColor(colors().textMain);
-          ctx.drawText(Fonts.Style.Normal, title,
-              rectStart + 2, y + 2, rectWidth - 4, SLICE_HEIGHT - 4);
+            batch.drawText(colors().textMain, () -> ctx.drawText(Fonts.Style.Normal, title,
+                rectStart + 2, y + 2, rectWidth - 4, SLICE_HEIGHT - 4));
+          }
         }
-      }
+      });
 
       // Draw bounding rectangles after all the slices are rendered, so that the border is on the top.
       for (Highlight hl : visibleSelected) {
@@ -321,8 +326,8 @@ public class ThreadPanel extends TrackPanel<ThreadPanel> implements Selectable {
       SliceTrack.Data slices = data.slices;
       for (int i = 0; i < slices.starts.length; i++) {
         if (slices.depths[i] == depth && slices.starts[i] <= t && t <= slices.ends[i]) {
-          hoveredTitle = slices.titles[i];
-          hoveredCategory = slices.categories[i];
+          hoveredTitle = slices.getTitle(i);
+          hoveredCategory = slices.getCategory(i);
           if (hoveredTitle.isEmpty()) {
             if (hoveredCategory.isEmpty()) {
               return Hover.NONE;
@@ -391,11 +396,17 @@ public class ThreadPanel extends TrackPanel<ThreadPanel> implements Selectable {
       return;
     }
 
+    boolean aggregate = Selection.aggregateAreaSelections.get();
     if (startDepth == 0) {
-      builder.add(Selection.Kind.ThreadState,
-          transform(track.getStates(ts), ThreadTrack.StateSlicesBuilder::new));
-      builder.add(Selection.Kind.Cpu, transform(
-          track.getCpuSlices(ts), r -> new CpuTrack.SlicesBuilder(r)));
+      if (aggregate) {
+        builder.add(Selection.Kind.ThreadState, track.getStatesSummary(ts));
+        builder.add(Selection.Kind.Cpu, track.getCpuSlicesSummary(ts));
+      } else {
+        builder.add(Selection.Kind.ThreadState,
+            transform(track.getStates(ts), ThreadTrack.StateSlicesBuilder::new));
+        builder.add(Selection.Kind.Cpu, transform(
+            track.getCpuSlices(ts), r -> new CpuTrack.SlicesBuilder(r)));
+      }
     }
 
     startDepth = Math.max(0, startDepth - 1);
@@ -404,7 +415,8 @@ public class ThreadPanel extends TrackPanel<ThreadPanel> implements Selectable {
       if (endDepth >= track.getThread().maxDepth) {
         endDepth = Integer.MAX_VALUE;
       }
-      builder.add(Selection.Kind.Thread,
+      builder.add(Selection.Kind.Thread, aggregate ?
+          track.getSlicesSummary(ts, startDepth, endDepth) :
           transform(track.getSlices(ts, startDepth, endDepth), SliceTrack.SlicesBuilder::new));
     }
   }
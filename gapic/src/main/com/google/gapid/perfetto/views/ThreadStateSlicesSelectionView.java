@@ -22,7 +22,7 @@ import static com.google.gapid.widgets.Widgets.packColumns;
 
 import com.google.gapid.perfetto.models.ThreadTrack;
 
-import org.eclipse.jface.viewers.IStructuredContentProvider;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.swt.SWT;
@@ -38,13 +38,9 @@ public class ThreadStateSlicesSelectionView extends Composite {
     super(parent, SWT.NONE);
     setLayout(new FillLayout());
 
-    TableViewer viewer = createTableViewer(this, SWT.NONE);
-    viewer.setContentProvider(new IStructuredContentProvider() {
-      @Override
-      public Object[] getElements(Object inputElement) {
-        return slices.entries.toArray();
-      }
-    });
+    TableViewer viewer = createTableViewer(this, SWT.VIRTUAL);
+    viewer.setContentProvider(
+        (ILazyContentProvider)index -> viewer.replace(slices.entries.get(index), index));
     viewer.setLabelProvider(new LabelProvider());
 
     createTableColumn(viewer, "State",
@@ -52,6 +48,7 @@ public class ThreadStateSlicesSelectionView extends Composite {
     createTableColumn(viewer, "Duration",
         e -> timeToString(((ThreadTrack.StateSlices.Entry)e).totalDur));
     viewer.setInput(slices);
+    viewer.setItemCount(slices.entries.size());
     packColumns(viewer.getTable());
   }
 }
@@ -27,14 +27,20 @@ import static com.google.gapid.widgets.Widgets.createLabel;
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static com.google.gapid.widgets.Widgets.withLayoutData;
 import static com.google.gapid.widgets.Widgets.withMargin;
+import static java.lang.String.format;
+import static java.util.logging.Level.INFO;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.gapid.models.Analytics;
 import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.canvas.Area;
 import com.google.gapid.perfetto.canvas.PanelCanvas;
 import com.google.gapid.perfetto.models.Selection.MultiSelection;
+import com.google.gapid.perfetto.models.Track;
 import com.google.gapid.perfetto.views.RootPanel.MouseMode;
 import com.google.gapid.util.Keyboard;
+import com.google.gapid.util.LatencyStats;
 import com.google.gapid.widgets.Theme;
 
 import org.eclipse.swt.SWT;
@@ -46,12 +52,17 @@ import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.ScrollBar;
 import org.eclipse.swt.widgets.ToolBar;
 
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.logging.Logger;
 
 /**
  * A {@link Composite} that displays a Perfetto trace.
  */
 public abstract class TraceComposite<S extends State> extends Composite implements State.Listener {
+  private static final Logger LOG = Logger.getLogger(TraceComposite.class.getName());
+
   protected final S state;
 
   private final RootPanel<S> rootPanel;
@@ -69,6 +80,8 @@ public abstract class TraceComposite<S extends State> extends Composite implemen
     canvas = withLayoutData(new PanelCanvas(this, SWT.H_SCROLL | SWT.V_SCROLL, theme, rootPanel),
         new GridData(SWT.FILL, SWT.FILL, true, true));
 
+    canvas.setHudSource(TraceComposite::getTrackStats);
+
     Consumer<RootPanel.MouseMode> modeSelector =
         topBar.buildModeActions(theme, m -> rootPanel.setMouseMode(m));
     modeSelector.accept(RootPanel.MouseMode.Pan);
@@ -179,6 +192,13 @@ public abstract class TraceComposite<S extends State> extends Composite implemen
           rootPanel.toggleVSync();
           redraw = true;
           break;
+        case 'p':
+          if ((e.stateMask & SWT.SHIFT) == SWT.SHIFT) {
+            LOG.log(INFO, "Rendering diagnostics:\n" + canvas.getDiagnostics());
+          } else {
+            canvas.toggleHud();
+          }
+          break;
         case 'z':
         case '0':
           redraw = state.setVisibleTime(state.getTraceTime());
@@ -198,6 +218,17 @@ public abstract class TraceComposite<S extends State> extends Composite implemen
     updateScrollbars();
   }
 
+  // Returns the data fetch and page cache statistics shown in the rendering performance HUD.
+  private static List<String> getTrackStats() {
+    List<String> lines = Lists.newArrayList();
+    lines.add(format("Cache hits: pages %.0f%%, disk %.0f%%",
+        100 * Track.getPageStore().getHitRate(), 100 * Track.getDiskCache().getHitRate()));
+    Map<String, LatencyStats> fetches = Maps.newTreeMap();
+    fetches.putAll(Track.getFetchLatencies());
+    fetches.forEach((type, latency) -> lines.add("Fetch " + type + ": " + latency.summary()));
+    return lines;
+  }
+
   protected abstract S createState();
   protected abstract RootPanel<S> createRootPanel();
 
@@ -237,6 +268,12 @@ public abstract class TraceComposite<S extends State> extends Composite implemen
     updateScrollbars();
   }
 
+  @Override
+  public void onStructureChanged() {
+    canvas.structureHasChanged();
+    updateScrollbars();
+  }
+
   @Override
   public void onSelectionChanged(MultiSelection selection) {
     canvas.redraw();
@@ -15,6 +15,7 @@
  */
 package com.google.gapid.perfetto.views;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.perfetto.views.StyleConstants.LABEL_ICON_SIZE;
 import static com.google.gapid.perfetto.views.StyleConstants.LABEL_MARGIN;
 import static com.google.gapid.perfetto.views.StyleConstants.LABEL_OFFSET;
@@ -29,8 +30,12 @@ import static com.google.gapid.perfetto.views.StyleConstants.pinActive;
 import static com.google.gapid.perfetto.views.StyleConstants.pinInactive;
 import static com.google.gapid.perfetto.views.StyleConstants.unfoldLess;
 import static com.google.gapid.perfetto.views.StyleConstants.unfoldMore;
+import static java.util.logging.Level.WARNING;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.perfetto.canvas.Area;
 import com.google.gapid.perfetto.canvas.Fonts;
 import com.google.gapid.perfetto.canvas.Panel;
@@ -43,12 +48,15 @@ import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.widgets.Display;
 
 import java.util.function.BiConsumer;
+import java.util.logging.Logger;
 
 // TODO: dedupe some of the below code.
 /**
  * Containers of {@link TrackPanel TrackPanels}.
  */
 public class TrackContainer {
+  private static final Logger LOG = Logger.getLogger(TrackContainer.class.getName());
+
   private TrackContainer() {
   }
 
@@ -71,19 +79,19 @@ public class TrackContainer {
 
   public static <T extends TitledPanel & CopyablePanel<T>> TrackConfig.Group.UiFactory group(
       TrackConfig.Track.UiFactory<T> summary, boolean expanded) {
-    return (state, detail) -> {
+    return (state, id, detail) -> {
       CopyablePanel.Group group = new CopyablePanel.Group();
       for (CopyablePanel<?> track : detail) {
         group.add(track);
       }
-      return Group.of(state, summary.createPanel(state), group, expanded, null, false);
+      return Group.of(state, id, summary.createPanel(state), group, expanded, null, false);
     };
   }
 
   public static <T extends TitledPanel & CopyablePanel<T>> TrackConfig.Group.UiFactory group(
       TrackConfig.Track.UiFactory<T> summary, boolean expanded,
       BiConsumer<CopyablePanel.Group, Boolean> filter, boolean initial) {
-    return (state, detail) -> {
+    return (state, id, detail) -> {
       CopyablePanel.Group group = new CopyablePanel.Group();
       for (CopyablePanel<?> track : detail) {
         group.add(track);
@@ -91,10 +99,91 @@ public class TrackContainer {
       if (initial) {
         filter.accept(group, true);
       }
-      return Group.of(state, summary.createPanel(state), group, expanded, filter, initial);
+      return Group.of(state, id, summary.createPanel(state), group, expanded, filter, initial);
     };
   }
 
+  /**
+   * Returns the UI factory of a group whose tracks are only enumerated once the group is first
+   * drawn on screen, so that they are usually ready by the time the group is expanded.
+   */
+  public static <T extends TitledPanel & CopyablePanel<T>> TrackConfig.LazyGroup.UiFactory
+      lazyGroup(TrackConfig.Track.UiFactory<T> summary, boolean expanded) {
+    return (state, group) -> Group.of(state, group.id, summary.createPanel(state),
+        new LazyDetail(state, group), expanded, null, false);
+  }
+
+  private static class LazyDetail extends CopyablePanel.Group {
+    private final State.ForSystemTrace state;
+    private final TrackConfig.LazyGroup group;
+    private boolean started = false;
+    private boolean loaded = false;
+
+    public LazyDetail(State.ForSystemTrace state, TrackConfig.LazyGroup group) {
+      this.state = state;
+      this.group = group;
+    }
+
+    @Override
+    public CopyablePanel.Group copy() {
+      LazyDetail copy = new LazyDetail(state, group);
+      copy.onShown();
+      return copy;
+    }
+
+    @Override
+    public void onShown() {
+      if (started) {
+        return;
+      }
+      started = true;
+
+      ListenableFuture<ImmutableList<TrackConfig.Element<?>>> future = Futures.catching(
+          group.getTracks(), Exception.class, e -> {
+            LOG.log(WARNING, "Failed to enumerate the tracks of " + group.name, e);
+            return null;
+          }, directExecutor());
+      if (future.isDone()) {
+        // Already enumerated, e.g. when copying the group for pinning.
+        onTracks(Futures.getUnchecked(future), false);
+      } else {
+        state.thenOnUiThread(future, tracks -> onTracks(tracks, true));
+      }
+    }
+
+    private void onTracks(ImmutableList<TrackConfig.Element<?>> tracks, boolean notify) {
+      if (tracks == null) {
+        // Let the next draw retry.
+        started = false;
+        return;
+      }
+
+      for (TrackConfig.Element<?> track : tracks) {
+        add(track.createUi(state));
+      }
+      loaded = true;
+      if (notify) {
+        state.structureChanged();
+      }
+    }
+
+    @Override
+    public double getPreferredHeight() {
+      return loaded ? super.getPreferredHeight() : TITLE_HEIGHT;
+    }
+
+    @Override
+    public void render(RenderContext ctx, Repainter repainter) {
+      onShown();
+      if (loaded) {
+        super.render(ctx, repainter);
+      } else {
+        ctx.setForegroundColor(colors().textAlt);
+        ctx.drawText(Fonts.Style.Normal, "Loading...", LABEL_OFFSET, 0, TITLE_HEIGHT);
+      }
+    }
+  }
+
   private static class Single<T extends TrackPanel<T>> extends Panel.Base
       implements CopyablePanel<Single<T>> {
     private final T track;
@@ -207,6 +296,8 @@ public class TrackContainer {
 
   private static class Group<T extends CopyablePanel<T> & TitledPanel, D extends CopyablePanel<D>>
       extends Panel.Base implements CopyablePanel<Group<T, D>> {
+    private final State.ForSystemTrace state;
+    private final String id;
     private final T summary;
     private final CopyablePanel.Group detail;
     protected final BiConsumer<CopyablePanel.Group, Boolean> filter;
@@ -216,8 +307,11 @@ public class TrackContainer {
     protected boolean filtered;
     protected boolean hovered = false;
 
-    private Group(T summary, CopyablePanel.Group detail, boolean expanded,
-        BiConsumer<CopyablePanel.Group, Boolean> filter, boolean filtered, PinState pinState) {
+    private Group(State.ForSystemTrace state, String id, T summary, CopyablePanel.Group detail,
+        boolean expanded, BiConsumer<CopyablePanel.Group, Boolean> filter, boolean filtered,
+        PinState pinState) {
+      this.state = state;
+      this.id = id;
       this.summary = summary;
       this.detail = detail;
       this.expanded = expanded;
@@ -227,19 +321,25 @@ public class TrackContainer {
     }
 
     public static <T extends CopyablePanel<T> & TitledPanel, D extends CopyablePanel<D>>
-        TrackContainer.Group<T, D> of(State.ForSystemTrace state, T summary,
+        TrackContainer.Group<T, D> of(State.ForSystemTrace state, String id, T summary,
             CopyablePanel.Group detail, boolean expanded,
             BiConsumer<CopyablePanel.Group, Boolean> filter, boolean filtered) {
-      return new TrackContainer.Group<T, D>(
-          summary, detail, expanded, filter, filtered, new PinState(state));
+      return new TrackContainer.Group<T, D>(state, id, summary, detail,
+          state.isExpanded(id, expanded), filter, filtered, new PinState(state));
     }
 
     @Override
     public TrackContainer.Group<T, D> copy() {
-      return new TrackContainer.Group<T, D>(
+      return new TrackContainer.Group<T, D>(state, id,
           summary.copy(), detail.copy(), expanded, filter, filtered, pinState);
     }
 
+    // Remembers the expanded state, so that it is kept when the panels are re-created.
+    private void setExpanded(boolean expanded) {
+      this.expanded = expanded;
+      state.setExpanded(id, expanded);
+    }
+
     @Override
     public double getPreferredHeight() {
       return expanded ? TITLE_HEIGHT + detail.getPreferredHeight() : summary.getPreferredHeight();
@@ -257,6 +357,7 @@ public class TrackContainer {
 
     @Override
     public void render(RenderContext ctx, Repainter repainter) {
+      detail.onShown();
       if (expanded) {
         ctx.setBackgroundColor(colors().titleBackground);
         ctx.fillRect(0, 0, width, TITLE_HEIGHT);
@@ -337,11 +438,12 @@ public class TrackContainer {
         double redraw = (pinEnd > LABEL_WIDTH) ? pinEnd + LABEL_MARGIN : 0;
         if (expanded) {
           if (x < textEnd) {
-            return new TrackTitleHover(Hover.NONE, redraw, () -> expanded = false);
+            return new TrackTitleHover(Hover.NONE, redraw, () -> setExpanded(false));
           }
         } else {
           if (x < Math.min(textEnd, LABEL_PIN_X - LABEL_MARGIN)) {
-            return new TrackTitleHover(summary.onMouseMove(m, x, y, mods), redraw, () -> expanded = true);
+            return new TrackTitleHover(
+                summary.onMouseMove(m, x, y, mods), redraw, () -> setExpanded(true));
           }
           toggleEnd = LABEL_PIN_X;
           pinEnd = LABEL_WIDTH;
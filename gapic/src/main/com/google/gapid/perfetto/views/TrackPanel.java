@@ -25,14 +25,20 @@ import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.perfetto.TimeSpan;
 import com.google.gapid.perfetto.canvas.Area;
 import com.google.gapid.perfetto.canvas.Fonts;
 import com.google.gapid.perfetto.canvas.Panel;
 import com.google.gapid.perfetto.canvas.RenderContext;
 import com.google.gapid.perfetto.canvas.Size;
+import com.google.gapid.perfetto.canvas.TileCache;
 import com.google.gapid.perfetto.models.Track;
 
+import org.eclipse.swt.graphics.Cursor;
+import org.eclipse.swt.widgets.Display;
+
 import java.util.List;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 /**
@@ -46,6 +52,11 @@ public abstract class TrackPanel<T extends TrackPanel<T>> extends Panel.Base
 
   protected final State state;
   protected Tooltip tooltip;
+  private final TileCache tile = new TileCache();
+  // Incremented whenever the rendering of the track changes, other than via the state or a hover.
+  private int version = 0;
+  // Whether the track area is hovered. Hovers are not cached, see render(..).
+  private boolean hovered = false;
 
   public TrackPanel(State state) {
     this.state = state;
@@ -58,13 +69,33 @@ public abstract class TrackPanel<T extends TrackPanel<T>> extends Panel.Base
 
   public abstract double getHeight();
 
+  /**
+   * Returns the track displayed by this panel.
+   */
+  protected abstract Track<?> getTrack();
+
   @Override
   public void render(RenderContext ctx, Repainter repainter) {
     double w = width - LABEL_WIDTH, h = height - 2 * TRACK_MARGIN;
-    drawGridLines(ctx, state, LABEL_WIDTH, 0, w, height);
-    ctx.withTranslation(LABEL_WIDTH, TRACK_MARGIN, () ->
-      ctx.withClip(0, -TRACK_MARGIN, w, h + 2 * TRACK_MARGIN, () ->
-        renderTrack(ctx, repainter, w, h)));
+    // The track is on screen, even if its tile is drawn rather than the track rendered.
+    Track.getScheduler().markVisible(getTrack());
+    getTrack().prefetch(state.getPrefetchRequest());
+    // The bottom row, containing the container's border, is not part of the tile.
+    Consumer<RenderContext> render = tileCtx -> {
+      drawGridLines(tileCtx, state, 0, 0, w, height - 1);
+      tileCtx.withTranslation(0, TRACK_MARGIN, () ->
+        tileCtx.withClip(0, -TRACK_MARGIN, w, h + 2 * TRACK_MARGIN, () ->
+          renderTrack(tileCtx, repainter, w, h)));
+    };
+    if (hovered) {
+      // The hover follows the mouse. Render directly, keeping the tile for once the hover stops.
+      tile.renderUncached(ctx, LABEL_WIDTH, 0, w, height - 1, colors().background, render);
+    } else {
+      TileKey key = new TileKey(state.getVisibleTime(), width, height, state.getRenderVersion(),
+          version, getTrack().getDataVersion(), colors());
+      tile.render(ctx, LABEL_WIDTH, 0, w, height - 1, colors().background, key, render);
+    }
+    drawGridLines(ctx, state, LABEL_WIDTH, height - 1, w, 1);
 
     if (tooltip != null) {
       ctx.addOverlay(() -> {
@@ -94,6 +125,44 @@ public abstract class TrackPanel<T extends TrackPanel<T>> extends Panel.Base
 
   @Override
   public Hover onMouseMove(Fonts.TextMeasurer m, double x, double y, int mods) {
+    Hover hover = onPanelMouseMove(m, x, y, mods);
+    if (hover == Hover.NONE) {
+      return hover;
+    }
+    // The hovered track is rendered without its tile, until the hover stops. A click may change
+    // the rendering of the track for good.
+    hovered = !hover.isOverlay();
+    return new Hover() {
+      @Override
+      public Area getRedraw() {
+        return hover.getRedraw();
+      }
+
+      @Override
+      public Cursor getCursor(Display display) {
+        return hover.getCursor(display);
+      }
+
+      @Override
+      public void stop() {
+        hovered = false;
+        hover.stop();
+      }
+
+      @Override
+      public boolean isOverlay() {
+        return hover.isOverlay();
+      }
+
+      @Override
+      public boolean click() {
+        version++;
+        return hover.click();
+      }
+    };
+  }
+
+  private Hover onPanelMouseMove(Fonts.TextMeasurer m, double x, double y, int mods) {
     if (x < LABEL_WIDTH) {
       String text = getTooltip();
       if (text.isEmpty()) {
@@ -134,7 +203,10 @@ public abstract class TrackPanel<T extends TrackPanel<T>> extends Panel.Base
 
   // Helper functions for the track.getData(..) calls.
   protected <D> Track.OnUiThread<D> onUiThread(Repainter repainter) {
-    return onUiThread(state, () -> repainter.repaint(new Area(0, 0, width, height)));
+    return onUiThread(state, () -> {
+      version++;
+      repainter.repaint(new Area(0, 0, width, height));
+    });
   }
 
   public static <D> Track.OnUiThread<D> onUiThread(State state, Runnable repaint) {
@@ -163,6 +235,42 @@ public abstract class TrackPanel<T extends TrackPanel<T>> extends Panel.Base
     return getSliceColor(title, 0);
   }
 
+  private static class TileKey {
+    private final TimeSpan visible;
+    private final double width, height;
+    private final int stateVersion, panelVersion, dataVersion;
+    private final StyleConstants.Colors colors;
+
+    public TileKey(TimeSpan visible, double width, double height, int stateVersion,
+        int panelVersion, int dataVersion, StyleConstants.Colors colors) {
+      this.visible = visible;
+      this.width = width;
+      this.height = height;
+      this.stateVersion = stateVersion;
+      this.panelVersion = panelVersion;
+      this.dataVersion = dataVersion;
+      this.colors = colors;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      } else if (!(obj instanceof TileKey)) {
+        return false;
+      }
+      TileKey o = (TileKey)obj;
+      return visible.equals(o.visible) && width == o.width && height == o.height &&
+          stateVersion == o.stateVersion && panelVersion == o.panelVersion &&
+          dataVersion == o.dataVersion && colors == o.colors;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(visible, width, height, stateVersion, panelVersion, dataVersion);
+    }
+  }
+
   private static class Tooltip {
     private static final Splitter LINE_SPLITTER =
         Splitter.on(CharMatcher.anyOf("\r\n")).omitEmptyStrings().trimResults();
@@ -28,10 +28,13 @@ import com.google.gapid.perfetto.canvas.Fonts;
 import com.google.gapid.perfetto.canvas.Fonts.TextMeasurer;
 import com.google.gapid.perfetto.canvas.RenderContext;
 import com.google.gapid.perfetto.canvas.Size;
+import com.google.gapid.perfetto.models.GpuFlows;
 import com.google.gapid.perfetto.models.GpuInfo;
 import com.google.gapid.perfetto.models.Selection;
 import com.google.gapid.perfetto.models.Selection.CombiningBuilder;
+import com.google.gapid.perfetto.models.SliceTrack;
 import com.google.gapid.perfetto.models.VulkanEventTrack;
+import com.google.gapid.util.SortedLongSet;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Cursor;
@@ -55,6 +58,9 @@ public class VulkanEventPanel extends TrackPanel<VulkanEventPanel> implements Se
   protected double mouseXpos, mouseYpos;
   protected String hoveredName;
   protected Size hoveredSize = Size.ZERO;
+  // The submission ids of the selected GPU queue slices, cached for the selection.
+  private Selection<SliceTrack.Slice.Key> linkedSelection;
+  private SortedLongSet linkedSubmissions = SortedLongSet.EMPTY;
 
   public VulkanEventPanel(State state, GpuInfo.VkApiEvent vkApiEvent, VulkanEventTrack track) {
     super(state);
@@ -77,6 +83,11 @@ public class VulkanEventPanel extends TrackPanel<VulkanEventPanel> implements Se
     return SLICE_Y + vkApiEvent.maxDepth * SLICE_HEIGHT;
   }
 
+  @Override
+  protected VulkanEventTrack getTrack() {
+    return track;
+  }
+
   @Override
   protected void renderTrack(RenderContext ctx, Repainter repainter, double w, double h) {
     ctx.trace("VulkanEvents", () -> {
@@ -90,6 +101,7 @@ public class VulkanEventPanel extends TrackPanel<VulkanEventPanel> implements Se
       TimeSpan visible = state.getVisibleTime();
       Selection<Long> selected = state.getSelection(Selection.Kind.VulkanEvent);
       List<Integer> visibleSelected = Lists.newArrayList();
+      SortedLongSet linked = getLinkedSubmissions(repainter);
 
       for (int i = 0; i < data.starts.length; i++) {
         long tStart = data.starts[i];
@@ -103,10 +115,13 @@ public class VulkanEventPanel extends TrackPanel<VulkanEventPanel> implements Se
         double rectWidth = Math.max(1, state.timeToPx(tEnd) - rectStart);
         double y = SLICE_Y + depth * SLICE_HEIGHT;
 
-        getSliceColor(data.names[i]).applyBase(ctx);
+        // Grey out if there's a GPU queue selection but this event is not linked to it.
+        StyleConstants.Gradient color = getSliceColor(data.names[i]);
+        boolean isLinked = linked.contains(data.submissionIds[i]);
+        ctx.setBackgroundColor((!linked.isEmpty() && !isLinked) ? color.disabled : color.base);
         ctx.fillRect(rectStart, y, rectWidth, SLICE_HEIGHT);
 
-        if (selected.contains(data.ids[i])) {
+        if (selected.contains(data.ids[i]) || isLinked) {
           visibleSelected.add(i);
         }
 
@@ -147,6 +162,22 @@ public class VulkanEventPanel extends TrackPanel<VulkanEventPanel> implements Se
     });
   }
 
+  // Returns the submission ids of the selected GPU queue slices, looked up in the flow index.
+  private SortedLongSet getLinkedSubmissions(Repainter repainter) {
+    Selection<SliceTrack.Slice.Key> selected = state.getSelection(Selection.Kind.Gpu);
+    if (selected == Selection.EMPTY_SELECTION) {
+      return SortedLongSet.EMPTY;
+    } else if (selected != linkedSelection) {
+      GpuFlows.Index index = state.getGpuInfo().flows().getIndex(this, onUiThread(repainter));
+      if (index == null) {
+        return SortedLongSet.EMPTY;
+      }
+      linkedSelection = selected;
+      linkedSubmissions = index.getSubmissions(selected);
+    }
+    return linkedSubmissions;
+  }
+
   @Override
   protected Hover onTrackMouseMove(TextMeasurer m, double x, double y, int mods) {
     VulkanEventTrack.Data data = track.getData(state.toRequest(), onUiThread());
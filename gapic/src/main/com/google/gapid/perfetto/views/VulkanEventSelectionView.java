@@ -17,20 +17,27 @@
 package com.google.gapid.perfetto.views;
 
 import static com.google.gapid.perfetto.TimeSpan.timeToString;
+import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.widgets.Widgets.createBoldLabel;
 import static com.google.gapid.widgets.Widgets.createComposite;
 import static com.google.gapid.widgets.Widgets.createLabel;
+import static com.google.gapid.widgets.Widgets.createLink;
 import static com.google.gapid.widgets.Widgets.withIndents;
 import static com.google.gapid.widgets.Widgets.withLayoutData;
 import static com.google.gapid.widgets.Widgets.withMargin;
 import static com.google.gapid.widgets.Widgets.withSpans;
 
 import com.google.common.collect.Iterables;
+import com.google.gapid.perfetto.models.GpuFlows;
+import com.google.gapid.perfetto.models.Selection;
 import com.google.gapid.perfetto.models.VulkanEventTrack;
+import com.google.gapid.util.SortedLongSet;
+
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Label;
 
 /**
  * Displays information about a selected Vulkan API event.
@@ -62,6 +69,29 @@ public class VulkanEventSelectionView extends Composite {
     createLabel(main, "Submission ID:");
     createLabel(main, Long.toString(slice.submissionId));
 
+    GpuFlows flows = state.getGpuInfo().flows();
+    if (slice.commandBuffer != 0) {
+      createLabel(main, "Render Passes:");
+      Label passes = createLabel(main, "Loading...");
+      state.thenOnUiThread(flows.getIndex(), index -> {
+        if (!passes.isDisposed()) {
+          StringBuilder sb = new StringBuilder();
+          index.getRenderPasses(slice.commandBuffer).forEach(pass ->
+              sb.append((sb.length() == 0) ? "" : ", ").append(String.format("0x%08X", pass)));
+          passes.setText((sb.length() == 0) ? "None" : sb.toString());
+          passes.requestLayout();
+        }
+      });
+    }
+
+    if (slice.submissionId != 0) {
+      SortedLongSet submission = new SortedLongSet.Builder(1).add(slice.submissionId).build();
+      withLayoutData(createLink(main, "<a>Select related GPU queue work</a>", e ->
+          state.addSelection(Selection.Kind.Gpu,
+              transform(flows.getIndex(), index -> index.selectQueueSlices(submission).build()))),
+          withSpans(new GridData(), 2, 1));
+    }
+
     if (!slice.args.isEmpty()) {
       String[] keys = Iterables.toArray(slice.args.keys(), String.class);
       int panels = (keys.length + PROPERTIES_PER_PANEL - 1) / PROPERTIES_PER_PANEL;
@@ -247,6 +247,10 @@ public class Client {
 
   }
 
+  /**
+   * Runs the given query in the trace processor. Cancelling the returned future cancels the
+   * underlying gRPC call, or prevents it from being issued, if it has not been sent yet.
+   */
   public ListenableFuture<Perfetto.QueryResult> perfettoQuery(Path.Capture capture, String query) {
     return call(() -> String.format("RPC->perfettoQuery(%s, %s)", shortDebugString(capture), query),
         stack -> MoreFutures.transformAsync(
@@ -295,6 +299,10 @@ public class Client {
     SettableFuture<V> result = SettableFuture.create();
     Stack stack = new Stack(stackMessage);
     Scheduler.EXECUTOR.execute(() -> {
+      if (result.isCancelled()) {
+        // Abandoned before it was sent, don't bother the server.
+        return;
+      }
       if (LOG.isLoggable(FINE)) {
         LOG.log(FINE, stackMessage.get());
       }
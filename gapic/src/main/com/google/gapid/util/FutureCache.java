@@ -67,6 +67,12 @@ public class FutureCache<K, V> {
     return cache.getIfPresent(key);
   }
 
+  public void put(K key, V value) {
+    if (shouldCache.test(value)) {
+      cache.put(key, value);
+    }
+  }
+
   public void clear() {
     cache.invalidateAll();
   }
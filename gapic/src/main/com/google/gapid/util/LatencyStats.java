@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.util;
+
+import static java.lang.String.format;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent samples of a latency, e.g. of a paint or a data fetch, and computes their
+ * percentiles.
+ */
+public class LatencyStats {
+  private final long[] samples; // guarded by this
+  private int next = 0; // guarded by this
+  private long count = 0; // guarded by this
+
+  public LatencyStats(int maxSamples) {
+    this.samples = new long[Math.max(1, maxSamples)];
+  }
+
+  public synchronized void add(long nanos) {
+    samples[next] = nanos;
+    next = (next + 1) % samples.length;
+    count++;
+  }
+
+  /**
+   * Returns the total number of samples added, including the ones no longer kept.
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the given percentiles, in [0, 100], of the kept samples, in nanoseconds. The
+   * percentiles are 0 if there are no samples.
+   */
+  public long[] percentiles(double... ps) {
+    long[] sorted;
+    synchronized (this) {
+      sorted = Arrays.copyOf(samples, (int)Math.min(count, samples.length));
+    }
+    Arrays.sort(sorted);
+
+    long[] result = new long[ps.length];
+    for (int i = 0; sorted.length > 0 && i < ps.length; i++) {
+      int idx = (int)Math.ceil(ps[i] / 100 * sorted.length) - 1;
+      result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+    }
+    return result;
+  }
+
+  /**
+   * Returns the p50, p95 and p99 of the kept samples, in milliseconds, and the total count.
+   */
+  public String summary() {
+    long[] p = percentiles(50, 95, 99);
+    return format("p50 %.1fms, p95 %.1fms, p99 %.1fms, n %d",
+        p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, getCount());
+  }
+
+  @Override
+  public String toString() {
+    return "LatencyStats{" + summary() + "}";
+  }
+}
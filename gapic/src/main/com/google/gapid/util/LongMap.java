@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.util;
+
+import java.util.function.LongFunction;
+
+/**
+ * A hash map from primitive long keys to non-null values, using open addressing with linear
+ * probing, so that neither the keys nor the entries are boxed. Entries can't be removed. Not
+ * thread safe.
+ */
+public class LongMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values; // A slot is empty iff its value is null.
+  private int size = 0;
+
+  public LongMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < 2 * expectedSize) {
+      capacity *= 2;
+    }
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(long key) {
+    return values[find(key)] != null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    return (V)values[find(key)];
+  }
+
+  public V getOrDefault(long key, V dflt) {
+    V value = get(key);
+    return (value == null) ? dflt : value;
+  }
+
+  /**
+   * Associates the given value with the given key and returns the previous value, or
+   * {@code null} if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("LongMap values can't be null");
+    }
+    int slot = find(key);
+    V old = (V)values[slot];
+    keys[slot] = key;
+    values[slot] = value;
+    if (old == null && ++size * 2 > keys.length) {
+      grow();
+    }
+    return old;
+  }
+
+  /**
+   * Returns the value of the given key, computing and adding it first, if absent.
+   */
+  public V computeIfAbsent(long key, LongFunction<V> compute) {
+    V value = get(key);
+    if (value == null) {
+      put(key, value = compute.apply(key));
+    }
+    return value;
+  }
+
+  /**
+   * Invokes the given visitor for every entry, in no particular order.
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(Visitor<? super V> visitor) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        visitor.visit(keys[i], (V)values[i]);
+      }
+    }
+  }
+
+  // Returns the slot of the given key, or the empty slot where it would be inserted.
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (values[slot] != null && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  public static interface Visitor<V> {
+    public void visit(long key, V value);
+  }
+}
@@ -23,6 +23,7 @@ public class OS {
   public static final String arch;
   public static final boolean isWindows, isMac, isLinux;
   public static final String userHomeDir;
+  public static final String userCacheDir;
   public static final String exeExtension;
   public static final String cwd;
 
@@ -33,10 +34,26 @@ public class OS {
     isMac = name.indexOf("mac") >= 0;
     isLinux = name.indexOf("nux") >= 0;
     userHomeDir = System.getProperty("user.home", ".");
+    userCacheDir = getUserCacheDir();
     exeExtension = isWindows ? ".exe" : "";
     cwd = java.nio.file.Paths.get(".").toAbsolutePath().toString();
   }
 
+  // Returns the platform's directory for the current user's cached data.
+  private static String getUserCacheDir() {
+    if (isWindows) {
+      String localAppData = System.getenv("LOCALAPPDATA");
+      return (localAppData != null && !localAppData.isEmpty()) ? localAppData :
+          new File(userHomeDir, "AppData/Local").getPath();
+    } else if (isMac) {
+      return new File(userHomeDir, "Library/Caches").getPath();
+    } else {
+      String xdgCache = System.getenv("XDG_CACHE_HOME");
+      return (xdgCache != null && !xdgCache.isEmpty()) ? xdgCache :
+          new File(userHomeDir, ".cache").getPath();
+    }
+  }
+
   public static void openFileInSystemExplorer(File file) throws IOException {
     String cmd = getSystemExplorerCommand(file.toURI().toString(), file.isDirectory());
     if (isLinux || isMac) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * An immutable set of primitive longs, stored as a sorted array, so that membership is a binary
+ * search and none of the values are boxed.
+ */
+public class SortedLongSet {
+  public static final SortedLongSet EMPTY = new SortedLongSet(new long[0]);
+
+  private final long[] values;
+
+  private SortedLongSet(long[] values) {
+    this.values = values;
+  }
+
+  public int size() {
+    return values.length;
+  }
+
+  public boolean isEmpty() {
+    return values.length == 0;
+  }
+
+  public boolean contains(long value) {
+    return Arrays.binarySearch(values, value) >= 0;
+  }
+
+  /**
+   * Invokes the given consumer for every value, in increasing order.
+   */
+  public void forEach(LongConsumer consumer) {
+    for (long value : values) {
+      consumer.accept(value);
+    }
+  }
+
+  /**
+   * Collects values, in any order and with duplicates, into a {@link SortedLongSet}.
+   */
+  public static class Builder {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] values;
+    private int size = 0;
+
+    public Builder() {
+      this(MIN_CAPACITY);
+    }
+
+    public Builder(int expectedSize) {
+      this.values = new long[Math.max(MIN_CAPACITY, expectedSize)];
+    }
+
+    public Builder add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size++] = value;
+      return this;
+    }
+
+    public Builder addAll(SortedLongSet set) {
+      return addAll(set.values, set.values.length);
+    }
+
+    public Builder addAll(Builder other) {
+      return addAll(other.values, other.size);
+    }
+
+    private Builder addAll(long[] toAdd, int count) {
+      if (size + count > values.length) {
+        values = Arrays.copyOf(values, Math.max(2 * values.length, size + count));
+      }
+      System.arraycopy(toAdd, 0, values, size, count);
+      size += count;
+      return this;
+    }
+
+    public SortedLongSet build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+
+      long[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      int unique = 1;
+      for (int i = 1; i < sorted.length; i++) {
+        if (sorted[i] != sorted[unique - 1]) {
+          sorted[unique++] = sorted[i];
+        }
+      }
+      return new SortedLongSet((unique == sorted.length) ? sorted : Arrays.copyOf(sorted, unique));
+    }
+  }
+}